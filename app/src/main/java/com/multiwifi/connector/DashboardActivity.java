@@ -31,8 +31,11 @@ import com.multiwifi.connector.service.MultiWifiService;
 import com.multiwifi.connector.util.LoadBalancer;
 import com.multiwifi.connector.viewmodel.DashboardViewModel;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Dashboard activity showing network connections and status
@@ -40,6 +43,9 @@ import java.util.List;
 public class DashboardActivity extends AppCompatActivity implements 
         NetworksAdapter.OnNetworkClickListener, MultiWifiService.ConnectionListener {
     
+    // Size of the packet capture ring file
+    private static final int CAPTURE_FILE_BYTES = 4 * 1024 * 1024;
+    
     private DeviceCapabilities capabilities;
     private DashboardViewModel viewModel;
     private MultiWifiService wifiService;
@@ -338,7 +344,11 @@ public class DashboardActivity extends AppCompatActivity implements
                 "Adaptive (Smart)",
                 "Speed-Based",
                 "Latency-Based",
-                "Round Robin (Equal)"
+                "Round Robin (Equal)",
+                "Learning (Bandit)",
+                "Fastest Completion (Optimal)",
+                "Least Loaded",
+                "Power Saving"
         };
         
         // Get current strategy
@@ -355,6 +365,18 @@ public class DashboardActivity extends AppCompatActivity implements
             case ROUND_ROBIN:
                 checkedItem = 3;
                 break;
+            case BANDIT:
+                checkedItem = 4;
+                break;
+            case OPTIMAL:
+                checkedItem = 5;
+                break;
+            case LEAST_LOADED:
+                checkedItem = 6;
+                break;
+            case POWER_SAVING:
+                checkedItem = 7;
+                break;
             case ADAPTIVE:
             default:
                 checkedItem = 0;
@@ -376,6 +398,18 @@ public class DashboardActivity extends AppCompatActivity implements
                         case 3:
                             strategy = LoadBalancer.Strategy.ROUND_ROBIN;
                             break;
+                        case 4:
+                            strategy = LoadBalancer.Strategy.BANDIT;
+                            break;
+                        case 5:
+                            strategy = LoadBalancer.Strategy.OPTIMAL;
+                            break;
+                        case 6:
+                            strategy = LoadBalancer.Strategy.LEAST_LOADED;
+                            break;
+                        case 7:
+                            strategy = LoadBalancer.Strategy.POWER_SAVING;
+                            break;
                         case 0:
                         default:
                             strategy = LoadBalancer.Strategy.ADAPTIVE;
@@ -384,11 +418,100 @@ public class DashboardActivity extends AppCompatActivity implements
                     
                     wifiService.setLoadBalancingStrategy(strategy);
                     dialog.dismiss();
+                    
+                    if (strategy == LoadBalancer.Strategy.POWER_SAVING) {
+                        showMinimumThroughputSettings();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    /**
+     * Shows the dialog for the throughput the power saving strategy keeps available
+     */
+    private void showMinimumThroughputSettings() {
+        if (wifiService == null || !isBound) {
+            return;
+        }
+        
+        double[] throughputs = {0, 5, 10, 25, 50};
+        CharSequence[] items = {
+                "Most efficient network only",
+                "At least 5 Mbps",
+                "At least 10 Mbps",
+                "At least 25 Mbps",
+                "At least 50 Mbps"
+        };
+        
+        // Get current minimum
+        double currentThroughput = wifiService.getMinimumThroughput();
+        int checkedItem = 0;
+        for (int i = 0; i < throughputs.length; i++) {
+            if (throughputs[i] <= currentThroughput) {
+                checkedItem = i;
+            }
+        }
+        
+        new AlertDialog.Builder(this)
+                .setTitle("Minimum Throughput")
+                .setSingleChoiceItems(items, checkedItem, (dialog, which) -> {
+                    wifiService.setMinimumThroughput(throughputs[which]);
+                    dialog.dismiss();
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
     }
     
+    /**
+     * Shows the VPN datapath counters, with a button to start or stop a packet capture
+     */
+    private void showDatapathStatistics() {
+        if (wifiService == null || !isBound) {
+            return;
+        }
+        
+        StringBuilder message = new StringBuilder();
+        message.append("Migrated flows: ").append(wifiService.getMigratedFlowCount()).append("\n");
+        message.append("Reset flows: ").append(wifiService.getDroppedFlowCount()).append("\n");
+        message.append("Reallocations: ").append(wifiService.getReallocationCount())
+                .append(String.format(" (last moved %.1f%%, %.1f%% in total)",
+                        wifiService.getLastReallocationShift(), wifiService.getTotalReallocationShift()))
+                .append("\n");
+        
+        Map<String, Long> clamped = wifiService.getClampedFlowCounts();
+        for (Map.Entry<String, long[]> entry : wifiService.getTunnelQueueStats().entrySet()) {
+            long[] stats = entry.getValue();
+            Long clampedFlows = clamped.get(entry.getKey());
+            message.append("\n").append(entry.getKey()).append("\n")
+                    .append("  Queue credit: ").append(stats[0]).append("\n")
+                    .append("  ECN-marked packets: ").append(stats[1]).append("\n")
+                    .append("  Dropped packets: ").append(stats[2]).append("\n")
+                    .append("  MSS-clamped flows: ").append(clampedFlows != null ? clampedFlows : 0).append("\n");
+        }
+        
+        boolean capturing = wifiService.isCapturing();
+        new AlertDialog.Builder(this)
+                .setTitle("Datapath Statistics")
+                .setMessage(message.toString())
+                .setNeutralButton(capturing ? "Stop Capture" : "Start Capture", (dialog, which) -> {
+                    if (capturing) {
+                        wifiService.stopCapture();
+                        Toast.makeText(this, "Capture stopped", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    try {
+                        File file = wifiService.startCapture(null, CAPTURE_FILE_BYTES);
+                        Toast.makeText(this, "Capturing to " + file, Toast.LENGTH_SHORT).show();
+                    } catch (IOException | IllegalStateException e) {
+                        Toast.makeText(this, "Could not start capture: " + e.getMessage(),
+                                Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setPositiveButton("OK", null)
+                .show();
+    }
+    
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.dashboard_menu, menu);
@@ -414,6 +537,9 @@ public class DashboardActivity extends AppCompatActivity implements
         } else if (id == R.id.action_settings) {
             showLoadBalancingSettings();
             return true;
+        } else if (id == R.id.action_datapath) {
+            showDatapathStatistics();
+            return true;
         } else if (id == R.id.action_help) {
             // Show help dialog
             new AlertDialog.Builder(this)
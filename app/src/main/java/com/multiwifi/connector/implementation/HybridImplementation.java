@@ -7,7 +7,10 @@ import android.net.NetworkCapabilities;
 import android.util.Log;
 
 import com.multiwifi.connector.model.ConnectionMethod;
+import com.multiwifi.connector.model.LinkType;
 import com.multiwifi.connector.model.NetworkConnection;
+import com.multiwifi.connector.util.CapacityEstimator;
+import com.multiwifi.connector.util.LoadBalancer;
 import com.multiwifi.connector.util.NetworkUtils;
 
 import java.util.ArrayList;
@@ -25,6 +28,7 @@ public class HybridImplementation implements MultiWifiImplementation {
     private final List<NetworkConnection> connectedNetworks = new ArrayList<>();
     private ConnectivityManager connectivityManager;
     private NetworkConnection cellularNetwork;
+    private Network cellularHandle;
     
     @Override
     public boolean initialize(Context context) {
@@ -50,6 +54,8 @@ public class HybridImplementation implements MultiWifiImplementation {
                 -50 // Simulate signal strength
         );
         cellularNetwork.setConnectionMethod(ConnectionMethod.HYBRID);
+        cellularNetwork.setLinkType(LinkType.CELLULAR);
+        cellularNetwork.setNetwork(cellularHandle);
         
         isInitialized = true;
         return true;
@@ -61,6 +67,7 @@ public class HybridImplementation implements MultiWifiImplementation {
         for (Network network : networks) {
             NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
             if (capabilities != null && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+                cellularHandle = network;
                 // Test cellular speed
                 testCellularSpeed();
                 return true;
@@ -76,6 +83,8 @@ public class HybridImplementation implements MultiWifiImplementation {
             public void onSpeedTested(double speedMbps) {
                 if (cellularNetwork != null) {
                     cellularNetwork.setSpeedMbps(speedMbps);
+                    LoadBalancer.getCapacityEstimator().update(cellularNetwork.getSsid(),
+                            CapacityEstimator.Source.SPEED_TEST, speedMbps, System.currentTimeMillis());
                     Log.d(TAG, "Cellular speed: " + speedMbps + " Mbps");
                 }
             }
@@ -158,6 +167,8 @@ public class HybridImplementation implements MultiWifiImplementation {
             @Override
             public void onSpeedTested(double speedMbps) {
                 network.setSpeedMbps(speedMbps);
+                LoadBalancer.getCapacityEstimator().update(network.getSsid(),
+                        CapacityEstimator.Source.SPEED_TEST, speedMbps, System.currentTimeMillis());
                 Log.d(TAG, "Speed test for " + network.getSsid() + ": " + speedMbps + " Mbps");
             }
             
@@ -221,8 +232,11 @@ public class HybridImplementation implements MultiWifiImplementation {
         // In hybrid implementation, we adjust how traffic is split between WiFi and cellular
         Log.d(TAG, "Updated traffic allocation for hybrid connections");
         
-        for (NetworkConnection network : networks) {
-            Log.d(TAG, network.getSsid() + " allocation: " + network.getAllocationPercentage() + "%");
+        // Allocations can be updated often; only build the per-network lines if they are shown
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            for (NetworkConnection network : networks) {
+                Log.d(TAG, network.getSsid() + " allocation: " + network.getAllocationPercentage() + "%");
+            }
         }
     }
     
@@ -13,6 +13,8 @@ import androidx.annotation.RequiresApi;
 
 import com.multiwifi.connector.model.ConnectionMethod;
 import com.multiwifi.connector.model.NetworkConnection;
+import com.multiwifi.connector.util.CapacityEstimator;
+import com.multiwifi.connector.util.LoadBalancer;
 import com.multiwifi.connector.util.NetworkUtils;
 
 import java.util.ArrayList;
@@ -96,6 +98,7 @@ public class NativeMultiWifiImplementation implements MultiWifiImplementation {
                 
                 // Store the network and callback
                 networkMap.put(network.getSsid(), newNetwork);
+                network.setNetwork(newNetwork);
                 
                 // Update connection status
                 network.setConnected(true);
@@ -116,6 +119,7 @@ public class NativeMultiWifiImplementation implements MultiWifiImplementation {
                 
                 // Remove from maps
                 networkMap.remove(network.getSsid());
+                network.setNetwork(null);
                 
                 // Update connection status
                 network.setConnected(false);
@@ -133,6 +137,8 @@ public class NativeMultiWifiImplementation implements MultiWifiImplementation {
                 int downstreamBandwidth = capabilities.getLinkDownstreamBandwidthKbps();
                 double speedMbps = downstreamBandwidth / 1000.0;
                 network.setSpeedMbps(speedMbps);
+                LoadBalancer.getCapacityEstimator().update(network.getSsid(),
+                        CapacityEstimator.Source.LINK_BANDWIDTH, speedMbps, System.currentTimeMillis());
                 
                 Log.d(TAG, "Network " + network.getSsid() + " speed: " + speedMbps + " Mbps");
             }
@@ -147,6 +153,8 @@ public class NativeMultiWifiImplementation implements MultiWifiImplementation {
             @Override
             public void onSpeedTested(double speedMbps) {
                 network.setSpeedMbps(speedMbps);
+                LoadBalancer.getCapacityEstimator().update(network.getSsid(),
+                        CapacityEstimator.Source.SPEED_TEST, speedMbps, System.currentTimeMillis());
                 Log.d(TAG, "Speed test for " + network.getSsid() + ": " + speedMbps + " Mbps");
             }
             
@@ -180,6 +188,7 @@ public class NativeMultiWifiImplementation implements MultiWifiImplementation {
         // Update status
         for (NetworkConnection network : connectedNetworks) {
             network.setConnected(false);
+            network.setNetwork(null);
         }
         connectedNetworks.clear();
         isConnected = false;
@@ -8,6 +8,8 @@ import android.util.Log;
 
 import com.multiwifi.connector.model.ConnectionMethod;
 import com.multiwifi.connector.model.NetworkConnection;
+import com.multiwifi.connector.util.CapacityEstimator;
+import com.multiwifi.connector.util.LoadBalancer;
 import com.multiwifi.connector.util.NetworkUtils;
 
 import java.util.ArrayList;
@@ -116,6 +118,8 @@ public class ProxyImplementation implements MultiWifiImplementation {
             @Override
             public void onSpeedTested(double speedMbps) {
                 network.setSpeedMbps(speedMbps);
+                LoadBalancer.getCapacityEstimator().update(network.getSsid(),
+                        CapacityEstimator.Source.SPEED_TEST, speedMbps, System.currentTimeMillis());
                 Log.d(TAG, "Speed test for " + network.getSsid() + ": " + speedMbps + " Mbps");
             }
             
@@ -186,8 +190,11 @@ public class ProxyImplementation implements MultiWifiImplementation {
         // Send allocation updates to the proxy server
         Log.d(TAG, "Sending allocation updates to proxy server");
         
-        for (NetworkConnection network : networks) {
-            Log.d(TAG, network.getSsid() + " allocation: " + network.getAllocationPercentage() + "%");
+        // Allocations can be updated often; only build the per-network lines if they are shown
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            for (NetworkConnection network : networks) {
+                Log.d(TAG, network.getSsid() + " allocation: " + network.getAllocationPercentage() + "%");
+            }
         }
     }
     
@@ -173,8 +173,11 @@ public class UsbWifiImplementation implements MultiWifiImplementation {
         // This would be implemented with actual USB commands to the adapter
         Log.d(TAG, "Updated traffic allocation on USB adapter");
         
-        for (NetworkConnection network : networks) {
-            Log.d(TAG, network.getSsid() + " allocation: " + network.getAllocationPercentage() + "%");
+        // Allocations can be updated often; only build the per-network lines if they are shown
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            for (NetworkConnection network : networks) {
+                Log.d(TAG, network.getSsid() + " allocation: " + network.getAllocationPercentage() + "%");
+            }
         }
     }
     
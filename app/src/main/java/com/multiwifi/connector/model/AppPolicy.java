@@ -0,0 +1,72 @@
+package com.multiwifi.connector.model;
+
+import com.multiwifi.connector.util.LoadBalancer;
+
+/**
+ * Routing policy for the traffic of one app (identified by its UID).
+ * An app is either pinned to a specific network, or routed to the best network
+ * according to a load balancing strategy (e.g. fastest for video, lowest latency
+ * for banking). Instances are immutable so they can be shared with the VPN datapath.
+ */
+public class AppPolicy {
+    public static final int UID_UNKNOWN = -1;
+
+    private final int uid;
+    private final String preferredSsid;
+    private final LoadBalancer.Strategy strategy;
+
+    private AppPolicy(int uid, String preferredSsid, LoadBalancer.Strategy strategy) {
+        this.uid = uid;
+        this.preferredSsid = preferredSsid;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Creates a policy pinning an app to a network
+     *
+     * @param uid UID of the app
+     * @param ssid SSID of the preferred network
+     * @return The policy
+     */
+    public static AppPolicy pinToNetwork(int uid, String ssid) {
+        return new AppPolicy(uid, ssid, null);
+    }
+
+    /**
+     * Creates a policy routing an app to the best network for a strategy
+     *
+     * @param uid UID of the app
+     * @param strategy Strategy used to pick the network
+     * @return The policy
+     */
+    public static AppPolicy useStrategy(int uid, LoadBalancer.Strategy strategy) {
+        return new AppPolicy(uid, null, strategy);
+    }
+
+    public int getUid() {
+        return uid;
+    }
+
+    /**
+     * @return SSID of the preferred network, or null if the policy uses a strategy
+     */
+    public String getPreferredSsid() {
+        return preferredSsid;
+    }
+
+    /**
+     * @return Strategy used to pick the network, or null if the policy pins a network
+     */
+    public LoadBalancer.Strategy getStrategy() {
+        return strategy;
+    }
+
+    @Override
+    public String toString() {
+        return "AppPolicy{" +
+                "uid=" + uid +
+                ", preferredSsid='" + preferredSsid + '\'' +
+                ", strategy=" + strategy +
+                '}';
+    }
+}
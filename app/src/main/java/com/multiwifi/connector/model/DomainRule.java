@@ -0,0 +1,53 @@
+package com.multiwifi.connector.model;
+
+import java.util.Locale;
+
+/**
+ * Hostname-based routing rule for the VPN. A rule for "example.com" matches
+ * example.com itself and every subdomain such as video.example.com; the longest
+ * matching suffix wins.
+ */
+public class DomainRule {
+    private final String suffix;
+    private final RoutingRule.Action action;
+    private final String ssid;
+
+    /**
+     * @param suffix Domain suffix, e.g. "googlevideo.com"
+     * @param action Action for matching traffic
+     * @param ssid Network to pin matching traffic to (PIN only)
+     */
+    public DomainRule(String suffix, RoutingRule.Action action, String ssid) {
+        String normalized = suffix.trim().toLowerCase(Locale.ROOT);
+        while (normalized.startsWith(".")) {
+            normalized = normalized.substring(1);
+        }
+        if (normalized.endsWith(".")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        this.suffix = normalized;
+        this.action = action;
+        this.ssid = ssid;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public RoutingRule.Action getAction() {
+        return action;
+    }
+
+    public String getSsid() {
+        return ssid;
+    }
+
+    @Override
+    public String toString() {
+        return "DomainRule{" +
+                "suffix='" + suffix + '\'' +
+                ", action=" + action +
+                (ssid != null ? ", ssid='" + ssid + '\'' : "") +
+                '}';
+    }
+}
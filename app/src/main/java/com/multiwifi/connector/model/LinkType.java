@@ -0,0 +1,16 @@
+package com.multiwifi.connector.model;
+
+/**
+ * Enum representing the kind of radio a network connection goes over
+ */
+public enum LinkType {
+    /**
+     * WiFi, through the built-in radio or a USB adapter
+     */
+    WIFI,
+    
+    /**
+     * Cellular data
+     */
+    CELLULAR
+}
@@ -1,5 +1,7 @@
 package com.multiwifi.connector.model;
 
+import android.net.Network;
+
 /**
  * Class representing a network connection with performance metrics
  */
@@ -9,9 +11,12 @@ public class NetworkConnection {
     private int signalStrength;
     private double speedMbps;
     private int latencyMs;
+    private double lossRate;
     private double allocationPercentage;
     private boolean isConnected;
     private ConnectionMethod connectionMethod;
+    private LinkType linkType;
+    private Network network;
 
     public NetworkConnection(String ssid, String bssid, int signalStrength) {
         this.ssid = ssid;
@@ -19,9 +24,11 @@ public class NetworkConnection {
         this.signalStrength = signalStrength;
         this.speedMbps = 0.0;
         this.latencyMs = 0;
+        this.lossRate = 0.0;
         this.allocationPercentage = 0.0;
         this.isConnected = false;
         this.connectionMethod = ConnectionMethod.PROXY;  // Default
+        this.linkType = LinkType.WIFI;
     }
 
     public String getSsid() {
@@ -64,6 +71,17 @@ public class NetworkConnection {
         this.latencyMs = latencyMs;
     }
 
+    /**
+     * @return Fraction of packets lost on this network, between 0 and 1
+     */
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
     public double getAllocationPercentage() {
         return allocationPercentage;
     }
@@ -88,6 +106,27 @@ public class NetworkConnection {
         this.connectionMethod = connectionMethod;
     }
 
+    public LinkType getLinkType() {
+        return linkType;
+    }
+
+    public void setLinkType(LinkType linkType) {
+        this.linkType = linkType;
+    }
+
+    /**
+     * Gets the system handle of this network, used to bind sockets to it
+     *
+     * @return The network, or null if it has not come up through ConnectivityManager
+     */
+    public Network getNetwork() {
+        return network;
+    }
+
+    public void setNetwork(Network network) {
+        this.network = network;
+    }
+
     @Override
     public String toString() {
         return "NetworkConnection{" +
@@ -96,9 +135,11 @@ public class NetworkConnection {
                 ", signalStrength=" + signalStrength +
                 ", speedMbps=" + speedMbps +
                 ", latencyMs=" + latencyMs +
+                ", lossRate=" + lossRate +
                 ", allocationPercentage=" + allocationPercentage +
                 ", isConnected=" + isConnected +
                 ", connectionMethod=" + connectionMethod +
+                ", linkType=" + linkType +
                 '}';
     }
 }
@@ -0,0 +1,96 @@
+package com.multiwifi.connector.model;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Destination-based routing rule for the VPN, e.g. bypass the LAN, pin a corporate
+ * range to one network or block a range entirely. The most specific matching rule wins.
+ */
+public class RoutingRule {
+
+    /**
+     * What to do with traffic matching the rule
+     */
+    public enum Action {
+        BYPASS,
+        PIN,
+        BLOCK
+    }
+
+    private final byte[] address;
+    private final int prefixLength;
+    private final Action action;
+    private final String ssid;
+
+    /**
+     * @param address IPv4 (4 bytes) or IPv6 (16 bytes) network address
+     * @param prefixLength Prefix length in bits
+     * @param action Action for matching traffic
+     * @param ssid Network to pin matching traffic to (PIN only)
+     */
+    public RoutingRule(byte[] address, int prefixLength, Action action, String ssid) {
+        this.address = address.clone();
+        this.prefixLength = prefixLength;
+        this.action = action;
+        this.ssid = ssid;
+    }
+
+    /**
+     * Parses a rule from CIDR notation, e.g. "192.168.0.0/16"
+     *
+     * @param cidr Numeric address and prefix length
+     * @param action Action for matching traffic
+     * @param ssid Network to pin matching traffic to (PIN only)
+     * @return The rule
+     * @throws IllegalArgumentException If the CIDR is malformed
+     */
+    public static RoutingRule parse(String cidr, Action action, String ssid) {
+        int slash = cidr.indexOf('/');
+        String host = slash >= 0 ? cidr.substring(0, slash) : cidr;
+        // Only numeric literals are accepted, so this never triggers a DNS lookup
+        if (host.isEmpty() || !host.matches("[0-9a-fA-F:.]+")) {
+            throw new IllegalArgumentException("Not a numeric address: " + cidr);
+        }
+        try {
+            byte[] address = InetAddress.getByName(host).getAddress();
+            int length = slash >= 0 ? Integer.parseInt(cidr.substring(slash + 1)) : address.length * 8;
+            if (length < 0 || length > address.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+            }
+            return new RoutingRule(address, length, action, ssid);
+        } catch (UnknownHostException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid CIDR: " + cidr, e);
+        }
+    }
+
+    public byte[] getAddress() {
+        return address.clone();
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public String getSsid() {
+        return ssid;
+    }
+
+    @Override
+    public String toString() {
+        String host;
+        try {
+            host = InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            host = "?";
+        }
+        return "RoutingRule{" + host + "/" + prefixLength +
+                ", action=" + action +
+                (ssid != null ? ", ssid='" + ssid + '\'' : "") +
+                '}';
+    }
+}
@@ -25,14 +25,21 @@ import com.multiwifi.connector.implementation.NativeMultiWifiImplementation;
 import com.multiwifi.connector.implementation.ProxyImplementation;
 import com.multiwifi.connector.implementation.UsbWifiImplementation;
 import com.multiwifi.connector.implementation.VpnImplementation;
+import com.multiwifi.connector.model.AppPolicy;
 import com.multiwifi.connector.model.ConnectionMethod;
 import com.multiwifi.connector.model.DeviceCapabilities;
+import com.multiwifi.connector.model.DomainRule;
 import com.multiwifi.connector.model.NetworkConnection;
+import com.multiwifi.connector.model.RoutingRule;
 import com.multiwifi.connector.util.DeviceCapabilityDetector;
 import com.multiwifi.connector.util.LoadBalancer;
+import com.multiwifi.connector.vpn.TrafficMeter;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -44,6 +51,7 @@ public class MultiWifiService extends Service {
     private static final int NOTIFICATION_ID = 1001;
     private static final String CHANNEL_ID = "MultiWifiServiceChannel";
     private static final long UPDATE_INTERVAL = 5000; // 5 seconds
+    private static final long SPEED_INTERVAL = 1000; // 1 second
     
     private final IBinder binder = new LocalBinder();
     private MultiWifiImplementation implementation;
@@ -55,6 +63,8 @@ public class MultiWifiService extends Service {
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private Timer updateTimer;
     private LoadBalancer loadBalancer;
+    // Damping of this service's allocations, apart from the VPN's
+    private final LoadBalancer.Damping damping = new LoadBalancer.Damping();
     
     /**
      * Interface for connection status listeners
@@ -79,7 +89,7 @@ public class MultiWifiService extends Service {
         super.onCreate();
         
         // Initialize load balancer
-        loadBalancer = new LoadBalancer();
+        loadBalancer = LoadBalancer.getShared();
         
         // Detect device capabilities
         capabilities = DeviceCapabilityDetector.detectCapabilities(this);
@@ -258,7 +268,10 @@ public class MultiWifiService extends Service {
     }
     
     /**
-     * Gets the combined speed of all connected networks
+     * Gets the combined speed of all connected networks. With the VPN this is the
+     * upload throughput measured over the last second, since the VPN only sees the
+     * sending side; other implementations cannot see the traffic and report their
+     * estimate.
      * 
      * @return Combined speed in Mbps
      */
@@ -267,9 +280,178 @@ public class MultiWifiService extends Service {
             return 0.0;
         }
         
+        if (currentMethod == ConnectionMethod.VPN) {
+            return MultiWifiVpnService.getTrafficRates().getTotalMbps();
+        }
+        
         return implementation.getCombinedSpeed();
     }
     
+    /**
+     * Gets the upload throughput measured by the VPN over the last second
+     * 
+     * @return Rates per link, app and flow class
+     */
+    public TrafficMeter.Rates getTrafficRates() {
+        return MultiWifiVpnService.getTrafficRates();
+    }
+    
+    /**
+     * Gets the latency of each VPN datapath stage and of the writes to each link
+     * 
+     * @return Map of stage name (or "WRITE:" + SSID) to {p50, p99, p99.9} in nanoseconds
+     */
+    public Map<String, long[]> getDatapathLatencies() {
+        return MultiWifiVpnService.getStageLatencies();
+    }
+    
+    /**
+     * Sets the VPN routing policy of an app. Applies to flows the app opens from now on.
+     * 
+     * @param policy The policy
+     */
+    public void setAppPolicy(AppPolicy policy) {
+        MultiWifiVpnService.setAppPolicy(policy);
+    }
+    
+    /**
+     * Removes the VPN routing policy of an app
+     * 
+     * @param uid UID of the app
+     */
+    public void removeAppPolicy(int uid) {
+        MultiWifiVpnService.removeAppPolicy(uid);
+    }
+    
+    /**
+     * Gets all VPN app routing policies
+     * 
+     * @return List of policies
+     */
+    public List<AppPolicy> getAppPolicies() {
+        return MultiWifiVpnService.getAppPolicies();
+    }
+    
+    /**
+     * Gets the traffic each app sent through the VPN; the rx entries are zero
+     * 
+     * @return Map of UID to {txBytes, rxBytes, txPackets, rxPackets}
+     */
+    public Map<Integer, long[]> getAppTrafficStats() {
+        return MultiWifiVpnService.getAppTrafficStats();
+    }
+    
+    /**
+     * Replaces the VPN destination routing rules
+     * 
+     * @param rules The rules
+     */
+    public void setRoutingRules(List<RoutingRule> rules) {
+        MultiWifiVpnService.setRoutingRules(rules);
+    }
+    
+    /**
+     * Replaces the VPN host name routing rules
+     * 
+     * @param rules The rules
+     */
+    public void setDomainRules(List<DomainRule> rules) {
+        MultiWifiVpnService.setDomainRules(rules);
+    }
+    
+    /**
+     * Starts capturing the VPN's packet headers into a ring file
+     * 
+     * @param filter Capture filter expression, or null for all packets
+     * @param maxBytes Size of the ring file
+     * @return The capture file
+     * @throws IOException If the file cannot be created
+     * @throws IllegalArgumentException If the filter is malformed
+     * @throws IllegalStateException If the VPN is not running
+     */
+    public File startCapture(String filter, int maxBytes) throws IOException {
+        return MultiWifiVpnService.startCapture(filter, maxBytes);
+    }
+    
+    /**
+     * Stops the VPN packet capture
+     */
+    public void stopCapture() {
+        MultiWifiVpnService.stopCapture();
+    }
+    
+    /**
+     * Checks whether the VPN is capturing packets
+     * 
+     * @return true while a capture is in progress
+     */
+    public boolean isCapturing() {
+        return MultiWifiVpnService.isCapturing();
+    }
+    
+    /**
+     * Gets the number of VPN flows moved to another link after theirs went away
+     * 
+     * @return Migrated flow count
+     */
+    public long getMigratedFlowCount() {
+        return MultiWifiVpnService.getMigratedFlowCount();
+    }
+    
+    /**
+     * Gets the number of VPN flows reset because their link went away
+     * 
+     * @return Dropped flow count
+     */
+    public long getDroppedFlowCount() {
+        return MultiWifiVpnService.getDroppedFlowCount();
+    }
+    
+    /**
+     * Gets the share of traffic moved between networks by the last reallocation
+     * 
+     * @return Moved traffic in percent
+     */
+    public double getLastReallocationShift() {
+        return damping.getLastReallocationShift();
+    }
+    
+    /**
+     * Gets the share of traffic moved by all reallocations so far
+     * 
+     * @return Sum of the moved traffic in percent
+     */
+    public double getTotalReallocationShift() {
+        return damping.getTotalReallocationShift();
+    }
+    
+    /**
+     * Gets the number of reallocations that changed the allocation
+     * 
+     * @return Number of reallocations
+     */
+    public long getReallocationCount() {
+        return damping.getReallocationCount();
+    }
+    
+    /**
+     * Gets the number of TCP flows whose MSS the VPN clamped, per network
+     * 
+     * @return Map of SSID to clamped flow count
+     */
+    public Map<String, Long> getClampedFlowCounts() {
+        return MultiWifiVpnService.getClampedFlowCounts();
+    }
+    
+    /**
+     * Gets the backpressure state of each VPN tunnel
+     * 
+     * @return Map of SSID to {credit, ECN-marked packets, dropped packets}
+     */
+    public Map<String, long[]> getTunnelQueueStats() {
+        return MultiWifiVpnService.getTunnelQueueStats();
+    }
+    
     /**
      * Checks if the service is connected to any networks
      * 
@@ -342,15 +524,53 @@ public class MultiWifiService extends Service {
             loadBalancer.setStrategy(strategy);
             
             // Recalculate allocation with new strategy
-            if (isConnected && implementation != null) {
-                List<NetworkConnection> networks = implementation.getConnectedNetworks();
-                loadBalancer.computeAllocation(networks);
-                implementation.updateAllocation(networks);
-                
-                // Notify listeners
-                for (ConnectionListener listener : listeners) {
-                    listener.onNetworksUpdated(networks);
-                }
+            reallocate();
+        }
+    }
+    
+    /**
+     * Sets the throughput the power saving strategy keeps available
+     * 
+     * @param mbps Minimum throughput in Mbps, or 0 to use only the most efficient network
+     */
+    public void setMinimumThroughput(double mbps) {
+        if (loadBalancer != null) {
+            loadBalancer.setMinimumThroughput(mbps);
+            
+            // Recalculate allocation with the new minimum
+            reallocate();
+        }
+    }
+    
+    /**
+     * Gets the throughput the power saving strategy keeps available
+     * 
+     * @return Minimum throughput in Mbps
+     */
+    public double getMinimumThroughput() {
+        if (loadBalancer != null) {
+            return loadBalancer.getMinimumThroughput();
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Recalculates the allocation of the connected networks and notifies listeners
+     */
+    private void reallocate() {
+        if (isConnected && implementation != null) {
+            List<NetworkConnection> networks = implementation.getConnectedNetworks();
+            loadBalancer.computeAllocation(networks, damping);
+            implementation.updateAllocation(networks);
+            if (currentMethod == ConnectionMethod.VPN) {
+                // The VPN datapath selects from its own published allocation
+                MultiWifiVpnService.reallocate();
+            }
+            
+            // Notify listeners
+            for (ConnectionListener listener : listeners) {
+                listener.onNetworksUpdated(networks);
             }
         }
     }
@@ -459,6 +679,12 @@ public class MultiWifiService extends Service {
                 updateConnectionStatus();
             }
         }, 0, UPDATE_INTERVAL);
+        updateTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                updateCombinedSpeed();
+            }
+        }, SPEED_INTERVAL, SPEED_INTERVAL);
     }
     
     /**
@@ -482,11 +708,10 @@ public class MultiWifiService extends Service {
         // Update connection status
         final boolean newConnected = implementation.isConnected();
         final List<NetworkConnection> newNetworks = implementation.getConnectedNetworks();
-        final double newSpeed = implementation.getCombinedSpeed();
         
         // Calculate allocation if connected
         if (newConnected && loadBalancer != null) {
-            loadBalancer.computeAllocation(newNetworks);
+            loadBalancer.computeAllocation(newNetworks, damping);
             implementation.updateAllocation(newNetworks);
         }
         
@@ -506,6 +731,17 @@ public class MultiWifiService extends Service {
                 }
                 
                 listener.onNetworksUpdated(connectedNetworks);
+            }
+        });
+    }
+    
+    /**
+     * Notifies listeners of the combined speed
+     */
+    private void updateCombinedSpeed() {
+        final double newSpeed = getCombinedSpeed();
+        mainHandler.post(() -> {
+            for (ConnectionListener listener : listeners) {
                 listener.onCombinedSpeedChanged(newSpeed);
             }
         });
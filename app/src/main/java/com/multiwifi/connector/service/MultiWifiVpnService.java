@@ -6,6 +6,8 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.Handler;
@@ -19,22 +21,70 @@ import androidx.core.app.NotificationCompat;
 
 import com.multiwifi.connector.DashboardActivity;
 import com.multiwifi.connector.R;
+import com.multiwifi.connector.model.AppPolicy;
+import com.multiwifi.connector.model.DomainRule;
 import com.multiwifi.connector.model.NetworkConnection;
+import com.multiwifi.connector.model.RoutingRule;
+import com.multiwifi.connector.util.CapacityEstimator;
+import com.multiwifi.connector.util.LinkQuality;
 import com.multiwifi.connector.util.LoadBalancer;
 import com.multiwifi.connector.util.NetworkUtils;
+import com.multiwifi.connector.vpn.AppPolicyTable;
+import com.multiwifi.connector.vpn.AppTrafficStats;
+import com.multiwifi.connector.vpn.CaptureFilter;
+import com.multiwifi.connector.vpn.Checksum;
+import com.multiwifi.connector.vpn.CidrTrie;
+import com.multiwifi.connector.vpn.DomainRuleSet;
+import com.multiwifi.connector.vpn.Flow;
+import com.multiwifi.connector.vpn.FlowClassifier;
+import com.multiwifi.connector.vpn.FlowRecordWriter;
+import com.multiwifi.connector.vpn.FlowTable;
+import com.multiwifi.connector.vpn.FragmentReassembler;
+import com.multiwifi.connector.vpn.Fragmenter;
+import com.multiwifi.connector.vpn.HandshakeRtt;
+import com.multiwifi.connector.vpn.IpPacket;
+import com.multiwifi.connector.vpn.MssClamp;
+import com.multiwifi.connector.vpn.PacketCapture;
+import com.multiwifi.connector.vpn.PathMtuDiscovery;
+import com.multiwifi.connector.vpn.QuicInitialParser;
+import com.multiwifi.connector.vpn.StageLatencies;
+import com.multiwifi.connector.vpn.TcpReset;
+import com.multiwifi.connector.vpn.TlsSniffer;
+import com.multiwifi.connector.vpn.TrafficMeter;
+import com.multiwifi.connector.vpn.TunnelQueue;
+import com.multiwifi.connector.vpn.UidResolver;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * VPN Service implementation for routing traffic through multiple network interfaces.
@@ -47,24 +97,137 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
     private static final int NOTIFICATION_ID = 1338;
     private static final int MTU = 1500;
     private static final int MAX_PACKET_SIZE = 4096;
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+    private static final int VPN_GATEWAY_ADDRESS = 0x0A000001; // 10.0.0.1
+    
+    // Reassembly limits: at most 64 datagrams / 1 MB in flight, dropped after 30 s
+    private static final int MAX_REASSEMBLY_DATAGRAMS = 64;
+    private static final int MAX_REASSEMBLY_BYTES = 1024 * 1024;
+    private static final long FRAGMENT_TIMEOUT_MS = 30000;
+    
+    // Destination used to look up each link's route MTU; connecting a UDP socket sends nothing
+    private static final String PMTU_ROUTE_HOST = "8.8.8.8";
+    private static final int PMTU_ROUTE_PORT = 9; // Discard
+    private static final long PMTU_REFRESH_INTERVAL_MS = 60000;
+    
+    // Outer IPv4 and UDP headers each tunnelled packet carries on its link
+    private static final int TUNNEL_OVERHEAD = 20 + 8;
+    
+    // Active RTT probes: a TCP handshake with a DNS server, sent only on links without
+    // recent handshake samples, backing off while the link carries no traffic. One that
+    // takes longer than the timeout counts as an RTT of the timeout.
+    private static final String RTT_PROBE_HOST = "8.8.8.8";
+    private static final int RTT_PROBE_PORT = 53;
+    private static final long RTT_PROBE_INTERVAL_MS = 2000;
+    private static final long RTT_PROBE_MAX_INTERVAL_MS = 64000;
+    private static final int RTT_PROBE_TIMEOUT_MS = 1000;
+    
+    // Per-tunnel packet queue; its free slots are the credit the reader schedules on
+    private static final int TUNNEL_QUEUE_PACKETS = 256;
+    private static final int TUNNEL_QUEUE_LOW_CREDIT = TUNNEL_QUEUE_PACKETS / 4;
+    private static final long TUNNEL_QUEUE_POLL_MS = 100;
+    
+    // Flow tracking limits
+    private static final int MAX_FLOWS = 16384;
+    private static final long FLOW_IDLE_TIMEOUT_MS = 120000;
+    private static final long FLOW_SWEEP_INTERVAL_MS = 10000;
+    
+    // Gaps between a flow's packets longer than this are idle time, not time spent sending
+    private static final long FLOW_ACTIVE_GAP_MS = 1000;
+    
+    // Packet capture ring
+    private static final String CAPTURE_FILE = "capture.pcapng";
+    private static final int CAPTURE_SNAP_LENGTH = 128;
+    
+    // Flow record export
+    private static final String FLOW_RECORD_DIR = "flow-records";
+    private static final String FLOW_RECORD_FILE = "flows.bin";
+    private static final long FLOW_RECORD_FILE_BYTES = 1024 * 1024;
+    private static final int FLOW_RECORD_FILES = 8;
+    private static final int FLOW_RECORD_QUEUE = 4096;
+    
+    // Datapath stage latencies, shared by every VPN session in the process
+    private static final StageLatencies STAGE_LATENCIES = new StageLatencies();
+    
+    // Bytes sent per link, app and flow class, turned into rates every second
+    private static final TrafficMeter TRAFFIC_METER = new TrafficMeter();
+    private static final long TRAFFIC_SAMPLE_INTERVAL_MS = 1000;
+    
+    // Routing settings outlive the service, so they can be made before the VPN starts
+    // and apply to the next one; setters serialize on the class
+    private static final AppPolicyTable APP_POLICIES = new AppPolicyTable();
+    private static volatile CidrTrie<RoutingRule> configuredRoutingRules = new CidrTrie<>();
+    private static volatile DomainRuleSet configuredDomainRules =
+            new DomainRuleSet(Collections.<DomainRule>emptyList());
+    
+    // The running service, for the static accessors; null while the VPN is down
+    private static volatile MultiWifiVpnService instance;
     
     private Handler handler;
     private ParcelFileDescriptor vpnInterface;
+    private VpnRunnable reader;
+    
+    // Routes of the current interface; changing them needs a new interface
+    private List<CidrTrie.Prefix> installedRoutes = Collections.emptyList();
     private ExecutorService executorService;
+    private ScheduledExecutorService linkProber;
+    private ScheduledFuture<?> linkProbes;
+    private ExecutorService uidLookups;
+    private UidResolver uidResolver;
     private LoadBalancer loadBalancer;
-    private ConcurrentHashMap<String, ConnectionTunnel> tunnels;
+    // Damping of the datapath's allocations, apart from the connection service's
+    private final LoadBalancer.Damping damping = new LoadBalancer.Damping();
     private AtomicBoolean isRunning = new AtomicBoolean(false);
+    private final AppTrafficStats appTrafficStats = TRAFFIC_METER.getAppStats();
     
-    private List<NetworkConnection> availableNetworks = Collections.synchronizedList(new ArrayList<>());
+    // All routing state, swapped as a whole; writers serialize on routingLock
+    private final Object routingLock = new Object();
+    private volatile RoutingSnapshot routing = RoutingSnapshot.EMPTY;
+    
+    // Links removed from the routing snapshot whose flows the packet reader still has to
+    // move, and those flows by outcome
+    private final Queue<String> lostLinks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong migratedFlows = new AtomicLong();
+    private final AtomicLong droppedFlows = new AtomicLong();
+    
+    // Capture tap, null while capture is off
+    private volatile PacketCapture capture;
+    private volatile FlowRecordWriter flowRecords;
+    
+    private final Runnable trafficSampler = new Runnable() {
+        @Override
+        public void run() {
+            TrafficMeter.Rates rates = TRAFFIC_METER.sample(System.nanoTime());
+            
+            // What a link carried is a lower bound on its capacity
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Double> link : rates.getLinkMbps().entrySet()) {
+                LoadBalancer.getCapacityEstimator().update(
+                        link.getKey(), CapacityEstimator.Source.PASSIVE, link.getValue(), now);
+            }
+            handler.postDelayed(this, TRAFFIC_SAMPLE_INTERVAL_MS);
+        }
+    };
     
     @Override
     public void onCreate() {
         super.onCreate();
         handler = new Handler(this);
-        tunnels = new ConcurrentHashMap<>();
-        loadBalancer = new LoadBalancer();
-        executorService = Executors.newFixedThreadPool(5); // Main thread + up to 4 network threads
+        loadBalancer = LoadBalancer.getShared();
+        // Every task is a long-running loop (packet reader, flow records, one per tunnel), so
+        // each gets its own thread; a fixed pool would leave tunnels past its size queued
+        executorService = Executors.newCachedThreadPool();
+        linkProber = Executors.newSingleThreadScheduledExecutor();
+        // Owner lookups are binder calls, kept off the packet reader
+        uidLookups = Executors.newSingleThreadExecutor();
+        uidResolver = new UidResolver(this::lookupOwnerUid, uidLookups);
         createNotificationChannel();
+        synchronized (MultiWifiVpnService.class) {
+            synchronized (routingLock) {
+                routing = routing.withRoutingRules(configuredRoutingRules).withDomainRules(configuredDomainRules);
+            }
+            instance = this;
+        }
     }
     
     @Override
@@ -85,10 +248,23 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
     
     @Override
     public void onDestroy() {
+        synchronized (MultiWifiVpnService.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
         isRunning.set(false);
+        handler.removeCallbacks(trafficSampler);
+        TRAFFIC_METER.stop();
         closeVpnInterface();
         closeAllTunnels();
+        closeCapture();
+        if (flowRecords != null) {
+            flowRecords.stop();
+        }
         executorService.shutdownNow();
+        linkProber.shutdownNow();
+        uidLookups.shutdownNow();
         super.onDestroy();
     }
     
@@ -110,23 +286,8 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
     private void startVpnService() {
         // Set up the VPN interface
         try {
-            // Configure VPN interface
-            Builder builder = new Builder()
-                    .setSession("MultiWifiVPN")
-                    .addAddress("10.0.0.2", 24)
-                    .addRoute("0.0.0.0", 0)  // Capture all traffic
-                    .addDnsServer("8.8.8.8") // Use Google DNS
-                    .setMtu(MTU);
-            
-            // Exclude the app itself from the VPN
-            try {
-                builder.addDisallowedApplication(getPackageName());
-            } catch (PackageManager.NameNotFoundException e) {
-                Log.e(TAG, "Failed to exclude app from VPN", e);
-            }
-            
-            // Create the VPN interface
-            vpnInterface = builder.establish();
+            List<CidrTrie.Prefix> routes = vpnRoutes(routing.routingRules);
+            vpnInterface = establishInterface(routes);
             if (vpnInterface == null) {
                 Log.e(TAG, "Failed to establish VPN interface");
                 stopSelf();
@@ -134,10 +295,22 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
             }
             
             Log.d(TAG, "VPN interface established");
+            installedRoutes = routes;
             isRunning.set(true);
             
-            // Start the packet handling thread
-            executorService.submit(new VpnRunnable(vpnInterface.getFileDescriptor()));
+            // Start the flow record writer and the packet handling thread
+            flowRecords = new FlowRecordWriter(new File(getFilesDir(), FLOW_RECORD_DIR), FLOW_RECORD_FILE,
+                    FLOW_RECORD_FILE_BYTES, FLOW_RECORD_FILES, FLOW_RECORD_QUEUE);
+            executorService.submit(flowRecords);
+            reader = new VpnRunnable(vpnInterface.getFileDescriptor(), null);
+            executorService.submit(reader);
+            handler.removeCallbacks(trafficSampler);
+            handler.post(trafficSampler);
+            if (linkProbes != null) {
+                linkProbes.cancel(false);
+            }
+            linkProbes = linkProber.scheduleWithFixedDelay(this::probeLinks, 0, RTT_PROBE_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
             
             // Update the notification
             updateNotification("Multi-WiFi VPN is active");
@@ -152,6 +325,80 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
         }
     }
     
+    /**
+     * Gets the routes to send through the VPN: everything except the BYPASS ranges,
+     * which then never enter the TUN
+     * 
+     * @param rules Destination routing rules
+     * @return Prefixes to route through the VPN
+     */
+    private static List<CidrTrie.Prefix> vpnRoutes(CidrTrie<RoutingRule> rules) {
+        return rules.complementRoutes(rule -> rule.getAction() == RoutingRule.Action.BYPASS);
+    }
+    
+    /**
+     * Establishes a VPN interface routing the given prefixes. If one is already up the
+     * system replaces it with the new one.
+     * 
+     * @param routes Prefixes to route through the VPN
+     * @return The interface, or null if the VPN permission was revoked
+     */
+    private ParcelFileDescriptor establishInterface(List<CidrTrie.Prefix> routes) {
+        // Configure VPN interface
+        Builder builder = new Builder()
+                .setSession("MultiWifiVPN")
+                .addAddress("10.0.0.2", 24)
+                .addDnsServer("8.8.8.8") // Use Google DNS
+                .setMtu(MTU);
+        for (CidrTrie.Prefix route : routes) {
+            builder.addRoute(route.getAddress(), route.getLength());
+        }
+        
+        // Exclude the app itself from the VPN
+        try {
+            builder.addDisallowedApplication(getPackageName());
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Failed to exclude app from VPN", e);
+        }
+        return builder.establish();
+    }
+    
+    /**
+     * Re-establishes the VPN interface if the routing rules changed which ranges bypass
+     * it, since routes are fixed when an interface is established. A new reader takes
+     * over on the new interface once the old one has exited, which it does when its
+     * interface is closed, so the tunnel queues never see two producers; flows open at
+     * the time start over on the new reader. Runs on the main thread, like the rest of
+     * the interface lifecycle.
+     */
+    private void reestablishIfRoutesChanged() {
+        if (!isRunning.get() || vpnInterface == null) {
+            return;
+        }
+        List<CidrTrie.Prefix> routes = vpnRoutes(routing.routingRules);
+        if (routes.equals(installedRoutes)) {
+            return;
+        }
+        ParcelFileDescriptor replacement = establishInterface(routes);
+        if (replacement == null) {
+            Log.e(TAG, "Failed to re-establish VPN interface");
+            return;
+        }
+        Log.d(TAG, "VPN interface re-established with " + routes.size() + " routes");
+        
+        ParcelFileDescriptor previous = vpnInterface;
+        vpnInterface = replacement;
+        installedRoutes = routes;
+        reader.retire();
+        reader = new VpnRunnable(replacement.getFileDescriptor(), reader);
+        executorService.submit(reader);
+        try {
+            previous.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing VPN interface", e);
+        }
+    }
+    
     /**
      * Discover and set up available network connections
      */
@@ -165,18 +412,8 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
             return;
         }
         
-        availableNetworks.clear();
-        availableNetworks.addAll(networks);
-        
-        // Initialize tunnels for each network
-        for (NetworkConnection network : networks) {
-            ConnectionTunnel tunnel = new ConnectionTunnel(network);
-            tunnels.put(network.getSsid(), tunnel);
-            executorService.submit(tunnel);
-        }
-        
-        // Set up load balancer with the available networks
-        loadBalancer.updateNetworks(networks);
+        // Start a tunnel for each network and publish them with their allocation
+        applyNetworks(networks);
         
         Log.d(TAG, "Initialized " + networks.size() + " network connections");
         updateNotification("Connected to " + networks.size() + " networks");
@@ -194,42 +431,625 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
         
         Log.d(TAG, "Updating networks: " + networks.size() + " connections");
         
-        // Close tunnels for networks that are no longer available
-        for (String ssid : tunnels.keySet()) {
-            boolean found = false;
+        // Swap in the new tunnels and allocation in one step
+        applyNetworks(networks);
+        
+        // Update notification
+        updateNotification("Connected to " + networks.size() + " networks");
+    }
+    
+    /**
+     * Publishes a new network set. Tunnels of networks that remain are reused, new ones
+     * are started and the rest are stopped once the new snapshot is visible, so the
+     * packet reader never sees a tunnel map and an allocation that disagree.
+     * 
+     * @param networks The networks to route over
+     */
+    private void applyNetworks(List<NetworkConnection> networks) {
+        List<ConnectionTunnel> started = new ArrayList<>();
+        List<ConnectionTunnel> stopped = new ArrayList<>();
+        synchronized (routingLock) {
+            RoutingSnapshot current = routing;
+            Map<String, ConnectionTunnel> tunnels = new HashMap<>();
             for (NetworkConnection network : networks) {
-                if (network.getSsid().equals(ssid)) {
-                    found = true;
-                    break;
+                ConnectionTunnel tunnel = current.tunnels.get(network.getSsid());
+                if (tunnel == null) {
+                    tunnel = new ConnectionTunnel(network);
+                    started.add(tunnel);
                 }
+                tunnels.put(network.getSsid(), tunnel);
             }
-            
-            if (!found) {
-                ConnectionTunnel tunnel = tunnels.remove(ssid);
-                if (tunnel != null) {
-                    tunnel.stop();
+            for (Map.Entry<String, ConnectionTunnel> entry : current.tunnels.entrySet()) {
+                if (!tunnels.containsKey(entry.getKey())) {
+                    stopped.add(entry.getValue());
                 }
             }
+            routing = current.withNetworks(tunnels, loadBalancer.allocate(networks, damping));
+            for (ConnectionTunnel tunnel : stopped) {
+                lostLinks.add(tunnel.network.getSsid());
+            }
         }
         
-        // Add new networks
-        for (NetworkConnection network : networks) {
-            if (!tunnels.containsKey(network.getSsid())) {
-                ConnectionTunnel tunnel = new ConnectionTunnel(network);
-                tunnels.put(network.getSsid(), tunnel);
-                executorService.submit(tunnel);
+        for (ConnectionTunnel tunnel : started) {
+            executorService.submit(tunnel);
+        }
+        for (ConnectionTunnel tunnel : stopped) {
+            tunnel.stop();
+        }
+    }
+    
+    /**
+     * Sets the routing policy of an app. Applies to flows the app opens from now on.
+     *
+     * @param policy The policy
+     */
+    public static void setAppPolicy(AppPolicy policy) {
+        APP_POLICIES.put(policy);
+    }
+    
+    /**
+     * Removes the routing policy of an app
+     *
+     * @param uid UID of the app
+     */
+    public static void removeAppPolicy(int uid) {
+        APP_POLICIES.remove(uid);
+    }
+    
+    /**
+     * Gets all app routing policies
+     *
+     * @return List of policies
+     */
+    public static List<AppPolicy> getAppPolicies() {
+        return APP_POLICIES.getAll();
+    }
+    
+    /**
+     * Gets the traffic each app sent through the VPN. Replies are not seen by the VPN,
+     * so the rx entries are zero.
+     *
+     * @return Map of UID to {txBytes, rxBytes, txPackets, rxPackets}
+     */
+    public static Map<Integer, long[]> getAppTrafficStats() {
+        return TRAFFIC_METER.getAppStats().snapshot();
+    }
+    
+    /**
+     * Replaces the destination routing rules. PIN and BLOCK rules apply to new flows
+     * immediately. BYPASS ranges are left out of the VPN routes, so when they change
+     * the VPN interface is re-established with the new routes.
+     * 
+     * @param rules The rules
+     */
+    public static synchronized void setRoutingRules(List<RoutingRule> rules) {
+        CidrTrie<RoutingRule> trie = new CidrTrie<>();
+        for (RoutingRule rule : rules) {
+            trie.put(rule.getAddress(), rule.getPrefixLength(), rule);
+        }
+        configuredRoutingRules = trie;
+        MultiWifiVpnService vpn = instance;
+        if (vpn != null) {
+            synchronized (vpn.routingLock) {
+                vpn.routing = vpn.routing.withRoutingRules(trie);
             }
+            vpn.handler.post(vpn::reestablishIfRoutesChanged);
+        }
+        Log.d(TAG, "Loaded " + rules.size() + " routing rules");
+    }
+    
+    /**
+     * Recomputes the allocation of the running VPN's networks, so that a new load
+     * balancing strategy or minimum throughput on the shared load balancer applies to
+     * the datapath right away instead of at the next network change
+     */
+    public static void reallocate() {
+        MultiWifiVpnService vpn = instance;
+        if (vpn != null) {
+            synchronized (vpn.routingLock) {
+                RoutingSnapshot current = vpn.routing;
+                vpn.routing = current.withAllocation(
+                        vpn.loadBalancer.allocate(current.allocation.getNetworks(), vpn.damping));
+            }
+        }
+    }
+    
+    /**
+     * Replaces the host name routing rules. They apply to flows opened from now on,
+     * matched on the TLS SNI or QUIC Initial of each flow's first payload packet.
+     * 
+     * @param rules The rules
+     */
+    public static synchronized void setDomainRules(List<DomainRule> rules) {
+        DomainRuleSet ruleSet = new DomainRuleSet(rules);
+        configuredDomainRules = ruleSet;
+        MultiWifiVpnService vpn = instance;
+        if (vpn != null) {
+            synchronized (vpn.routingLock) {
+                vpn.routing = vpn.routing.withDomainRules(ruleSet);
+            }
+        }
+        Log.d(TAG, "Loaded " + rules.size() + " domain rules");
+    }
+    
+    /**
+     * Resolves the destination rule of a new flow and starts resolving its owning app.
+     * The owner comes from the cache or, later, from a lookup off this thread; until
+     * then the flow is routed as UID_UNKNOWN.
+     *
+     * @param snapshot Routing state for the packet
+     * @param flow The new flow
+     */
+    private void initializeFlow(RoutingSnapshot snapshot, Flow flow) {
+        flow.rule = snapshot.routingRules.lookup(flow.destinationAddress);
+        int uid = AppPolicy.UID_UNKNOWN;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                && (flow.protocol == IpPacket.PROTO_TCP || flow.protocol == IpPacket.PROTO_UDP)) {
+            uid = uidResolver.resolve(flow);
+        }
+        if (uid == UidResolver.PENDING) {
+            flow.ownerPending = true;
+            flow.appCounters = appTrafficStats.forUid(AppPolicy.UID_UNKNOWN);
+        } else {
+            setOwner(flow, uid);
+        }
+    }
+    
+    /**
+     * Picks up the owner of a flow once its lookup has completed
+     *
+     * @param flow A flow whose owner is pending
+     */
+    private void pollOwner(Flow flow) {
+        int uid = uidResolver.poll(flow);
+        if (uid != UidResolver.PENDING) {
+            setOwner(flow, uid);
+            if (flow.policy != null) {
+                // Let the app's policy choose the network from now on
+                flow.pinnedSsid = null;
+            }
+        }
+    }
+    
+    private void setOwner(Flow flow, int uid) {
+        flow.ownerPending = false;
+        flow.uid = uid;
+        flow.policy = APP_POLICIES.get(uid);
+        flow.appCounters = appTrafficStats.forUid(uid);
+    }
+    
+    /**
+     * Looks up the UID of the app owning a connection. Runs on the UID lookup thread,
+     * only for connections whose owner is not cached.
+     *
+     * @param protocol IP protocol number
+     * @param sourceAddress Local IPv4 address
+     * @param sourcePort Local port
+     * @param destinationAddress Remote IPv4 address
+     * @param destinationPort Remote port
+     * @return UID of the owning app, or AppPolicy.UID_UNKNOWN
+     */
+    private int lookupOwnerUid(int protocol, int sourceAddress, int sourcePort,
+            int destinationAddress, int destinationPort) {
+        ConnectivityManager connectivityManager = getSystemService(ConnectivityManager.class);
+        if (connectivityManager == null) {
+            return AppPolicy.UID_UNKNOWN;
+        }
+        try {
+            InetSocketAddress local = new InetSocketAddress(toInetAddress(sourceAddress), sourcePort);
+            InetSocketAddress remote = new InetSocketAddress(toInetAddress(destinationAddress), destinationPort);
+            int uid = connectivityManager.getConnectionOwnerUid(protocol, local, remote);
+            return uid >= 0 ? uid : AppPolicy.UID_UNKNOWN;
+        } catch (UnknownHostException | SecurityException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not resolve owner of " + IpPacket.formatIpv4(sourceAddress) + ":" + sourcePort, e);
+            return AppPolicy.UID_UNKNOWN;
+        }
+    }
+    
+    private static InetAddress toInetAddress(int addr) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] {
+                (byte) (addr >>> 24), (byte) (addr >>> 16), (byte) (addr >>> 8), (byte) addr
+        });
+    }
+    
+    /**
+     * Selects the tunnel for a packet, honouring the policy of the app that owns its flow
+     * and the traffic class of the flow
+     *
+     * @param snapshot Routing state for the packet
+     * @param flow Flow of the packet, or null if it is not tracked
+     * @param destination Destination of the packet
+     * @return Tunnel of the selected network, or null if there are none
+     */
+    private ConnectionTunnel selectTunnel(RoutingSnapshot snapshot, Flow flow, String destination) {
+        // Host name rules are the most specific, then address rules, then app policies
+        if (flow != null && flow.domainRule != null && flow.domainRule.getAction() == RoutingRule.Action.PIN) {
+            ConnectionTunnel tunnel = snapshot.tunnels.get(flow.domainRule.getSsid());
+            if (tunnel != null) {
+                return holdFlow(flow, tunnel);
+            }
+        }
+        if (flow != null && flow.rule != null && flow.rule.getAction() == RoutingRule.Action.PIN) {
+            ConnectionTunnel tunnel = snapshot.tunnels.get(flow.rule.getSsid());
+            if (tunnel != null) {
+                return holdFlow(flow, tunnel);
+            }
+        }
+        if (flow != null && flow.policy != null) {
+            // Flows of apps with a policy stick to the network chosen for them
+            ConnectionTunnel pinned = flow.pinnedSsid != null ? snapshot.tunnels.get(flow.pinnedSsid) : null;
+            if (pinned != null) {
+                return holdFlow(flow, pinned);
+            }
+            ConnectionTunnel tunnel = flow.policy.getPreferredSsid() != null
+                    ? snapshot.tunnels.get(flow.policy.getPreferredSsid())
+                    : snapshot.tunnelFor(loadBalancer.selectBestNetwork(
+                            snapshot.allocation, flow.policy.getStrategy()));
+            if (tunnel != null) {
+                flow.pinnedSsid = tunnel.network.getSsid();
+                return holdFlow(flow, tunnel);
+            }
+        }
+        if (flow != null && flow.segmentBytes > 0) {
+            // Flows that fetch segments, like video players, have each request's response
+            // planned so that its last byte arrives soonest
+            LoadBalancer.SegmentPlan plan = flow.segmentPlan;
+            if (plan == null) {
+                plan = new LoadBalancer.SegmentPlan();
+                flow.segmentPlan = plan;
+            }
+            if (flow.responsePackets == 0 || plan.getAllocation() != snapshot.allocation) {
+                loadBalancer.planSegment(snapshot.allocation, flow.segmentBytes, plan);
+            }
+            ConnectionTunnel tunnel = plan.getAllocation() != null ? snapshot.tunnelFor(plan.next()) : null;
+            if (tunnel != null) {
+                if (plan.getSingleNetwork() != null) {
+                    return holdFlow(flow, tunnel);
+                }
+                flow.linkSsid = null;
+                return tunnel;
+            }
+        }
+        if (flow != null && flow.flowClass != FlowClassifier.FlowClass.BULK
+                && flow.flowClass != FlowClassifier.FlowClass.UNKNOWN) {
+            // Interactive flows stay on the link with the lowest RTT bound given its jitter
+            // and loss, streaming on the best overall; only bulk and not yet classified
+            // flows are striped across links
+            ConnectionTunnel pinned = flow.pinnedSsid != null ? snapshot.tunnels.get(flow.pinnedSsid) : null;
+            if (pinned != null) {
+                return holdFlow(flow, pinned);
+            }
+            ConnectionTunnel tunnel = snapshot.tunnelFor(loadBalancer.selectBestNetwork(snapshot.allocation,
+                    flow.flowClass == FlowClassifier.FlowClass.INTERACTIVE
+                            ? LoadBalancer.TrafficClass.REAL_TIME : LoadBalancer.TrafficClass.STREAMING));
+            if (tunnel != null) {
+                flow.pinnedSsid = tunnel.network.getSsid();
+                return holdFlow(flow, tunnel);
+            }
+        }
+        if (flow != null && loadBalancer.getStrategy() == LoadBalancer.Strategy.LEAST_LOADED) {
+            // New flows go to the less loaded of two sampled links and stay there
+            ConnectionTunnel pinned = flow.pinnedSsid != null ? snapshot.tunnels.get(flow.pinnedSsid) : null;
+            if (pinned != null) {
+                return holdFlow(flow, pinned);
+            }
+            ConnectionTunnel tunnel = snapshot.tunnelFor(loadBalancer.selectBestNetwork(snapshot.allocation,
+                    LoadBalancer.Strategy.LEAST_LOADED));
+            if (tunnel != null) {
+                flow.pinnedSsid = tunnel.network.getSsid();
+                return holdFlow(flow, tunnel);
+            }
+        }
+        if (flow != null) {
+            flow.linkSsid = null;
+        }
+        return snapshot.tunnelFor(loadBalancer.selectNetworkForTraffic(snapshot.allocation, destination));
+    }
+    
+    private static ConnectionTunnel holdFlow(Flow flow, ConnectionTunnel tunnel) {
+        flow.linkSsid = tunnel.network.getSsid();
+        return tunnel;
+    }
+    
+    /**
+     * Moves flows off links that are no longer in the routing snapshot. UDP and other
+     * connectionless flows, and TCP flows still in their handshake, are re-pinned: their
+     * next packet selects a surviving link, which rebinds the mapping. Established TCP
+     * connections are bound to the old link's address, so the app is sent a reset and
+     * reconnects over a surviving link.
+     * Runs on the packet reader, which owns the flow table: applyNetworks only queues
+     * the lost links, so the flow state a reset is built from is never read by another
+     * thread.
+     * 
+     * @param snapshot The current routing snapshot
+     * @param lost SSIDs of the links that went away
+     * @param flowTable Flows of the packet reader
+     * @param out Stream to the TUN interface
+     * @param reset Scratch buffer for the reset packets
+     */
+    private void migrateFlows(RoutingSnapshot snapshot, Set<String> lost, FlowTable flowTable,
+                              FileOutputStream out, ByteBuffer reset) {
+        flowTable.removeIf(flow -> {
+            // A link that came back since is kept
+            if (flow.linkSsid == null || !lost.contains(flow.linkSsid)
+                    || snapshot.tunnels.containsKey(flow.linkSsid)) {
+                return false;
+            }
+            if (flow.protocol == IpPacket.PROTO_TCP && flow.tcpEstablished) {
+                try {
+                    out.write(reset.array(), 0, TcpReset.build(flow, reset));
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not reset " + flow, e);
+                }
+                droppedFlows.incrementAndGet();
+                exportFlow(flow);
+                return true;
+            }
+            flow.linkSsid = null;
+            flow.pinnedSsid = null;
+            migratedFlows.incrementAndGet();
+            return false;
+        });
+    }
+    
+    /**
+     * Probes the RTT of the links that need it, publishes every link's quality, and
+     * refreshes path MTUs when that is due, on the link prober thread so the tunnel
+     * writers never wait on a probe
+     */
+    private void probeLinks() {
+        long now = System.currentTimeMillis();
+        boolean powerSaving = loadBalancer.getStrategy() == LoadBalancer.Strategy.POWER_SAVING;
+        for (ConnectionTunnel tunnel : routing.tunnels.values()) {
+            tunnel.probeRttIfDue(now, powerSaving);
+            tunnel.publishQuality();
+            tunnel.refreshPathMtu(now);
+        }
+    }
+    
+    /**
+     * Feeds a finished flow back to the load balancer and queues its record for export.
+     * Only flows that stayed on one link are fed back, with the rate they sent at while
+     * active, so a striped flow is not credited to the link it happened to end on. The
+     * RTT is that of the link the flow last used, since the datapath only sees the app's
+     * side of each flow.
+     * 
+     * @param flow The finished flow
+     */
+    private void exportFlow(Flow flow) {
+        uidResolver.release(flow);
+        if (!flow.multiLink) {
+            loadBalancer.recordFlowCompletion(flow.sentSsid, flow.bytes, flow.activeMs);
         }
         
-        // Update available networks
-        availableNetworks.clear();
-        availableNetworks.addAll(networks);
+        FlowRecordWriter writer = flowRecords;
+        if (writer == null) {
+            return;
+        }
+        ConnectionTunnel tunnel = flow.sentSsid != null ? routing.tunnels.get(flow.sentSsid) : null;
+        writer.record(flow, flow.sentSsid, tunnel != null ? tunnel.network.getLatencyMs() : -1, flow.lastSeen);
+    }
+    
+    /**
+     * Gets the datapath latency percentiles per stage and per link
+     * 
+     * @return Map of stage name (or "WRITE:" + SSID) to {p50, p99, p99.9} in nanoseconds
+     */
+    public static Map<String, long[]> getStageLatencies() {
+        return STAGE_LATENCIES.percentiles();
+    }
+    
+    /**
+     * Gets the upload throughput measured over the last sampling interval
+     * 
+     * @return Rates per link, app and flow class, all zero while the VPN is not running
+     */
+    public static TrafficMeter.Rates getTrafficRates() {
+        return TRAFFIC_METER.getRates();
+    }
+    
+    /**
+     * Gets the number of flows moved to a surviving link after their link went away
+     * 
+     * @return Migrated flow count, 0 while the VPN is not running
+     */
+    public static long getMigratedFlowCount() {
+        MultiWifiVpnService vpn = instance;
+        return vpn != null ? vpn.migratedFlows.get() : 0;
+    }
+    
+    /**
+     * Gets the number of flows that were reset because their link went away
+     * 
+     * @return Dropped flow count, 0 while the VPN is not running
+     */
+    public static long getDroppedFlowCount() {
+        MultiWifiVpnService vpn = instance;
+        return vpn != null ? vpn.droppedFlows.get() : 0;
+    }
+    
+    /**
+     * Starts capturing packet headers into a ring file in the cache directory, replacing
+     * any capture in progress. Packets are recorded as they are sent, on the interface
+     * of their link; packets dropped by a BLOCK rule are recorded on the TUN interface.
+     * 
+     * @param filter Capture filter expression, e.g. "tcp and port 443", or null for all
+     * @param maxBytes Size of the ring file
+     * @return The capture file
+     * @throws IOException If the file cannot be created
+     * @throws IllegalArgumentException If the filter is malformed
+     * @throws IllegalStateException If the VPN is not running
+     */
+    public static File startCapture(String filter, int maxBytes) throws IOException {
+        MultiWifiVpnService vpn = instance;
+        if (vpn == null) {
+            throw new IllegalStateException("VPN is not running");
+        }
+        return vpn.openCapture(filter, maxBytes);
+    }
+    
+    private synchronized File openCapture(String filter, int maxBytes) throws IOException {
+        File file = new File(getCacheDir(), CAPTURE_FILE);
+        PacketCapture previous = capture;
+        capture = null;
+        if (previous != null) {
+            previous.close();
+        }
+        capture = new PacketCapture(file, maxBytes, CAPTURE_SNAP_LENGTH, CaptureFilter.compile(filter));
+        Log.d(TAG, "Capturing to " + file + " with filter '" + filter + "'");
+        return file;
+    }
+    
+    /**
+     * Stops the packet capture, if any, and flushes the ring file
+     */
+    public static void stopCapture() {
+        MultiWifiVpnService vpn = instance;
+        if (vpn != null) {
+            vpn.closeCapture();
+        }
+    }
+    
+    /**
+     * Checks whether packets are being captured
+     * 
+     * @return true while a capture is in progress
+     */
+    public static boolean isCapturing() {
+        MultiWifiVpnService vpn = instance;
+        return vpn != null && vpn.capture != null;
+    }
+    
+    private synchronized void closeCapture() {
+        PacketCapture previous = capture;
+        capture = null;
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing capture file", e);
+            }
+        }
+    }
+    
+    /**
+     * Gets the number of TCP flows whose MSS was clamped, per network
+     * 
+     * @return Map of SSID to clamped flow count, empty while the VPN is not running
+     */
+    public static Map<String, Long> getClampedFlowCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        MultiWifiVpnService vpn = instance;
+        if (vpn == null) {
+            return counts;
+        }
+        for (Map.Entry<String, ConnectionTunnel> entry : vpn.routing.tunnels.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().clampedFlows.get());
+        }
+        return counts;
+    }
+    
+    /**
+     * Gets the backpressure state of each tunnel
+     * 
+     * @return Map of SSID to {credit, ECN-marked packets, dropped packets}, empty while
+     *         the VPN is not running
+     */
+    public static Map<String, long[]> getTunnelQueueStats() {
+        Map<String, long[]> stats = new HashMap<>();
+        MultiWifiVpnService vpn = instance;
+        if (vpn == null) {
+            return stats;
+        }
+        for (Map.Entry<String, ConnectionTunnel> entry : vpn.routing.tunnels.entrySet()) {
+            ConnectionTunnel tunnel = entry.getValue();
+            stats.put(entry.getKey(), new long[] {
+                    tunnel.queue.credit(), tunnel.markedPackets.get(), tunnel.droppedPackets.get()
+            });
+        }
+        return stats;
+    }
+    
+    /**
+     * Moves a striped packet off a congested tunnel to the open tunnel with the most
+     * credit. Held flows are not moved, so their packets stay in order on one link.
+     * 
+     * @param snapshot Routing state for the packet
+     * @param tunnel Tunnel chosen by the load balancer
+     * @return The tunnel to use
+     */
+    private ConnectionTunnel withCredit(RoutingSnapshot snapshot, ConnectionTunnel tunnel) {
+        int best = tunnel.queue.credit();
+        if (best > TUNNEL_QUEUE_LOW_CREDIT) {
+            return tunnel;
+        }
+        for (ConnectionTunnel candidate : snapshot.tunnels.values()) {
+            int credit = candidate.queue.credit();
+            if (credit > best && candidate.channel != null && candidate.channel.isOpen()) {
+                best = credit;
+                tunnel = candidate;
+            }
+        }
+        return tunnel;
+    }
+    
+    /**
+     * Gets the smallest MTU among the active tunnels, i.e. the largest packet that
+     * fits whichever link a flow is scheduled on
+     * 
+     * @param snapshot Routing state for the packet
+     * @return Smallest tunnel MTU, or the TUN MTU if there are no tunnels
+     */
+    private int getMinTunnelMtu(RoutingSnapshot snapshot) {
+        int mtu = MTU;
+        for (ConnectionTunnel tunnel : snapshot.tunnels.values()) {
+            mtu = Math.min(mtu, tunnel.getMtu());
+        }
+        return mtu;
+    }
+    
+    /**
+     * Immutable routing state read by the packet reader: tunnels by SSID, the load
+     * balancer allocation over the same networks, and the destination and host name
+     * rules. Every change builds a new snapshot and publishes it with a single write.
+     */
+    private static final class RoutingSnapshot {
+        static final RoutingSnapshot EMPTY = new RoutingSnapshot(
+                Collections.<String, ConnectionTunnel>emptyMap(), LoadBalancer.Allocation.EMPTY,
+                new CidrTrie<RoutingRule>(), new DomainRuleSet(Collections.<DomainRule>emptyList()));
         
-        // Update load balancer
-        loadBalancer.updateNetworks(networks);
+        final Map<String, ConnectionTunnel> tunnels;
+        final LoadBalancer.Allocation allocation;
+        final CidrTrie<RoutingRule> routingRules;
+        final DomainRuleSet domainRules;
         
-        // Update notification
-        updateNotification("Connected to " + networks.size() + " networks");
+        RoutingSnapshot(Map<String, ConnectionTunnel> tunnels, LoadBalancer.Allocation allocation,
+                        CidrTrie<RoutingRule> routingRules, DomainRuleSet domainRules) {
+            this.tunnels = tunnels;
+            this.allocation = allocation;
+            this.routingRules = routingRules;
+            this.domainRules = domainRules;
+        }
+        
+        RoutingSnapshot withNetworks(Map<String, ConnectionTunnel> tunnels, LoadBalancer.Allocation allocation) {
+            return new RoutingSnapshot(Collections.unmodifiableMap(tunnels), allocation, routingRules, domainRules);
+        }
+        
+        RoutingSnapshot withAllocation(LoadBalancer.Allocation allocation) {
+            return new RoutingSnapshot(tunnels, allocation, routingRules, domainRules);
+        }
+        
+        RoutingSnapshot withRoutingRules(CidrTrie<RoutingRule> routingRules) {
+            return new RoutingSnapshot(tunnels, allocation, routingRules, domainRules);
+        }
+        
+        RoutingSnapshot withDomainRules(DomainRuleSet domainRules) {
+            return new RoutingSnapshot(tunnels, allocation, routingRules, domainRules);
+        }
+        
+        ConnectionTunnel tunnelFor(NetworkConnection network) {
+            return network != null ? tunnels.get(network.getSsid()) : null;
+        }
     }
     
     /**
@@ -238,15 +1058,85 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
     private class ConnectionTunnel implements Runnable {
         private final NetworkConnection network;
         private final AtomicBoolean running = new AtomicBoolean(false);
-        private DatagramChannel channel;
+        private volatile DatagramChannel channel;
+        private volatile int mtu = MTU;
+        private long nextMtuRefresh;
+        private final AtomicLong clampedFlows = new AtomicLong();
+        private final LongAdder sentBytes;
+        private final TunnelQueue queue = new TunnelQueue(TUNNEL_QUEUE_PACKETS, MTU);
+        private final AtomicLong markedPackets = new AtomicLong();
+        private final AtomicLong droppedPackets = new AtomicLong();
+        private final AtomicLong queuedBytes;
+        
+        // When the reader last timed a handshake on this link, in milliseconds
+        private volatile long lastHandshakeRtt;
+        
+        // Active probe schedule and the smoothed RTT, jitter and loss read after each
+        // round, used by the prober thread
+        private long probeIntervalMs = RTT_PROBE_INTERVAL_MS;
+        private long nextProbe;
+        private long probedSentBytes;
+        private final double[] probeResult = new double[3];
         
         public ConnectionTunnel(NetworkConnection network) {
             this.network = network;
+            this.sentBytes = TRAFFIC_METER.forLink(network.getSsid());
+            this.queuedBytes = loadBalancer.getQueuedBytes(network.getSsid());
+        }
+        
+        /**
+         * Gets the largest packet this tunnel carries, i.e. the link MTU less the
+         * headers the tunnel wraps each packet in
+         * 
+         * @return Tunnel MTU
+         */
+        public int getMtu() {
+            return mtu - TUNNEL_OVERHEAD;
+        }
+        
+        public void setMtu(int mtu) {
+            this.mtu = mtu;
+        }
+        
+        /**
+         * Queues a packet for this tunnel's writer, fragmenting it to the link MTU if
+         * needed. Never blocks: a packet that does not fit is dropped (drop-tail), and
+         * once the queue runs low on credit ECN-capable packets are marked so that
+         * senders back off before drops start.
+         * 
+         * @param packet The packet to send
+         * @param fragmenter Fragmenter owned by the calling thread
+         * @return Number of packets queued, 0 if the queue is full, or -1 if the packet
+         *         needs fragmenting but has DF set
+         * @throws IOException Not thrown by the queue
+         */
+        public int send(ByteBuffer packet, Fragmenter fragmenter) throws IOException {
+            int tunnelMtu = getMtu();
+            int fragments = fragmenter.count(packet, tunnelMtu);
+            if (fragments == 0) {
+                return -1;
+            }
+            int credit = queue.credit();
+            if (credit < fragments) {
+                droppedPackets.incrementAndGet();
+                return 0;
+            }
+            if (credit - fragments < TUNNEL_QUEUE_LOW_CREDIT && Checksum.markCongestionExperienced(packet)) {
+                markedPackets.incrementAndGet();
+            }
+            return fragmenter.send(packet, tunnelMtu, this::enqueue);
+        }
+        
+        private void enqueue(ByteBuffer fragment) {
+            if (queue.offer(fragment)) {
+                queuedBytes.addAndGet(fragment.remaining());
+            }
         }
         
         @Override
         public void run() {
             running.set(true);
+            StageLatencies.Recorder latency = STAGE_LATENCIES.newRecorder();
             
             try {
                 // Create a datagram channel
@@ -254,23 +1144,31 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
                 
                 // Protect this socket from VPN to prevent loops
                 protect(channel.socket());
+                bind(channel.socket());
                 
                 // Configure the channel
                 channel.configureBlocking(true);
                 
-                // Buffer for receiving data
-                ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
-                
                 while (running.get() && isRunning.get()) {
-                    // Wait for data to be routed to this network
-                    // The actual routing logic will be implemented in the VpnRunnable
-                    Thread.sleep(100); // Prevent CPU spin, replace with actual logic
+                    // Write the packets the VpnRunnable routed to this network
+                    ByteBuffer next = queue.take(TUNNEL_QUEUE_POLL_MS, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        continue;
+                    }
+                    int length = next.remaining();
+                    long start = System.nanoTime();
+                    channel.write(next);
+                    latency.recordWrite(network.getSsid(), System.nanoTime() - start);
+                    queue.release();
+                    queuedBytes.addAndGet(-length);
                 }
                 
             } catch (Exception e) {
                 Log.e(TAG, "Error in connection tunnel for " + network.getSsid(), e);
             } finally {
+                STAGE_LATENCIES.release(latency);
                 close();
+                discardQueue();
             }
         }
         
@@ -279,6 +1177,148 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
             close();
         }
         
+        /**
+         * Drops the packets left in the queue so the network's queued byte count does
+         * not carry them over to a later tunnel
+         */
+        private void discardQueue() {
+            ByteBuffer next;
+            while ((next = queue.take(0, TimeUnit.MILLISECONDS)) != null) {
+                queuedBytes.addAndGet(-next.remaining());
+                queue.release();
+            }
+        }
+        
+        /**
+         * Feeds the RTT of a handshake the reader timed on this link to the link quality
+         * 
+         * @param rttNanos Time from the app's SYN to its ACK of the SYN-ACK
+         * @param now Current time in milliseconds
+         */
+        void recordHandshakeRtt(long rttNanos, long now) {
+            LoadBalancer.getLinkQuality().recordRtt(network.getSsid(), rttNanos / 1e6);
+            lastHandshakeRtt = now;
+        }
+        
+        /**
+         * Probes this link's RTT unless handshakes measured it lately. The interval
+         * between probes doubles while the link sends nothing, up to its maximum, so an
+         * idle radio is woken rarely; POWER_SAVING always uses the maximum.
+         * 
+         * @param now Current time in milliseconds
+         * @param powerSaving Whether the POWER_SAVING strategy is in use
+         */
+        void probeRttIfDue(long now, boolean powerSaving) {
+            long sent = sentBytes.sum();
+            boolean busy = sent != probedSentBytes;
+            probedSentBytes = sent;
+            if (now - lastHandshakeRtt < RTT_PROBE_INTERVAL_MS) {
+                probeIntervalMs = RTT_PROBE_INTERVAL_MS;
+                nextProbe = now + probeIntervalMs;
+                return;
+            }
+            if (busy && !powerSaving && probeIntervalMs > RTT_PROBE_INTERVAL_MS) {
+                // Traffic resumed: measure the link it now runs on promptly
+                probeIntervalMs = RTT_PROBE_INTERVAL_MS;
+                nextProbe = now;
+            }
+            if (now < nextProbe) {
+                return;
+            }
+            probeRtt();
+            probeIntervalMs = powerSaving ? RTT_PROBE_MAX_INTERVAL_MS
+                    : busy ? RTT_PROBE_INTERVAL_MS : Math.min(probeIntervalMs * 2, RTT_PROBE_MAX_INTERVAL_MS);
+            nextProbe = now + probeIntervalMs;
+        }
+        
+        /**
+         * Measures this link's RTT with a TCP handshake and feeds it to the link quality.
+         * A probe that times out is recorded as an RTT of the timeout rather than as
+         * loss: an unanswered SYN says the path is slow or the server busy, and the
+         * packet loss of the link is not what it measures.
+         */
+        private void probeRtt() {
+            LinkQuality quality = LoadBalancer.getLinkQuality();
+            String ssid = network.getSsid();
+            try (Socket probe = new Socket()) {
+                protect(probe);
+                bind(probe);
+                long start = System.nanoTime();
+                probe.connect(new InetSocketAddress(RTT_PROBE_HOST, RTT_PROBE_PORT), RTT_PROBE_TIMEOUT_MS);
+                quality.recordRtt(ssid, (System.nanoTime() - start) / 1e6);
+            } catch (SocketTimeoutException e) {
+                quality.recordRtt(ssid, RTT_PROBE_TIMEOUT_MS);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not probe RTT of " + ssid, e);
+            }
+        }
+        
+        /**
+         * Shows the link's smoothed RTT and loss, from probes and handshakes, on its network
+         */
+        void publishQuality() {
+            LinkQuality quality = LoadBalancer.getLinkQuality();
+            String ssid = network.getSsid();
+            if (quality.read(ssid, probeResult, 0)) {
+                network.setLatencyMs((int) Math.round(probeResult[0]));
+                network.setLossRate(probeResult[2]);
+            }
+        }
+        
+        /**
+         * Reads the kernel's path MTU for this link and updates the tunnel MTU, once per
+         * refresh interval. The socket is only connected to select the route; no packets
+         * are sent.
+         * 
+         * @param now Current time in milliseconds
+         */
+        void refreshPathMtu(long now) {
+            if (now < nextMtuRefresh) {
+                return;
+            }
+            nextMtuRefresh = now + PMTU_REFRESH_INTERVAL_MS;
+            try (DatagramSocket routeSocket = new DatagramSocket()) {
+                protect(routeSocket);
+                bind(routeSocket);
+                routeSocket.connect(new InetSocketAddress(PMTU_ROUTE_HOST, PMTU_ROUTE_PORT));
+                int pathMtu = PathMtuDiscovery.routeMtu(routeSocket, MTU);
+                if (pathMtu != mtu) {
+                    Log.d(TAG, "Path MTU for " + network.getSsid() + " is " + pathMtu);
+                    mtu = pathMtu;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read path MTU for " + network.getSsid(), e);
+            }
+        }
+        
+        /**
+         * Binds a socket to this tunnel's link, so that it leaves through that link
+         * rather than the default network. Networks that did not come up through
+         * ConnectivityManager have no handle, and their sockets stay unbound.
+         * 
+         * @param socket Protected socket that is not yet connected
+         * @throws IOException If the link has gone away
+         */
+        private void bind(DatagramSocket socket) throws IOException {
+            Network handle = network.getNetwork();
+            if (handle != null) {
+                handle.bindSocket(socket);
+            }
+        }
+        
+        /**
+         * Binds a TCP socket to this tunnel's link, like {@link #bind(DatagramSocket)}
+         * 
+         * @param socket Protected socket that is not yet connected
+         * @throws IOException If the link has gone away
+         */
+        private void bind(Socket socket) throws IOException {
+            Network handle = network.getNetwork();
+            if (handle != null) {
+                handle.bindSocket(socket);
+            }
+        }
+        
         private void close() {
             if (channel != null) {
                 try {
@@ -295,67 +1335,308 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
      * Runnable to handle traffic from the VPN interface
      */
     private class VpnRunnable implements Runnable {
-        private final int fd;
+        private final FileDescriptor fd;
+        private VpnRunnable predecessor;
+        private final CountDownLatch exited = new CountDownLatch(1);
+        private StageLatencies.Recorder latency;
+        private volatile boolean retired;
         
-        public VpnRunnable(int fd) {
+        /**
+         * @param fd The TUN interface
+         * @param predecessor Reader this one replaces, or null
+         */
+        public VpnRunnable(FileDescriptor fd, VpnRunnable predecessor) {
             this.fd = fd;
+            this.predecessor = predecessor;
+        }
+        
+        /**
+         * Stops this reader without stopping the VPN, when a new interface replaces its own
+         */
+        void retire() {
+            retired = true;
         }
         
         @Override
         public void run() {
+            latency = STAGE_LATENCIES.newRecorder();
             try {
+                // Tunnel queues take a single producer: wait until the old reader is gone
+                if (predecessor != null) {
+                    predecessor.exited.await();
+                    predecessor = null;
+                }
+                
                 FileInputStream in = new FileInputStream(fd);
                 FileOutputStream out = new FileOutputStream(fd);
                 
                 ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+                ByteBuffer reassembled = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+                ByteBuffer icmp = ByteBuffer.allocate(MTU);
+                FragmentReassembler reassembler = new FragmentReassembler(
+                        MAX_REASSEMBLY_DATAGRAMS, MAX_REASSEMBLY_BYTES, FRAGMENT_TIMEOUT_MS);
+                Fragmenter fragmenter = new Fragmenter(MTU);
+                FlowTable flowTable = new FlowTable(MAX_FLOWS);
+                ByteBuffer cryptoData = ByteBuffer.allocate(MAX_PACKET_SIZE);
+                ByteBuffer reset = ByteBuffer.allocate(TcpReset.LENGTH);
+                Set<String> lost = new HashSet<>();
+                long nextFlowSweep = 0;
                 
-                while (isRunning.get()) {
+                while (isRunning.get() && !retired) {
                     // Clear the packet buffer
                     packet.clear();
                     
                     // Read from VPN interface
+                    long mark = System.nanoTime();
                     int length = in.read(packet.array());
                     if (length <= 0) {
                         Thread.sleep(100);
                         continue;
                     }
+                    mark = lap(StageLatencies.Stage.READ, mark);
                     
                     // Set the buffer position and limit
                     packet.limit(length);
                     packet.position(0);
                     
+                    if (!IpPacket.isValidIpv4(packet, length)) {
+                        continue;
+                    }
+                    
+                    // Fragments are held back until the whole datagram is available
+                    ByteBuffer current = packet;
+                    if (IpPacket.isFragment(packet)) {
+                        if (reassembler.offer(packet, reassembled) == 0) {
+                            continue;
+                        }
+                        current = reassembled;
+                    }
+                    mark = lap(StageLatencies.Stage.PARSE, mark);
+                    
+                    long now = System.currentTimeMillis();
+                    if (now >= nextFlowSweep) {
+                        flowTable.expireIdle(now, FLOW_IDLE_TIMEOUT_MS, MultiWifiVpnService.this::exportFlow);
+                        nextFlowSweep = now + FLOW_SWEEP_INTERVAL_MS;
+                    }
+                    
+                    // One consistent view of tunnels, weights and rules for this packet
+                    RoutingSnapshot snapshot = routing;
+                    if (!lostLinks.isEmpty()) {
+                        String ssid;
+                        while ((ssid = lostLinks.poll()) != null) {
+                            lost.add(ssid);
+                        }
+                        // Read after the poll, so it is at least as new as the removal
+                        migrateFlows(routing, lost, flowTable, out, reset);
+                        lost.clear();
+                    }
+                    
+                    // Track the flow; its owner and policy are resolved once, from the first packet on
+                    Flow flow = flowTable.get(current);
+                    if (flow == null) {
+                        flow = flowTable.create(current, now);
+                        if (flow != null) {
+                            initializeFlow(snapshot, flow);
+                        }
+                    } else if (flow.ownerPending) {
+                        pollOwner(flow);
+                    }
+                    int packetLength = IpPacket.totalLength(current);
+                    if (flow != null) {
+                        flow.packets++;
+                        flow.bytes += packetLength;
+                        if (FlowClassifier.update(flow, packetLength, now) && flow.policy == null) {
+                            // Re-route a reclassified flow from scratch
+                            flow.pinnedSsid = null;
+                        }
+                        if (now - flow.lastSeen <= FLOW_ACTIVE_GAP_MS) {
+                            flow.activeMs += now - flow.lastSeen;
+                        }
+                        flow.lastSeen = now;
+                        flow.appCounters.recordTx(packetLength);
+                        if (flow.protocol == IpPacket.PROTO_TCP) {
+                            if (!flow.tcpEstablished) {
+                                timeHandshake(snapshot, flow, current, now);
+                            }
+                            TcpReset.track(flow, current);
+                        }
+                        if (!flow.payloadInspected) {
+                            inspectFirstPayload(snapshot, flow, current, cryptoData);
+                        }
+                        if (isBlocked(flow)) {
+                            tap(current, null, now);
+                            continue;
+                        }
+                    }
+                    mark = lap(StageLatencies.Stage.CLASSIFY, mark);
+                    
                     // Analyze the packet (IP header, etc.) and determine routing
-                    String destination = analyzePacket(packet);
+                    String destination = analyzePacket(current);
                     
-                    // Use load balancer to select the best network for this packet
-                    NetworkConnection selectedNetwork = loadBalancer.selectNetworkForTraffic(destination);
+                    // Select the network from the app policy or the load balancer
+                    ConnectionTunnel tunnel = selectTunnel(snapshot, flow, destination);
+                    if (tunnel != null && (flow == null || flow.linkSsid == null)) {
+                        tunnel = withCredit(snapshot, tunnel);
+                    }
+                    mark = lap(StageLatencies.Stage.SCHEDULE, mark);
                     
-                    if (selectedNetwork != null) {
-                        // Get the tunnel for this network
-                        ConnectionTunnel tunnel = tunnels.get(selectedNetwork.getSsid());
+                    if (tunnel != null && tunnel.channel != null && tunnel.channel.isOpen()) {
+                        // Keep full-sized segments within the smallest link MTU
+                        if (MssClamp.isSyn(current) && MssClamp.clamp(current, getMinTunnelMtu(snapshot))) {
+                            tunnel.clampedFlows.incrementAndGet();
+                        }
+                        
+                        tap(current, tunnel, now);
+                        if (flow != null) {
+                            String ssid = tunnel.network.getSsid();
+                            if (flow.sentSsid != null && !flow.sentSsid.equals(ssid)) {
+                                flow.multiLink = true;
+                            }
+                            flow.sentSsid = ssid;
+                        }
                         
-                        if (tunnel != null && tunnel.channel != null && tunnel.channel.isOpen()) {
-                            // Forward packet to the selected network
-                            // This is simplified - in a real implementation we would:
-                            // 1. Route the packet to the correct network interface
-                            // 2. Handle responses and route them back through the VPN
-                            tunnel.channel.write(packet);
+                        // Hand the packet to the selected network, split to the link MTU
+                        // This is simplified - in a real implementation we would:
+                        // 1. Route the packet to the correct network interface
+                        // 2. Handle responses and route them back through the VPN
+                        int sent = tunnel.send(current, fragmenter);
+                        lap(StageLatencies.Stage.ENQUEUE, mark);
+                        if (sent < 0) {
+                            // DF set and too big for this link: tell the sender
+                            int icmpLength = Fragmenter.buildFragmentationNeeded(
+                                    current, tunnel.getMtu(), VPN_GATEWAY_ADDRESS, icmp);
+                            out.write(icmp.array(), 0, icmpLength);
+                        } else if (sent > 0) {
+                            tunnel.sentBytes.add(packetLength);
+                            if (flow != null) {
+                                TRAFFIC_METER.recordClass(flow.flowClass, packetLength);
+                            }
                         }
                     }
                     
                     // This is a simplified implementation
                     // In reality, we would need to:
                     // 1. Maintain connection state
-                    // 2. Handle IP fragmentation
-                    // 3. Process responses and write them back to the VPN interface
+                    // 2. Process responses and write them back to the VPN interface
                 }
+                
+                // Record the flows still open when the VPN stops
+                flowTable.removeIf(flow -> {
+                    exportFlow(flow);
+                    return true;
+                });
             } catch (Exception e) {
-                Log.e(TAG, "Error in VPN runnable", e);
+                if (retired) {
+                    Log.d(TAG, "Replaced VPN interface closed");
+                } else {
+                    Log.e(TAG, "Error in VPN runnable", e);
+                }
             } finally {
-                isRunning.set(false);
+                if (!retired) {
+                    isRunning.set(false);
+                }
+                STAGE_LATENCIES.release(latency);
+                exited.countDown();
+            }
+        }
+        
+        /**
+         * Records the time spent in a stage
+         * 
+         * @param stage The stage that just finished
+         * @param start Time the stage started, from System.nanoTime()
+         * @return Time the stage finished, i.e. the start of the next one
+         */
+        private long lap(StageLatencies.Stage stage, long start) {
+            long end = System.nanoTime();
+            latency.record(stage, end - start);
+            return end;
+        }
+        
+        /**
+         * Looks for a host name in the first payload packet of a flow (TLS ClientHello over
+         * TCP, QUIC Initial over UDP) and matches it against the domain rules. Only this one
+         * packet is examined, and the decision is made before it is forwarded.
+         * 
+         * @param snapshot Routing state for the packet
+         * @param flow The flow
+         * @param packet The packet
+         * @param cryptoData Scratch buffer for decrypted QUIC CRYPTO data
+         */
+        private void inspectFirstPayload(RoutingSnapshot snapshot, Flow flow, ByteBuffer packet,
+                                         ByteBuffer cryptoData) {
+            DomainRuleSet rules = snapshot.domainRules;
+            if (rules.size() == 0
+                    || (flow.protocol != IpPacket.PROTO_TCP && flow.protocol != IpPacket.PROTO_UDP)) {
+                flow.payloadInspected = true;
+                return;
+            }
+            
+            int payloadOffset = IpPacket.payloadOffset(packet);
+            int payloadLength = IpPacket.totalLength(packet) - payloadOffset;
+            if (payloadLength <= 0) {
+                // TCP handshake, wait for the first data segment
+                return;
+            }
+            flow.payloadInspected = true;
+            
+            long name;
+            ByteBuffer nameBuffer = packet;
+            if (flow.protocol == IpPacket.PROTO_TCP) {
+                name = TlsSniffer.findInRecord(packet, payloadOffset, payloadLength);
+            } else {
+                int cryptoLength = QuicInitialParser.extractCryptoData(
+                        packet, payloadOffset, payloadLength, cryptoData);
+                name = cryptoLength > 0
+                        ? TlsSniffer.findInHandshake(cryptoData, 0, cryptoLength)
+                        : TlsSniffer.NOT_FOUND;
+                nameBuffer = cryptoData;
+            }
+            if (name != TlsSniffer.NOT_FOUND) {
+                flow.domainRule = rules.match(nameBuffer, TlsSniffer.nameOffset(name), TlsSniffer.nameLength(name));
+            }
+        }
+        
+        /**
+         * Records a packet in the capture ring if capture is on
+         * 
+         * @param packet The packet
+         * @param tunnel Tunnel it is sent on, or null if it stops at the TUN
+         * @param now Current time in milliseconds
+         */
+        private void tap(ByteBuffer packet, ConnectionTunnel tunnel, long now) {
+            PacketCapture tap = capture;
+            if (tap != null) {
+                int linkId = tunnel != null ? tap.linkId(tunnel.network.getSsid()) : PacketCapture.TUN_LINK;
+                tap.capture(packet, linkId, now);
             }
         }
         
+        /**
+         * Feeds the RTT of a TCP handshake the app just completed to the link its SYN
+         * went out on
+         * 
+         * @param snapshot Routing state of the packet
+         * @param flow TCP flow not yet established
+         * @param packet Segment the app sent
+         * @param now Current time in milliseconds
+         */
+        private void timeHandshake(RoutingSnapshot snapshot, Flow flow, ByteBuffer packet, long now) {
+            long rttNanos = HandshakeRtt.track(flow, packet, System.nanoTime());
+            if (rttNanos == HandshakeRtt.NO_SAMPLE || flow.sentSsid == null) {
+                return;
+            }
+            ConnectionTunnel tunnel = snapshot.tunnels.get(flow.sentSsid);
+            if (tunnel != null) {
+                tunnel.recordHandshakeRtt(rttNanos, now);
+            }
+        }
+        
+        private boolean isBlocked(Flow flow) {
+            return (flow.domainRule != null && flow.domainRule.getAction() == RoutingRule.Action.BLOCK)
+                    || (flow.domainRule == null && flow.rule != null && flow.rule.getAction() == RoutingRule.Action.BLOCK);
+        }
+        
         /**
          * Analyze a packet to determine routing information
          * 
@@ -387,10 +1668,15 @@ public class MultiWifiVpnService extends VpnService implements Handler.Callback
     }
     
     private void closeAllTunnels() {
-        for (ConnectionTunnel tunnel : tunnels.values()) {
+        RoutingSnapshot current;
+        synchronized (routingLock) {
+            current = routing;
+            routing = current.withNetworks(Collections.<String, ConnectionTunnel>emptyMap(),
+                    LoadBalancer.Allocation.EMPTY);
+        }
+        for (ConnectionTunnel tunnel : current.tunnels.values()) {
             tunnel.stop();
         }
-        tunnels.clear();
     }
     
     private void createNotificationChannel() {
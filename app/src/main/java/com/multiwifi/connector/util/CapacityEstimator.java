@@ -0,0 +1,196 @@
+package com.multiwifi.connector.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-link capacity estimate that fuses every source of bandwidth information with a
+ * scalar Kalman filter. The state is the link's capacity, modelled as a random walk
+ * whose variance grows with time since the last measurement, so stale estimates
+ * become uncertain. Each source has its own measurement noise:
+ * <ul>
+ *   <li>speed tests measure capacity directly, give or take 20%;</li>
+ *   <li>the bandwidth the OS reports for a link is a coarse, often optimistic hint;</li>
+ *   <li>passively measured throughput is only a lower bound, since the link may have
+ *       been idle, so it only counts when it exceeds the current estimate.</li>
+ * </ul>
+ * Updates are serialized and replace a link's state as a whole, so reads take no lock
+ * and can run on the packet path.
+ */
+public class CapacityEstimator {
+    /**
+     * Kinds of capacity measurement
+     */
+    public enum Source {
+        SPEED_TEST,
+        LINK_BANDWIDTH,
+        PASSIVE
+    }
+
+    // Relative measurement noise (one standard deviation) per source
+    private static final double SPEED_TEST_NOISE = 0.2;
+    private static final double LINK_BANDWIDTH_NOISE = 0.5;
+    private static final double PASSIVE_NOISE = 0.1;
+    private static final double MIN_NOISE_MBPS = 0.5;
+
+    // Capacity drift per second, relative to the estimate
+    private static final double DRIFT_PER_SECOND = 0.02;
+    private static final double MIN_DRIFT_MBPS = 0.1;
+
+    private static final double Z_95 = 1.96;
+
+    /**
+     * Capacity estimate of one link with its uncertainty
+     */
+    public static final class Estimate {
+        private final double mbps;
+        private final double stdDevMbps;
+
+        Estimate(double mbps, double stdDevMbps) {
+            this.mbps = mbps;
+            this.stdDevMbps = stdDevMbps;
+        }
+
+        public double getMbps() {
+            return mbps;
+        }
+
+        public double getStdDevMbps() {
+            return stdDevMbps;
+        }
+
+        /**
+         * @return Lower end of the 95% confidence interval, never negative
+         */
+        public double getLowerMbps() {
+            return Math.max(0, mbps - Z_95 * stdDevMbps);
+        }
+
+        /**
+         * @return Upper end of the 95% confidence interval
+         */
+        public double getUpperMbps() {
+            return mbps + Z_95 * stdDevMbps;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f +/- %.1f Mbps", mbps, Z_95 * stdDevMbps);
+        }
+    }
+
+    /**
+     * Filter state of one link
+     */
+    private static final class State {
+        final double mbps;
+        final double variance;
+        final long updatedAt;
+
+        State(double mbps, double variance, long updatedAt) {
+            this.mbps = mbps;
+            this.variance = variance;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, State> links = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a measurement to a link's estimate
+     *
+     * @param ssid SSID of the link
+     * @param source Kind of measurement
+     * @param mbps Measured value in Mbps
+     * @param nowMillis Time of the measurement
+     */
+    public synchronized void update(String ssid, Source source, double mbps, long nowMillis) {
+        if (ssid == null || !(mbps >= 0)) {
+            return;
+        }
+        double noise = Math.max(mbps * relativeNoise(source), MIN_NOISE_MBPS);
+        double measurementVariance = noise * noise;
+
+        State state = links.get(ssid);
+        if (state == null) {
+            if (source == Source.PASSIVE && mbps == 0) {
+                // An idle link says nothing about its capacity
+                return;
+            }
+            links.put(ssid, new State(mbps, measurementVariance, nowMillis));
+            return;
+        }
+
+        double variance = predictVariance(state, nowMillis);
+        long updatedAt = Math.max(state.updatedAt, nowMillis);
+        if (source == Source.PASSIVE && mbps <= state.mbps) {
+            links.put(ssid, new State(state.mbps, variance, updatedAt));
+            return;
+        }
+        double gain = variance / (variance + measurementVariance);
+        links.put(ssid, new State(state.mbps + gain * (mbps - state.mbps), variance * (1 - gain), updatedAt));
+    }
+
+    /**
+     * Gets the estimate of a link at the given time
+     *
+     * @param ssid SSID of the link
+     * @param nowMillis Current time; uncertainty grows with time since the last measurement
+     * @return The estimate, or null if the link has not been measured
+     */
+    public Estimate get(String ssid, long nowMillis) {
+        State state = ssid != null ? links.get(ssid) : null;
+        if (state == null) {
+            return null;
+        }
+        return new Estimate(state.mbps, Math.sqrt(predictVariance(state, nowMillis)));
+    }
+
+    /**
+     * Reads the estimate of a link into an array, without allocating
+     *
+     * @param ssid SSID of the link
+     * @param nowMillis Current time; uncertainty grows with time since the last measurement
+     * @param out Receives the estimate at offset and its standard deviation at offset + 1
+     * @param offset Offset into out
+     * @return false if the link has not been measured, leaving out untouched
+     */
+    public boolean read(String ssid, long nowMillis, double[] out, int offset) {
+        State state = ssid != null ? links.get(ssid) : null;
+        if (state == null) {
+            return false;
+        }
+        out[offset] = state.mbps;
+        out[offset + 1] = Math.sqrt(predictVariance(state, nowMillis));
+        return true;
+    }
+
+    /**
+     * Drops the estimate of a link
+     *
+     * @param ssid SSID of the link
+     */
+    public synchronized void forget(String ssid) {
+        links.remove(ssid);
+    }
+
+    /**
+     * Gets the variance of a link's estimate grown by the drift since its last update
+     */
+    private static double predictVariance(State state, long nowMillis) {
+        double seconds = Math.max(0, nowMillis - state.updatedAt) / 1000.0;
+        double drift = Math.max(state.mbps * DRIFT_PER_SECOND, MIN_DRIFT_MBPS);
+        return state.variance + drift * drift * seconds;
+    }
+
+    private static double relativeNoise(Source source) {
+        switch (source) {
+            case SPEED_TEST:
+                return SPEED_TEST_NOISE;
+            case LINK_BANDWIDTH:
+                return LINK_BANDWIDTH_NOISE;
+            case PASSIVE:
+            default:
+                return PASSIVE_NOISE;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.multiwifi.connector.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Thompson sampling over networks as arms of a multi-armed bandit. Each network keeps
+ * a Gaussian posterior on the goodput its flows achieve, learned from completed flows
+ * and seeded with the network's capacity estimate as a weak prior. Sampling from the
+ * posteriors gives uncertain networks, such as a newly joined one, a share that swings
+ * widely (cheap exploration), while well-measured networks converge on their mean.
+ * Old observations decay so the posterior follows links whose quality changes.
+ */
+public class GoodputBandit {
+    // Weight of one observation after the next one arrives
+    private static final double DECAY = 0.98;
+
+    // The capacity estimate counts as this many observations
+    private static final double PRIOR_WEIGHT = 1.0;
+    private static final double MIN_PRIOR_MBPS = 1.0;
+
+    /**
+     * Decayed sufficient statistics of one network's observations
+     */
+    private static final class Arm {
+        double weight;
+        double sum;
+        double sumSquares;
+    }
+
+    private final Map<String, Arm> arms = new HashMap<>();
+    private final Random random;
+
+    public GoodputBandit() {
+        this(new Random());
+    }
+
+    /**
+     * @param random Source of the posterior samples
+     */
+    public GoodputBandit(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Adds the goodput of a completed flow to a network's posterior
+     *
+     * @param ssid SSID of the network the flow used
+     * @param goodputMbps Goodput of the flow in Mbps
+     */
+    public synchronized void observe(String ssid, double goodputMbps) {
+        Arm arm = arms.get(ssid);
+        if (arm == null) {
+            arm = new Arm();
+            arms.put(ssid, arm);
+        }
+        arm.weight = arm.weight * DECAY + 1;
+        arm.sum = arm.sum * DECAY + goodputMbps;
+        arm.sumSquares = arm.sumSquares * DECAY + goodputMbps * goodputMbps;
+    }
+
+    /**
+     * Draws a goodput from a network's posterior
+     *
+     * @param ssid SSID of the network
+     * @param priorMbps Capacity estimate of the network, used as the prior mean
+     * @param priorStdDevMbps Uncertainty of the capacity estimate
+     * @return Sampled goodput in Mbps, never negative
+     */
+    public synchronized double sample(String ssid, double priorMbps, double priorStdDevMbps) {
+        double prior = Math.max(priorMbps, MIN_PRIOR_MBPS);
+        double priorVariance = square(Math.max(priorStdDevMbps, MIN_PRIOR_MBPS));
+        Arm arm = arms.get(ssid);
+        double weight = PRIOR_WEIGHT;
+        double mean = prior;
+        double variance = priorVariance;
+        if (arm != null && arm.weight > 0) {
+            double observedMean = arm.sum / arm.weight;
+            double observedVariance = Math.max(0, arm.sumSquares / arm.weight - square(observedMean));
+            weight = PRIOR_WEIGHT + arm.weight;
+            mean = (PRIOR_WEIGHT * prior + arm.sum) / weight;
+            variance = (PRIOR_WEIGHT * priorVariance + arm.weight * observedVariance) / weight;
+        }
+        // Uncertainty of the mean shrinks with the number of observations
+        return Math.max(0, mean + random.nextGaussian() * Math.sqrt(variance / weight));
+    }
+
+    /**
+     * Gets the posterior mean goodput of a network
+     *
+     * @param ssid SSID of the network
+     * @param priorMbps Capacity estimate of the network, used as the prior mean
+     * @return Mean goodput in Mbps
+     */
+    public synchronized double mean(String ssid, double priorMbps) {
+        double prior = Math.max(priorMbps, MIN_PRIOR_MBPS);
+        Arm arm = arms.get(ssid);
+        if (arm == null) {
+            return prior;
+        }
+        return (PRIOR_WEIGHT * prior + arm.sum) / (PRIOR_WEIGHT + arm.weight);
+    }
+
+    /**
+     * Gets the number of observations a network's posterior rests on, after decay
+     *
+     * @param ssid SSID of the network
+     * @return Effective observation count
+     */
+    public synchronized double getObservationWeight(String ssid) {
+        Arm arm = arms.get(ssid);
+        return arm != null ? arm.weight : 0;
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+}
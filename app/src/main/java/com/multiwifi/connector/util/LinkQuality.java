@@ -0,0 +1,103 @@
+package com.multiwifi.connector.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-link round trip time and loss, learned from probes and from the TCP handshakes
+ * of the link's flows, which count as answered probes. The RTT is smoothed as in
+ * TCP's retransmission timer (RFC 6298), except that the variance is kept as the mean
+ * squared deviation so that real-time traffic can be placed on a mean + k standard
+ * deviations bound. Loss is the smoothed share of probes that went unanswered.
+ * Probes are recorded one at a time and replace a link's state as a whole, so reads
+ * take no lock and can run on the packet path.
+ */
+public class LinkQuality {
+    // Weights of a new sample in the smoothed RTT, its variance and the loss rate
+    private static final double RTT_GAIN = 1.0 / 8;
+    private static final double VARIANCE_GAIN = 1.0 / 4;
+    private static final double LOSS_GAIN = 1.0 / 16;
+
+    /**
+     * Smoothed state of one link
+     */
+    private static final class State {
+        static final State UNPROBED = new State(-1, 0, 0);
+
+        final double rttMs;
+        final double varianceMs2;
+        final double lossRate;
+
+        State(double rttMs, double varianceMs2, double lossRate) {
+            this.rttMs = rttMs;
+            this.varianceMs2 = varianceMs2;
+            this.lossRate = lossRate;
+        }
+    }
+
+    private final ConcurrentHashMap<String, State> links = new ConcurrentHashMap<>();
+
+    /**
+     * Adds an answered probe
+     *
+     * @param ssid SSID of the link
+     * @param rttMs Measured round trip time
+     */
+    public synchronized void recordRtt(String ssid, double rttMs) {
+        if (ssid == null || !(rttMs >= 0)) {
+            return;
+        }
+        State state = links.getOrDefault(ssid, State.UNPROBED);
+        double lossRate = state.lossRate - LOSS_GAIN * state.lossRate;
+        if (state.rttMs < 0) {
+            // First sample, as in RFC 6298: the deviation starts at half the RTT
+            links.put(ssid, new State(rttMs, rttMs * rttMs / 4, lossRate));
+        } else {
+            double deviation = rttMs - state.rttMs;
+            double varianceMs2 = state.varianceMs2 + VARIANCE_GAIN * (deviation * deviation - state.varianceMs2);
+            links.put(ssid, new State(state.rttMs + RTT_GAIN * deviation, varianceMs2, lossRate));
+        }
+    }
+
+    /**
+     * Adds a probe that went unanswered
+     *
+     * @param ssid SSID of the link
+     */
+    public synchronized void recordLoss(String ssid) {
+        if (ssid == null) {
+            return;
+        }
+        State state = links.getOrDefault(ssid, State.UNPROBED);
+        links.put(ssid, new State(state.rttMs, state.varianceMs2,
+                state.lossRate + LOSS_GAIN * (1 - state.lossRate)));
+    }
+
+    /**
+     * Reads a link's quality into an array, without allocating
+     *
+     * @param ssid SSID of the link
+     * @param out Receives the smoothed RTT at offset, its standard deviation at offset + 1
+     *            and the loss rate at offset + 2, all in milliseconds or as a fraction
+     * @param offset Offset into out
+     * @return false if no probe of the link was answered yet, leaving out untouched
+     */
+    public boolean read(String ssid, double[] out, int offset) {
+        State state = ssid != null ? links.get(ssid) : null;
+        if (state == null || state.rttMs < 0) {
+            return false;
+        }
+        out[offset] = state.rttMs;
+        out[offset + 1] = Math.sqrt(state.varianceMs2);
+        out[offset + 2] = state.lossRate;
+        return true;
+    }
+
+    /**
+     * Drops what is known about a link
+     *
+     * @param ssid SSID of the link
+     */
+    public synchronized void forget(String ssid) {
+        links.remove(ssid);
+    }
+}
@@ -4,7 +4,14 @@ import android.util.Log;
 
 import com.multiwifi.connector.model.NetworkConnection;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 /**
  * Utility class to handle load balancing across multiple network connections
@@ -12,18 +19,376 @@ import java.util.List;
 public class LoadBalancer {
     private static final String TAG = "LoadBalancer";
     
+    // Spread assumed for a raw speed test result that the estimator has not seen
+    private static final double UNFILTERED_SPREAD = 0.5;
+    
+    // Capacity estimates shared by the app's load balancers, fed by speed tests, the OS and the VPN
+    private static final CapacityEstimator CAPACITY = new CapacityEstimator();
+    
+    // RTT, jitter and loss of each link, shared like CAPACITY and fed by the VPN's probes
+    private static final LinkQuality QUALITY = new LinkQuality();
+    
+    // The app's load balancer, shared by the connection service and the VPN datapath so
+    // that the strategy and settings chosen in the app are the ones the datapath uses
+    private static final LoadBalancer SHARED = new LoadBalancer();
+    
+    // Real-time traffic plans on the RTT this many standard deviations above the mean
+    private static final double REAL_TIME_DEVIATIONS = 2.0;
+    
+    // Segment size and constant of the TCP throughput bound goodput is expected from
+    private static final double TCP_SEGMENT_BYTES = 1400;
+    private static final double TCP_THROUGHPUT_CONSTANT = Math.sqrt(1.5);
+    
+    // Transfer size OPTIMAL plans for unless told otherwise
+    private static final double DEFAULT_TRANSFER_BYTES = 1024 * 1024;
+    
+    // Throughput POWER_SAVING keeps available unless told otherwise; zero uses the single
+    // most efficient network
+    private static final double DEFAULT_MIN_THROUGHPUT_MBPS = 0;
+    
+    // A segment is split only if that beats its best single link by this fraction, since
+    // the parts arrive out of order and every extra link adds its estimate's error
+    private static final double MIN_SPLIT_GAIN = 0.1;
+    
+    // Highest loss rate a link is still considered usable at
+    private static final double MAX_LOSS_RATE = 0.5;
+    
+    // Reallocation damping: changes below the hysteresis threshold or sooner than the
+    // dwell time after the last one are ignored, and at most MAX_SHIFT_PERCENT of the
+    // traffic moves per reallocation
+    private static final double HYSTERESIS_PERCENT = 5.0;
+    private static final long MIN_DWELL_MS = 15000;
+    private static final double MAX_SHIFT_PERCENT = 20.0;
+    
+    // Per-network fields of the allocation state array
+    private static final int STATE_MEAN = 0;
+    private static final int STATE_STD_DEV = 1;
+    private static final int STATE_PLANNED = 2;
+    private static final int STATE_LATENCY = 3;
+    private static final int STATE_JITTER = 4;
+    private static final int STATE_LOSS = 5;
+    private static final int STATE_ENERGY = 6;
+    private static final int STATE_FIELDS = 7;
+    
+    // Only every LOG_SAMPLE_INTERVAL-th allocation is logged, and only if debug logging is on
+    private static final int LOG_SAMPLE_INTERVAL = 64;
+    
+    // Flows too short or too small to measure a link's goodput
+    private static final long MIN_OBSERVED_FLOW_BYTES = 64 * 1024;
+    private static final long MIN_OBSERVED_FLOW_MS = 200;
+    
     // Load balancing strategies
     public enum Strategy {
         ROUND_ROBIN,
         SPEED_BASED,
         LATENCY_BASED,
-        ADAPTIVE
+        ADAPTIVE,
+        BANDIT,
+        OPTIMAL,
+        LEAST_LOADED,
+        POWER_SAVING
+    }
+    
+    // Classes of traffic that single links are scored for
+    public enum TrafficClass {
+        REAL_TIME,  // Scored by a mean + k standard deviations RTT bound, stretched by loss
+        STREAMING,  // Scored like ADAPTIVE
+        BULK        // Scored by expected TCP goodput
+    }
+    
+    /**
+     * Immutable set of networks together with the traffic weights computed for them.
+     * Later allocation changes on the networks do not affect a published allocation.
+     */
+    public static final class Allocation {
+        public static final Allocation EMPTY = new Allocation(Collections.<NetworkConnection>emptyList(),
+                new double[0], new double[0], new AtomicLong[0]);
+        
+        private final List<NetworkConnection> networks;
+        private final double[] weights;
+        
+        // Running sum of the planned capacities, for sampling networks by capacity
+        private final double[] cumulativeCapacity;
+        
+        // Bytes queued on each network, read by LEAST_LOADED
+        private final AtomicLong[] queuedBytes;
+        
+        private Allocation(List<NetworkConnection> networks, double[] weights, double[] cumulativeCapacity,
+                           AtomicLong[] queuedBytes) {
+            this.networks = networks;
+            this.weights = weights;
+            this.cumulativeCapacity = cumulativeCapacity;
+            this.queuedBytes = queuedBytes;
+        }
+        
+        public List<NetworkConnection> getNetworks() {
+            return networks;
+        }
+        
+        public double getWeight(int index) {
+            return weights[index];
+        }
+        
+        public int size() {
+            return networks.size();
+        }
+    }
+    
+    /**
+     * Damping state of one caller: the allocation it last applied and how much traffic
+     * its reallocations moved. Callers that allocate different sets of networks, like the
+     * connection service and the VPN datapath, each keep their own, so the networks of one
+     * never look like joins and leaves to the other.
+     */
+    public static final class Damping {
+        // Guarded by the Damping; written while the load balancer holds its allocation lock
+        private String[] appliedSsids = new String[0];
+        private double[] appliedPercent = new double[0];
+        private int appliedCount;
+        private long appliedAt;
+        private long appliedFullReallocations;
+        private double lastShiftPercent;
+        private double totalShiftPercent;
+        private long reallocationCount;
+        
+        /**
+         * Gets the share of traffic moved between networks by the last reallocation,
+         * including the share of networks that went away
+         * 
+         * @return Moved traffic in percent
+         */
+        public synchronized double getLastReallocationShift() {
+            return lastShiftPercent;
+        }
+        
+        /**
+         * Gets the share of traffic moved by all reallocations so far
+         * 
+         * @return Sum of the moved traffic in percent
+         */
+        public synchronized double getTotalReallocationShift() {
+            return totalShiftPercent;
+        }
+        
+        /**
+         * Gets the number of reallocations that changed the allocation
+         * 
+         * @return Number of reallocations
+         */
+        public synchronized long getReallocationCount() {
+            return reallocationCount;
+        }
+        
+        private int indexOfApplied(String ssid) {
+            for (int i = 0; i < appliedCount; i++) {
+                if (appliedSsids[i].equals(ssid)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
     }
     
-    private Strategy currentStrategy;
+    /**
+     * Split of one expected transfer, e.g. a video segment, across the networks of an
+     * allocation, chosen so that its last byte arrives as early as possible. Hands out
+     * the networks packet by packet in proportion to the split. Belongs to one flow and
+     * is not thread-safe. The flow keeps one plan and has each transfer planned into it,
+     * so replanning does not allocate once its arrays fit the number of networks.
+     */
+    public static final class SegmentPlan {
+        private Allocation allocation;
+        private double[] shares = new double[0];
+        private double[] sentPackets = new double[0];
+        private int count;
+        private double completionMs;
+        
+        /**
+         * @return Allocation the plan was made over, or null while nothing is planned
+         */
+        public Allocation getAllocation() {
+            return allocation;
+        }
+        
+        /**
+         * @param index Index of the network in the allocation
+         * @return Fraction of the transfer planned for the network
+         */
+        public double getShare(int index) {
+            return shares[index];
+        }
+        
+        /**
+         * @return Time from the start of the transfer until its last byte is expected
+         */
+        public double getExpectedCompletionMs() {
+            return completionMs;
+        }
+        
+        /**
+         * Gets the network for the next packet of the transfer: the one furthest behind
+         * its planned share
+         * 
+         * @return Selected network
+         */
+        public NetworkConnection next() {
+            int best = 0;
+            double bestProgress = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < count; i++) {
+                if (shares[i] > 0 && sentPackets[i] / shares[i] < bestProgress) {
+                    bestProgress = sentPackets[i] / shares[i];
+                    best = i;
+                }
+            }
+            sentPackets[best]++;
+            return allocation.networks.get(best);
+        }
+        
+        /**
+         * @return The network planned to carry the whole transfer, or null if it is split
+         */
+        public NetworkConnection getSingleNetwork() {
+            int used = -1;
+            for (int i = 0; i < count; i++) {
+                if (shares[i] > 0) {
+                    if (used >= 0) {
+                        return null;
+                    }
+                    used = i;
+                }
+            }
+            return used >= 0 ? allocation.networks.get(used) : null;
+        }
+        
+        /**
+         * Replaces the plan, starting the transfer over
+         * 
+         * @param allocation Allocation planned over
+         * @param split Fraction for each network, or null to plan all on one network
+         * @param single Network carrying the whole transfer if split is null
+         * @param count Number of networks
+         * @param completionMs Expected completion time
+         */
+        private void set(Allocation allocation, double[] split, int single, int count, double completionMs) {
+            if (shares.length < count) {
+                shares = new double[count];
+                sentPackets = new double[count];
+            }
+            for (int i = 0; i < count; i++) {
+                shares[i] = split != null ? split[i] : i == single ? 1 : 0;
+                sentPackets[i] = 0;
+            }
+            this.allocation = allocation;
+            this.count = count;
+            this.completionMs = completionMs;
+        }
+        
+        private void clear() {
+            allocation = null;
+            count = 0;
+        }
+    }
+    
+    /**
+     * Working arrays of the selections made on the packet path. Each thread has its own,
+     * so the packet reader neither takes a lock nor allocates once they have grown to
+     * the number of networks.
+     */
+    private static final class Scratch {
+        double[] state = new double[0];
+        double[] capacity = new double[0];
+        double[] delay = new double[0];
+        double[] split = new double[0];
+        int[] order = new int[0];
+        
+        // Smooth weighted round robin credits and the allocation they belong to
+        Allocation creditsAllocation = Allocation.EMPTY;
+        double[] selectionCredits = new double[0];
+        
+        void ensureCapacity(int count) {
+            if (split.length < count) {
+                state = new double[count * STATE_FIELDS];
+                capacity = new double[count];
+                delay = new double[count];
+                split = new double[count];
+                order = new int[count];
+            }
+        }
+    }
+    
+    private volatile Strategy currentStrategy;
+    
+    // Networks the datapath selects from, replaced as a whole on every update
+    private volatile Allocation allocation = Allocation.EMPTY;
+    
+    // Working arrays of the packet path, per thread
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    
+    // Bytes waiting to be sent on each network, by SSID; kept up to date by the datapath
+    private final ConcurrentHashMap<String, AtomicLong> queuedBytes = new ConcurrentHashMap<>();
+    
+    // Goodput posteriors learned from completed flows, used by BANDIT
+    private final GoodputBandit bandit;
+    
+    // Source of capacity estimates, link quality and the current time in milliseconds
+    private final CapacityEstimator capacityEstimator;
+    private final LinkQuality linkQuality;
+    private final LongSupplier clock;
+    
+    // Transfer size the OPTIMAL split is computed for
+    private volatile double transferSizeBytes = DEFAULT_TRANSFER_BYTES;
+    
+    // Throughput the POWER_SAVING networks have to add up to
+    private volatile double minThroughputMbps = DEFAULT_MIN_THROUGHPUT_MBPS;
+    
+    // Allocation state over primitive arrays, reused across calls and guarded by allocationLock.
+    // state holds STATE_FIELDS values per network; shares receives the computed percentages.
+    // Only reallocation takes the lock; selections on the packet path use their Scratch.
+    private final Object allocationLock = new Object();
+    private double[] state = new double[0];
+    private double[] shares = new double[0];
+    private double[] current = new double[0];
+    private double[] capacity = new double[0];
+    private double[] delay = new double[0];
+    private int[] order = new int[0];
+    private long allocationCalls;
+    
+    // Settings changes that apply in full, without damping, guarded by allocationLock
+    private long fullReallocations;
+    
+    // Damping of the callers that do not keep their own
+    private final Damping defaultDamping = new Damping();
     
-    public LoadBalancer() {
+    private LoadBalancer() {
+        this(CAPACITY, QUALITY, System::currentTimeMillis, new Random());
+    }
+    
+    /**
+     * Gets the load balancer shared by the app, which works on the shared capacity
+     * estimates and link quality
+     * 
+     * @return The shared load balancer
+     */
+    public static LoadBalancer getShared() {
+        return SHARED;
+    }
+    
+    /**
+     * Creates a load balancer with its own estimates and clock, e.g. to replay traces
+     * in simulated time
+     * 
+     * @param capacityEstimator Capacity estimates of the networks
+     * @param linkQuality RTT, jitter and loss of the networks
+     * @param clock Current time in milliseconds
+     * @param random Source of the BANDIT strategy's samples
+     */
+    public LoadBalancer(CapacityEstimator capacityEstimator, LinkQuality linkQuality, LongSupplier clock,
+                        Random random) {
         this.currentStrategy = Strategy.ADAPTIVE; // Default
+        this.capacityEstimator = capacityEstimator;
+        this.linkQuality = linkQuality;
+        this.clock = clock;
+        this.bandit = new GoodputBandit(random);
     }
     
     /**
@@ -33,6 +398,10 @@ public class LoadBalancer {
      */
     public void setStrategy(Strategy strategy) {
         this.currentStrategy = strategy;
+        synchronized (allocationLock) {
+            // An explicit strategy change applies in full, without damping
+            fullReallocations++;
+        }
         Log.d(TAG, "Load balancing strategy set to: " + strategy);
     }
     
@@ -46,146 +415,867 @@ public class LoadBalancer {
     }
     
     /**
-     * Computes allocation percentages for each network connection based on the current strategy
+     * Sets the transfer size the OPTIMAL strategy minimises completion time for. Small
+     * sizes keep traffic on the lowest-latency link; large sizes spread it by capacity.
+     * 
+     * @param bytes Typical transfer size in bytes
+     */
+    public void setTransferSize(double bytes) {
+        this.transferSizeBytes = bytes;
+    }
+    
+    /**
+     * Sets the throughput the POWER_SAVING strategy keeps available. It uses the networks
+     * that cost the least energy per megabyte, adding the next cheapest one until their
+     * planned capacity reaches this rate; zero keeps traffic on the single cheapest network.
+     * 
+     * @param mbps Minimum throughput in Mbps
+     */
+    public void setMinimumThroughput(double mbps) {
+        this.minThroughputMbps = Math.max(0, mbps);
+        synchronized (allocationLock) {
+            // A new requirement may need another network right away
+            fullReallocations++;
+        }
+    }
+    
+    /**
+     * Gets the throughput the POWER_SAVING strategy keeps available
+     * 
+     * @return Minimum throughput in Mbps
+     */
+    public double getMinimumThroughput() {
+        return minThroughputMbps;
+    }
+    
+    /**
+     * Gets the capacity estimator shared by the load balancers of the app
+     * 
+     * @return The estimator
+     */
+    public static CapacityEstimator getCapacityEstimator() {
+        return CAPACITY;
+    }
+    
+    /**
+     * Gets the link quality shared by the load balancers of the app
+     * 
+     * @return The link quality
+     */
+    public static LinkQuality getLinkQuality() {
+        return QUALITY;
+    }
+    
+    /**
+     * Feeds a completed flow back into the BANDIT strategy. Only flows that stayed on one
+     * network say something about it, and the time they spent idle says nothing about
+     * the link, so callers pass the time the flow was active. Flows too small or short
+     * to say anything about the link are ignored.
+     * 
+     * @param ssid SSID of the network the flow used
+     * @param bytes Bytes the flow carried
+     * @param durationMs Time the flow was busy sending, without its idle gaps
+     */
+    public void recordFlowCompletion(String ssid, long bytes, long durationMs) {
+        if (ssid == null || bytes < MIN_OBSERVED_FLOW_BYTES || durationMs < MIN_OBSERVED_FLOW_MS) {
+            return;
+        }
+        bandit.observe(ssid, bytes * 8.0 / (durationMs * 1000.0));
+    }
+    
+    /**
+     * Gets the counter of bytes queued for sending on a network, creating it on first
+     * use. The datapath adds bytes as it queues them and subtracts them once sent, and
+     * LEAST_LOADED reads it. Callers cache it.
+     * 
+     * @param ssid SSID of the network
+     * @return The network's counter
+     */
+    public AtomicLong getQueuedBytes(String ssid) {
+        AtomicLong counter = queuedBytes.get(ssid);
+        if (counter == null) {
+            counter = queuedBytes.computeIfAbsent(ssid, k -> new AtomicLong());
+        }
+        return counter;
+    }
+    
+    /**
+     * Replaces the set of networks used for traffic selection and recomputes their allocation
+     * 
+     * @param networks List of available network connections
+     */
+    public void updateNetworks(List<NetworkConnection> networks) {
+        allocation = allocate(networks);
+    }
+    
+    /**
+     * Computes the allocation of a set of networks without publishing it, damped against
+     * the load balancer's own last allocation
+     * 
+     * @param networks List of available network connections
+     * @return Immutable allocation
+     */
+    public Allocation allocate(List<NetworkConnection> networks) {
+        return allocate(networks, defaultDamping);
+    }
+    
+    /**
+     * Computes the allocation of a set of networks without publishing it, so callers can
+     * swap it in together with other routing state
+     * 
+     * @param networks List of available network connections
+     * @param damping The caller's damping state
+     * @return Immutable allocation
+     */
+    public Allocation allocate(List<NetworkConnection> networks, Damping damping) {
+        List<NetworkConnection> copy = new ArrayList<>(networks);
+        if (copy.isEmpty()) {
+            return Allocation.EMPTY;
+        }
+        double[] weights = new double[copy.size()];
+        double[] cumulativeCapacity = new double[copy.size()];
+        AtomicLong[] queued = new AtomicLong[copy.size()];
+        synchronized (allocationLock) {
+            computeAllocation(copy, damping);
+            double total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = copy.get(i).getAllocationPercentage();
+                total += state[i * STATE_FIELDS + STATE_PLANNED];
+                cumulativeCapacity[i] = total;
+                queued[i] = getQueuedBytes(copy.get(i).getSsid());
+            }
+        }
+        return new Allocation(Collections.unmodifiableList(copy), weights, cumulativeCapacity, queued);
+    }
+    
+    /**
+     * Gets the published allocation
+     * 
+     * @return Current allocation
+     */
+    public Allocation getAllocation() {
+        return allocation;
+    }
+    
+    /**
+     * Selects the network for the next unit of traffic from the published allocation
+     * 
+     * @param destination Destination of the traffic
+     * @return Selected network, or null if there are none
+     */
+    public NetworkConnection selectNetworkForTraffic(String destination) {
+        return selectNetworkForTraffic(allocation, destination);
+    }
+    
+    /**
+     * Selects the network for the next unit of traffic. Networks are picked with smooth
+     * weighted round robin over their allocation percentages, so over any window each
+     * network receives its share and picks of the same network are spread out. Each
+     * thread keeps its own credits, so threads selecting at once do not contend.
+     * 
+     * @param allocation Allocation to select from
+     * @param destination Destination of the traffic
+     * @return Selected network, or null if there are none
+     */
+    public NetworkConnection selectNetworkForTraffic(Allocation allocation, String destination) {
+        if (allocation.size() == 0) {
+            return null;
+        }
+        Scratch work = scratch.get();
+        if (allocation != work.creditsAllocation) {
+            work.creditsAllocation = allocation;
+            work.selectionCredits = new double[allocation.size()];
+        }
+        double[] credits = work.selectionCredits;
+        
+        double total = 0;
+        int best = 0;
+        for (int i = 0; i < allocation.size(); i++) {
+            double weight = allocation.weights[i];
+            credits[i] += weight;
+            total += weight;
+            if (credits[i] > credits[best]) {
+                best = i;
+            }
+        }
+        credits[best] -= total;
+        return allocation.networks.get(best);
+    }
+    
+    /**
+     * Selects the best network of the published allocation according to a strategy
+     * 
+     * @param strategy The strategy to rank networks by
+     * @return Best network, or null if there are none
+     */
+    public NetworkConnection selectBestNetwork(Strategy strategy) {
+        return selectBestNetwork(allocation, strategy);
+    }
+    
+    /**
+     * Selects the single best network according to a strategy, e.g. the fastest one for
+     * SPEED_BASED, the lowest latency one for LATENCY_BASED, the less loaded of two
+     * for LEAST_LOADED or the one that costs the least energy per megabyte for
+     * POWER_SAVING. Works on the calling thread's reused arrays, without locking or
+     * allocating, so it can run for every new flow.
+     * 
+     * @param allocation Allocation to select from
+     * @param strategy The strategy to rank networks by
+     * @return Best network, or null if there are none
+     */
+    public NetworkConnection selectBestNetwork(Allocation allocation, Strategy strategy) {
+        List<NetworkConnection> networks = allocation.networks;
+        if (networks.isEmpty()) {
+            return null;
+        }
+        if (strategy == Strategy.ROUND_ROBIN) {
+            return selectNetworkForTraffic(allocation, null);
+        }
+        if (strategy == Strategy.LEAST_LOADED) {
+            return selectLeastLoaded(allocation);
+        }
+        
+        Scratch work = scratch.get();
+        int count = networks.size();
+        work.ensureCapacity(count);
+        double[] state = work.state;
+        loadState(networks, state);
+        int best = 0;
+        if (strategy == Strategy.OPTIMAL) {
+            // The link that carries the largest part of an optimally split transfer
+            loadTransferCosts(state, count, work.capacity, work.delay);
+            WaterFilling.solve(work.capacity, work.delay, count, transferSizeBytes, work.split, work.order);
+            for (int i = 1; i < count; i++) {
+                if (work.split[i] > work.split[best]) {
+                    best = i;
+                }
+            }
+            return networks.get(best);
+        }
+        
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            int base = i * STATE_FIELDS;
+            double score;
+            switch (strategy) {
+                case SPEED_BASED:
+                    score = state[base + STATE_PLANNED];
+                    break;
+                case LATENCY_BASED:
+                    score = -latencyBound(state, i);
+                    break;
+                case BANDIT:
+                    score = bandit.sample(networks.get(i).getSsid(),
+                            state[base + STATE_MEAN], state[base + STATE_STD_DEV]);
+                    break;
+                case POWER_SAVING:
+                    score = -state[base + STATE_ENERGY];
+                    break;
+                case ADAPTIVE:
+                default:
+                    score = adaptiveScore(state, i);
+                    break;
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return networks.get(best);
+    }
+    
+    /**
+     * Selects the network best suited to a class of traffic: the lowest RTT bound for
+     * real-time traffic, so a link with a good average but high jitter or loss loses to
+     * a steady one, and the highest expected goodput for bulk traffic
+     * 
+     * @param allocation Allocation to select from
+     * @param trafficClass Class of the traffic
+     * @return Best network, or null if there are none
+     */
+    public NetworkConnection selectBestNetwork(Allocation allocation, TrafficClass trafficClass) {
+        List<NetworkConnection> networks = allocation.networks;
+        if (networks.isEmpty()) {
+            return null;
+        }
+        
+        Scratch work = scratch.get();
+        int count = networks.size();
+        work.ensureCapacity(count);
+        double[] state = work.state;
+        loadState(networks, state);
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            double score;
+            switch (trafficClass) {
+                case REAL_TIME:
+                    score = -latencyBound(state, i);
+                    break;
+                case BULK:
+                    score = expectedGoodput(state, i);
+                    break;
+                case STREAMING:
+                default:
+                    score = adaptiveScore(state, i);
+                    break;
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return networks.get(best);
+    }
+    
+    /**
+     * Plans a transfer of a known expected size, such as the next segment a video player
+     * fetches, so that its last byte arrives as early as possible. A percentage split can
+     * finish later than the fastest link alone: each link's part has to wait for its
+     * latency and the bytes already queued on it, so the transfer is split by water
+     * filling over those delays. The split is only used if it is expected to finish
+     * MIN_SPLIT_GAIN earlier than the best single link; otherwise the whole transfer is
+     * planned on that link. Networks the allocation gives no traffic are left out.
+     * Works on the calling thread's reused arrays and the given plan, without allocating.
+     * 
+     * @param allocation Allocation to plan over
+     * @param sizeBytes Expected size of the transfer
+     * @param plan Plan to replace with the new one
+     * @return false if no network has capacity, leaving the plan empty
+     */
+    public boolean planSegment(Allocation allocation, double sizeBytes, SegmentPlan plan) {
+        List<NetworkConnection> networks = allocation.networks;
+        if (networks.isEmpty()) {
+            plan.clear();
+            return false;
+        }
+        
+        Scratch work = scratch.get();
+        int count = networks.size();
+        work.ensureCapacity(count);
+        double[] capacity = work.capacity;
+        double[] delay = work.delay;
+        loadState(networks, work.state);
+        loadTransferCosts(work.state, count, capacity, delay);
+        for (int i = 0; i < count; i++) {
+            if (allocation.weights[i] <= 0) {
+                // Left out by the strategy, e.g. to save power
+                capacity[i] = 0;
+            } else if (capacity[i] > 0) {
+                // Bytes already queued on the link go first
+                delay[i] += Math.max(0, allocation.queuedBytes[i].get()) / capacity[i];
+            }
+        }
+        double completionMs = WaterFilling.solve(capacity, delay, count, sizeBytes, work.split, work.order);
+        if (Double.isInfinite(completionMs)) {
+            plan.clear();
+            return false;
+        }
+        
+        int single = 0;
+        double singleMs = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            if (capacity[i] <= 0) {
+                continue;
+            }
+            double linkMs = delay[i] + Math.max(sizeBytes, 0) / capacity[i];
+            if (linkMs < singleMs) {
+                singleMs = linkMs;
+                single = i;
+            }
+        }
+        if (completionMs > singleMs * (1 - MIN_SPLIT_GAIN)) {
+            plan.set(allocation, null, single, count, singleMs);
+        } else {
+            plan.set(allocation, work.split, single, count, completionMs);
+        }
+        return true;
+    }
+    
+    /**
+     * Picks the less loaded of two networks sampled in proportion to their planned
+     * capacity ("power of two choices"). Load is the queueing delay, queued bytes over
+     * capacity, so a fast link may hold a longer queue than a slow one. Needs two atomic
+     * reads and no locks, so its cost does not grow with the number of networks beyond
+     * the binary search of the samples.
+     * 
+     * @param allocation Allocation to select from
+     * @return Selected network
+     */
+    private static NetworkConnection selectLeastLoaded(Allocation allocation) {
+        int count = allocation.size();
+        if (count == 1) {
+            return allocation.networks.get(0);
+        }
+        double[] cumulative = allocation.cumulativeCapacity;
+        double total = cumulative[count - 1];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first;
+        int second;
+        if (total > 0) {
+            first = sampleByCapacity(cumulative, random.nextDouble() * total);
+            double before = first > 0 ? cumulative[first - 1] : 0;
+            double width = cumulative[first] - before;
+            if (total - width <= 0) {
+                // No other network has capacity
+                return allocation.networks.get(first);
+            }
+            // Sample the second network from the others by skipping the first one's range
+            double point = random.nextDouble() * (total - width);
+            second = sampleByCapacity(cumulative, point >= before ? point + width : point);
+        } else {
+            first = random.nextInt(count);
+            second = random.nextInt(count - 1);
+            if (second >= first) {
+                second++;
+            }
+        }
+        
+        double firstQueued = Math.max(0, allocation.queuedBytes[first].get());
+        double secondQueued = Math.max(0, allocation.queuedBytes[second].get());
+        if (total > 0) {
+            // Compare queued bytes over capacity without dividing
+            firstQueued *= cumulative[second] - (second > 0 ? cumulative[second - 1] : 0);
+            secondQueued *= cumulative[first] - (first > 0 ? cumulative[first - 1] : 0);
+        }
+        return allocation.networks.get(firstQueued <= secondQueued ? first : second);
+    }
+    
+    /**
+     * Finds the network whose range of the running capacity sum contains a point
+     */
+    private static int sampleByCapacity(double[] cumulative, double point) {
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] > point) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Computes allocation percentages for each network connection based on the current
+     * strategy. The networks are read once into a primitive state array that all strategies
+     * work on, so apart from growing that array for more networks nothing is allocated and
+     * the allocation can be recomputed for every scheduling decision. Damped against the
+     * load balancer's own last allocation.
      * 
      * @param connections List of network connections
      */
     public void computeAllocation(List<NetworkConnection> connections) {
+        computeAllocation(connections, defaultDamping);
+    }
+    
+    /**
+     * Computes allocation percentages for each network connection, damped against the
+     * caller's last allocation
+     * 
+     * @param connections List of network connections
+     * @param damping The caller's damping state
+     */
+    public void computeAllocation(List<NetworkConnection> connections, Damping damping) {
         if (connections == null || connections.isEmpty()) {
             Log.w(TAG, "No connections to allocate traffic to");
             return;
         }
         
-        switch (currentStrategy) {
-            case ROUND_ROBIN:
-                allocateRoundRobin(connections);
-                break;
-            case SPEED_BASED:
-                allocateBySpeed(connections);
-                break;
-            case LATENCY_BASED:
-                allocateByLatency(connections);
-                break;
-            case ADAPTIVE:
-            default:
-                allocateAdaptively(connections);
-                break;
-        }
-        
-        // Log the allocations
-        for (NetworkConnection conn : connections) {
-            Log.d(TAG, "Network " + conn.getSsid() + " allocated " + 
-                    String.format("%.2f%%", conn.getAllocationPercentage()));
+        synchronized (allocationLock) {
+            int count = loadState(connections);
+            switch (currentStrategy) {
+                case ROUND_ROBIN:
+                    allocateRoundRobin(count);
+                    break;
+                case SPEED_BASED:
+                case LEAST_LOADED:
+                    // LEAST_LOADED places flows by load; traffic that is spread goes by capacity
+                    allocateBySpeed(count);
+                    break;
+                case LATENCY_BASED:
+                    allocateByLatency(count);
+                    break;
+                case BANDIT:
+                    allocateByBandit(connections, count);
+                    break;
+                case OPTIMAL:
+                    allocateOptimally(count);
+                    break;
+                case POWER_SAVING:
+                    allocateForEnergy(count);
+                    break;
+                case ADAPTIVE:
+                default:
+                    allocateAdaptively(count);
+                    break;
+            }
+            
+            synchronized (damping) {
+                stabilize(connections, count, clock.getAsLong(), damping);
+            }
+            for (int i = 0; i < count; i++) {
+                connections.get(i).setAllocationPercentage(shares[i]);
+            }
+            
+            // Log a sample of the allocations
+            if (allocationCalls++ % LOG_SAMPLE_INTERVAL == 0 && Log.isLoggable(TAG, Log.DEBUG)) {
+                for (int i = 0; i < count; i++) {
+                    Log.d(TAG, "Network " + connections.get(i).getSsid() + " allocated "
+                            + String.format("%.2f%%", shares[i]));
+                }
+            }
         }
     }
     
     /**
-     * Allocate traffic equally among all connections
+     * Reads the inputs of every strategy into the state array, growing the arrays if needed
      * 
      * @param connections List of network connections
+     * @return Number of networks
      */
-    private void allocateRoundRobin(List<NetworkConnection> connections) {
-        double equalShare = 100.0 / connections.size();
-        for (NetworkConnection conn : connections) {
-            conn.setAllocationPercentage(equalShare);
+    private int loadState(List<NetworkConnection> connections) {
+        int count = connections.size();
+        if (shares.length < count) {
+            state = new double[count * STATE_FIELDS];
+            shares = new double[count];
+            current = new double[count];
+            capacity = new double[count];
+            delay = new double[count];
+            order = new int[count];
         }
+        loadState(connections, state);
+        return count;
     }
     
     /**
-     * Allocate traffic proportionally to the speed of each connection
+     * Reads the inputs of every strategy into a state array
      * 
      * @param connections List of network connections
+     * @param state Receives STATE_FIELDS values per network
      */
-    private void allocateBySpeed(List<NetworkConnection> connections) {
-        double totalSpeed = 0;
+    private void loadState(List<NetworkConnection> connections, double[] state) {
+        int count = connections.size();
+        long now = clock.getAsLong();
+        for (int i = 0; i < count; i++) {
+            NetworkConnection conn = connections.get(i);
+            int base = i * STATE_FIELDS;
+            if (!capacityEstimator.read(conn.getSsid(), now, state, base + STATE_MEAN)) {
+                // Not measured by the estimator yet: use the raw speed test result, loosely
+                state[base + STATE_MEAN] = conn.getSpeedMbps();
+                state[base + STATE_STD_DEV] = conn.getSpeedMbps() * UNFILTERED_SPREAD;
+            }
+            // Plan with the estimate less one standard deviation, so a link whose capacity
+            // is poorly known is given a smaller share
+            state[base + STATE_PLANNED] = Math.max(0, state[base + STATE_MEAN] - state[base + STATE_STD_DEV]);
+            if (!linkQuality.read(conn.getSsid(), state, base + STATE_LATENCY)) {
+                // Not probed yet: use the connection's figures. Its jitter is unknown, and
+                // guessing one from the latency would penalise a slow link twice.
+                state[base + STATE_LATENCY] = conn.getLatencyMs();
+                state[base + STATE_JITTER] = 0;
+                state[base + STATE_LOSS] = conn.getLossRate();
+            }
+            state[base + STATE_LOSS] = Math.min(Math.max(state[base + STATE_LOSS], 0), MAX_LOSS_RATE);
+            // Energy per delivered megabyte while the network carries what it is planned to,
+            // so retransmissions count against lossy networks
+            state[base + STATE_ENERGY] = EnergyModel.joulesPerMegabyte(conn,
+                    state[base + STATE_PLANNED] * (1 - state[base + STATE_LOSS]));
+        }
+    }
+    
+    /**
+     * Moves from the last applied allocation towards the freshly computed one, damped so
+     * that small fluctuations do not reshuffle flows. The change is skipped if no network's
+     * share moves by HYSTERESIS_PERCENT or the last change is younger than MIN_DWELL_MS,
+     * and scaled down so that at most MAX_SHIFT_PERCENT of the traffic moves. Networks that
+     * join or leave bypass hysteresis and dwell time; a new network ramps up from zero.
+     * 
+     * @param connections Networks the shares belong to
+     * @param count Number of networks
+     * @param now Current time in milliseconds
+     * @param damping The caller's damping state, locked by the caller
+     */
+    private void stabilize(List<NetworkConnection> connections, int count, long now, Damping damping) {
+        double currentTotal = 0;
+        boolean sameNetworks = count == damping.appliedCount;
+        for (int i = 0; i < count; i++) {
+            int applied = damping.indexOfApplied(connections.get(i).getSsid());
+            if (applied < 0) {
+                sameNetworks = false;
+                current[i] = 0;
+            } else {
+                current[i] = damping.appliedPercent[applied];
+                currentTotal += current[i];
+            }
+        }
         
-        // Calculate total speed
-        for (NetworkConnection conn : connections) {
-            totalSpeed += conn.getSpeedMbps();
+        // Traffic of networks that went away has to move regardless
+        double forcedShift = damping.appliedCount == 0 ? 0 : Math.max(0, 100.0 - currentTotal);
+        
+        double shift = 0;
+        double largestChange = 0;
+        for (int i = 0; i < count; i++) {
+            if (currentTotal > 0) {
+                current[i] = current[i] * 100.0 / currentTotal;
+            }
+            double change = Math.abs(shares[i] - current[i]);
+            shift += change;
+            largestChange = Math.max(largestChange, change);
         }
+        shift /= 2;
         
-        // Avoid division by zero
-        if (totalSpeed <= 0) {
-            allocateRoundRobin(connections);
-            return;
+        boolean reallocateNow = damping.appliedFullReallocations != fullReallocations;
+        if (currentTotal > 0 && !reallocateNow) {
+            if (sameNetworks && (largestChange < HYSTERESIS_PERCENT || now - damping.appliedAt < MIN_DWELL_MS)) {
+                // Keep the applied allocation
+                System.arraycopy(current, 0, shares, 0, count);
+                return;
+            }
+            if (shift > MAX_SHIFT_PERCENT) {
+                double scale = MAX_SHIFT_PERCENT / shift;
+                for (int i = 0; i < count; i++) {
+                    shares[i] = current[i] + (shares[i] - current[i]) * scale;
+                }
+                shift = MAX_SHIFT_PERCENT;
+            }
+        } else if (currentTotal <= 0) {
+            // First allocation: nothing was carried yet, so nothing moves
+            shift = 0;
         }
         
-        // Allocate proportionally to speed
-        for (NetworkConnection conn : connections) {
-            double allocation = (conn.getSpeedMbps() / totalSpeed) * 100.0;
-            conn.setAllocationPercentage(allocation);
+        if (damping.appliedSsids.length < count) {
+            damping.appliedSsids = new String[count];
+            damping.appliedPercent = new double[count];
+        }
+        for (int i = 0; i < count; i++) {
+            damping.appliedSsids[i] = connections.get(i).getSsid();
+            damping.appliedPercent[i] = shares[i];
+        }
+        damping.appliedCount = count;
+        damping.appliedAt = now;
+        damping.appliedFullReallocations = fullReallocations;
+        damping.lastShiftPercent = Math.min(100.0, shift + forcedShift);
+        damping.totalShiftPercent += damping.lastShiftPercent;
+        damping.reallocationCount++;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, String.format("Reallocation moved %.1f%% of traffic", damping.lastShiftPercent));
         }
     }
     
     /**
-     * Allocate traffic inversely proportional to latency
+     * Scales the raw weights in shares to percentages, or splits equally if they are all zero
      * 
-     * @param connections List of network connections
+     * @param count Number of networks
      */
-    private void allocateByLatency(List<NetworkConnection> connections) {
-        double totalInverseLatency = 0;
-        
-        // Calculate total inverse latency (lower latency = better)
-        for (NetworkConnection conn : connections) {
-            // Avoid division by zero by adding 1
-            double inverseLatency = 1.0 / (conn.getLatencyMs() + 1);
-            totalInverseLatency += inverseLatency;
+    private void normalize(int count) {
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            total += shares[i];
         }
         
         // Avoid division by zero
-        if (totalInverseLatency <= 0) {
-            allocateRoundRobin(connections);
+        if (total <= 0) {
+            allocateRoundRobin(count);
             return;
         }
         
-        // Allocate inversely proportional to latency
-        for (NetworkConnection conn : connections) {
-            double inverseLatency = 1.0 / (conn.getLatencyMs() + 1);
-            double allocation = (inverseLatency / totalInverseLatency) * 100.0;
-            conn.setAllocationPercentage(allocation);
+        for (int i = 0; i < count; i++) {
+            shares[i] = (shares[i] / total) * 100.0;
+        }
+    }
+    
+    /**
+     * Allocate traffic equally among all connections
+     * 
+     * @param count Number of networks
+     */
+    private void allocateRoundRobin(int count) {
+        double equalShare = 100.0 / count;
+        for (int i = 0; i < count; i++) {
+            shares[i] = equalShare;
         }
     }
     
+    /**
+     * Allocate traffic proportionally to the speed of each connection
+     * 
+     * @param count Number of networks
+     */
+    private void allocateBySpeed(int count) {
+        for (int i = 0; i < count; i++) {
+            shares[i] = state[i * STATE_FIELDS + STATE_PLANNED];
+        }
+        normalize(count);
+    }
+    
+    /**
+     * Allocate traffic inversely proportional to latency
+     * 
+     * @param count Number of networks
+     */
+    private void allocateByLatency(int count) {
+        for (int i = 0; i < count; i++) {
+            // Avoid division by zero by adding 1
+            shares[i] = 1.0 / (latencyBound(state, i) + 1);
+        }
+        normalize(count);
+    }
+    
     /**
      * Allocate traffic adaptively based on both speed and latency
      * 
+     * @param count Number of networks
+     */
+    private void allocateAdaptively(int count) {
+        for (int i = 0; i < count; i++) {
+            shares[i] = adaptiveScore(state, i);
+        }
+        normalize(count);
+    }
+    
+    /**
+     * Allocate traffic in proportion to goodput drawn from each network's posterior, so
+     * the mix explores uncertain networks and settles as their goodput becomes known
+     * 
      * @param connections List of network connections
+     * @param count Number of networks
      */
-    private void allocateAdaptively(List<NetworkConnection> connections) {
-        double totalScore = 0;
-        
-        // Calculate a score for each connection based on speed and latency
-        for (NetworkConnection conn : connections) {
-            double score = calculateAdaptiveScore(conn);
-            totalScore += score;
+    private void allocateByBandit(List<NetworkConnection> connections, int count) {
+        for (int i = 0; i < count; i++) {
+            int base = i * STATE_FIELDS;
+            shares[i] = bandit.sample(connections.get(i).getSsid(),
+                    state[base + STATE_MEAN], state[base + STATE_STD_DEV]);
         }
-        
-        // Avoid division by zero
-        if (totalScore <= 0) {
-            allocateRoundRobin(connections);
-            return;
+        normalize(count);
+    }
+    
+    /**
+     * Allocate traffic so that a transfer of the configured size completes as early as
+     * possible, given each network's capacity, latency and loss
+     * 
+     * @param count Number of networks
+     */
+    private void allocateOptimally(int count) {
+        splitForCompletionTime(count, transferSizeBytes);
+        normalize(count);
+    }
+    
+    /**
+     * Allocate traffic to as few networks as the minimum throughput allows, cheapest
+     * energy per megabyte first, in proportion to capacity among them. Networks left out
+     * get no traffic, so their radios can drop back to idle.
+     * 
+     * @param count Number of networks
+     */
+    private void allocateForEnergy(int count) {
+        // Insertion sort of the network indices by energy; there are only a few networks
+        for (int i = 0; i < count; i++) {
+            double energy = state[i * STATE_FIELDS + STATE_ENERGY];
+            int j = i;
+            while (j > 0 && state[order[j - 1] * STATE_FIELDS + STATE_ENERGY] > energy) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+            shares[i] = 0;
         }
         
-        // Allocate based on scores
-        for (NetworkConnection conn : connections) {
-            double score = calculateAdaptiveScore(conn);
-            double allocation = (score / totalScore) * 100.0;
-            conn.setAllocationPercentage(allocation);
+        double required = minThroughputMbps;
+        double available = 0;
+        for (int k = 0; k < count; k++) {
+            int base = order[k] * STATE_FIELDS;
+            shares[order[k]] = state[base + STATE_PLANNED];
+            available += state[base + STATE_PLANNED] * (1 - state[base + STATE_LOSS]);
+            if (available >= required && available > 0) {
+                break;
+            }
+        }
+        normalize(count);
+    }
+    
+    /**
+     * Solves for the split of a transfer that minimises its expected completion time.
+     * Loss reduces a link's useful capacity and stretches its latency by the expected
+     * number of retransmissions.
+     * 
+     * @param count Number of networks in the state array
+     * @param sizeBytes Size of the transfer
+     */
+    private void splitForCompletionTime(int count, double sizeBytes) {
+        loadTransferCosts(state, count, capacity, delay);
+        WaterFilling.solve(capacity, delay, count, sizeBytes, shares, order);
+    }
+    
+    /**
+     * Reads each network's useful capacity and the delay before its part of a transfer
+     * flows into the capacity and delay arrays
+     * 
+     * @param state State array of the networks
+     * @param count Number of networks in the state array
+     * @param capacity Receives the useful capacity in bytes per millisecond
+     * @param delay Receives the delay in milliseconds
+     */
+    private static void loadTransferCosts(double[] state, int count, double[] capacity, double[] delay) {
+        for (int i = 0; i < count; i++) {
+            int base = i * STATE_FIELDS;
+            double delivered = 1 - state[base + STATE_LOSS];
+            capacity[i] = state[base + STATE_PLANNED] * delivered * 1000.0 / 8.0; // Mbps to bytes per ms
+            delay[i] = state[base + STATE_LATENCY] / delivered;
         }
     }
     
     /**
      * Calculates a score for adaptive allocation based on speed and latency
      * 
-     * @param conn The network connection
+     * @param state State array of the networks
+     * @param index Index of the network in the state array
      * @return Score value
      */
-    private double calculateAdaptiveScore(NetworkConnection conn) {
-        // Speed is good, latency is bad
+    private static double adaptiveScore(double[] state, int index) {
+        // Speed is good, latency is bad; both count with jitter and loss
         // Add 1 to latency to avoid division by zero
-        double latencyFactor = 100.0 / (conn.getLatencyMs() + 1);
+        double latencyFactor = 100.0 / (latencyBound(state, index) + 1);
         
-        // Give more weight to speed
-        return (conn.getSpeedMbps() * 0.7) + (latencyFactor * 0.3);
+        // Give more weight to speed, of which losses take their share
+        double delivered = state[index * STATE_FIELDS + STATE_PLANNED] * (1 - state[index * STATE_FIELDS + STATE_LOSS]);
+        return (delivered * 0.7) + (latencyFactor * 0.3);
+    }
+    
+    /**
+     * Calculates the RTT that real-time packets on a network stay below with high
+     * probability, mean plus REAL_TIME_DEVIATIONS standard deviations. Loss stretches it
+     * as each lost packet costs at least another round trip to repair or conceal.
+     * 
+     * @param state State array of the networks
+     * @param index Index of the network in the state array
+     * @return RTT bound in milliseconds
+     */
+    private static double latencyBound(double[] state, int index) {
+        int base = index * STATE_FIELDS;
+        double bound = state[base + STATE_LATENCY] + REAL_TIME_DEVIATIONS * state[base + STATE_JITTER];
+        return bound / (1 - state[base + STATE_LOSS]);
+    }
+    
+    /**
+     * Calculates the goodput a bulk TCP flow placed on a network can expect: the planned
+     * capacity less losses, capped by the throughput loss-based congestion control
+     * sustains for one flow at the network's RTT and loss rate (Mathis et al.)
+     * 
+     * @param state State array of the networks
+     * @param index Index of the network in the state array
+     * @return Expected goodput in Mbps
+     */
+    private static double expectedGoodput(double[] state, int index) {
+        int base = index * STATE_FIELDS;
+        double loss = state[base + STATE_LOSS];
+        double goodput = state[base + STATE_PLANNED] * (1 - loss);
+        if (loss <= 0) {
+            return goodput;
+        }
+        double rttSeconds = Math.max(state[base + STATE_LATENCY], 1) / 1000.0;
+        double tcpMbps = TCP_SEGMENT_BYTES * 8 / rttSeconds * TCP_THROUGHPUT_CONSTANT / Math.sqrt(loss) / 1e6;
+        return Math.min(goodput, tcpMbps);
     }
 }
@@ -15,8 +15,10 @@ public class NetworkAnalyzer {
     
     private static final int MIN_NETWORKS = 1;
     private static final int MAX_NETWORKS = 5;
-    private static final double SPEED_WEIGHT = 0.7;
-    private static final double SIGNAL_WEIGHT = 0.3;
+    
+    // Power at which a configuration's power usage counts as 1.0, about that of WiFi and
+    // cellular both carrying traffic
+    private static final double FULL_POWER_MW = 3000;
     
     /**
      * Generates recommendations based on available networks
@@ -45,12 +47,9 @@ public class NetworkAnalyzer {
         // Sort by reliability (lower latency is better)
         Collections.sort(byReliability, Comparator.comparingInt(NetworkConnection::getLatencyMs));
         
-        // Sort by efficiency (balance of speed and signal strength)
-        Collections.sort(byEfficiency, (n1, n2) -> {
-            double score1 = calculateEfficiencyScore(n1);
-            double score2 = calculateEfficiencyScore(n2);
-            return Double.compare(score2, score1);
-        });
+        // Sort by efficiency (less energy per megabyte is better)
+        Collections.sort(byEfficiency, Comparator.comparingDouble(
+                network -> EnergyModel.joulesPerMegabyte(network, network.getSpeedMbps())));
         
         // 1. Speed-optimized recommendation
         if (bySpeed.size() > 0) {
@@ -62,7 +61,7 @@ public class NetworkAnalyzer {
             // Estimate performance
             speedRec.setEstimatedSpeed(estimateCombinedSpeed(speedNetworks));
             speedRec.setEstimatedReliability(estimateReliability(speedNetworks));
-            speedRec.setEstimatedPowerUsage(0.8); // Speed optimized uses more power
+            speedRec.setEstimatedPowerUsage(estimatePowerUsage(speedNetworks));
             
             recommendations.add(speedRec);
         }
@@ -77,7 +76,7 @@ public class NetworkAnalyzer {
             // Estimate performance
             reliabilityRec.setEstimatedSpeed(estimateCombinedSpeed(reliabilityNetworks));
             reliabilityRec.setEstimatedReliability(estimateReliability(reliabilityNetworks));
-            reliabilityRec.setEstimatedPowerUsage(0.6); // Moderate power usage
+            reliabilityRec.setEstimatedPowerUsage(estimatePowerUsage(reliabilityNetworks));
             
             recommendations.add(reliabilityRec);
         }
@@ -105,7 +104,7 @@ public class NetworkAnalyzer {
             // Estimate performance
             balancedRec.setEstimatedSpeed(estimateCombinedSpeed(balancedNetworks));
             balancedRec.setEstimatedReliability(estimateReliability(balancedNetworks));
-            balancedRec.setEstimatedPowerUsage(0.5); // Moderate power usage
+            balancedRec.setEstimatedPowerUsage(estimatePowerUsage(balancedNetworks));
             
             recommendations.add(balancedRec);
         }
@@ -120,7 +119,7 @@ public class NetworkAnalyzer {
             // Estimate performance
             efficiencyRec.setEstimatedSpeed(estimateCombinedSpeed(efficiencyNetworks));
             efficiencyRec.setEstimatedReliability(estimateReliability(efficiencyNetworks));
-            efficiencyRec.setEstimatedPowerUsage(0.2); // Low power usage
+            efficiencyRec.setEstimatedPowerUsage(estimatePowerUsage(efficiencyNetworks));
             
             recommendations.add(efficiencyRec);
         }
@@ -153,18 +152,18 @@ public class NetworkAnalyzer {
     }
     
     /**
-     * Calculates efficiency score for a network (balance of speed and battery usage)
+     * Estimates power usage for multiple networks, each carrying traffic at its speed
      *
-     * @param network The network to evaluate
-     * @return Efficiency score
+     * @param networks List of networks
+     * @return Power usage score (0.0-1.0)
      */
-    private double calculateEfficiencyScore(NetworkConnection network) {
-        // Higher speed is better but consumes more power
-        // Higher signal strength is better and consumes less power
-        double speedScore = Math.min(1.0, network.getSpeedMbps() / 100.0);
-        double signalScore = 1.0; // Placeholder for signal strength
+    private double estimatePowerUsage(List<NetworkConnection> networks) {
+        double powerMw = 0;
+        for (NetworkConnection network : networks) {
+            powerMw += EnergyModel.powerMilliwatts(network, network.getSpeedMbps());
+        }
         
-        return (speedScore * SPEED_WEIGHT) + (signalScore * SIGNAL_WEIGHT);
+        return Math.min(1.0, powerMw / FULL_POWER_MW);
     }
     
     /**
@@ -0,0 +1,81 @@
+package com.multiwifi.connector.util;
+
+/**
+ * Splits a transfer across links so that it completes as early as possible. A link
+ * with fixed delay d and capacity c finishes its part x at d + x / c, so the transfer
+ * completes when the slowest part does. The optimum gives every used link the same
+ * finishing time T ("water level"): links are filled in order of delay, and a link is
+ * used only if its delay is below T. Small transfers therefore stay on the single
+ * lowest-delay link, and large ones spread in proportion to capacity.
+ *
+ * The solver sorts the links and makes one pass over them, without allocating, so it
+ * runs in well under a microsecond for the handful of links a phone has.
+ */
+public final class WaterFilling {
+
+    private WaterFilling() {
+        // Static helpers only
+    }
+
+    /**
+     * Computes the completion-time-optimal split of a transfer
+     *
+     * @param capacity Capacity of each link, in bytes per millisecond
+     * @param delay Fixed delay of each link before data flows, in milliseconds
+     * @param count Number of links
+     * @param size Size of the transfer in bytes
+     * @param shares Receives the fraction of the transfer for each link
+     * @param order Scratch array of at least count entries
+     * @return Expected completion time in milliseconds, or infinity if no link has capacity
+     */
+    public static double solve(double[] capacity, double[] delay, int count, double size,
+                               double[] shares, int[] order) {
+        // Insertion sort by delay; there are only a few links
+        for (int i = 0; i < count; i++) {
+            int j = i;
+            while (j > 0 && delay[order[j - 1]] > delay[i]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+
+        double rate = 0;
+        double weightedDelay = 0;
+        double level = Double.POSITIVE_INFINITY;
+        int first = -1;
+        for (int k = 0; k < count; k++) {
+            int i = order[k];
+            if (capacity[i] <= 0) {
+                continue;
+            }
+            if (first >= 0 && level <= delay[i]) {
+                // Every remaining link would finish after the others already have
+                break;
+            }
+            if (first < 0) {
+                first = i;
+            }
+            rate += capacity[i];
+            weightedDelay += capacity[i] * delay[i];
+            level = (Math.max(size, 0) + weightedDelay) / rate;
+        }
+
+        for (int i = 0; i < count; i++) {
+            shares[i] = 0;
+        }
+        if (first < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (size <= 0) {
+            shares[first] = 1;
+            return delay[first];
+        }
+        for (int i = 0; i < count; i++) {
+            if (capacity[i] > 0 && delay[i] < level) {
+                shares[i] = capacity[i] * (level - delay[i]) / size;
+            }
+        }
+        return level;
+    }
+}
@@ -0,0 +1,107 @@
+package com.multiwifi.connector.vpn;
+
+import com.multiwifi.connector.model.AppPolicy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * UID to routing policy table read by the VPN datapath.
+ * The table is an immutable open-addressing array published through a volatile
+ * reference: lookups are constant time and lock-free, and updates (which are rare)
+ * rebuild the arrays under a lock and swap them in.
+ */
+public class AppPolicyTable {
+
+    private static final class Table {
+        final int[] uids;
+        final AppPolicy[] policies;
+        final int mask;
+
+        Table(int capacity) {
+            uids = new int[capacity];
+            policies = new AppPolicy[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table = new Table(1);
+    private final List<AppPolicy> entries = new ArrayList<>();
+
+    /**
+     * Looks up the policy of an app
+     *
+     * @param uid UID of the app
+     * @return The policy, or null if the app has none
+     */
+    public AppPolicy get(int uid) {
+        Table t = table;
+        int slot = mix(uid) & t.mask;
+        AppPolicy policy;
+        while ((policy = t.policies[slot]) != null) {
+            if (t.uids[slot] == uid) {
+                return policy;
+            }
+            slot = (slot + 1) & t.mask;
+        }
+        return null;
+    }
+
+    /**
+     * Adds or replaces the policy of an app
+     *
+     * @param policy The policy
+     */
+    public synchronized void put(AppPolicy policy) {
+        removeEntry(policy.getUid());
+        entries.add(policy);
+        rebuild();
+    }
+
+    /**
+     * Removes the policy of an app
+     *
+     * @param uid UID of the app
+     */
+    public synchronized void remove(int uid) {
+        if (removeEntry(uid)) {
+            rebuild();
+        }
+    }
+
+    /**
+     * @return Copy of all policies
+     */
+    public synchronized List<AppPolicy> getAll() {
+        return new ArrayList<>(entries);
+    }
+
+    private boolean removeEntry(int uid) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).getUid() == uid) {
+                entries.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void rebuild() {
+        int capacity = Integer.highestOneBit(Math.max(entries.size(), 1) * 2) << 1;
+        Table t = new Table(capacity);
+        for (AppPolicy policy : entries) {
+            int slot = mix(policy.getUid()) & t.mask;
+            while (t.policies[slot] != null) {
+                slot = (slot + 1) & t.mask;
+            }
+            t.uids[slot] = policy.getUid();
+            t.policies[slot] = policy;
+        }
+        table = t;
+    }
+
+    private static int mix(int uid) {
+        int h = uid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
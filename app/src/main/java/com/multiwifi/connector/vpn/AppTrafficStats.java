@@ -0,0 +1,73 @@
+package com.multiwifi.connector.vpn;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-app (UID) byte and packet counters.
+ * The VPN only sees the packets an app sends, so only the tx counters are fed; the rx
+ * counters stay zero until a receive path reports into them.
+ * Counters are striped {@link LongAdder}s, so datapath threads never contend on
+ * them. Flows cache their app's {@link Counters} when they are created, so the map
+ * is only consulted once per flow.
+ */
+public class AppTrafficStats {
+
+    /**
+     * Counters for one app
+     */
+    public static final class Counters {
+        public final LongAdder txBytes = new LongAdder();
+        public final LongAdder txPackets = new LongAdder();
+        public final LongAdder rxBytes = new LongAdder();
+        public final LongAdder rxPackets = new LongAdder();
+
+        public void recordTx(int bytes) {
+            txBytes.add(bytes);
+            txPackets.increment();
+        }
+
+        public void recordRx(int bytes) {
+            rxBytes.add(bytes);
+            rxPackets.increment();
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Counters> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the counters of an app, creating them on first use
+     *
+     * @param uid UID of the app
+     * @return The app's counters
+     */
+    public Counters forUid(int uid) {
+        Counters c = counters.get(uid);
+        if (c == null) {
+            c = counters.computeIfAbsent(uid, k -> new Counters());
+        }
+        return c;
+    }
+
+    /**
+     * Takes a snapshot of the bytes sent and received by each app
+     *
+     * @return Map of UID to {txBytes, rxBytes, txPackets, rxPackets}
+     */
+    public Map<Integer, long[]> snapshot() {
+        Map<Integer, long[]> result = new HashMap<>();
+        for (Map.Entry<Integer, Counters> entry : counters.entrySet()) {
+            Counters c = entry.getValue();
+            result.put(entry.getKey(), new long[] {
+                    c.txBytes.sum(), c.rxBytes.sum(), c.txPackets.sum(), c.rxPackets.sum()
+            });
+        }
+        return result;
+    }
+
+    public void clear() {
+        counters.clear();
+    }
+}
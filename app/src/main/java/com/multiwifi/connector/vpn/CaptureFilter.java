@@ -0,0 +1,258 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Packet filter for the capture tap, written in a small subset of the tcpdump/BPF
+ * expression language and compiled once into a tree of predicates over absolute
+ * header reads.
+ *
+ * Primitives: {@code tcp}, {@code udp}, {@code icmp}, {@code [src|dst] host A.B.C.D},
+ * {@code [src|dst] net A.B.C.D/len}, {@code [src|dst] port N} and {@code link N}
+ * (capture link id). They combine with {@code and}/{@code &&}, {@code or}/{@code ||},
+ * {@code not}/{@code !} and parentheses. An empty expression matches everything.
+ */
+public final class CaptureFilter {
+    public static final CaptureFilter ALL = new CaptureFilter((packet, linkId) -> true);
+
+    private interface Node {
+        boolean matches(ByteBuffer packet, int linkId);
+    }
+
+    private static final int EITHER = 0;
+    private static final int SRC = 1;
+    private static final int DST = 2;
+
+    private final Node root;
+
+    private CaptureFilter(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Compiles a filter expression
+     *
+     * @param expression Filter expression, e.g. "tcp and dst port 443"
+     * @return The filter
+     * @throws IllegalArgumentException If the expression is malformed
+     */
+    public static CaptureFilter compile(String expression) {
+        if (expression == null || expression.trim().isEmpty()) {
+            return ALL;
+        }
+        Parser parser = new Parser(tokenize(expression));
+        Node root = parser.parseOr();
+        if (parser.position != parser.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected '" + parser.tokens.get(parser.position)
+                    + "' in capture filter");
+        }
+        return new CaptureFilter(root);
+    }
+
+    /**
+     * @param packet IPv4 packet starting at offset 0
+     * @param linkId Capture link id of the packet
+     * @return true if the packet should be captured
+     */
+    public boolean matches(ByteBuffer packet, int linkId) {
+        return root.matches(packet, linkId);
+    }
+
+    private static List<String> tokenize(String expression) {
+        List<String> tokens = new ArrayList<>();
+        String text = expression.toLowerCase(Locale.ROOT);
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '!') {
+                tokens.add("not");
+                i++;
+            } else if (text.startsWith("&&", i)) {
+                tokens.add("and");
+                i += 2;
+            } else if (text.startsWith("||", i)) {
+                tokens.add("or");
+                i += 2;
+            } else if (c == '&' || c == '|') {
+                // A lone '&' or '|' is not an operator; the parser reports it
+                tokens.add(String.valueOf(c));
+                i++;
+            } else {
+                int start = i;
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                        && "()!&|".indexOf(text.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(text.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static final class Parser {
+        final List<String> tokens;
+        int position;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        Node parseOr() {
+            Node left = parseAnd();
+            while (accept("or")) {
+                Node l = left;
+                Node r = parseAnd();
+                left = (packet, linkId) -> l.matches(packet, linkId) || r.matches(packet, linkId);
+            }
+            return left;
+        }
+
+        Node parseAnd() {
+            Node left = parseNot();
+            while (accept("and")) {
+                Node l = left;
+                Node r = parseNot();
+                left = (packet, linkId) -> l.matches(packet, linkId) && r.matches(packet, linkId);
+            }
+            return left;
+        }
+
+        Node parseNot() {
+            if (accept("not")) {
+                Node inner = parseNot();
+                return (packet, linkId) -> !inner.matches(packet, linkId);
+            }
+            if (accept("(")) {
+                Node inner = parseOr();
+                expect(")");
+                return inner;
+            }
+            return parsePrimitive();
+        }
+
+        Node parsePrimitive() {
+            String token = next();
+            switch (token) {
+                case "tcp":
+                    return protocol(IpPacket.PROTO_TCP);
+                case "udp":
+                    return protocol(IpPacket.PROTO_UDP);
+                case "icmp":
+                    return protocol(IpPacket.PROTO_ICMP);
+                case "link": {
+                    int id = parseNumber(next(), Integer.MAX_VALUE);
+                    return (packet, linkId) -> linkId == id;
+                }
+                case "src":
+                    return parseQualified(SRC, next());
+                case "dst":
+                    return parseQualified(DST, next());
+                default:
+                    return parseQualified(EITHER, token);
+            }
+        }
+
+        Node parseQualified(int direction, String kind) {
+            switch (kind) {
+                case "host":
+                    return address(direction, parseAddress(next()), 32);
+                case "net": {
+                    String cidr = next();
+                    int slash = cidr.indexOf('/');
+                    if (slash < 0) {
+                        throw new IllegalArgumentException("Expected A.B.C.D/len after 'net'");
+                    }
+                    return address(direction, parseAddress(cidr.substring(0, slash)),
+                            parseNumber(cidr.substring(slash + 1), 32));
+                }
+                case "port":
+                    return port(direction, parseNumber(next(), 0xFFFF));
+                default:
+                    throw new IllegalArgumentException("Unknown capture filter primitive '" + kind + "'");
+            }
+        }
+
+        boolean accept(String token) {
+            if (position < tokens.size() && tokens.get(position).equals(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(String token) {
+            if (!accept(token)) {
+                throw new IllegalArgumentException("Expected '" + token + "' in capture filter");
+            }
+        }
+
+        String next() {
+            if (position >= tokens.size()) {
+                throw new IllegalArgumentException("Unexpected end of capture filter");
+            }
+            return tokens.get(position++);
+        }
+    }
+
+    private static Node protocol(int protocol) {
+        return (packet, linkId) -> IpPacket.protocol(packet) == protocol;
+    }
+
+    private static Node address(int direction, int address, int prefixLength) {
+        int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+        int network = address & mask;
+        switch (direction) {
+            case SRC:
+                return (packet, linkId) -> (IpPacket.sourceAddress(packet) & mask) == network;
+            case DST:
+                return (packet, linkId) -> (IpPacket.destinationAddress(packet) & mask) == network;
+            default:
+                return (packet, linkId) -> (IpPacket.sourceAddress(packet) & mask) == network
+                        || (IpPacket.destinationAddress(packet) & mask) == network;
+        }
+    }
+
+    private static Node port(int direction, int port) {
+        return (packet, linkId) -> {
+            int protocol = IpPacket.protocol(packet);
+            if ((protocol != IpPacket.PROTO_TCP && protocol != IpPacket.PROTO_UDP)
+                    || IpPacket.fragmentOffset(packet) != 0) {
+                return false;
+            }
+            return (direction != DST && IpPacket.sourcePort(packet) == port)
+                    || (direction != SRC && IpPacket.destinationPort(packet) == port);
+        };
+    }
+
+    private static int parseAddress(String text) {
+        String[] parts = text.split("\\.");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid IPv4 address '" + text + "' in capture filter");
+        }
+        int address = 0;
+        for (String part : parts) {
+            address = (address << 8) | parseNumber(part, 255);
+        }
+        return address;
+    }
+
+    private static int parseNumber(String text, int max) {
+        try {
+            int value = Integer.parseInt(text);
+            if (value >= 0 && value <= max) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid number '" + text + "' in capture filter");
+    }
+}
@@ -0,0 +1,231 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Internet checksum helpers for the VPN datapath.
+ * Address and port rewrites use the incremental update from RFC 1624 so only the
+ * changed 16-bit words are touched. The full checksum is only needed when a packet
+ * is built from scratch (e.g. a new fragment) and sums 64 bits per iteration.
+ */
+public final class Checksum {
+
+    private Checksum() {
+        // Static helpers only
+    }
+
+    /**
+     * Computes the one's complement sum of a byte range, without the final inversion
+     *
+     * @param buf Buffer holding the data (absolute offsets, position is ignored)
+     * @param offset Start offset
+     * @param length Number of bytes to sum
+     * @param initial Partial sum to continue from (e.g. the pseudo-header sum)
+     * @return Folded 16-bit sum
+     */
+    public static int sum(ByteBuffer buf, int offset, int length, int initial) {
+        long acc = initial & 0xFFFFFFFFL;
+        int i = offset;
+        int end = offset + length;
+
+        // 8 bytes per step: add both 32-bit halves, carries are folded at the end
+        while (end - i >= 8) {
+            long word = buf.getLong(i);
+            acc += (word >>> 32) + (word & 0xFFFFFFFFL);
+            i += 8;
+        }
+        if (end - i >= 4) {
+            acc += buf.getInt(i) & 0xFFFFFFFFL;
+            i += 4;
+        }
+        if (end - i >= 2) {
+            acc += buf.getShort(i) & 0xFFFF;
+            i += 2;
+        }
+        if (i < end) {
+            // Odd trailing byte is padded with zero on the right
+            acc += (buf.get(i) & 0xFF) << 8;
+        }
+        return fold(acc);
+    }
+
+    /**
+     * Computes a complete Internet checksum over a byte range
+     *
+     * @param buf Buffer holding the data
+     * @param offset Start offset
+     * @param length Number of bytes
+     * @param initial Partial sum to continue from
+     * @return Checksum value ready to be written into a header
+     */
+    public static int compute(ByteBuffer buf, int offset, int length, int initial) {
+        return ~sum(buf, offset, length, initial) & 0xFFFF;
+    }
+
+    /**
+     * Sums the IPv4 pseudo-header used by TCP and UDP checksums
+     *
+     * @param srcAddr Source address
+     * @param dstAddr Destination address
+     * @param protocol IP protocol number
+     * @param l4Length Length of the transport header and payload
+     * @return Folded 16-bit partial sum
+     */
+    public static int pseudoHeaderSum(int srcAddr, int dstAddr, int protocol, int l4Length) {
+        long acc = (srcAddr >>> 16) + (srcAddr & 0xFFFF)
+                + (dstAddr >>> 16) + (dstAddr & 0xFFFF)
+                + protocol + l4Length;
+        return fold(acc);
+    }
+
+    /**
+     * Incrementally updates a checksum after one 16-bit word changed (RFC 1624, eqn. 3)
+     *
+     * @param checksum Current checksum as stored in the header
+     * @param oldWord Previous value of the changed word
+     * @param newWord New value of the changed word
+     * @return Updated checksum
+     */
+    public static int update16(int checksum, int oldWord, int newWord) {
+        long acc = (~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+        return ~fold(acc) & 0xFFFF;
+    }
+
+    /**
+     * Incrementally updates a checksum after a 32-bit value (e.g. an IPv4 address) changed
+     *
+     * @param checksum Current checksum as stored in the header
+     * @param oldValue Previous 32-bit value
+     * @param newValue New 32-bit value
+     * @return Updated checksum
+     */
+    public static int update32(int checksum, int oldValue, int newValue) {
+        long acc = (~checksum & 0xFFFF)
+                + (~(oldValue >>> 16) & 0xFFFF) + (~oldValue & 0xFFFF)
+                + (newValue >>> 16) + (newValue & 0xFFFF);
+        return ~fold(acc) & 0xFFFF;
+    }
+
+    /**
+     * Rewrites the source or destination address of an IPv4 packet and patches the
+     * IP header checksum and, for unfragmented TCP/UDP, the transport checksum.
+     *
+     * @param packet Packet starting at offset 0
+     * @param source true to rewrite the source address, false for the destination
+     * @param newAddr New address
+     */
+    public static void rewriteIpv4Address(ByteBuffer packet, boolean source, int newAddr) {
+        int addrOffset = source ? IpPacket.IPV4_SRC_OFFSET : IpPacket.IPV4_DST_OFFSET;
+        int oldAddr = packet.getInt(addrOffset);
+        if (oldAddr == newAddr) {
+            return;
+        }
+        packet.putInt(addrOffset, newAddr);
+
+        int ipSum = packet.getShort(IpPacket.IPV4_CHECKSUM_OFFSET) & 0xFFFF;
+        packet.putShort(IpPacket.IPV4_CHECKSUM_OFFSET, (short) update32(ipSum, oldAddr, newAddr));
+
+        // Only the first fragment carries the transport header
+        if (IpPacket.fragmentOffset(packet) != 0) {
+            return;
+        }
+        int l4Offset = IpPacket.ipv4HeaderLength(packet);
+        int checksumOffset = transportChecksumOffset(packet, l4Offset);
+        if (checksumOffset < 0) {
+            return;
+        }
+        int l4Sum = packet.getShort(checksumOffset) & 0xFFFF;
+        if (l4Sum == 0 && IpPacket.protocol(packet) == IpPacket.PROTO_UDP) {
+            // UDP checksum disabled by the sender
+            return;
+        }
+        packet.putShort(checksumOffset, (short) fixUdpZero(packet, update32(l4Sum, oldAddr, newAddr)));
+    }
+
+    /**
+     * Rewrites the source or destination port of a TCP/UDP packet and patches its checksum
+     *
+     * @param packet Packet starting at offset 0
+     * @param source true to rewrite the source port, false for the destination
+     * @param newPort New port
+     */
+    public static void rewritePort(ByteBuffer packet, boolean source, int newPort) {
+        int l4Offset = IpPacket.ipv4HeaderLength(packet);
+        int checksumOffset = transportChecksumOffset(packet, l4Offset);
+        if (checksumOffset < 0 || IpPacket.fragmentOffset(packet) != 0) {
+            return;
+        }
+        int portOffset = l4Offset + (source ? 0 : 2);
+        int oldPort = packet.getShort(portOffset) & 0xFFFF;
+        if (oldPort == newPort) {
+            return;
+        }
+        packet.putShort(portOffset, (short) newPort);
+
+        int l4Sum = packet.getShort(checksumOffset) & 0xFFFF;
+        if (l4Sum == 0 && IpPacket.protocol(packet) == IpPacket.PROTO_UDP) {
+            return;
+        }
+        packet.putShort(checksumOffset, (short) fixUdpZero(packet, update16(l4Sum, oldPort, newPort)));
+    }
+
+    /**
+     * Marks an ECN-capable packet as having met congestion (CE) and patches the IP
+     * header checksum
+     *
+     * @param packet Packet starting at offset 0
+     * @return false if the sender does not support ECN, so the packet cannot be marked
+     */
+    public static boolean markCongestionExperienced(ByteBuffer packet) {
+        int ecn = IpPacket.ecn(packet);
+        if (ecn == IpPacket.ECN_NOT_ECT) {
+            return false;
+        }
+        if (ecn == IpPacket.ECN_CE) {
+            return true;
+        }
+        int oldWord = packet.getShort(0) & 0xFFFF;
+        int newWord = oldWord | IpPacket.ECN_CE;
+        packet.putShort(0, (short) newWord);
+        int ipSum = packet.getShort(IpPacket.IPV4_CHECKSUM_OFFSET) & 0xFFFF;
+        packet.putShort(IpPacket.IPV4_CHECKSUM_OFFSET, (short) update16(ipSum, oldWord, newWord));
+        return true;
+    }
+    
+    /**
+     * Recomputes the IPv4 header checksum from scratch
+     *
+     * @param packet Packet starting at offset 0
+     */
+    public static void recomputeIpv4HeaderChecksum(ByteBuffer packet) {
+        packet.putShort(IpPacket.IPV4_CHECKSUM_OFFSET, (short) 0);
+        int headerLength = IpPacket.ipv4HeaderLength(packet);
+        packet.putShort(IpPacket.IPV4_CHECKSUM_OFFSET, (short) compute(packet, 0, headerLength, 0));
+    }
+
+    private static int transportChecksumOffset(ByteBuffer packet, int l4Offset) {
+        switch (IpPacket.protocol(packet)) {
+            case IpPacket.PROTO_TCP:
+                return l4Offset + 16;
+            case IpPacket.PROTO_UDP:
+                return l4Offset + 6;
+            default:
+                return -1;
+        }
+    }
+
+    private static int fixUdpZero(ByteBuffer packet, int checksum) {
+        // A computed UDP checksum of zero is transmitted as all ones
+        if (checksum == 0 && IpPacket.protocol(packet) == IpPacket.PROTO_UDP) {
+            return 0xFFFF;
+        }
+        return checksum;
+    }
+
+    private static int fold(long acc) {
+        while ((acc >>> 16) != 0) {
+            acc = (acc & 0xFFFF) + (acc >>> 16);
+        }
+        return (int) acc;
+    }
+}
@@ -0,0 +1,365 @@
+package com.multiwifi.connector.vpn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Longest-prefix-match table for IPv4 and IPv6 CIDR rules.
+ * This is a path-compressed binary (Patricia) trie whose nodes live in parallel
+ * primitive arrays; addresses are handled as 128-bit keys (IPv4 in the top 32 bits),
+ * so a lookup walks at most one node per distinct prefix length and never allocates.
+ *
+ * Building is not thread-safe. Build the trie once, then publish it to readers.
+ *
+ * @param <V> Type of the value attached to each prefix
+ */
+public class CidrTrie<V> {
+    private static final int IPV4_BITS = 32;
+    private static final int IPV6_BITS = 128;
+
+    /**
+     * A CIDR prefix, as passed to {@code VpnService.Builder.addRoute}
+     */
+    public static final class Prefix {
+        private final byte[] address;
+        private final int length;
+
+        Prefix(byte[] address, int length) {
+            this.address = address;
+            this.length = length;
+        }
+
+        public InetAddress getAddress() {
+            try {
+                return InetAddress.getByAddress(address);
+            } catch (UnknownHostException e) {
+                // Only thrown for illegal lengths, which we never build
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Prefix)) {
+                return false;
+            }
+            Prefix other = (Prefix) o;
+            return length == other.length && Arrays.equals(address, other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(address) * 31 + length;
+        }
+
+        @Override
+        public String toString() {
+            return getAddress().getHostAddress() + "/" + length;
+        }
+    }
+
+    private long[] keyHi = new long[16];
+    private long[] keyLo = new long[16];
+    private int[] prefixLength = new int[16];
+    private int[] child0 = new int[16];
+    private int[] child1 = new int[16];
+    private Object[] values = new Object[16];
+    private int nodeCount;
+
+    private int root4 = -1;
+    private int root6 = -1;
+
+    /**
+     * Adds or replaces the value of a prefix
+     *
+     * @param address IPv4 (4 bytes) or IPv6 (16 bytes) address
+     * @param length Prefix length in bits
+     * @param value Value for the prefix
+     */
+    public void put(byte[] address, int length, V value) {
+        boolean v4 = address.length == 4;
+        int maxBits = v4 ? IPV4_BITS : IPV6_BITS;
+        if ((!v4 && address.length != 16) || length < 0 || length > maxBits) {
+            throw new IllegalArgumentException("Invalid prefix length " + length);
+        }
+        long hi = toHi(address);
+        long lo = toLo(address);
+        hi = maskHi(hi, length);
+        lo = maskLo(lo, length);
+        if (v4) {
+            root4 = insert(root4, hi, lo, length, value);
+        } else {
+            root6 = insert(root6, hi, lo, length, value);
+        }
+    }
+
+    /**
+     * Finds the value of the longest prefix containing an IPv4 address
+     *
+     * @param address IPv4 address as an int
+     * @return The value, or null if no prefix matches
+     */
+    public V lookup(int address) {
+        return find(root4, (long) address << 32, 0, IPV4_BITS);
+    }
+
+    /**
+     * Finds the value of the longest prefix containing an IPv6 address
+     *
+     * @param hi Top 64 bits of the address
+     * @param lo Bottom 64 bits of the address
+     * @return The value, or null if no prefix matches
+     */
+    public V lookup6(long hi, long lo) {
+        return find(root6, hi, lo, IPV6_BITS);
+    }
+
+    /**
+     * @return Number of prefixes with a value
+     */
+    public int size() {
+        int count = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (values[i] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Computes the smallest set of IPv4 prefixes covering every address whose longest
+     * matching rule is not excluded. Passing these to the VPN builder instead of 0.0.0.0/0
+     * keeps excluded traffic out of the TUN interface altogether.
+     *
+     * @param excluded Selects the values of prefixes to exclude
+     * @return Prefixes to route through the VPN
+     */
+    public List<Prefix> complementRoutes(Predicate<V> excluded) {
+        return complement(root4, IPV4_BITS, excluded);
+    }
+
+    /**
+     * IPv6 counterpart of {@link #complementRoutes(Predicate)}
+     *
+     * @param excluded Selects the values of prefixes to exclude
+     * @return Prefixes to route through the VPN
+     */
+    public List<Prefix> complementRoutes6(Predicate<V> excluded) {
+        return complement(root6, IPV6_BITS, excluded);
+    }
+
+    private int insert(int root, long hi, long lo, int length, V value) {
+        if (root == -1) {
+            return newNode(hi, lo, length, value);
+        }
+        int parent = -1;
+        int parentBit = 0;
+        int node = root;
+        while (true) {
+            int nodeLength = prefixLength[node];
+            int common = commonPrefix(keyHi[node], keyLo[node], hi, lo, Math.min(nodeLength, length));
+
+            if (common == nodeLength && common == length) {
+                values[node] = value;
+                return root;
+            }
+            if (common == nodeLength) {
+                // The node's prefix contains ours: descend
+                int bit = bit(hi, lo, nodeLength);
+                int next = bit == 0 ? child0[node] : child1[node];
+                if (next == -1) {
+                    int leaf = newNode(hi, lo, length, value);
+                    setChild(node, bit, leaf);
+                    return root;
+                }
+                parent = node;
+                parentBit = bit;
+                node = next;
+                continue;
+            }
+
+            int replacement;
+            if (common == length) {
+                // Our prefix contains the node's: insert above it
+                replacement = newNode(hi, lo, length, value);
+                setChild(replacement, bit(keyHi[node], keyLo[node], length), node);
+            } else {
+                // Prefixes diverge: add a valueless branch node at the split
+                replacement = newNode(maskHi(hi, common), maskLo(lo, common), common, null);
+                int leaf = newNode(hi, lo, length, value);
+                setChild(replacement, bit(hi, lo, common), leaf);
+                setChild(replacement, bit(keyHi[node], keyLo[node], common), node);
+            }
+            if (parent == -1) {
+                return replacement;
+            }
+            setChild(parent, parentBit, replacement);
+            return root;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V find(int node, long hi, long lo, int maxBits) {
+        Object best = null;
+        while (node != -1) {
+            int length = prefixLength[node];
+            if (!matches(keyHi[node], keyLo[node], hi, lo, length)) {
+                break;
+            }
+            if (values[node] != null) {
+                best = values[node];
+            }
+            if (length == maxBits) {
+                break;
+            }
+            node = bit(hi, lo, length) == 0 ? child0[node] : child1[node];
+        }
+        return (V) best;
+    }
+
+    private List<Prefix> complement(int root, int maxBits, Predicate<V> excluded) {
+        List<Prefix> routes = new ArrayList<>();
+        if (cover(root, 0, 0, 0, maxBits, false, excluded, routes)) {
+            routes.add(toPrefix(0, 0, 0, maxBits));
+        }
+        return routes;
+    }
+
+    /**
+     * Walks the block hi/lo/length. Returns true if the whole block should be routed, in
+     * which case the caller decides whether to merge it with its sibling; otherwise the
+     * routed parts of the block have been added to routes.
+     *
+     * @param node Trie node whose prefix lies inside the block, or -1
+     * @param excludedHere Whether the longest rule covering the whole block is excluded
+     */
+    @SuppressWarnings("unchecked")
+    private boolean cover(int node, long hi, long lo, int length, int maxBits,
+                          boolean excludedHere, Predicate<V> excluded, List<Prefix> routes) {
+        if (node == -1) {
+            return !excludedHere;
+        }
+        int node0 = -1;
+        int node1 = -1;
+        if (prefixLength[node] == length) {
+            if (values[node] != null) {
+                excludedHere = excluded.test((V) values[node]);
+            }
+            if (length == maxBits) {
+                return !excludedHere;
+            }
+            node0 = child0[node];
+            node1 = child1[node];
+        } else if (bit(keyHi[node], keyLo[node], length) == 0) {
+            node0 = node;
+        } else {
+            node1 = node;
+        }
+
+        long hi1 = length < 64 ? hi | (1L << (63 - length)) : hi;
+        long lo1 = length >= 64 ? lo | (1L << (127 - length)) : lo;
+        boolean all0 = cover(node0, hi, lo, length + 1, maxBits, excludedHere, excluded, routes);
+        boolean all1 = cover(node1, hi1, lo1, length + 1, maxBits, excludedHere, excluded, routes);
+        if (all0 && all1) {
+            return true;
+        }
+        if (all0) {
+            routes.add(toPrefix(hi, lo, length + 1, maxBits));
+        }
+        if (all1) {
+            routes.add(toPrefix(hi1, lo1, length + 1, maxBits));
+        }
+        return false;
+    }
+
+    private int newNode(long hi, long lo, int length, V value) {
+        if (nodeCount == keyHi.length) {
+            int capacity = nodeCount * 2;
+            keyHi = Arrays.copyOf(keyHi, capacity);
+            keyLo = Arrays.copyOf(keyLo, capacity);
+            prefixLength = Arrays.copyOf(prefixLength, capacity);
+            child0 = Arrays.copyOf(child0, capacity);
+            child1 = Arrays.copyOf(child1, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        int node = nodeCount++;
+        keyHi[node] = hi;
+        keyLo[node] = lo;
+        prefixLength[node] = length;
+        child0[node] = -1;
+        child1[node] = -1;
+        values[node] = value;
+        return node;
+    }
+
+    private void setChild(int node, int bit, int child) {
+        if (bit == 0) {
+            child0[node] = child;
+        } else {
+            child1[node] = child;
+        }
+    }
+
+    private static Prefix toPrefix(long hi, long lo, int length, int maxBits) {
+        byte[] address = new byte[maxBits / 8];
+        for (int i = 0; i < address.length; i++) {
+            long word = i < 8 ? hi : lo;
+            address[i] = (byte) (word >>> (56 - 8 * (i % 8)));
+        }
+        return new Prefix(address, length);
+    }
+
+    private static int bit(long hi, long lo, int index) {
+        return index < 64 ? (int) (hi >>> (63 - index)) & 1 : (int) (lo >>> (127 - index)) & 1;
+    }
+
+    private static boolean matches(long prefixHi, long prefixLo, long hi, long lo, int length) {
+        return maskHi(hi, length) == prefixHi && maskLo(lo, length) == prefixLo;
+    }
+
+    private static int commonPrefix(long aHi, long aLo, long bHi, long bLo, int limit) {
+        long diff = aHi ^ bHi;
+        int common = diff != 0 ? Long.numberOfLeadingZeros(diff)
+                : 64 + Long.numberOfLeadingZeros(aLo ^ bLo);
+        return Math.min(common, limit);
+    }
+
+    private static long maskHi(long hi, int length) {
+        if (length >= 64) {
+            return hi;
+        }
+        return length == 0 ? 0 : hi & (-1L << (64 - length));
+    }
+
+    private static long maskLo(long lo, int length) {
+        if (length <= 64) {
+            return 0;
+        }
+        return length == 128 ? lo : lo & (-1L << (128 - length));
+    }
+
+    private static long toHi(byte[] address) {
+        long hi = 0;
+        for (int i = 0; i < 8; i++) {
+            hi = (hi << 8) | (i < address.length ? address[i] & 0xFF : 0);
+        }
+        return hi;
+    }
+
+    private static long toLo(byte[] address) {
+        long lo = 0;
+        for (int i = 8; i < 16; i++) {
+            lo = (lo << 8) | (i < address.length ? address[i] & 0xFF : 0);
+        }
+        return lo;
+    }
+}
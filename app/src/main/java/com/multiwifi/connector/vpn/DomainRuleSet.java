@@ -0,0 +1,56 @@
+package com.multiwifi.connector.vpn;
+
+import com.multiwifi.connector.model.DomainRule;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Immutable set of domain suffix rules, matched against host names found in the
+ * datapath (TLS SNI, QUIC Initial). Build it once and publish it to the reader thread.
+ * Rules are held in a {@link DomainSuffixTrie}, so matching a name in the packet
+ * buffer does not allocate, even with very large block lists.
+ */
+public class DomainRuleSet {
+    private final DomainSuffixTrie<DomainRule> trie;
+
+    public DomainRuleSet(List<DomainRule> rules) {
+        trie = new DomainSuffixTrie<>(rules.size());
+        for (DomainRule rule : rules) {
+            if (!rule.getSuffix().isEmpty()) {
+                trie.put(rule.getSuffix(), rule);
+            }
+        }
+    }
+
+    public int size() {
+        return trie.size();
+    }
+
+    /**
+     * Finds the rule with the longest suffix matching a host name held in a buffer
+     *
+     * @param buf Buffer holding the name
+     * @param offset Start of the name
+     * @param length Length of the name
+     * @return The rule, or null if none matches
+     */
+    public DomainRule match(ByteBuffer buf, int offset, int length) {
+        if (trie.size() == 0) {
+            return null;
+        }
+        return trie.match(buf, offset, length);
+    }
+
+    /**
+     * Finds the rule with the longest suffix matching a host name
+     *
+     * @param host Host name
+     * @return The rule, or null if none matches
+     */
+    public DomainRule match(String host) {
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        return match(ByteBuffer.wrap(name), 0, name.length);
+    }
+}
@@ -0,0 +1,289 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reversed-label suffix trie for host name rules, packed into primitive arrays.
+ * Names are walked label by label from the right ("com", then "example", then "www").
+ * Each trie edge is an entry in an open-addressing table keyed by (parent node, label
+ * hash), and label bytes are kept once per node in a shared pool to verify hash hits.
+ * Shared suffixes such as "com" are stored once, and matching runs directly over the
+ * bytes of a DNS name or SNI in the packet buffer, without allocating.
+ *
+ * Building is not thread-safe. Build the trie once, then publish it to readers.
+ *
+ * @param <V> Type of the value attached to each suffix
+ */
+public class DomainSuffixTrie<V> {
+    private static final int ROOT = 0;
+
+    // Edge table: (parent, hash) -> child, child == 0 marks an empty slot
+    private int[] edgeParent;
+    private int[] edgeHash;
+    private int[] edgeChild;
+    private int edgeMask;
+    private int edgeCount;
+
+    // Nodes: label bytes in the pool and the value index, -1 when none
+    private int[] labelOffset;
+    private int[] labelLength;
+    private int[] valueIndex;
+    private int nodeCount = 1;
+
+    private byte[] labelPool;
+    private int poolSize;
+
+    private Object[] values;
+    private int valueCount;
+
+    public DomainSuffixTrie() {
+        this(16);
+    }
+
+    /**
+     * @param expectedRules Number of rules the trie is sized for up front
+     */
+    public DomainSuffixTrie(int expectedRules) {
+        int nodes = Math.max(16, expectedRules * 2);
+        int capacity = Integer.highestOneBit(nodes * 2 - 1) << 1;
+        edgeParent = new int[capacity];
+        edgeHash = new int[capacity];
+        edgeChild = new int[capacity];
+        edgeMask = capacity - 1;
+        labelOffset = new int[nodes];
+        labelLength = new int[nodes];
+        valueIndex = new int[nodes];
+        valueIndex[ROOT] = -1;
+        labelPool = new byte[nodes * 8];
+        values = new Object[Math.max(16, expectedRules)];
+    }
+
+    /**
+     * Adds or replaces the value of a domain suffix
+     *
+     * @param suffix Domain suffix such as "example.com"; matching is case-insensitive
+     * @param value Value for the suffix
+     */
+    public void put(String suffix, V value) {
+        byte[] name = suffix.getBytes(StandardCharsets.US_ASCII);
+        int end = name.length;
+        while (end > 0 && name[end - 1] == '.') {
+            end--;
+        }
+        int node = ROOT;
+        int position = end;
+        while (position > 0) {
+            int start = position - 1;
+            while (start >= 0 && name[start] != '.') {
+                start--;
+            }
+            int labelStart = start + 1;
+            int labelLen = position - labelStart;
+            if (labelLen > 0) {
+                int hash = hashLabel(name, labelStart, labelLen);
+                int child = findChild(node, hash, name, labelStart, labelLen);
+                if (child == 0) {
+                    child = addChild(node, hash, name, labelStart, labelLen);
+                }
+                node = child;
+            }
+            position = start;
+        }
+        if (node == ROOT) {
+            throw new IllegalArgumentException("Empty domain suffix");
+        }
+        if (valueIndex[node] >= 0) {
+            values[valueIndex[node]] = value;
+            return;
+        }
+        if (valueCount == values.length) {
+            values = Arrays.copyOf(values, valueCount * 2);
+        }
+        values[valueCount] = value;
+        valueIndex[node] = valueCount++;
+    }
+
+    /**
+     * Finds the value of the longest suffix matching a host name held in a buffer
+     *
+     * @param buf Buffer holding the name (e.g. the packet)
+     * @param offset Start of the name
+     * @param length Length of the name
+     * @return The value, or null if no suffix matches
+     */
+    @SuppressWarnings("unchecked")
+    public V match(ByteBuffer buf, int offset, int length) {
+        int position = offset + length;
+        while (position > offset && buf.get(position - 1) == '.') {
+            position--;
+        }
+        int node = ROOT;
+        int best = -1;
+        while (position > offset) {
+            int start = position - 1;
+            while (start >= offset && buf.get(start) != '.') {
+                start--;
+            }
+            int labelStart = start + 1;
+            int labelLen = position - labelStart;
+            // Same hash as hashLabel, without copying the label out of the buffer
+            int hash = 0;
+            for (int i = labelStart; i < position; i++) {
+                hash = hash * 31 + lower(buf.get(i));
+            }
+            node = findChild(node, mix(hash), buf, labelStart, labelLen);
+            if (node == 0) {
+                break;
+            }
+            if (valueIndex[node] >= 0) {
+                best = valueIndex[node];
+            }
+            position = start;
+        }
+        return best >= 0 ? (V) values[best] : null;
+    }
+
+    /**
+     * @return Number of suffixes with a value
+     */
+    public int size() {
+        return valueCount;
+    }
+
+    /**
+     * @return Approximate memory used by the trie arrays, in bytes
+     */
+    public long memoryBytes() {
+        return (long) edgeParent.length * 12 + (long) labelOffset.length * 12
+                + labelPool.length + (long) values.length * 4;
+    }
+
+    private int findChild(int parent, int hash, byte[] name, int start, int length) {
+        int slot = slot(parent, hash);
+        int child;
+        while ((child = edgeChild[slot]) != 0) {
+            if (edgeParent[slot] == parent && edgeHash[slot] == hash
+                    && labelEquals(child, name, start, length)) {
+                return child;
+            }
+            slot = (slot + 1) & edgeMask;
+        }
+        return 0;
+    }
+
+    private int findChild(int parent, int hash, ByteBuffer buf, int start, int length) {
+        int slot = slot(parent, hash);
+        int child;
+        while ((child = edgeChild[slot]) != 0) {
+            if (edgeParent[slot] == parent && edgeHash[slot] == hash
+                    && labelEquals(child, buf, start, length)) {
+                return child;
+            }
+            slot = (slot + 1) & edgeMask;
+        }
+        return 0;
+    }
+
+    private int addChild(int parent, int hash, byte[] name, int start, int length) {
+        if (nodeCount == labelOffset.length) {
+            int capacity = nodeCount * 2;
+            labelOffset = Arrays.copyOf(labelOffset, capacity);
+            labelLength = Arrays.copyOf(labelLength, capacity);
+            valueIndex = Arrays.copyOf(valueIndex, capacity);
+        }
+        if (poolSize + length > labelPool.length) {
+            labelPool = Arrays.copyOf(labelPool, Math.max(labelPool.length * 2, poolSize + length));
+        }
+        int node = nodeCount++;
+        labelOffset[node] = poolSize;
+        labelLength[node] = length;
+        valueIndex[node] = -1;
+        for (int i = 0; i < length; i++) {
+            labelPool[poolSize++] = (byte) lower(name[start + i]);
+        }
+
+        if ((edgeCount + 1) * 2 > edgeChild.length) {
+            growEdges();
+        }
+        insertEdge(parent, hash, node);
+        return node;
+    }
+
+    private void growEdges() {
+        int[] oldParent = edgeParent;
+        int[] oldHash = edgeHash;
+        int[] oldChild = edgeChild;
+        int capacity = oldChild.length * 2;
+        edgeParent = new int[capacity];
+        edgeHash = new int[capacity];
+        edgeChild = new int[capacity];
+        edgeMask = capacity - 1;
+        edgeCount = 0;
+        for (int i = 0; i < oldChild.length; i++) {
+            if (oldChild[i] != 0) {
+                insertEdge(oldParent[i], oldHash[i], oldChild[i]);
+            }
+        }
+    }
+
+    private void insertEdge(int parent, int hash, int child) {
+        int slot = slot(parent, hash);
+        while (edgeChild[slot] != 0) {
+            slot = (slot + 1) & edgeMask;
+        }
+        edgeParent[slot] = parent;
+        edgeHash[slot] = hash;
+        edgeChild[slot] = child;
+        edgeCount++;
+    }
+
+    private boolean labelEquals(int node, byte[] name, int start, int length) {
+        if (labelLength[node] != length) {
+            return false;
+        }
+        int offset = labelOffset[node];
+        for (int i = 0; i < length; i++) {
+            if (labelPool[offset + i] != lower(name[start + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean labelEquals(int node, ByteBuffer buf, int start, int length) {
+        if (labelLength[node] != length) {
+            return false;
+        }
+        int offset = labelOffset[node];
+        for (int i = 0; i < length; i++) {
+            if (labelPool[offset + i] != lower(buf.get(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int slot(int parent, int hash) {
+        int h = parent * 0x9E3779B9 + hash;
+        return (h ^ (h >>> 15)) & edgeMask;
+    }
+
+    private static int hashLabel(byte[] name, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = hash * 31 + lower(name[i]);
+        }
+        return mix(hash);
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x85EBCA6B;
+        return hash ^ (hash >>> 13);
+    }
+
+    private static int lower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+    }
+}
@@ -0,0 +1,104 @@
+package com.multiwifi.connector.vpn;
+
+import com.multiwifi.connector.model.AppPolicy;
+import com.multiwifi.connector.model.DomainRule;
+import com.multiwifi.connector.model.RoutingRule;
+import com.multiwifi.connector.util.LoadBalancer;
+
+/**
+ * Per-flow state kept by the VPN datapath, keyed by the 5-tuple of the first packet.
+ * Fields are written by the packet reader thread only.
+ */
+public class Flow {
+    final long addressKey;
+    final long portKey;
+
+    // Protocol and local port, the key UidResolver caches the owner under
+    final Integer ownerKey;
+
+    public final int sourceAddress;
+    public final int destinationAddress;
+    public final int sourcePort;
+    public final int destinationPort;
+    public final int protocol;
+    public final long createdAt;
+
+    public long lastSeen;
+    public long packets;
+    public long bytes;
+
+    // Time spent sending, the gaps between packets without the idle ones
+    public long activeMs;
+
+    // Most specific destination rule, resolved once when the flow is created
+    public RoutingRule rule;
+
+    // Rule matched on the host name sniffed from the first payload packet
+    public boolean payloadInspected;
+    public DomainRule domainRule;
+
+    // Owning app and its routing policy, resolved off the reader thread; until the
+    // lookup completes the flow is routed as UID_UNKNOWN
+    public boolean ownerPending;
+    public int uid = AppPolicy.UID_UNKNOWN;
+    public AppPolicy policy;
+    public AppTrafficStats.Counters appCounters;
+
+    // SSID of the network the flow is pinned to, or null for per-packet balancing
+    public String pinnedSsid;
+
+    // SSID of the link the flow is held to, or null while it is striped across links
+    public String linkSsid;
+    
+    // SSID of the link the last packet was sent on, and whether earlier packets went
+    // out on other links
+    public String sentSsid;
+    public boolean multiLink;
+    
+    // TCP sequence state seen from the app, used to reset the flow if its link goes away
+    public boolean tcpEstablished;
+    public int tcpNextSeq;
+    public int tcpAckNumber;
+    
+    // When the app's first SYN went out, by System.nanoTime, and how many SYNs it sent;
+    // HandshakeRtt times the handshake from them
+    public long tcpSynNanos;
+    public int tcpSyns;
+    
+    // Traffic class and the features FlowClassifier derives it from
+    public FlowClassifier.FlowClass flowClass = FlowClassifier.FlowClass.UNKNOWN;
+    int smallPackets;
+    int gapEwma;
+    int burstPackets;
+    int bursts;
+    
+    // Request/response cycles FlowClassifier recognises as segment fetches: ACKs seen
+    // since the last request, 0 right after one, and the smoothed size in bytes of the
+    // segment-sized responses, 0 until the flow has fetched one
+    public int responsePackets;
+    public long segmentBytes;
+    
+    // Plan placing the packets of the segment being fetched, replanned in place
+    public LoadBalancer.SegmentPlan segmentPlan;
+    
+    Flow(long addressKey, long portKey, long now) {
+        this.addressKey = addressKey;
+        this.portKey = portKey;
+        this.sourceAddress = (int) (addressKey >>> 32);
+        this.destinationAddress = (int) addressKey;
+        this.sourcePort = (int) (portKey >>> 24) & 0xFFFF;
+        this.destinationPort = (int) (portKey >>> 8) & 0xFFFF;
+        this.protocol = (int) portKey & 0xFF;
+        this.ownerKey = (protocol << 16) | sourcePort;
+        this.createdAt = now;
+        this.lastSeen = now;
+    }
+
+    @Override
+    public String toString() {
+        return "Flow{" + IpPacket.formatIpv4(sourceAddress) + ":" + sourcePort
+                + " -> " + IpPacket.formatIpv4(destinationAddress) + ":" + destinationPort
+                + ", proto=" + protocol + ", uid=" + uid + ", class=" + flowClass
+                + ", packets=" + packets + '}';
+    }
+}
@@ -0,0 +1,135 @@
+package com.multiwifi.connector.vpn;
+
+/**
+ * Online traffic classifier for flows. Each packet updates a handful of integer
+ * features kept on the {@link Flow} (small packet count, smoothed inter-arrival gap,
+ * idle-separated bursts); the class itself is re-evaluated every few packets.
+ *
+ * The datapath sees the packets an app sends, so a download shows up as a dense
+ * stream of small ACKs: density, not packet size, is what separates bulk transfers
+ * from interactive sessions, which send small packets sparsely.
+ *
+ * Independently of the class, a flow that fetches one response after another, like a
+ * video player fetching segments, shows up as a request carrying payload followed by a
+ * run of ACKs, then the next request. Each run long enough to be a segment counts as a
+ * response, and its size is estimated from the number of ACKs.
+ */
+public final class FlowClassifier {
+
+    public enum FlowClass {
+        UNKNOWN,
+        INTERACTIVE,
+        STREAMING,
+        BULK
+    }
+
+    private static final int SMALL_PACKET_BYTES = 256;
+    private static final int RECLASSIFY_MASK = 0x0F; // Every 16 packets
+    private static final int MIN_PACKETS = 16;
+
+    // Inter-arrival gap EWMA in 1/16 ms, weight 1/8
+    private static final int GAP_SCALE_SHIFT = 4;
+    private static final int GAP_WEIGHT_SHIFT = 3;
+    private static final int BULK_MAX_GAP = 5 << GAP_SCALE_SHIFT;
+    private static final int INTERACTIVE_MIN_GAP = 20 << GAP_SCALE_SHIFT;
+
+    // A gap this long followed by at least this many packets counts as one burst
+    private static final long BURST_IDLE_MS = 1000;
+    private static final int BURST_MIN_PACKETS = 32;
+    private static final int STREAMING_MIN_BURSTS = 2;
+
+    private static final long BULK_MIN_BYTES = 8L * 1024 * 1024;
+
+    // A run of at least this many ACKs between two requests is a segment-sized response;
+    // receivers acknowledge every second full-sized TCP segment
+    private static final int SEGMENT_MIN_PACKETS = 64;
+    private static final int ACKED_BYTES_PER_PACKET = 2 * 1400;
+    private static final int SEGMENT_WEIGHT_SHIFT = 2;
+
+    private FlowClassifier() {
+        // Static helpers only
+    }
+
+    /**
+     * Updates the features of a flow with one packet. Must be called before
+     * {@link Flow#lastSeen} is advanced to the packet's arrival time.
+     *
+     * @param flow The flow
+     * @param packetLength Length of the packet
+     * @param now Arrival time of the packet, in milliseconds
+     * @return true if the class of the flow changed
+     */
+    public static boolean update(Flow flow, int packetLength, long now) {
+        long gap = now - flow.lastSeen;
+        if (packetLength < SMALL_PACKET_BYTES) {
+            flow.smallPackets++;
+        }
+        if (flow.packets > 1) {
+            int scaledGap = (int) Math.min(gap, 60000) << GAP_SCALE_SHIFT;
+            flow.gapEwma += (scaledGap - flow.gapEwma) >> GAP_WEIGHT_SHIFT;
+        }
+        if (gap >= BURST_IDLE_MS) {
+            flow.burstPackets = 0;
+        } else if (++flow.burstPackets == BURST_MIN_PACKETS) {
+            flow.bursts++;
+        }
+        if (packetLength >= SMALL_PACKET_BYTES) {
+            // A request: the ACKs since the previous one were its response
+            if (flow.responsePackets >= SEGMENT_MIN_PACKETS) {
+                long responseBytes = (long) flow.responsePackets * ACKED_BYTES_PER_PACKET;
+                flow.segmentBytes += flow.segmentBytes == 0
+                        ? responseBytes : (responseBytes - flow.segmentBytes) >> SEGMENT_WEIGHT_SHIFT;
+            }
+            flow.responsePackets = 0;
+        } else {
+            flow.responsePackets++;
+        }
+
+        if (flow.packets == 1) {
+            return classifyByPort(flow);
+        }
+        if ((flow.packets & RECLASSIFY_MASK) != 0 || flow.packets < MIN_PACKETS) {
+            return false;
+        }
+        FlowClass flowClass = classify(flow);
+        if (flowClass == flow.flowClass) {
+            return false;
+        }
+        flow.flowClass = flowClass;
+        return true;
+    }
+
+    private static FlowClass classify(Flow flow) {
+        boolean mostlySmall = flow.smallPackets * 4 >= flow.packets * 3;
+        if (flow.bursts >= STREAMING_MIN_BURSTS) {
+            return FlowClass.STREAMING;
+        }
+        if (flow.gapEwma <= BULK_MAX_GAP || flow.bytes >= BULK_MIN_BYTES) {
+            return FlowClass.BULK;
+        }
+        if (mostlySmall && flow.gapEwma >= INTERACTIVE_MIN_GAP) {
+            return FlowClass.INTERACTIVE;
+        }
+        return flow.flowClass;
+    }
+
+    /**
+     * Gives well-known interactive services a class before any behaviour is seen
+     */
+    private static boolean classifyByPort(Flow flow) {
+        switch (flow.destinationPort) {
+            case 22:    // SSH
+            case 23:    // Telnet
+            case 53:    // DNS
+            case 123:   // NTP
+            case 3389:  // RDP
+            case 3478:  // STUN/TURN
+            case 5060:  // SIP
+            case 5900:  // VNC
+                flow.flowClass = FlowClass.INTERACTIVE;
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.multiwifi.connector.vpn;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts flow record files written by {@link FlowRecordWriter} to CSV for offline
+ * analysis. Pure Java, so it also runs on a desktop; the command line tool is
+ * FlowRecordConverter in the unit test sources.
+ */
+public final class FlowRecordReader {
+    public static final String CSV_HEADER = "start_ms,end_ms,duration_ms,src,dst,src_port,dst_port,"
+            + "protocol,class,uid,packets,bytes,rtt_ms,link";
+
+    private FlowRecordReader() {
+        // Static helpers only
+    }
+
+    /**
+     * Appends the records of one file to a CSV stream, without the header line
+     *
+     * @param file Flow record file
+     * @param out CSV output
+     * @return Number of records converted
+     * @throws IOException If the file cannot be read or is not a flow record file
+     */
+    public static int toCsv(File file, Writer out) throws IOException {
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FlowRecordWriter.MAGIC || in.readUnsignedShort() != FlowRecordWriter.VERSION) {
+                throw new IOException(file + " is not a flow record file");
+            }
+            in.readUnsignedShort();
+
+            StringBuilder line = new StringBuilder(160);
+            byte[] link = new byte[FlowRecordWriter.MAX_LINK_LENGTH];
+            while (true) {
+                line.setLength(0);
+                try {
+                    readRecord(in, link, line);
+                } catch (EOFException e) {
+                    // End of file, or a record cut short when the app was killed
+                    break;
+                }
+                out.write(line.toString());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void readRecord(DataInputStream in, byte[] link, StringBuilder line) throws IOException {
+        long start = in.readLong();
+        long end = in.readLong();
+        int src = in.readInt();
+        int dst = in.readInt();
+        int srcPort = in.readUnsignedShort();
+        int dstPort = in.readUnsignedShort();
+        int protocol = in.readUnsignedByte();
+        int flowClass = in.readUnsignedByte();
+        in.readUnsignedShort();
+        int uid = in.readInt();
+        long packets = in.readLong();
+        long bytes = in.readLong();
+        int rtt = in.readInt();
+        int linkLength = in.readUnsignedByte();
+        in.readFully(link, 0, linkLength);
+
+        FlowClassifier.FlowClass[] classes = FlowClassifier.FlowClass.values();
+        line.append(start).append(',').append(end).append(',').append(end - start).append(',')
+                .append(IpPacket.formatIpv4(src)).append(',').append(IpPacket.formatIpv4(dst)).append(',')
+                .append(srcPort).append(',').append(dstPort).append(',')
+                .append(protocol).append(',')
+                .append(flowClass < classes.length ? classes[flowClass].name() : "").append(',')
+                .append(uid).append(',').append(packets).append(',').append(bytes).append(',')
+                .append(rtt).append(',');
+        appendQuoted(line, new String(link, 0, linkLength, StandardCharsets.UTF_8));
+        line.append('\n');
+    }
+
+    private static void appendQuoted(StringBuilder line, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            line.append(value);
+            return;
+        }
+        line.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+}
@@ -0,0 +1,205 @@
+package com.multiwifi.connector.vpn;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes a compact binary record for every finished flow, IPFIX style, to size-rotated
+ * files (flows.bin, flows.bin.1, ...). The datapath only encodes the record and offers
+ * it to a bounded queue; a background thread drains the queue in batches and appends
+ * them to the current file. Records are dropped, and counted, if the writer falls behind.
+ *
+ * File layout: an 8-byte header ("MWFR", version, reserved) followed by records of
+ * {@link #FIXED_LENGTH} bytes plus a length-prefixed link name, all big-endian.
+ * {@link FlowRecordReader} turns the files into CSV.
+ */
+public class FlowRecordWriter implements Runnable {
+    private static final String TAG = "FlowRecordWriter";
+
+    static final int MAGIC = 0x4D574652; // "MWFR"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 8;
+    static final int FIXED_LENGTH = 57;
+    static final int MAX_LINK_LENGTH = 64;
+
+    private static final int MAX_BATCH = 256;
+    private static final long POLL_TIMEOUT_MS = 1000;
+
+    private final File directory;
+    private final String baseName;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final BlockingQueue<byte[]> queue;
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private OutputStream out;
+    private long fileBytes;
+
+    /**
+     * @param directory Directory holding the record files
+     * @param baseName Name of the current file; rotated files get .1, .2, ... appended
+     * @param maxFileBytes Size after which the current file is rotated
+     * @param maxFiles Number of rotated files kept
+     * @param queueCapacity Number of records that may wait for the writer
+     */
+    public FlowRecordWriter(File directory, String baseName, long maxFileBytes, int maxFiles, int queueCapacity) {
+        this.directory = directory;
+        this.baseName = baseName;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Encodes the record of a finished flow and queues it without blocking
+     *
+     * @param flow The flow
+     * @param link SSID of the link the flow last used, or null
+     * @param rttMs Round-trip time of that link, or -1 if unknown
+     * @param endMs Time the flow ended
+     * @return false if the queue was full and the record was dropped
+     */
+    public boolean record(Flow flow, String link, int rttMs, long endMs) {
+        byte[] name = link != null ? link.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int nameLength = Math.min(name.length, MAX_LINK_LENGTH);
+        ByteBuffer record = ByteBuffer.allocate(FIXED_LENGTH + nameLength);
+        record.putLong(flow.createdAt)
+                .putLong(endMs)
+                .putInt(flow.sourceAddress)
+                .putInt(flow.destinationAddress)
+                .putShort((short) flow.sourcePort)
+                .putShort((short) flow.destinationPort)
+                .put((byte) flow.protocol)
+                .put((byte) flow.flowClass.ordinal())
+                .putShort((short) 0)
+                .putInt(flow.uid)
+                .putLong(flow.packets)
+                .putLong(flow.bytes)
+                .putInt(rttMs)
+                .put((byte) nameLength)
+                .put(name, 0, nameLength);
+        if (!queue.offer(record.array())) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Number of records written to disk
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return Number of records dropped because the writer fell behind or failed
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the writer once the queued records are written
+     */
+    public void stop() {
+        running.set(false);
+    }
+
+    @Override
+    public void run() {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (running.get() || !queue.isEmpty()) {
+                byte[] first = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                writeBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down: write what is already queued
+            queue.drainTo(batch);
+            writeBatch(batch);
+        } finally {
+            closeFile();
+        }
+    }
+
+    private void writeBatch(List<byte[]> batch) {
+        try {
+            for (byte[] record : batch) {
+                if (out == null || fileBytes + record.length > maxFileBytes) {
+                    rotate();
+                }
+                out.write(record);
+                fileBytes += record.length;
+            }
+            out.flush();
+            written.addAndGet(batch.size());
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing flow records", e);
+            dropped.addAndGet(batch.size());
+            closeFile();
+        }
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        File current = new File(directory, baseName);
+        if (current.length() > HEADER_LENGTH) {
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File older = new File(directory, baseName + "." + i);
+                if (older.exists() && !older.renameTo(new File(directory, baseName + "." + (i + 1)))) {
+                    Log.w(TAG, "Could not rotate " + older);
+                }
+            }
+            if (!current.renameTo(new File(directory, baseName + ".1"))) {
+                Log.w(TAG, "Could not rotate " + current);
+            }
+            File oldest = new File(directory, baseName + "." + (maxFiles + 1));
+            if (oldest.exists() && !oldest.delete()) {
+                Log.w(TAG, "Could not delete " + oldest);
+            }
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        out = new BufferedOutputStream(new FileOutputStream(current, false));
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0);
+        out.write(header.array());
+        fileBytes = HEADER_LENGTH;
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing flow record file", e);
+            }
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Open-addressing table of active flows keyed by the packet 5-tuple.
+ * Keys are packed into two longs and probed in primitive arrays, so looking up the
+ * flow of a packet costs a hash and a few array reads without allocating.
+ *
+ * Not thread-safe: it is owned by the packet reader thread.
+ */
+public class FlowTable {
+    private final long[] addressKeys;
+    private final long[] portKeys;
+    private final Flow[] flows;
+    private final int mask;
+    private final int maxFlows;
+    private int size;
+
+    /**
+     * @param maxFlows Maximum number of flows tracked at once
+     */
+    public FlowTable(int maxFlows) {
+        // Keep the load factor at or below 0.5 so probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(maxFlows, 8) * 2 - 1) << 1;
+        this.addressKeys = new long[capacity];
+        this.portKeys = new long[capacity];
+        this.flows = new Flow[capacity];
+        this.mask = capacity - 1;
+        this.maxFlows = maxFlows;
+    }
+
+    /**
+     * Looks up the flow a packet belongs to
+     *
+     * @param packet IPv4 packet starting at offset 0
+     * @return The flow, or null if it is not tracked
+     */
+    public Flow get(ByteBuffer packet) {
+        return get(addressKey(packet), portKey(packet));
+    }
+
+    /**
+     * Creates a flow for a packet that has none yet
+     *
+     * @param packet IPv4 packet starting at offset 0
+     * @param now Current time in milliseconds
+     * @return The new flow, or null if the table is full
+     */
+    public Flow create(ByteBuffer packet, long now) {
+        if (size >= maxFlows) {
+            return null;
+        }
+        long addressKey = addressKey(packet);
+        long portKey = portKey(packet);
+        int slot = slot(addressKey, portKey);
+        while (flows[slot] != null) {
+            if (addressKeys[slot] == addressKey && portKeys[slot] == portKey) {
+                return flows[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        Flow flow = new Flow(addressKey, portKey, now);
+        addressKeys[slot] = addressKey;
+        portKeys[slot] = portKey;
+        flows[slot] = flow;
+        size++;
+        return flow;
+    }
+
+    /**
+     * Removes a flow from the table
+     *
+     * @param flow The flow to remove
+     */
+    public void remove(Flow flow) {
+        int slot = slot(flow.addressKey, flow.portKey);
+        while (flows[slot] != null) {
+            if (flows[slot] == flow) {
+                deleteSlot(slot);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes every flow that has been idle for longer than the timeout
+     *
+     * @param now Current time in milliseconds
+     * @param idleTimeoutMs Idle time after which a flow is dropped
+     * @return Number of flows removed
+     */
+    public int expireIdle(long now, long idleTimeoutMs) {
+        return removeIf(flow -> now - flow.lastSeen > idleTimeoutMs);
+    }
+    
+    /**
+     * Removes every flow that has been idle for longer than the timeout, handing each
+     * one to a callback first
+     *
+     * @param now Current time in milliseconds
+     * @param idleTimeoutMs Idle time after which a flow is dropped
+     * @param expired Receives each removed flow
+     * @return Number of flows removed
+     */
+    public int expireIdle(long now, long idleTimeoutMs, Consumer<Flow> expired) {
+        return removeIf(flow -> {
+            if (now - flow.lastSeen <= idleTimeoutMs) {
+                return false;
+            }
+            expired.accept(flow);
+            return true;
+        });
+    }
+    
+    /**
+     * Visits every flow and removes those the filter selects. The filter may update
+     * the flows it keeps; it can see a kept flow twice if a removal shifts it back.
+     *
+     * @param filter Returns true for flows to remove
+     * @return Number of flows removed
+     */
+    public int removeIf(Predicate<Flow> filter) {
+        int removed = 0;
+        int slot = 0;
+        while (slot < flows.length) {
+            Flow flow = flows[slot];
+            if (flow != null && filter.test(flow)) {
+                // Backward shift may move a later entry into this slot, so re-check it
+                deleteSlot(slot);
+                removed++;
+            } else {
+                slot++;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private Flow get(long addressKey, long portKey) {
+        int slot = slot(addressKey, portKey);
+        Flow flow;
+        while ((flow = flows[slot]) != null) {
+            if (addressKeys[slot] == addressKey && portKeys[slot] == portKey) {
+                return flow;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Deletes a slot with backward-shift deletion, so no tombstones accumulate
+     */
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (flows[next] != null) {
+            int home = slot(addressKeys[next], portKeys[next]);
+            // Move the entry back if its home slot does not lie in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                addressKeys[hole] = addressKeys[next];
+                portKeys[hole] = portKeys[next];
+                flows[hole] = flows[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        flows[hole] = null;
+        size--;
+    }
+
+    private int slot(long addressKey, long portKey) {
+        long h = addressKey * 0x9E3779B97F4A7C15L ^ portKey * 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 29)) & mask;
+    }
+
+    private static long addressKey(ByteBuffer packet) {
+        return ((long) IpPacket.sourceAddress(packet) << 32)
+                | (IpPacket.destinationAddress(packet) & 0xFFFFFFFFL);
+    }
+
+    private static long portKey(ByteBuffer packet) {
+        int protocol = IpPacket.protocol(packet);
+        if ((protocol != IpPacket.PROTO_TCP && protocol != IpPacket.PROTO_UDP)
+                || IpPacket.fragmentOffset(packet) != 0) {
+            return protocol;
+        }
+        return ((long) IpPacket.sourcePort(packet) << 24)
+                | ((long) IpPacket.destinationPort(packet) << 8)
+                | protocol;
+    }
+}
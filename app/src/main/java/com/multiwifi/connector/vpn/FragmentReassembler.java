@@ -0,0 +1,262 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded IPv4 fragment reassembly cache.
+ * Datagrams are keyed by (src, dst, id, proto). The cache is capped both in number of
+ * datagrams and in buffered bytes, and incomplete datagrams expire after a timeout, so a
+ * flood of fragments that never complete cannot grow the heap. Overlapping fragments
+ * drop the whole datagram instead of trying to merge them.
+ *
+ * Not thread-safe: it is owned by the thread that reads packets.
+ */
+public class FragmentReassembler {
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+    private static final int MAX_FRAGMENTS_PER_DATAGRAM = 64;
+
+    private final int maxDatagrams;
+    private final int maxBufferedBytes;
+    private final long timeoutNanos;
+
+    // Insertion order doubles as age order for timeout and eviction
+    private final LinkedHashMap<Key, Datagram> pending = new LinkedHashMap<>();
+    private int bufferedBytes;
+
+    private long reassembled;
+    private long timedOut;
+    private long evicted;
+    private long dropped;
+
+    /**
+     * @param maxDatagrams Maximum number of datagrams being reassembled at once
+     * @param maxBufferedBytes Maximum payload bytes held across all datagrams
+     * @param timeoutMs Time after which an incomplete datagram is discarded
+     */
+    public FragmentReassembler(int maxDatagrams, int maxBufferedBytes, long timeoutMs) {
+        this.maxDatagrams = maxDatagrams;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.timeoutNanos = timeoutMs * 1_000_000L;
+    }
+
+    /**
+     * Offers a fragment to the cache
+     *
+     * @param fragment IPv4 fragment starting at offset 0
+     * @param out Buffer receiving the reassembled datagram; must hold 65535 bytes
+     * @return Length of the reassembled datagram written to out, or 0 if still incomplete
+     */
+    public int offer(ByteBuffer fragment, ByteBuffer out) {
+        long now = System.nanoTime();
+        expire(now);
+
+        int headerLength = IpPacket.ipv4HeaderLength(fragment);
+        int payloadLength = IpPacket.totalLength(fragment) - headerLength;
+        int offset = IpPacket.fragmentOffset(fragment);
+        boolean last = !IpPacket.moreFragments(fragment);
+
+        if (payloadLength <= 0 || offset + payloadLength + headerLength > MAX_DATAGRAM_SIZE
+                || (!last && (payloadLength & 7) != 0)) {
+            dropped++;
+            return 0;
+        }
+
+        Key key = new Key(IpPacket.sourceAddress(fragment), IpPacket.destinationAddress(fragment),
+                IpPacket.identification(fragment), IpPacket.protocol(fragment));
+        Datagram datagram = pending.get(key);
+        // Account for the buffer the fragment forces us to allocate, not just its payload,
+        // so a lone fragment at a high offset is charged for the hole in front of it
+        int growth = datagram == null ? offset + payloadLength
+                : Math.max(0, offset + payloadLength - datagram.payload.length);
+        if (growth > maxBufferedBytes) {
+            dropped++;
+            return 0;
+        }
+        if (datagram == null) {
+            makeRoom(growth, true);
+            datagram = new Datagram(now + timeoutNanos);
+            pending.put(key, datagram);
+        } else if (bufferedBytes + growth > maxBufferedBytes) {
+            makeRoom(growth, false);
+            if (!pending.containsKey(key)) {
+                // Our own datagram was the oldest and got evicted
+                return 0;
+            }
+        }
+
+        int before = datagram.payload.length;
+        if (!datagram.add(fragment, headerLength, offset, payloadLength, last)) {
+            remove(key, datagram);
+            dropped++;
+            return 0;
+        }
+        bufferedBytes += datagram.payload.length - before;
+
+        if (!datagram.isComplete()) {
+            return 0;
+        }
+
+        remove(key, datagram);
+        reassembled++;
+        return datagram.writeTo(out);
+    }
+
+    /**
+     * @return Number of datagrams currently being reassembled
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return Bytes of payload buffer currently allocated across all datagrams
+     */
+    public int getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public long getReassembledCount() {
+        return reassembled;
+    }
+
+    public long getTimedOutCount() {
+        return timedOut;
+    }
+
+    public long getEvictedCount() {
+        return evicted;
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<Key, Datagram>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Datagram datagram = it.next().getValue();
+            if (datagram.deadline - now > 0) {
+                break;
+            }
+            bufferedBytes -= datagram.payload.length;
+            it.remove();
+            timedOut++;
+        }
+    }
+
+    private void makeRoom(int incomingBytes, boolean newDatagram) {
+        Iterator<Map.Entry<Key, Datagram>> it = pending.entrySet().iterator();
+        while (it.hasNext() && ((newDatagram && pending.size() >= maxDatagrams)
+                || bufferedBytes + incomingBytes > maxBufferedBytes)) {
+            bufferedBytes -= it.next().getValue().payload.length;
+            it.remove();
+            evicted++;
+        }
+    }
+
+    private void remove(Key key, Datagram datagram) {
+        pending.remove(key);
+        bufferedBytes -= datagram.payload.length;
+    }
+
+    private static final class Key {
+        final long addresses;
+        final int idAndProto;
+
+        Key(int src, int dst, int id, int proto) {
+            this.addresses = ((long) src << 32) | (dst & 0xFFFFFFFFL);
+            this.idAndProto = (id << 8) | proto;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return addresses == other.addresses && idAndProto == other.idAndProto;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(addresses) * 31 + idAndProto;
+        }
+    }
+
+    /**
+     * Fragments of one datagram. Payload is copied into a buffer sized to the highest
+     * offset seen so far.
+     */
+    private static final class Datagram {
+        final long deadline;
+        final int[] starts = new int[MAX_FRAGMENTS_PER_DATAGRAM];
+        final int[] ends = new int[MAX_FRAGMENTS_PER_DATAGRAM];
+        int count;
+        int received;
+        int totalPayload = -1;
+        byte[] header;
+        byte[] payload = new byte[0];
+
+        Datagram(long deadline) {
+            this.deadline = deadline;
+        }
+
+        boolean add(ByteBuffer fragment, int headerLength, int offset, int length, boolean last) {
+            int end = offset + length;
+            if (count == MAX_FRAGMENTS_PER_DATAGRAM) {
+                return false;
+            }
+            if (totalPayload >= 0 && (end > totalPayload || (last && end != totalPayload))) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (offset < ends[i] && starts[i] < end) {
+                    return false;
+                }
+            }
+            if (last) {
+                totalPayload = end;
+            }
+            if (end > payload.length) {
+                byte[] grown = new byte[end];
+                System.arraycopy(payload, 0, grown, 0, payload.length);
+                payload = grown;
+            }
+            for (int i = 0; i < length; i++) {
+                payload[offset + i] = fragment.get(headerLength + i);
+            }
+            if (offset == 0) {
+                header = new byte[headerLength];
+                for (int i = 0; i < headerLength; i++) {
+                    header[i] = fragment.get(i);
+                }
+            }
+            starts[count] = offset;
+            ends[count] = end;
+            count++;
+            received += length;
+            return true;
+        }
+
+        boolean isComplete() {
+            // Overlaps are rejected, so full coverage means the byte counts match
+            return header != null && totalPayload >= 0 && received == totalPayload;
+        }
+
+        int writeTo(ByteBuffer out) {
+            int total = header.length + totalPayload;
+            out.clear();
+            out.put(header);
+            out.put(payload, 0, totalPayload);
+            out.flip();
+            out.putShort(IpPacket.IPV4_TOTAL_LENGTH_OFFSET, (short) total);
+            int flags = out.getShort(IpPacket.IPV4_FRAGMENT_OFFSET) & IpPacket.FLAG_DONT_FRAGMENT;
+            out.putShort(IpPacket.IPV4_FRAGMENT_OFFSET, (short) flags);
+            Checksum.recomputeIpv4HeaderChecksum(out);
+            return total;
+        }
+    }
+}
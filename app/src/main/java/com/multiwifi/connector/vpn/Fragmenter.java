@@ -0,0 +1,146 @@
+package com.multiwifi.connector.vpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits IPv4 packets that exceed a link's MTU into fragments.
+ * A single scratch buffer is reused for every fragment, so egress fragmentation does
+ * not allocate. Not thread-safe: one instance per writer thread.
+ */
+public class Fragmenter {
+    private static final int ICMP_HEADER = 8;
+    private static final int ICMP_DEST_UNREACHABLE = 3;
+    private static final int ICMP_FRAGMENTATION_NEEDED = 4;
+    private static final int DEFAULT_TTL = 64;
+
+    /**
+     * Receives each fragment as it is produced
+     */
+    public interface Sink {
+        void send(ByteBuffer fragment) throws IOException;
+    }
+
+    private final ByteBuffer scratch;
+
+    public Fragmenter(int maxMtu) {
+        this.scratch = ByteBuffer.allocate(maxMtu);
+    }
+
+    /**
+     * Sends a packet through the sink, fragmenting it if it exceeds the MTU
+     *
+     * @param packet IPv4 packet starting at offset 0
+     * @param mtu MTU of the outgoing link
+     * @param sink Destination for the packet or its fragments
+     * @return Number of packets handed to the sink, or -1 if the packet is too large
+     *         and has the don't-fragment bit set
+     * @throws IOException If the sink fails
+     */
+    public int send(ByteBuffer packet, int mtu, Sink sink) throws IOException {
+        int totalLength = IpPacket.totalLength(packet);
+        if (totalLength <= mtu) {
+            packet.limit(totalLength).position(0);
+            sink.send(packet);
+            return 1;
+        }
+        if (IpPacket.dontFragment(packet)) {
+            return -1;
+        }
+
+        int headerLength = IpPacket.ipv4HeaderLength(packet);
+        int payloadLength = totalLength - headerLength;
+        int chunk = (Math.min(mtu, scratch.capacity()) - headerLength) & ~7;
+        if (chunk <= 0) {
+            return -1;
+        }
+
+        // The packet may itself be a fragment that a smaller link has to split again
+        int baseOffset = IpPacket.fragmentOffset(packet);
+        boolean originalMore = IpPacket.moreFragments(packet);
+        int count = 0;
+
+        for (int offset = 0; offset < payloadLength; offset += chunk) {
+            int length = Math.min(chunk, payloadLength - offset);
+            boolean last = offset + length == payloadLength;
+
+            scratch.clear();
+            for (int i = 0; i < headerLength; i++) {
+                scratch.put(i, packet.get(i));
+            }
+            for (int i = 0; i < length; i++) {
+                scratch.put(headerLength + i, packet.get(headerLength + offset + i));
+            }
+            scratch.putShort(IpPacket.IPV4_TOTAL_LENGTH_OFFSET, (short) (headerLength + length));
+            int flags = (last && !originalMore) ? 0 : IpPacket.FLAG_MORE_FRAGMENTS;
+            scratch.putShort(IpPacket.IPV4_FRAGMENT_OFFSET, (short) (flags | ((baseOffset + offset) >> 3)));
+            Checksum.recomputeIpv4HeaderChecksum(scratch);
+
+            scratch.limit(headerLength + length).position(0);
+            sink.send(scratch);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Counts the packets {@link #send} hands to the sink for a packet
+     *
+     * @param packet IPv4 packet starting at offset 0
+     * @param mtu MTU of the outgoing link
+     * @return Number of fragments, 1 if the packet fits, or 0 if it cannot be sent
+     */
+    public int count(ByteBuffer packet, int mtu) {
+        int totalLength = IpPacket.totalLength(packet);
+        if (totalLength <= mtu) {
+            return 1;
+        }
+        if (IpPacket.dontFragment(packet)) {
+            return 0;
+        }
+        int headerLength = IpPacket.ipv4HeaderLength(packet);
+        int chunk = (Math.min(mtu, scratch.capacity()) - headerLength) & ~7;
+        return chunk <= 0 ? 0 : (totalLength - headerLength + chunk - 1) / chunk;
+    }
+    
+    /**
+     * Builds an ICMP "fragmentation needed" error for a packet that cannot be forwarded,
+     * so the sending app lowers its path MTU instead of retransmitting into a black hole.
+     *
+     * @param packet The oversized packet
+     * @param mtu MTU to advertise
+     * @param routerAddr Address to use as the ICMP source (the VPN gateway)
+     * @param out Buffer receiving the ICMP packet
+     * @return Length of the ICMP packet
+     */
+    public static int buildFragmentationNeeded(ByteBuffer packet, int mtu, int routerAddr, ByteBuffer out) {
+        int quoted = Math.min(IpPacket.ipv4HeaderLength(packet) + 8, IpPacket.totalLength(packet));
+        int total = IpPacket.IPV4_MIN_HEADER + ICMP_HEADER + quoted;
+
+        out.clear();
+        out.put(0, (byte) 0x45);
+        out.put(1, (byte) 0);
+        out.putShort(IpPacket.IPV4_TOTAL_LENGTH_OFFSET, (short) total);
+        out.putShort(IpPacket.IPV4_ID_OFFSET, (short) 0);
+        out.putShort(IpPacket.IPV4_FRAGMENT_OFFSET, (short) 0);
+        out.put(8, (byte) DEFAULT_TTL);
+        out.put(IpPacket.IPV4_PROTOCOL_OFFSET, (byte) IpPacket.PROTO_ICMP);
+        out.putInt(IpPacket.IPV4_SRC_OFFSET, routerAddr);
+        out.putInt(IpPacket.IPV4_DST_OFFSET, IpPacket.sourceAddress(packet));
+        Checksum.recomputeIpv4HeaderChecksum(out);
+
+        int icmp = IpPacket.IPV4_MIN_HEADER;
+        out.put(icmp, (byte) ICMP_DEST_UNREACHABLE);
+        out.put(icmp + 1, (byte) ICMP_FRAGMENTATION_NEEDED);
+        out.putShort(icmp + 2, (short) 0);
+        out.putShort(icmp + 4, (short) 0);
+        out.putShort(icmp + 6, (short) mtu);
+        for (int i = 0; i < quoted; i++) {
+            out.put(icmp + ICMP_HEADER + i, packet.get(i));
+        }
+        out.putShort(icmp + 2, (short) Checksum.compute(out, icmp, ICMP_HEADER + quoted, 0));
+
+        out.limit(total).position(0);
+        return total;
+    }
+}
@@ -0,0 +1,54 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Round trip times of links measured passively from the TCP handshakes of the flows
+ * they carry. The app acknowledges the server's SYN-ACK one round trip after sending
+ * its SYN, so the gap between the two on the tunnel interface is the RTT of the link
+ * the SYN went out on; the app's own turnaround is negligible next to a radio link.
+ * As in Karn's algorithm, a handshake whose SYN was retransmitted gives no sample,
+ * since its ACK cannot be matched to one SYN.
+ */
+public final class HandshakeRtt {
+    public static final long NO_SAMPLE = -1;
+
+    private static final int TCP_FLAG_SYN = 0x02;
+    private static final int TCP_FLAG_RST = 0x04;
+    private static final int TCP_FLAG_ACK = 0x10;
+
+    private HandshakeRtt() {
+        // Static helpers only
+    }
+
+    /**
+     * Follows the handshake of a flow with a segment the app sent. Call it before
+     * {@link TcpReset#track}, which marks the flow established.
+     *
+     * @param flow Flow of the segment
+     * @param packet Unfragmented IPv4 TCP packet starting at offset 0
+     * @param nowNanos Current System.nanoTime
+     * @return RTT in nanoseconds if the segment completes a handshake that gives a
+     *         sample, otherwise NO_SAMPLE
+     */
+    public static long track(Flow flow, ByteBuffer packet, long nowNanos) {
+        if (flow.tcpEstablished) {
+            return NO_SAMPLE;
+        }
+        int l4Offset = IpPacket.ipv4HeaderLength(packet);
+        if (IpPacket.totalLength(packet) < l4Offset + 20) {
+            return NO_SAMPLE;
+        }
+        int flags = packet.get(l4Offset + 13);
+        if ((flags & TCP_FLAG_SYN) != 0) {
+            if (flow.tcpSyns++ == 0) {
+                flow.tcpSynNanos = nowNanos;
+            }
+            return NO_SAMPLE;
+        }
+        if (flow.tcpSyns != 1 || (flags & (TCP_FLAG_ACK | TCP_FLAG_RST)) != TCP_FLAG_ACK) {
+            return NO_SAMPLE;
+        }
+        return nowNanos - flow.tcpSynNanos;
+    }
+}
@@ -0,0 +1,136 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Static accessors for the IP and transport headers of a raw packet read from the TUN
+ * interface. All offsets are absolute, so the buffer position and limit are never touched.
+ */
+public final class IpPacket {
+
+    public static final int PROTO_ICMP = 1;
+    public static final int PROTO_TCP = 6;
+    public static final int PROTO_UDP = 17;
+
+    public static final int IPV4_MIN_HEADER = 20;
+    public static final int IPV4_TOTAL_LENGTH_OFFSET = 2;
+    public static final int IPV4_ID_OFFSET = 4;
+    public static final int IPV4_FRAGMENT_OFFSET = 6;
+    public static final int IPV4_PROTOCOL_OFFSET = 9;
+    public static final int IPV4_CHECKSUM_OFFSET = 10;
+    public static final int IPV4_SRC_OFFSET = 12;
+    public static final int IPV4_DST_OFFSET = 16;
+
+    public static final int FLAG_DONT_FRAGMENT = 0x4000;
+    public static final int FLAG_MORE_FRAGMENTS = 0x2000;
+    private static final int FRAGMENT_OFFSET_MASK = 0x1FFF;
+
+    // ECN codepoints in the low two bits of the TOS byte (RFC 3168)
+    public static final int ECN_NOT_ECT = 0x00;
+    public static final int ECN_CE = 0x03;
+    private static final int ECN_MASK = 0x03;
+    
+    private IpPacket() {
+        // Static helpers only
+    }
+
+    public static int version(ByteBuffer packet) {
+        return (packet.get(0) >> 4) & 0x0F;
+    }
+
+    /**
+     * Checks that the buffer holds a well-formed IPv4 header
+     *
+     * @param packet Packet starting at offset 0
+     * @param length Number of valid bytes in the buffer
+     * @return true if the header can be parsed safely
+     */
+    public static boolean isValidIpv4(ByteBuffer packet, int length) {
+        if (length < IPV4_MIN_HEADER || version(packet) != 4) {
+            return false;
+        }
+        int headerLength = ipv4HeaderLength(packet);
+        return headerLength >= IPV4_MIN_HEADER && headerLength <= length
+                && totalLength(packet) <= length;
+    }
+
+    public static int ipv4HeaderLength(ByteBuffer packet) {
+        return (packet.get(0) & 0x0F) * 4;
+    }
+
+    public static int totalLength(ByteBuffer packet) {
+        return packet.getShort(IPV4_TOTAL_LENGTH_OFFSET) & 0xFFFF;
+    }
+
+    public static int identification(ByteBuffer packet) {
+        return packet.getShort(IPV4_ID_OFFSET) & 0xFFFF;
+    }
+
+    public static int protocol(ByteBuffer packet) {
+        return packet.get(IPV4_PROTOCOL_OFFSET) & 0xFF;
+    }
+
+    public static int sourceAddress(ByteBuffer packet) {
+        return packet.getInt(IPV4_SRC_OFFSET);
+    }
+
+    public static int destinationAddress(ByteBuffer packet) {
+        return packet.getInt(IPV4_DST_OFFSET);
+    }
+
+    public static int ecn(ByteBuffer packet) {
+        return packet.get(1) & ECN_MASK;
+    }
+    
+    public static boolean dontFragment(ByteBuffer packet) {
+        return (packet.getShort(IPV4_FRAGMENT_OFFSET) & FLAG_DONT_FRAGMENT) != 0;
+    }
+
+    public static boolean moreFragments(ByteBuffer packet) {
+        return (packet.getShort(IPV4_FRAGMENT_OFFSET) & FLAG_MORE_FRAGMENTS) != 0;
+    }
+
+    /**
+     * @return Fragment offset in bytes (the header stores it in 8-byte units)
+     */
+    public static int fragmentOffset(ByteBuffer packet) {
+        return (packet.getShort(IPV4_FRAGMENT_OFFSET) & FRAGMENT_OFFSET_MASK) * 8;
+    }
+
+    public static boolean isFragment(ByteBuffer packet) {
+        return moreFragments(packet) || fragmentOffset(packet) != 0;
+    }
+
+    public static int sourcePort(ByteBuffer packet) {
+        return packet.getShort(ipv4HeaderLength(packet)) & 0xFFFF;
+    }
+
+    public static int destinationPort(ByteBuffer packet) {
+        return packet.getShort(ipv4HeaderLength(packet) + 2) & 0xFFFF;
+    }
+
+    /**
+     * Gets the offset of the transport payload (after the TCP or UDP header)
+     *
+     * @param packet Unfragmented TCP or UDP packet starting at offset 0
+     * @return Offset of the first payload byte
+     */
+    public static int payloadOffset(ByteBuffer packet) {
+        int l4Offset = ipv4HeaderLength(packet);
+        if (protocol(packet) == PROTO_TCP) {
+            return l4Offset + ((packet.get(l4Offset + 12) >> 4) & 0x0F) * 4;
+        }
+        return l4Offset + 8;
+    }
+
+    /**
+     * Formats an IPv4 address held in an int as dotted decimal
+     *
+     * @param addr Address in network byte order
+     * @return Dotted decimal string
+     */
+    public static String formatIpv4(int addr) {
+        return ((addr >>> 24) & 0xFF) + "." + ((addr >>> 16) & 0xFF) + "."
+                + ((addr >>> 8) & 0xFF) + "." + (addr & 0xFF);
+    }
+}
@@ -0,0 +1,80 @@
+package com.multiwifi.connector.vpn;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram: every power-of-two range
+ * is split into 64 linear sub-buckets, so any recorded value is within 1/64 (about
+ * 1.6%) of its bucket, from 1 ns up to about 68 s. Recording is one array increment
+ * with no allocation.
+ *
+ * A histogram has a single writer. Counts are published with ordered stores, so other
+ * threads can merge a snapshot at any time without stopping the writer.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF;
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Records one value. Must only be called by the owning thread.
+     *
+     * @param nanos Latency in nanoseconds; clamped to the histogram range
+     */
+    public void record(long nanos) {
+        int index = indexOf(Math.min(Math.max(nanos, 0), MAX_VALUE));
+        counts.lazySet(index, counts.get(index) + 1);
+    }
+
+    /**
+     * Adds the current counts of this histogram into an array
+     *
+     * @param merged Array of {@link #BUCKETS} counts
+     */
+    void addTo(long[] merged) {
+        for (int i = 0; i < BUCKETS; i++) {
+            merged[i] += counts.get(i);
+        }
+    }
+
+    /**
+     * Computes a percentile of merged counts
+     *
+     * @param merged Counts filled by {@link #addTo}
+     * @param percentile Percentile between 0 and 100
+     * @return Upper bound of the bucket holding the percentile, in nanoseconds, or 0 if empty
+     */
+    static long percentile(long[] merged, double percentile) {
+        long total = 0;
+        for (long count : merged) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += merged[i];
+            if (seen >= rank) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    static int indexOf(long value) {
+        int exponent = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (exponent << SUB_BUCKET_BITS) + (int) (value >>> exponent);
+    }
+
+    static long highestEquivalentValue(int index) {
+        int exponent = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+        long subBucket = index - ((long) exponent << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << exponent) - 1;
+    }
+}
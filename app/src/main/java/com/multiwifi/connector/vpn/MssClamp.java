@@ -0,0 +1,91 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rewrites the MSS option of TCP SYN segments so that full-sized segments fit the
+ * smallest MTU among the links a flow may be scheduled on. Without this, TCP sends
+ * 1460-byte segments that get fragmented or black-holed on smaller links.
+ */
+public final class MssClamp {
+    private static final int TCP_FLAG_SYN = 0x02;
+    private static final int TCP_OPTION_END = 0;
+    private static final int TCP_OPTION_NOP = 1;
+    private static final int TCP_OPTION_MSS = 2;
+    private static final int TCP_MIN_HEADER = 20;
+    private static final int IPV4_TCP_OVERHEAD = 40;
+
+    private MssClamp() {
+        // Static helpers only
+    }
+
+    /**
+     * @param packet IPv4 packet starting at offset 0
+     * @return true if the packet is an unfragmented TCP segment with SYN set
+     */
+    public static boolean isSyn(ByteBuffer packet) {
+        if (IpPacket.protocol(packet) != IpPacket.PROTO_TCP || IpPacket.fragmentOffset(packet) != 0) {
+            return false;
+        }
+        int l4Offset = IpPacket.ipv4HeaderLength(packet);
+        if (IpPacket.totalLength(packet) < l4Offset + TCP_MIN_HEADER) {
+            return false;
+        }
+        return (packet.get(l4Offset + 13) & TCP_FLAG_SYN) != 0;
+    }
+
+    /**
+     * Lowers the MSS option of a SYN segment to fit the given MTU
+     *
+     * @param packet IPv4 TCP SYN packet starting at offset 0
+     * @param mtu Smallest MTU among the candidate links
+     * @return true if the MSS option was rewritten
+     */
+    public static boolean clamp(ByteBuffer packet, int mtu) {
+        int maxMss = mtu - IPV4_TCP_OVERHEAD;
+        int l4Offset = IpPacket.ipv4HeaderLength(packet);
+        int dataOffset = ((packet.get(l4Offset + 12) >> 4) & 0x0F) * 4;
+        int end = Math.min(l4Offset + dataOffset, IpPacket.totalLength(packet));
+        int i = l4Offset + TCP_MIN_HEADER;
+
+        while (i < end) {
+            int kind = packet.get(i) & 0xFF;
+            if (kind == TCP_OPTION_END) {
+                break;
+            }
+            if (kind == TCP_OPTION_NOP) {
+                i++;
+                continue;
+            }
+            if (i + 1 >= end) {
+                break;
+            }
+            int length = packet.get(i + 1) & 0xFF;
+            if (length < 2 || i + length > end) {
+                // Malformed options, leave the segment alone
+                break;
+            }
+            if (kind == TCP_OPTION_MSS && length == 4) {
+                int mss = packet.getShort(i + 2) & 0xFFFF;
+                if (mss <= maxMss) {
+                    return false;
+                }
+                int checksumOffset = l4Offset + 16;
+                int checksum = packet.getShort(checksumOffset) & 0xFFFF;
+                if (((i - l4Offset) & 1) == 0) {
+                    packet.putShort(i + 2, (short) maxMss);
+                    checksum = Checksum.update16(checksum, mss, maxMss);
+                } else {
+                    // Preceded by an odd number of NOPs: the value straddles two checksum words
+                    int oldWords = packet.getInt(i + 1);
+                    packet.putShort(i + 2, (short) maxMss);
+                    checksum = Checksum.update32(checksum, oldWords, packet.getInt(i + 1));
+                }
+                packet.putShort(checksumOffset, (short) checksum);
+                return true;
+            }
+            i += length;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,223 @@
+package com.multiwifi.connector.vpn;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capture tap that writes truncated packets into a fixed-size, memory-mapped pcapng
+ * file used as a ring buffer. The file holds a section header, one interface block
+ * per link (0 is the TUN itself) and a run of equally sized packet slots. A writer
+ * claims a slot with one atomic increment and fills it with absolute puts, so capture
+ * never locks and never grows the file; once the ring wraps, the oldest packets are
+ * overwritten. Slots not written yet hold a local-use block, which pcapng readers skip,
+ * so the file can be opened in Wireshark or tcpdump at any time.
+ */
+public class PacketCapture implements Closeable {
+    public static final int TUN_LINK = 0;
+    public static final int MAX_LINKS = 16;
+
+    private static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int BLOCK_INTERFACE = 0x00000001;
+    private static final int BLOCK_ENHANCED_PACKET = 0x00000006;
+    private static final int BLOCK_FREE_SLOT = 0x80000001; // Local use, skipped by readers
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int LINKTYPE_RAW = 101;
+
+    private static final int OPTION_END = 0;
+    private static final int OPTION_IF_NAME = 2;
+
+    private static final int SECTION_HEADER_LENGTH = 28;
+    private static final int NAME_LENGTH = 32;
+    private static final int INTERFACE_LENGTH = 8 + 8 + 4 + NAME_LENGTH + 4 + 4;
+    private static final int NAME_OFFSET = 8 + 8 + 4;
+    private static final int PACKET_HEADER_LENGTH = 28;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final CaptureFilter filter;
+    private final int snapLength;
+    private final int slotLength;
+    private final int slotCount;
+    private final int firstSlot;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, Integer> linkIds = new ConcurrentHashMap<>();
+    private int nextLinkId = TUN_LINK + 1;
+
+    /**
+     * Creates the capture file, replacing any previous one
+     *
+     * @param path Capture file
+     * @param maxBytes Size of the file
+     * @param snapLength Number of bytes kept from each packet
+     * @param filter Filter deciding which packets are captured
+     * @throws IOException If the file cannot be created or mapped
+     */
+    public PacketCapture(File path, int maxBytes, int snapLength, CaptureFilter filter) throws IOException {
+        this.filter = filter;
+        this.snapLength = snapLength;
+        this.slotLength = PACKET_HEADER_LENGTH + ((snapLength + 3) & ~3) + 4;
+        this.firstSlot = SECTION_HEADER_LENGTH + MAX_LINKS * INTERFACE_LENGTH;
+        this.slotCount = (maxBytes - firstSlot) / slotLength;
+        if (slotCount <= 0) {
+            throw new IllegalArgumentException("Capture file of " + maxBytes + " bytes holds no packets");
+        }
+        int length = firstSlot + slotCount * slotLength;
+
+        file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(length);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        writeSectionHeader();
+        for (int i = 0; i < MAX_LINKS; i++) {
+            writeInterface(i, i == TUN_LINK ? "tun" : "unused");
+        }
+        for (int i = 0; i < slotCount; i++) {
+            int offset = firstSlot + i * slotLength;
+            buffer.putInt(offset, BLOCK_FREE_SLOT);
+            buffer.putInt(offset + 4, slotLength);
+            buffer.putInt(offset + slotLength - 4, slotLength);
+        }
+    }
+
+    /**
+     * Gets the capture link id of a network, naming its interface block on first use
+     *
+     * @param name Name of the link, e.g. its SSID
+     * @return Link id, or {@link #TUN_LINK} if all link ids are taken
+     */
+    public int linkId(String name) {
+        Integer id = linkIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = linkIds.get(name);
+            if (id == null) {
+                if (nextLinkId == MAX_LINKS) {
+                    return TUN_LINK;
+                }
+                id = nextLinkId++;
+                writeName(interfaceOffset(id), name);
+                linkIds.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Captures a packet if it passes the filter
+     *
+     * @param packet IPv4 packet starting at offset 0
+     * @param linkId Capture link id the packet is sent on
+     * @param timeMillis Time of the packet
+     */
+    public void capture(ByteBuffer packet, int linkId, long timeMillis) {
+        if (!filter.matches(packet, linkId)) {
+            return;
+        }
+        int length = IpPacket.totalLength(packet);
+        int captured = Math.min(length, snapLength);
+        int offset = firstSlot + (int) (sequence.getAndIncrement() % slotCount) * slotLength;
+        long timestamp = timeMillis * 1000; // Microseconds, the pcapng default resolution
+
+        // Keep the slot a skipped block until it is complete
+        buffer.putInt(offset, BLOCK_FREE_SLOT);
+        buffer.putInt(offset + 8, linkId);
+        buffer.putInt(offset + 12, (int) (timestamp >>> 32));
+        buffer.putInt(offset + 16, (int) timestamp);
+        buffer.putInt(offset + 20, captured);
+        buffer.putInt(offset + 24, length);
+        int data = offset + PACKET_HEADER_LENGTH;
+        for (int i = 0; i < captured; i++) {
+            buffer.put(data + i, packet.get(i));
+        }
+        for (int i = captured; i < slotLength - PACKET_HEADER_LENGTH - 4; i++) {
+            buffer.put(data + i, (byte) 0);
+        }
+        buffer.putInt(offset, BLOCK_ENHANCED_PACKET);
+    }
+
+    /**
+     * @return Number of packets captured since the file was created
+     */
+    public long getCapturedCount() {
+        return sequence.get();
+    }
+
+    /**
+     * @return Number of packets the ring holds before it wraps
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Flushes the ring to the file and closes it
+     *
+     * @throws IOException If the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private void writeSectionHeader() {
+        buffer.putInt(0, BLOCK_SECTION_HEADER);
+        buffer.putInt(4, SECTION_HEADER_LENGTH);
+        buffer.putInt(8, BYTE_ORDER_MAGIC);
+        buffer.putShort(12, (short) 1); // Major version
+        buffer.putShort(14, (short) 0); // Minor version
+        buffer.putLong(16, -1L);        // Section length not specified
+        buffer.putInt(24, SECTION_HEADER_LENGTH);
+    }
+
+    private void writeInterface(int id, String name) {
+        int offset = interfaceOffset(id);
+        buffer.putInt(offset, BLOCK_INTERFACE);
+        buffer.putInt(offset + 4, INTERFACE_LENGTH);
+        buffer.putShort(offset + 8, (short) LINKTYPE_RAW);
+        buffer.putShort(offset + 10, (short) 0);
+        buffer.putInt(offset + 12, snapLength);
+        buffer.putShort(offset + 16, (short) OPTION_IF_NAME);
+        buffer.putShort(offset + 18, (short) NAME_LENGTH);
+        writeName(offset, name);
+        buffer.putShort(offset + NAME_OFFSET + NAME_LENGTH, (short) OPTION_END);
+        buffer.putShort(offset + NAME_OFFSET + NAME_LENGTH + 2, (short) 0);
+        buffer.putInt(offset + INTERFACE_LENGTH - 4, INTERFACE_LENGTH);
+    }
+
+    /**
+     * Writes an interface name into its fixed-size field, NUL-padded so that the block
+     * never changes size
+     */
+    private void writeName(int interfaceOffset, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, NAME_LENGTH);
+        for (int i = 0; i < NAME_LENGTH; i++) {
+            buffer.put(interfaceOffset + NAME_OFFSET + i, i < length ? bytes[i] : 0);
+        }
+    }
+
+    private int interfaceOffset(int id) {
+        return SECTION_HEADER_LENGTH + id * INTERFACE_LENGTH;
+    }
+}
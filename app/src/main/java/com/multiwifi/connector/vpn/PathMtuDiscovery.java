@@ -0,0 +1,52 @@
+package com.multiwifi.connector.vpn;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+
+/**
+ * Path MTU for a tunnel's link, as the kernel knows it.
+ * A connected UDP socket with the don't-fragment policy set reports, through IP_MTU,
+ * the MTU of the route it is connected over, lowered by any path MTU the kernel has
+ * learned from ICMP "fragmentation needed" messages. Nothing is sent on the wire, so
+ * the result cannot see black holes that drop ICMP; finding those needs packetization
+ * layer PMTUD (RFC 8899) against a peer that acknowledges probes.
+ * Re-reading it periodically picks up newly learned limits.
+ */
+public final class PathMtuDiscovery {
+    private static final String TAG = "PathMtuDiscovery";
+
+    // Linux socket options, not all exposed through OsConstants
+    private static final int IP_MTU_DISCOVER = 10;
+    private static final int IP_MTU = 14;
+    private static final int IP_PMTUDISC_DO = 2;
+
+    public static final int MIN_MTU = 576;
+
+    private PathMtuDiscovery() {
+        // Static helpers only
+    }
+
+    /**
+     * Reads the path MTU the kernel holds for the destination the socket is connected to
+     *
+     * @param socket A protected, connected UDP socket on the link
+     * @param maxMtu Upper bound for the result (the TUN MTU)
+     * @return Path MTU clamped to MIN_MTU..maxMtu, or maxMtu if it cannot be read
+     */
+    public static int routeMtu(DatagramSocket socket, int maxMtu) {
+        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.fromDatagramSocket(socket)) {
+            Os.setsockoptInt(pfd.getFileDescriptor(), OsConstants.IPPROTO_IP, IP_MTU_DISCOVER, IP_PMTUDISC_DO);
+            int routeMtu = Os.getsockoptInt(pfd.getFileDescriptor(), OsConstants.IPPROTO_IP, IP_MTU);
+            return Math.min(Math.max(routeMtu, MIN_MTU), maxMtu);
+        } catch (ErrnoException | IOException e) {
+            Log.w(TAG, "Could not read path MTU, assuming " + maxMtu, e);
+            return maxMtu;
+        }
+    }
+}
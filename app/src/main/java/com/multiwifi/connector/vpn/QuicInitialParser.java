@@ -0,0 +1,293 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Extracts the TLS ClientHello from a QUIC v1 client Initial packet (RFC 9001).
+ * Initial packets are protected with keys derived from the destination connection ID,
+ * which is visible in the clear, so the datapath can remove the protection and read
+ * the CRYPTO frames. Only the one packet at hand is used; a ClientHello that spills
+ * into a second Initial is parsed as far as this packet carries it.
+ */
+public final class QuicInitialParser {
+    private static final int VERSION_1 = 0x00000001;
+    private static final byte[] INITIAL_SALT_V1 = {
+            (byte) 0x38, (byte) 0x76, (byte) 0x2c, (byte) 0xf7, (byte) 0xf5, (byte) 0x59, (byte) 0x34,
+            (byte) 0xb3, (byte) 0x4d, (byte) 0x17, (byte) 0x9a, (byte) 0xe6, (byte) 0xa4, (byte) 0xc8,
+            (byte) 0x0c, (byte) 0xad, (byte) 0xcc, (byte) 0xbb, (byte) 0x7f, (byte) 0x0a
+    };
+    private static final int MAX_CONNECTION_ID = 20;
+    private static final int SAMPLE_LENGTH = 16;
+    private static final int TAG_LENGTH = 16;
+    private static final int MAX_CRYPTO_FRAMES = 32;
+
+    private static final int FRAME_PADDING = 0x00;
+    private static final int FRAME_PING = 0x01;
+    private static final int FRAME_ACK = 0x02;
+    private static final int FRAME_ACK_ECN = 0x03;
+    private static final int FRAME_CRYPTO = 0x06;
+
+    private QuicInitialParser() {
+        // Static helpers only
+    }
+
+    /**
+     * Checks cheaply whether a UDP payload looks like a QUIC v1 Initial packet
+     *
+     * @param buf Buffer holding the datagram
+     * @param offset Start of the UDP payload
+     * @param length Length of the UDP payload
+     * @return true if the long header says Initial, version 1
+     */
+    public static boolean isInitial(ByteBuffer buf, int offset, int length) {
+        if (length < 7) {
+            return false;
+        }
+        int first = buf.get(offset) & 0xFF;
+        // Long header, fixed bit set, packet type Initial
+        return (first & 0xF0) == 0xC0 && buf.getInt(offset + 1) == VERSION_1;
+    }
+
+    /**
+     * Decrypts a client Initial packet and copies its CRYPTO stream data into out
+     *
+     * @param buf Buffer holding the datagram
+     * @param offset Start of the UDP payload
+     * @param length Length of the UDP payload
+     * @param out Buffer receiving the CRYPTO stream, indexed by stream offset
+     * @return Number of contiguous CRYPTO bytes available from stream offset 0, or 0
+     */
+    public static int extractCryptoData(ByteBuffer buf, int offset, int length, ByteBuffer out) {
+        if (!isInitial(buf, offset, length)) {
+            return 0;
+        }
+        int end = offset + length;
+        int p = offset + 5;
+
+        int dcidLength = buf.get(p) & 0xFF;
+        if (dcidLength > MAX_CONNECTION_ID || p + 1 + dcidLength >= end) {
+            return 0;
+        }
+        byte[] dcid = new byte[dcidLength];
+        for (int i = 0; i < dcidLength; i++) {
+            dcid[i] = buf.get(p + 1 + i);
+        }
+        p += 1 + dcidLength;
+
+        int scidLength = buf.get(p) & 0xFF;
+        if (scidLength > MAX_CONNECTION_ID) {
+            return 0;
+        }
+        p += 1 + scidLength;
+
+        long[] varint = new long[2];
+        if (!readVarint(buf, p, end, varint) || varint[0] > length) {
+            return 0;
+        }
+        p += (int) varint[1] + (int) varint[0]; // Skip the token
+        if (p >= end || !readVarint(buf, p, end, varint) || varint[0] > length) {
+            return 0;
+        }
+        int payloadLength = (int) varint[0];
+        int pnOffset = p + (int) varint[1];
+        if (payloadLength < 4 + SAMPLE_LENGTH || pnOffset + payloadLength > end) {
+            return 0;
+        }
+
+        try {
+            byte[] clientSecret = expandLabel(extract(INITIAL_SALT_V1, dcid), "client in", 32);
+            byte[] key = expandLabel(clientSecret, "quic key", 16);
+            byte[] iv = expandLabel(clientSecret, "quic iv", 12);
+            byte[] hp = expandLabel(clientSecret, "quic hp", 16);
+
+            // Remove header protection
+            byte[] sample = new byte[SAMPLE_LENGTH];
+            for (int i = 0; i < SAMPLE_LENGTH; i++) {
+                sample[i] = buf.get(pnOffset + 4 + i);
+            }
+            Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+            ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(hp, "AES"));
+            byte[] mask = ecb.doFinal(sample);
+
+            int first = (buf.get(offset) ^ (mask[0] & 0x0F)) & 0xFF;
+            int pnLength = (first & 0x03) + 1;
+            int headerLength = pnOffset - offset + pnLength;
+            byte[] header = new byte[headerLength];
+            for (int i = 0; i < headerLength; i++) {
+                header[i] = buf.get(offset + i);
+            }
+            header[0] = (byte) first;
+            long packetNumber = 0;
+            for (int i = 0; i < pnLength; i++) {
+                int index = pnOffset - offset + i;
+                header[index] ^= mask[1 + i];
+                packetNumber = (packetNumber << 8) | (header[index] & 0xFF);
+            }
+
+            byte[] nonce = iv.clone();
+            for (int i = 0; i < 8; i++) {
+                nonce[nonce.length - 1 - i] ^= (byte) (packetNumber >>> (8 * i));
+            }
+
+            int cipherLength = payloadLength - pnLength;
+            if (cipherLength <= TAG_LENGTH) {
+                return 0;
+            }
+            byte[] ciphertext = new byte[cipherLength];
+            for (int i = 0; i < cipherLength; i++) {
+                ciphertext[i] = buf.get(pnOffset + pnLength + i);
+            }
+            Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+            gcm.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, nonce));
+            gcm.updateAAD(header);
+            byte[] plaintext = gcm.doFinal(ciphertext);
+
+            return readCryptoFrames(ByteBuffer.wrap(plaintext), out, varint);
+        } catch (GeneralSecurityException e) {
+            // Not a client Initial we can open (e.g. a retransmission after Retry)
+            return 0;
+        }
+    }
+
+    private static int readCryptoFrames(ByteBuffer frames, ByteBuffer out, long[] varint) {
+        int[] starts = new int[MAX_CRYPTO_FRAMES];
+        int[] ends = new int[MAX_CRYPTO_FRAMES];
+        int count = 0;
+        int p = 0;
+        int end = frames.limit();
+
+        while (p < end && count < MAX_CRYPTO_FRAMES) {
+            int type = frames.get(p) & 0xFF;
+            if (type == FRAME_PADDING || type == FRAME_PING) {
+                p++;
+            } else if (type == FRAME_CRYPTO) {
+                p++;
+                if (!readVarint(frames, p, end, varint)) {
+                    break;
+                }
+                long streamOffset = varint[0];
+                p += (int) varint[1];
+                if (!readVarint(frames, p, end, varint)) {
+                    break;
+                }
+                p += (int) varint[1];
+                if (varint[0] > end - p) {
+                    break;
+                }
+                int dataLength = (int) varint[0];
+                int copy = (int) Math.min(dataLength, Math.max(0, out.capacity() - streamOffset));
+                for (int i = 0; i < copy; i++) {
+                    out.put((int) streamOffset + i, frames.get(p + i));
+                }
+                if (copy > 0) {
+                    starts[count] = (int) streamOffset;
+                    ends[count] = (int) streamOffset + copy;
+                    count++;
+                }
+                p += dataLength;
+            } else if (type == FRAME_ACK || type == FRAME_ACK_ECN) {
+                p = skipAck(frames, p + 1, end, type == FRAME_ACK_ECN, varint);
+                if (p < 0) {
+                    break;
+                }
+            } else {
+                // No other frame types are expected in a client's first Initial
+                break;
+            }
+        }
+
+        // Frames may arrive out of order: grow the contiguous range from offset 0
+        int contiguous = 0;
+        boolean grew = true;
+        while (grew) {
+            grew = false;
+            for (int i = 0; i < count; i++) {
+                if (starts[i] <= contiguous && ends[i] > contiguous) {
+                    contiguous = ends[i];
+                    grew = true;
+                }
+            }
+        }
+        return contiguous;
+    }
+
+    private static int skipAck(ByteBuffer frames, int p, int end, boolean ecn, long[] varint) {
+        // Largest Acknowledged, ACK Delay, ACK Range Count, First ACK Range
+        long rangeCount = 0;
+        for (int i = 0; i < 4; i++) {
+            if (!readVarint(frames, p, end, varint)) {
+                return -1;
+            }
+            if (i == 2) {
+                rangeCount = varint[0];
+            }
+            p += (int) varint[1];
+        }
+        long remaining = rangeCount * 2 + (ecn ? 3 : 0);
+        for (long i = 0; i < remaining; i++) {
+            if (!readVarint(frames, p, end, varint)) {
+                return -1;
+            }
+            p += (int) varint[1];
+        }
+        return p;
+    }
+
+    /**
+     * Reads a QUIC variable-length integer
+     *
+     * @param result Receives {value, encoded length}
+     * @return false if the integer is truncated
+     */
+    private static boolean readVarint(ByteBuffer buf, int p, int end, long[] result) {
+        if (p >= end) {
+            return false;
+        }
+        int first = buf.get(p) & 0xFF;
+        int length = 1 << (first >>> 6);
+        if (p + length > end) {
+            return false;
+        }
+        long value = first & 0x3F;
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (buf.get(p + i) & 0xFF);
+        }
+        result[0] = value;
+        result[1] = length;
+        return true;
+    }
+
+    private static byte[] extract(byte[] salt, byte[] ikm) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        return mac.doFinal(ikm);
+    }
+
+    /**
+     * HKDF-Expand-Label from TLS 1.3 with an empty context, for outputs of at most 32 bytes
+     */
+    private static byte[] expandLabel(byte[] secret, String label, int length) throws GeneralSecurityException {
+        byte[] fullLabel = ("tls13 " + label).getBytes(StandardCharsets.US_ASCII);
+        byte[] info = new byte[2 + 1 + fullLabel.length + 1 + 1];
+        info[0] = (byte) (length >>> 8);
+        info[1] = (byte) length;
+        info[2] = (byte) fullLabel.length;
+        System.arraycopy(fullLabel, 0, info, 3, fullLabel.length);
+        info[3 + fullLabel.length] = 0; // Empty context
+        info[info.length - 1] = 1;      // HKDF block counter
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        byte[] block = mac.doFinal(info);
+        byte[] result = new byte[length];
+        System.arraycopy(block, 0, result, 0, length);
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+package com.multiwifi.connector.vpn;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Per-stage latency recording for the VPN datapath. Each datapath thread takes its own
+ * {@link Recorder}, so recording never contends; {@link #percentiles()} merges the
+ * histograms of all recorders on demand. Counts of released recorders are kept in a
+ * retired total, so restarting a tunnel or the packet reader loses no samples.
+ */
+public class StageLatencies {
+
+    /**
+     * Datapath stages, in packet order
+     */
+    public enum Stage {
+        READ,       // TUN read, including the wait for the next packet
+        PARSE,      // Header validation and fragment reassembly
+        CLASSIFY,   // Flow lookup, classification and rule matching
+        SCHEDULE,   // Link selection
+        ENQUEUE,    // MSS clamping, capture and the hand-off to the link's queue
+        WRITE       // Socket write on the link's own thread, also recorded per link
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+
+    // Counts of released recorders, keyed like the percentiles; guarded by this
+    private final Map<String, long[]> retired = new LinkedHashMap<>();
+
+    /**
+     * Creates a recorder for the calling thread
+     *
+     * @return The recorder; use it from one thread only
+     */
+    public Recorder newRecorder() {
+        Recorder recorder = new Recorder();
+        recorders.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * Unregisters a recorder whose thread has finished. Its samples are added to the
+     * retired total.
+     *
+     * @param recorder The recorder
+     */
+    public synchronized void release(Recorder recorder) {
+        if (recorders.remove(recorder)) {
+            addTo(recorder, retired);
+        }
+    }
+
+    /**
+     * Merges all recorders and computes p50, p99 and p99.9 per stage and per link
+     *
+     * @return Map of stage name (or "WRITE:" + SSID for links) to {p50, p99, p99.9} in nanoseconds
+     */
+    public Map<String, long[]> percentiles() {
+        Map<String, long[]> merged = new LinkedHashMap<>();
+        for (Stage stage : STAGES) {
+            merged.put(stage.name(), new long[LatencyHistogram.BUCKETS]);
+        }
+        // Under the lock, so a recorder being released is counted exactly once
+        synchronized (this) {
+            for (Map.Entry<String, long[]> entry : retired.entrySet()) {
+                long[] counts = counts(merged, entry.getKey());
+                long[] retiredCounts = entry.getValue();
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += retiredCounts[i];
+                }
+            }
+            for (Recorder recorder : recorders) {
+                addTo(recorder, merged);
+            }
+        }
+
+        Map<String, long[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : merged.entrySet()) {
+            long[] counts = entry.getValue();
+            result.put(entry.getKey(), new long[] {
+                    LatencyHistogram.percentile(counts, 50),
+                    LatencyHistogram.percentile(counts, 99),
+                    LatencyHistogram.percentile(counts, 99.9)
+            });
+        }
+        return result;
+    }
+
+    private static void addTo(Recorder recorder, Map<String, long[]> merged) {
+        for (Stage stage : STAGES) {
+            recorder.stages[stage.ordinal()].addTo(counts(merged, stage.name()));
+        }
+        for (Map.Entry<String, LatencyHistogram> link : recorder.links.entrySet()) {
+            link.getValue().addTo(counts(merged, Stage.WRITE.name() + ":" + link.getKey()));
+        }
+    }
+
+    private static long[] counts(Map<String, long[]> merged, String key) {
+        long[] counts = merged.get(key);
+        if (counts == null) {
+            counts = new long[LatencyHistogram.BUCKETS];
+            merged.put(key, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Latency histograms of one datapath thread
+     */
+    public static final class Recorder {
+        private final LatencyHistogram[] stages = new LatencyHistogram[STAGES.length];
+        private final Map<String, LatencyHistogram> links = new ConcurrentHashMap<>();
+
+        private Recorder() {
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new LatencyHistogram();
+            }
+        }
+
+        /**
+         * @param stage Stage the time was spent in
+         * @param nanos Time in nanoseconds
+         */
+        public void record(Stage stage, long nanos) {
+            stages[stage.ordinal()].record(nanos);
+        }
+
+        /**
+         * Records a tunnel write both for the WRITE stage and for its link
+         *
+         * @param link SSID of the link
+         * @param nanos Time in nanoseconds
+         */
+        public void recordWrite(String link, long nanos) {
+            stages[Stage.WRITE.ordinal()].record(nanos);
+            LatencyHistogram histogram = links.get(link);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                links.put(link, histogram);
+            }
+            histogram.record(nanos);
+        }
+    }
+}
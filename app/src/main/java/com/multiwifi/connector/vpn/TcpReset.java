@@ -0,0 +1,88 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tracks the TCP sequence numbers a flow's app has sent and builds the RST that tears
+ * the connection down on the app side. Used when the link a connection lives on goes
+ * away: the server knows the connection by that link's address, so it cannot move, but
+ * a prompt reset lets the app reconnect over a surviving link instead of timing out.
+ */
+public final class TcpReset {
+    public static final int LENGTH = IpPacket.IPV4_MIN_HEADER + 20;
+
+    private static final int TCP_FLAG_FIN = 0x01;
+    private static final int TCP_FLAG_SYN = 0x02;
+    private static final int TCP_FLAG_RST = 0x04;
+    private static final int TCP_FLAG_ACK = 0x10;
+    private static final int DEFAULT_TTL = 64;
+
+    private TcpReset() {
+        // Static helpers only
+    }
+
+    /**
+     * Records the sequence state of a TCP segment sent by the app
+     *
+     * @param flow Flow of the segment
+     * @param packet Unfragmented IPv4 TCP packet starting at offset 0
+     */
+    public static void track(Flow flow, ByteBuffer packet) {
+        int l4Offset = IpPacket.ipv4HeaderLength(packet);
+        if (IpPacket.totalLength(packet) < l4Offset + 20) {
+            return;
+        }
+        int flags = packet.get(l4Offset + 13);
+        int payloadLength = IpPacket.totalLength(packet) - IpPacket.payloadOffset(packet);
+        int sequenceLength = Math.max(payloadLength, 0)
+                + ((flags & TCP_FLAG_SYN) != 0 ? 1 : 0)
+                + ((flags & TCP_FLAG_FIN) != 0 ? 1 : 0);
+        flow.tcpNextSeq = packet.getInt(l4Offset + 4) + sequenceLength;
+        if ((flags & TCP_FLAG_ACK) != 0) {
+            flow.tcpAckNumber = packet.getInt(l4Offset + 8);
+        }
+        if ((flags & TCP_FLAG_SYN) == 0) {
+            flow.tcpEstablished = true;
+        }
+    }
+
+    /**
+     * Builds a RST|ACK from the remote end of a flow to the app. Its sequence number is
+     * the last acknowledgement the app sent, which is exactly what the app's stack
+     * expects next, so the reset is accepted (RFC 5961).
+     *
+     * @param flow Established TCP flow
+     * @param out Buffer of at least {@link #LENGTH} bytes receiving the packet
+     * @return Length of the packet
+     */
+    public static int build(Flow flow, ByteBuffer out) {
+        out.clear();
+        out.put(0, (byte) 0x45);
+        out.put(1, (byte) 0);
+        out.putShort(IpPacket.IPV4_TOTAL_LENGTH_OFFSET, (short) LENGTH);
+        out.putShort(IpPacket.IPV4_ID_OFFSET, (short) 0);
+        out.putShort(IpPacket.IPV4_FRAGMENT_OFFSET, (short) IpPacket.FLAG_DONT_FRAGMENT);
+        out.put(8, (byte) DEFAULT_TTL);
+        out.put(IpPacket.IPV4_PROTOCOL_OFFSET, (byte) IpPacket.PROTO_TCP);
+        out.putInt(IpPacket.IPV4_SRC_OFFSET, flow.destinationAddress);
+        out.putInt(IpPacket.IPV4_DST_OFFSET, flow.sourceAddress);
+        Checksum.recomputeIpv4HeaderChecksum(out);
+
+        int tcp = IpPacket.IPV4_MIN_HEADER;
+        out.putShort(tcp, (short) flow.destinationPort);
+        out.putShort(tcp + 2, (short) flow.sourcePort);
+        out.putInt(tcp + 4, flow.tcpAckNumber);
+        out.putInt(tcp + 8, flow.tcpNextSeq);
+        out.put(tcp + 12, (byte) (5 << 4));
+        out.put(tcp + 13, (byte) (TCP_FLAG_RST | TCP_FLAG_ACK));
+        out.putShort(tcp + 14, (short) 0); // Window
+        out.putShort(tcp + 16, (short) 0); // Checksum
+        out.putShort(tcp + 18, (short) 0); // Urgent pointer
+        int pseudo = Checksum.pseudoHeaderSum(flow.destinationAddress, flow.sourceAddress,
+                IpPacket.PROTO_TCP, LENGTH - tcp);
+        out.putShort(tcp + 16, (short) Checksum.compute(out, tcp, LENGTH - tcp, pseudo));
+
+        out.limit(LENGTH).position(0);
+        return LENGTH;
+    }
+}
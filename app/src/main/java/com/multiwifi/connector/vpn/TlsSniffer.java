@@ -0,0 +1,144 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Locates the server name (SNI) in a TLS ClientHello without copying it.
+ * Results are packed as {@code (offset << 32) | length} pointing into the buffer that
+ * was parsed, so callers can match the name in place or build a String only when needed.
+ * Truncated or malformed messages simply yield {@link #NOT_FOUND}.
+ */
+public final class TlsSniffer {
+    public static final long NOT_FOUND = -1;
+
+    private static final int CONTENT_TYPE_HANDSHAKE = 0x16;
+    private static final int HANDSHAKE_CLIENT_HELLO = 0x01;
+    private static final int EXTENSION_SERVER_NAME = 0x0000;
+    private static final int NAME_TYPE_HOST_NAME = 0;
+    private static final int MAX_HOST_NAME = 253;
+
+    private TlsSniffer() {
+        // Static helpers only
+    }
+
+    /**
+     * Finds the SNI in a TLS record carrying a ClientHello (the first TCP payload)
+     *
+     * @param buf Buffer holding the record
+     * @param offset Start of the TLS record
+     * @param length Bytes available
+     * @return Packed offset and length of the host name, or NOT_FOUND
+     */
+    public static long findInRecord(ByteBuffer buf, int offset, int length) {
+        if (length < 5 || (buf.get(offset) & 0xFF) != CONTENT_TYPE_HANDSHAKE
+                || (buf.get(offset + 1) & 0xFF) != 0x03) {
+            return NOT_FOUND;
+        }
+        int recordLength = buf.getShort(offset + 3) & 0xFFFF;
+        // The ClientHello may continue in the next segment; parse what we have
+        return findInHandshake(buf, offset + 5, Math.min(recordLength, length - 5));
+    }
+
+    /**
+     * Finds the SNI in a raw ClientHello handshake message (as carried in QUIC CRYPTO frames)
+     *
+     * @param buf Buffer holding the handshake message
+     * @param offset Start of the handshake header
+     * @param length Bytes available
+     * @return Packed offset and length of the host name, or NOT_FOUND
+     */
+    public static long findInHandshake(ByteBuffer buf, int offset, int length) {
+        int end = offset + length;
+        int p = offset;
+        if (length < 4 || (buf.get(p) & 0xFF) != HANDSHAKE_CLIENT_HELLO) {
+            return NOT_FOUND;
+        }
+        p += 4;
+
+        // client_version (2) + random (32)
+        p += 34;
+        // session_id
+        if (p + 1 > end) {
+            return NOT_FOUND;
+        }
+        p += 1 + (buf.get(p) & 0xFF);
+        // cipher_suites
+        if (p + 2 > end) {
+            return NOT_FOUND;
+        }
+        p += 2 + (buf.getShort(p) & 0xFFFF);
+        // compression_methods
+        if (p + 1 > end) {
+            return NOT_FOUND;
+        }
+        p += 1 + (buf.get(p) & 0xFF);
+        // extensions
+        if (p + 2 > end) {
+            return NOT_FOUND;
+        }
+        int extensionsEnd = Math.min(end, p + 2 + (buf.getShort(p) & 0xFFFF));
+        p += 2;
+
+        while (p + 4 <= extensionsEnd) {
+            int type = buf.getShort(p) & 0xFFFF;
+            int extensionLength = buf.getShort(p + 2) & 0xFFFF;
+            p += 4;
+            if (type == EXTENSION_SERVER_NAME) {
+                return parseServerNameList(buf, p, Math.min(p + extensionLength, extensionsEnd));
+            }
+            p += extensionLength;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @return Offset part of a packed result
+     */
+    public static int nameOffset(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    /**
+     * @return Length part of a packed result
+     */
+    public static int nameLength(long packed) {
+        return (int) packed;
+    }
+
+    /**
+     * Copies a located name out of the buffer
+     *
+     * @param buf Buffer the name was found in
+     * @param packed Packed result of a find call
+     * @return Lower-case host name
+     */
+    public static String toHostName(ByteBuffer buf, long packed) {
+        int offset = nameOffset(packed);
+        int length = nameLength(packed);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = Character.toLowerCase((char) (buf.get(offset + i) & 0xFF));
+        }
+        return new String(chars);
+    }
+
+    private static long parseServerNameList(ByteBuffer buf, int p, int end) {
+        if (p + 2 > end) {
+            return NOT_FOUND;
+        }
+        p += 2;
+        while (p + 3 <= end) {
+            int nameType = buf.get(p) & 0xFF;
+            int nameLength = buf.getShort(p + 1) & 0xFFFF;
+            p += 3;
+            if (p + nameLength > end) {
+                return NOT_FOUND;
+            }
+            if (nameType == NAME_TYPE_HOST_NAME && nameLength > 0 && nameLength <= MAX_HOST_NAME) {
+                return ((long) p << 32) | nameLength;
+            }
+            p += nameLength;
+        }
+        return NOT_FOUND;
+    }
+}
@@ -0,0 +1,182 @@
+package com.multiwifi.connector.vpn;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes that actually leave the VPN, per link, per app (UID) and per flow
+ * class, and turns them into rates. The VPN only sees the sending side: replies come
+ * back on the tunnels' own sockets and are not counted, so every rate here is an
+ * upload rate. Datapath threads only add to striped
+ * {@link LongAdder}s, which they cache per tunnel and per flow, so counting never
+ * contends or allocates. A periodic sampler calls {@link #sample} to compute the rates
+ * since the previous sample and publishes them as one immutable {@link Rates}.
+ */
+public class TrafficMeter {
+    private static final FlowClassifier.FlowClass[] CLASSES = FlowClassifier.FlowClass.values();
+
+    /**
+     * Throughput over one sampling interval, in Mbps
+     */
+    public static final class Rates {
+        public static final Rates EMPTY = new Rates(0, Collections.<String, Double>emptyMap(),
+                Collections.<Integer, Double>emptyMap(), new double[CLASSES.length]);
+
+        private final double totalMbps;
+        private final Map<String, Double> linkMbps;
+        private final Map<Integer, Double> appMbps;
+        private final double[] classMbps;
+
+        Rates(double totalMbps, Map<String, Double> linkMbps, Map<Integer, Double> appMbps, double[] classMbps) {
+            this.totalMbps = totalMbps;
+            this.linkMbps = Collections.unmodifiableMap(linkMbps);
+            this.appMbps = Collections.unmodifiableMap(appMbps);
+            this.classMbps = classMbps;
+        }
+
+        /**
+         * @return Rate sent over all links
+         */
+        public double getTotalMbps() {
+            return totalMbps;
+        }
+
+        /**
+         * @return Map of SSID to the rate sent over that link
+         */
+        public Map<String, Double> getLinkMbps() {
+            return linkMbps;
+        }
+
+        /**
+         * @return Map of UID to the rate sent by that app
+         */
+        public Map<Integer, Double> getAppMbps() {
+            return appMbps;
+        }
+
+        /**
+         * @param flowClass Flow class
+         * @return Rate sent by flows of that class
+         */
+        public double getClassMbps(FlowClassifier.FlowClass flowClass) {
+            return classMbps[flowClass.ordinal()];
+        }
+    }
+
+    private final ConcurrentHashMap<String, LongAdder> linkBytes = new ConcurrentHashMap<>();
+    private final LongAdder[] classBytes = new LongAdder[CLASSES.length];
+    private final AppTrafficStats appStats = new AppTrafficStats();
+
+    // Sampler state, guarded by this
+    private long lastSampleNanos = -1;
+    private final Map<String, Long> lastLinkBytes = new HashMap<>();
+    private final Map<Integer, Long> lastAppBytes = new HashMap<>();
+    private final long[] lastClassBytes = new long[CLASSES.length];
+
+    private volatile Rates rates = Rates.EMPTY;
+
+    public TrafficMeter() {
+        for (int i = 0; i < classBytes.length; i++) {
+            classBytes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Gets the byte counter of a link, creating it on first use. Callers cache it.
+     *
+     * @param ssid SSID of the link
+     * @return The link's counter
+     */
+    public LongAdder forLink(String ssid) {
+        LongAdder counter = linkBytes.get(ssid);
+        if (counter == null) {
+            counter = linkBytes.computeIfAbsent(ssid, k -> new LongAdder());
+        }
+        return counter;
+    }
+
+    /**
+     * Gets the per-app counters, which flows cache when they are created
+     *
+     * @return Per-app counters
+     */
+    public AppTrafficStats getAppStats() {
+        return appStats;
+    }
+
+    /**
+     * Counts bytes sent by a flow of the given class
+     *
+     * @param flowClass Current class of the flow
+     * @param bytes Number of bytes
+     */
+    public void recordClass(FlowClassifier.FlowClass flowClass, int bytes) {
+        classBytes[flowClass.ordinal()].add(bytes);
+    }
+
+    /**
+     * Gets the rates computed by the latest sample
+     *
+     * @return The rates, or {@link Rates#EMPTY} before the second sample
+     */
+    public Rates getRates() {
+        return rates;
+    }
+
+    /**
+     * Computes the rates since the previous sample and publishes them. The first call
+     * only records a baseline.
+     *
+     * @param nowNanos Current time from System.nanoTime()
+     * @return The published rates
+     */
+    public synchronized Rates sample(long nowNanos) {
+        double seconds = lastSampleNanos < 0 ? 0 : (nowNanos - lastSampleNanos) / 1e9;
+        lastSampleNanos = nowNanos;
+
+        double total = 0;
+        Map<String, Double> links = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry : linkBytes.entrySet()) {
+            long bytes = entry.getValue().sum();
+            Long previous = lastLinkBytes.put(entry.getKey(), bytes);
+            double mbps = toMbps(bytes - (previous != null ? previous : 0), seconds);
+            links.put(entry.getKey(), mbps);
+            total += mbps;
+        }
+
+        Map<Integer, Double> apps = new HashMap<>();
+        for (Map.Entry<Integer, long[]> entry : appStats.snapshot().entrySet()) {
+            long bytes = entry.getValue()[0] + entry.getValue()[1];
+            Long previous = lastAppBytes.put(entry.getKey(), bytes);
+            apps.put(entry.getKey(), toMbps(bytes - (previous != null ? previous : 0), seconds));
+        }
+
+        double[] classes = new double[CLASSES.length];
+        for (int i = 0; i < classes.length; i++) {
+            long bytes = classBytes[i].sum();
+            classes[i] = toMbps(bytes - lastClassBytes[i], seconds);
+            lastClassBytes[i] = bytes;
+        }
+
+        if (seconds > 0) {
+            rates = new Rates(total, links, apps, classes);
+        }
+        return rates;
+    }
+
+    /**
+     * Resets the rates to zero when sampling stops; the next sample starts a new baseline
+     */
+    public synchronized void stop() {
+        lastSampleNanos = -1;
+        rates = Rates.EMPTY;
+    }
+
+    private static double toMbps(long bytes, double seconds) {
+        return seconds > 0 ? bytes * 8 / seconds / 1e6 : 0;
+    }
+}
@@ -0,0 +1,109 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer, single-consumer queue of packets between the TUN reader and
+ * one tunnel's writer thread. Packets are copied into preallocated slots, so neither
+ * side allocates. The free slot count is the tunnel's credit: the reader checks it
+ * before handing over a packet and never blocks on a full link.
+ */
+public class TunnelQueue {
+    private final ByteBuffer[] slots;
+    private final int mask;
+
+    // Next slot to fill (producer) and next slot to drain (consumer)
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    // Consumer parked on an empty queue, or null
+    private volatile Thread waiter;
+
+    /**
+     * @param capacity Number of packets the queue holds; rounded up to a power of two
+     * @param slotSize Largest packet that fits in a slot
+     */
+    public TunnelQueue(int capacity, int slotSize) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new ByteBuffer[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = ByteBuffer.allocate(slotSize);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * @return Number of packets the queue holds
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Gets the number of free slots. Exact for the producer; the consumer can only
+     * make it grow.
+     *
+     * @return Free slots
+     */
+    public int credit() {
+        return slots.length - (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Copies a packet into the queue. Producer only.
+     *
+     * @param packet Packet between its position and limit; the position is not changed
+     * @return false if the queue is full
+     */
+    public boolean offer(ByteBuffer packet) {
+        long t = tail.get();
+        if (t - head.get() == slots.length) {
+            return false;
+        }
+        ByteBuffer slot = slots[(int) t & mask];
+        slot.clear();
+        slot.put(packet.duplicate()).flip();
+        // Full store, ordered before the waiter read below
+        tail.set(t + 1);
+
+        Thread parked = waiter;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the next packet. Consumer only; the returned buffer stays valid until
+     * {@link #release()}.
+     *
+     * @param timeout Longest time to wait
+     * @param unit Unit of the timeout
+     * @return The packet, or null if none arrived in time
+     */
+    public ByteBuffer take(long timeout, TimeUnit unit) {
+        long h = head.get();
+        if (tail.get() == h) {
+            waiter = Thread.currentThread();
+            // Re-check after publishing the waiter so an offer in between is not missed
+            if (tail.get() == h) {
+                LockSupport.parkNanos(this, unit.toNanos(timeout));
+            }
+            waiter = null;
+            if (tail.get() == h) {
+                return null;
+            }
+        }
+        return slots[(int) h & mask];
+    }
+
+    /**
+     * Frees the slot of the packet returned by {@link #take}. Consumer only.
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+}
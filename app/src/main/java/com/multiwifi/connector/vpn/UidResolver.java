@@ -0,0 +1,106 @@
+package com.multiwifi.connector.vpn;
+
+import com.multiwifi.connector.model.AppPolicy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Owner UIDs of flows, looked up off the packet reader thread.
+ * The lookup is a binder call, so the reader only queues it and carries on with the
+ * flow unattributed; it polls the cache on the flow's later packets. Results are kept
+ * per protocol and local port, which is what identifies the app's socket, until the
+ * last flow using them is released. The executor never touches the flows themselves.
+ */
+public class UidResolver {
+
+    /**
+     * Looks up the owner of a connection, e.g. ConnectivityManager.getConnectionOwnerUid
+     */
+    public interface Lookup {
+        /**
+         * @param protocol IP protocol number
+         * @param sourceAddress Local IPv4 address
+         * @param sourcePort Local port
+         * @param destinationAddress Remote IPv4 address
+         * @param destinationPort Remote port
+         * @return UID of the owning app, or AppPolicy.UID_UNKNOWN
+         */
+        int ownerUid(int protocol, int sourceAddress, int sourcePort, int destinationAddress, int destinationPort);
+    }
+
+    // Placeholder while a lookup is queued; never a real UID
+    public static final int PENDING = Integer.MIN_VALUE;
+
+    private final Lookup lookup;
+    private final Executor executor;
+    private final ConcurrentHashMap<Integer, Integer> uids = new ConcurrentHashMap<>();
+
+    /**
+     * @param lookup Owner lookup, run on the executor
+     * @param executor Executor for lookups, not the packet reader
+     */
+    public UidResolver(Lookup lookup, Executor executor) {
+        this.lookup = lookup;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the owner of a new flow if it is cached, and otherwise queues its lookup
+     *
+     * @param flow The new flow
+     * @return UID of the owning app, AppPolicy.UID_UNKNOWN, or PENDING
+     */
+    public int resolve(Flow flow) {
+        Integer key = flow.ownerKey;
+        Integer cached = uids.putIfAbsent(key, PENDING);
+        if (cached != null) {
+            return cached;
+        }
+        int protocol = flow.protocol;
+        int sourceAddress = flow.sourceAddress;
+        int sourcePort = flow.sourcePort;
+        int destinationAddress = flow.destinationAddress;
+        int destinationPort = flow.destinationPort;
+        executor.execute(() -> {
+            int uid;
+            try {
+                uid = lookup.ownerUid(protocol, sourceAddress, sourcePort, destinationAddress, destinationPort);
+            } catch (RuntimeException e) {
+                uid = AppPolicy.UID_UNKNOWN;
+            }
+            // Only fills the slot if the flow has not been released meanwhile
+            uids.replace(key, PENDING, uid);
+        });
+        return PENDING;
+    }
+
+    /**
+     * Returns the owner of a flow whose lookup was queued. If another flow on the same
+     * port released it first, the lookup is queued again.
+     *
+     * @param flow The flow
+     * @return UID of the owning app, AppPolicy.UID_UNKNOWN, or PENDING
+     */
+    public int poll(Flow flow) {
+        Integer cached = uids.get(flow.ownerKey);
+        return cached != null ? cached : resolve(flow);
+    }
+
+    /**
+     * Forgets the owner of a finished flow, so a local port reused by another app is
+     * looked up again
+     *
+     * @param flow The finished flow
+     */
+    public void release(Flow flow) {
+        uids.remove(flow.ownerKey);
+    }
+
+    /**
+     * @return Number of cached or queued owners
+     */
+    public int size() {
+        return uids.size();
+    }
+}
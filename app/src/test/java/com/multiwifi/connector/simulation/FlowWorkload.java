@@ -0,0 +1,92 @@
+package com.multiwifi.connector.simulation;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic flows replayed against a trace: Poisson arrivals with sizes from a bounded
+ * Pareto distribution, so most flows are small request/response exchanges while a few
+ * large transfers carry most of the bytes, as in measured web and app traffic.
+ */
+public final class FlowWorkload {
+    public static final FlowWorkload DEFAULT = new FlowWorkload(10, 1.2, 8 * 1024, 64 * 1024 * 1024);
+
+    private final double flowsPerSecond;
+    private final double shape;
+    private final double minBytes;
+    private final double maxBytes;
+
+    /**
+     * @param flowsPerSecond Mean arrival rate of new flows
+     * @param shape Pareto shape; smaller values give heavier tails
+     * @param minBytes Smallest flow size
+     * @param maxBytes Largest flow size
+     */
+    public FlowWorkload(double flowsPerSecond, double shape, long minBytes, long maxBytes) {
+        if (!(flowsPerSecond > 0) || !(shape > 0) || minBytes <= 0 || maxBytes < minBytes) {
+            throw new IllegalArgumentException("Invalid workload parameters");
+        }
+        this.flowsPerSecond = flowsPerSecond;
+        this.shape = shape;
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Draws the flows that arrive during a trace
+     *
+     * @param durationMs Length of the trace
+     * @param random Source of arrivals and sizes
+     * @return Flows in arrival order
+     */
+    Flows generate(long durationMs, Random random) {
+        Flows flows = new Flows((int) (durationMs / 1000.0 * flowsPerSecond) + 16);
+        double tail = Math.pow(minBytes / maxBytes, shape);
+        double time = 0;
+        while (true) {
+            time += -Math.log(1 - random.nextDouble()) * 1000.0 / flowsPerSecond;
+            if (time >= durationMs) {
+                return flows;
+            }
+            // Inverse of the bounded Pareto distribution function
+            double size = minBytes / Math.pow(1 - random.nextDouble() * (1 - tail), 1 / shape);
+            flows.add(time, (long) Math.min(size, maxBytes));
+        }
+    }
+
+    /**
+     * Arrival times and sizes of generated flows
+     */
+    static final class Flows {
+        private double[] arrivalMs;
+        private long[] bytes;
+        private int count;
+
+        Flows(int capacity) {
+            arrivalMs = new double[Math.max(capacity, 1)];
+            bytes = new long[arrivalMs.length];
+        }
+
+        void add(double timeMs, long size) {
+            if (count == arrivalMs.length) {
+                arrivalMs = Arrays.copyOf(arrivalMs, count * 2);
+                bytes = Arrays.copyOf(bytes, count * 2);
+            }
+            arrivalMs[count] = timeMs;
+            bytes[count] = size;
+            count++;
+        }
+
+        int size() {
+            return count;
+        }
+
+        double arrivalMs(int index) {
+            return arrivalMs[index];
+        }
+
+        long bytes(int index) {
+            return bytes[index];
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.multiwifi.connector.simulation;
+
+import java.util.Arrays;
+
+/**
+ * Recorded conditions of one link over time: capacity, round trip time and loss rate.
+ * Each sample holds until the next one; before the first sample the first one applies
+ * and after the last sample the last one does.
+ */
+public final class LinkTrace {
+    private final String ssid;
+    private final long[] timesMs;
+    private final double[] capacityMbps;
+    private final double[] rttMs;
+    private final double[] lossRate;
+
+    /**
+     * @param ssid SSID of the link
+     * @param timesMs Sample times in increasing order
+     * @param capacityMbps Capacity at each sample
+     * @param rttMs Round trip time at each sample
+     * @param lossRate Packet loss rate at each sample, between 0 and 1
+     */
+    public LinkTrace(String ssid, long[] timesMs, double[] capacityMbps, double[] rttMs, double[] lossRate) {
+        if (timesMs.length == 0 || capacityMbps.length != timesMs.length
+                || rttMs.length != timesMs.length || lossRate.length != timesMs.length) {
+            throw new IllegalArgumentException("Trace of " + ssid + " needs one value of each per sample");
+        }
+        for (int i = 1; i < timesMs.length; i++) {
+            if (timesMs[i] < timesMs[i - 1]) {
+                throw new IllegalArgumentException("Samples of " + ssid + " are not in time order");
+            }
+        }
+        this.ssid = ssid;
+        this.timesMs = timesMs.clone();
+        this.capacityMbps = capacityMbps.clone();
+        this.rttMs = rttMs.clone();
+        this.lossRate = lossRate.clone();
+    }
+
+    public String getSsid() {
+        return ssid;
+    }
+
+    /**
+     * @return Time of the last sample
+     */
+    public long getEndMs() {
+        return timesMs[timesMs.length - 1];
+    }
+
+    /**
+     * Gets the index of the sample in effect at a time
+     *
+     * @param timeMs Time in milliseconds
+     * @return Sample index
+     */
+    public int indexAt(double timeMs) {
+        int index = Arrays.binarySearch(timesMs, (long) Math.floor(timeMs));
+        if (index < 0) {
+            index = -index - 2;
+        } else {
+            // Later samples at the same time replace earlier ones
+            while (index + 1 < timesMs.length && timesMs[index + 1] == timesMs[index]) {
+                index++;
+            }
+        }
+        return Math.max(index, 0);
+    }
+
+    /**
+     * Gets the time the sample after the given one takes effect
+     *
+     * @param index Sample index
+     * @return Time of the next sample, or infinity for the last one
+     */
+    public double nextChangeMs(int index) {
+        return index + 1 < timesMs.length ? timesMs[index + 1] : Double.POSITIVE_INFINITY;
+    }
+
+    public double getCapacityMbps(int index) {
+        return capacityMbps[index];
+    }
+
+    public double getRttMs(int index) {
+        return rttMs[index];
+    }
+
+    public double getLossRate(int index) {
+        return lossRate[index];
+    }
+}
@@ -0,0 +1,170 @@
+package com.multiwifi.connector.simulation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One recording of the links available at the same time, e.g. a walk through an office
+ * with two WiFi networks and cellular. Read from CSV with one sample per line:
+ * <pre>
+ * time_ms,link,capacity_mbps,rtt_ms,loss
+ * 0,Office,48.5,12,0.001
+ * 0,Cafe,9.8,35,0.02
+ * 1000,Office,45.1,14,0.001
+ * </pre>
+ * Times are relative to the start of the recording. Link names may be quoted as in the
+ * CSV written by {@link com.multiwifi.connector.vpn.FlowRecordReader}.
+ */
+public final class NetworkTrace {
+    public static final String CSV_HEADER = "time_ms,link,capacity_mbps,rtt_ms,loss";
+
+    private final String name;
+    private final List<LinkTrace> links;
+    private final long durationMs;
+
+    /**
+     * @param name Name of the recording, e.g. its file name
+     * @param links Traces of the links
+     */
+    public NetworkTrace(String name, List<LinkTrace> links) {
+        if (links.isEmpty()) {
+            throw new IllegalArgumentException("Trace " + name + " has no links");
+        }
+        this.name = name;
+        this.links = Collections.unmodifiableList(new ArrayList<>(links));
+        long end = 0;
+        for (LinkTrace link : links) {
+            end = Math.max(end, link.getEndMs());
+        }
+        this.durationMs = end;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<LinkTrace> getLinks() {
+        return links;
+    }
+
+    /**
+     * @return Time of the last sample of any link
+     */
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * Reads a trace from a CSV file
+     *
+     * @param file CSV file in the format described above
+     * @return The trace, named after the file
+     * @throws IOException If the file cannot be read or a line is malformed
+     */
+    public static NetworkTrace read(File file) throws IOException {
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return read(file.getName(), in);
+        }
+    }
+
+    /**
+     * Reads a trace from CSV
+     *
+     * @param name Name of the trace
+     * @param in CSV in the format described above; a header line is optional
+     * @return The trace
+     * @throws IOException If the CSV cannot be read or a line is malformed
+     */
+    public static NetworkTrace read(String name, Reader in) throws IOException {
+        Map<String, Samples> samples = new LinkedHashMap<>();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty() || line.startsWith(CSV_HEADER)) {
+                continue;
+            }
+            // The link name is everything between the first and the last three fields
+            int first = line.indexOf(',');
+            int third = line.lastIndexOf(',');
+            int second = third > 0 ? line.lastIndexOf(',', third - 1) : -1;
+            int link = second > 0 ? line.lastIndexOf(',', second - 1) : -1;
+            if (first < 0 || link < first) {
+                throw new IOException(name + ":" + lineNumber + ": expected " + CSV_HEADER);
+            }
+            try {
+                String ssid = unquote(line.substring(first + 1, link));
+                Samples series = samples.get(ssid);
+                if (series == null) {
+                    series = new Samples();
+                    samples.put(ssid, series);
+                }
+                series.add(Long.parseLong(line.substring(0, first).trim()),
+                        Double.parseDouble(line.substring(link + 1, second)),
+                        Double.parseDouble(line.substring(second + 1, third)),
+                        Double.parseDouble(line.substring(third + 1)));
+            } catch (NumberFormatException e) {
+                throw new IOException(name + ":" + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+
+        List<LinkTrace> links = new ArrayList<>(samples.size());
+        try {
+            for (Map.Entry<String, Samples> entry : samples.entrySet()) {
+                links.add(entry.getValue().toTrace(entry.getKey()));
+            }
+            return new NetworkTrace(name, links);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(name + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+            return value.substring(1, value.length() - 1).replace("\"\"", "\"");
+        }
+        return value;
+    }
+
+    /**
+     * Samples of one link while reading
+     */
+    private static final class Samples {
+        private long[] timesMs = new long[16];
+        private double[] capacityMbps = new double[16];
+        private double[] rttMs = new double[16];
+        private double[] lossRate = new double[16];
+        private int count;
+
+        void add(long timeMs, double capacity, double rtt, double loss) {
+            if (count == timesMs.length) {
+                timesMs = Arrays.copyOf(timesMs, count * 2);
+                capacityMbps = Arrays.copyOf(capacityMbps, count * 2);
+                rttMs = Arrays.copyOf(rttMs, count * 2);
+                lossRate = Arrays.copyOf(lossRate, count * 2);
+            }
+            timesMs[count] = timeMs;
+            capacityMbps[count] = Math.max(capacity, 0);
+            rttMs[count] = Math.max(rtt, 0);
+            lossRate[count] = Math.min(Math.max(loss, 0), 1);
+            count++;
+        }
+
+        LinkTrace toTrace(String ssid) {
+            return new LinkTrace(ssid, Arrays.copyOf(timesMs, count), Arrays.copyOf(capacityMbps, count),
+                    Arrays.copyOf(rttMs, count), Arrays.copyOf(lossRate, count));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.multiwifi.connector.simulation;
+
+/**
+ * Outcome of the video sessions of one or more traces, see {@link VideoWorkload}.
+ * Results of different traces merge into one, so percentiles are over all sessions.
+ */
+public final class PlaybackResult {
+    static final PlaybackResult EMPTY = new PlaybackResult(0, new double[0], 0, 0, 0, 0, 0);
+
+    private final long sessions;
+    private final double[] startupMs;
+    private final long segments;
+    private final long bytes;
+    private final long stalls;
+    private final double stalledMs;
+    private final double playedMs;
+
+    /**
+     * @param sessions Number of sessions, including those that never started playing
+     * @param startupMs Startup times of the sessions that started playing, sorted
+     * @param segments Segments fetched
+     * @param bytes Bytes of the segments fetched
+     * @param stalls Times playback stopped for a late segment
+     * @param stalledMs Time playback spent stopped after it started
+     * @param playedMs Play time of the segments fetched, if playback started
+     */
+    PlaybackResult(long sessions, double[] startupMs, long segments, long bytes, long stalls, double stalledMs,
+                   double playedMs) {
+        this.sessions = sessions;
+        this.startupMs = startupMs;
+        this.segments = segments;
+        this.bytes = bytes;
+        this.stalls = stalls;
+        this.stalledMs = stalledMs;
+        this.playedMs = playedMs;
+    }
+
+    /**
+     * Combines the results of two sets of traces
+     *
+     * @param other Result of other traces with the same strategy
+     * @return Combined result
+     */
+    public PlaybackResult merge(PlaybackResult other) {
+        double[] merged = new double[startupMs.length + other.startupMs.length];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < merged.length; k++) {
+            if (j >= other.startupMs.length || (i < startupMs.length && startupMs[i] <= other.startupMs[j])) {
+                merged[k] = startupMs[i++];
+            } else {
+                merged[k] = other.startupMs[j++];
+            }
+        }
+        return new PlaybackResult(sessions + other.sessions, merged, segments + other.segments,
+                bytes + other.bytes, stalls + other.stalls, stalledMs + other.stalledMs, playedMs + other.playedMs);
+    }
+
+    public long getSessionCount() {
+        return sessions;
+    }
+
+    public long getSegmentCount() {
+        return segments;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getStallCount() {
+        return stalls;
+    }
+
+    /**
+     * Gets a percentile of the time from the first request until playback starts
+     *
+     * @param percentile Percentile between 0 and 100
+     * @return Startup time in milliseconds, or 0 if no session started
+     */
+    public double getStartupTimeMs(double percentile) {
+        if (startupMs.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(startupMs.length * percentile / 100.0);
+        return startupMs[Math.min(Math.max(rank, 1), startupMs.length) - 1];
+    }
+
+    /**
+     * @return Share of the viewing time after startup that playback spent stalled
+     */
+    public double getStallRate() {
+        return stalledMs + playedMs > 0 ? stalledMs / (stalledMs + playedMs) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("startup p50 %.0f ms p95 %.0f ms, stalled %.2f%% of the time in %d stalls, "
+                        + "%d of %d sessions never started",
+                getStartupTimeMs(50), getStartupTimeMs(95), getStallRate() * 100, stalls,
+                sessions - startupMs.length, sessions);
+    }
+}
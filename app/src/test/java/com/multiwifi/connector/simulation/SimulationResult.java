@@ -0,0 +1,146 @@
+package com.multiwifi.connector.simulation;
+
+/**
+ * Outcome of replaying one or more traces with one strategy. Results of different traces
+ * merge into one, so percentiles are over all flows of all traces.
+ */
+public final class SimulationResult {
+    static final SimulationResult EMPTY = new SimulationResult(0, 0, 0, 0, 0, 0, 0, new double[0],
+            PlaybackResult.EMPTY);
+
+    private final long flows;
+    private final long deliveredBytes;
+    private final double busyMs;
+    private final long packets;
+    private final long reorderedPackets;
+    private final long retransmissions;
+    private final double energyJoules;
+    private final double[] completionMs;
+    private final PlaybackResult playback;
+
+    /**
+     * @param flows Number of flows, including those that never completed
+     * @param deliveredBytes Bytes of the completed flows
+     * @param busyMs Time during which at least one completed flow was in progress
+     * @param packets Packets of the completed flows, without retransmissions
+     * @param reorderedPackets Packets that arrived after a later packet of their flow
+     * @param retransmissions Packets sent again after a loss
+     * @param energyJoules Energy the radios spent, as estimated by the energy model
+     * @param completionMs Completion times of the completed flows, sorted
+     * @param playback Outcome of the video sessions played alongside the flows
+     */
+    SimulationResult(long flows, long deliveredBytes, double busyMs, long packets, long reorderedPackets,
+                     long retransmissions, double energyJoules, double[] completionMs, PlaybackResult playback) {
+        this.flows = flows;
+        this.deliveredBytes = deliveredBytes;
+        this.busyMs = busyMs;
+        this.packets = packets;
+        this.reorderedPackets = reorderedPackets;
+        this.retransmissions = retransmissions;
+        this.energyJoules = energyJoules;
+        this.completionMs = completionMs;
+        this.playback = playback;
+    }
+
+    /**
+     * Combines the results of two sets of traces
+     *
+     * @param other Result of other traces with the same strategy
+     * @return Combined result
+     */
+    public SimulationResult merge(SimulationResult other) {
+        // Both completion time arrays are sorted; merge them in one pass
+        double[] merged = new double[completionMs.length + other.completionMs.length];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < merged.length; k++) {
+            if (j >= other.completionMs.length || (i < completionMs.length && completionMs[i] <= other.completionMs[j])) {
+                merged[k] = completionMs[i++];
+            } else {
+                merged[k] = other.completionMs[j++];
+            }
+        }
+        return new SimulationResult(flows + other.flows, deliveredBytes + other.deliveredBytes,
+                busyMs + other.busyMs, packets + other.packets, reorderedPackets + other.reorderedPackets,
+                retransmissions + other.retransmissions, energyJoules + other.energyJoules, merged,
+                playback.merge(other.playback));
+    }
+
+    public long getFlowCount() {
+        return flows;
+    }
+
+    /**
+     * @return Number of flows that never completed, e.g. because every link went down
+     */
+    public long getIncompleteFlowCount() {
+        return flows - completionMs.length;
+    }
+
+    /**
+     * Gets the rate at which data was delivered while there was data to deliver
+     *
+     * @return Goodput in Mbps
+     */
+    public double getGoodputMbps() {
+        return busyMs > 0 ? deliveredBytes * 8 / (busyMs * 1000) : 0;
+    }
+
+    /**
+     * Gets a percentile of the flow completion times
+     *
+     * @param percentile Percentile between 0 and 100
+     * @return Completion time in milliseconds, or 0 if no flow completed
+     */
+    public double getCompletionTimeMs(double percentile) {
+        if (completionMs.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(completionMs.length * percentile / 100.0);
+        return completionMs[Math.min(Math.max(rank, 1), completionMs.length) - 1];
+    }
+
+    /**
+     * @return Share of packets that arrived after a later packet of the same flow
+     */
+    public double getReorderRate() {
+        return packets > 0 ? (double) reorderedPackets / packets : 0;
+    }
+
+    /**
+     * @return Retransmissions per packet
+     */
+    public double getRetransmissionRate() {
+        return packets > 0 ? (double) retransmissions / packets : 0;
+    }
+
+    /**
+     * @return Energy the radios spent, including the traffic of incomplete flows
+     */
+    public double getEnergyJoules() {
+        return energyJoules;
+    }
+
+    /**
+     * @return Energy spent per megabyte of completed flows and video segments
+     */
+    public double getJoulesPerMegabyte() {
+        long bytes = deliveredBytes + playback.getBytes();
+        return bytes > 0 ? energyJoules / (bytes / 1e6) : 0;
+    }
+
+    /**
+     * @return Outcome of the video sessions, empty if no video was played
+     */
+    public PlaybackResult getPlayback() {
+        return playback;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("goodput %.1f Mbps, FCT p50 %.0f ms p95 %.0f ms p99 %.0f ms, reordered %.2f%%, "
+                        + "%.3f J/MB, %d of %d flows incomplete",
+                getGoodputMbps(), getCompletionTimeMs(50), getCompletionTimeMs(95), getCompletionTimeMs(99),
+                getReorderRate() * 100, getJoulesPerMegabyte(), getIncompleteFlowCount(), flows);
+    }
+}
@@ -0,0 +1,139 @@
+package com.multiwifi.connector.simulation;
+
+import com.multiwifi.connector.util.LoadBalancer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compares load balancing strategies by replaying recorded link traces with a synthetic
+ * workload, see {@link TraceSimulator}. Traces are replayed in parallel on a fork/join
+ * pool and the results of each strategy are merged over all traces. Runs on a desktop
+ * JVM with the app's classes, the unit test classes and the mockable android.jar of the
+ * unit tests on the class path:
+ * {@code java com.multiwifi.connector.simulation.StrategyEvaluator traces/ > report.txt}
+ * {@link TraceGenerator} writes synthetic traces to compare on.
+ */
+public final class StrategyEvaluator {
+
+    private StrategyEvaluator() {
+        // Static helpers only
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<NetworkTrace> traces = new ArrayList<>();
+        for (String path : args) {
+            File file = new File(path);
+            File[] files = file.isDirectory() ? file.listFiles((dir, name) -> name.endsWith(".csv")) : new File[] {file};
+            if (files == null) {
+                throw new IOException("Cannot list " + file);
+            }
+            Arrays.sort(files);
+            for (File trace : files) {
+                traces.add(NetworkTrace.read(trace));
+            }
+        }
+
+        List<LoadBalancer.Strategy> strategies = Arrays.asList(LoadBalancer.Strategy.values());
+        Map<LoadBalancer.Strategy, SimulationResult> results = evaluate(traces, strategies, FlowWorkload.DEFAULT,
+                VideoWorkload.DEFAULT, 1, ForkJoinPool.commonPool());
+        Map<LoadBalancer.Strategy, SimulationResult> unplanned = evaluate(traces, strategies, FlowWorkload.DEFAULT,
+                VideoWorkload.DEFAULT.unplanned(), 1, ForkJoinPool.commonPool());
+        System.out.println(traces.size() + " traces");
+        SimulationResult baseline = results.get(LoadBalancer.Strategy.ADAPTIVE);
+        for (Map.Entry<LoadBalancer.Strategy, SimulationResult> entry : results.entrySet()) {
+            SimulationResult result = entry.getValue();
+            // Energy per megabyte relative to the default strategy
+            double energy = baseline != null && baseline.getJoulesPerMegabyte() > 0
+                    ? result.getJoulesPerMegabyte() / baseline.getJoulesPerMegabyte() : 1;
+            System.out.println(String.format("%-14s %s, energy %.0f%% of ADAPTIVE", entry.getKey(), result,
+                    energy * 100));
+        }
+        System.out.println("Video, segments placed like other flows / planned to arrive soonest");
+        for (Map.Entry<LoadBalancer.Strategy, SimulationResult> entry : results.entrySet()) {
+            System.out.println(String.format("%-14s %s%n%-14s %s", entry.getKey(),
+                    unplanned.get(entry.getKey()).getPlayback(), "", entry.getValue().getPlayback()));
+        }
+    }
+
+    /**
+     * Replays every trace with every strategy
+     *
+     * @param traces Traces to replay
+     * @param strategies Strategies to compare
+     * @param workload Flows sent during each trace
+     * @param video Video played during each trace, or null for none
+     * @param seed Seed of the workloads; every strategy sees the same flows on a trace
+     * @param pool Pool to replay the traces on
+     * @return Result of each strategy over all traces
+     */
+    public static Map<LoadBalancer.Strategy, SimulationResult> evaluate(List<NetworkTrace> traces,
+                                                                        List<LoadBalancer.Strategy> strategies,
+                                                                        FlowWorkload workload, VideoWorkload video,
+                                                                        long seed, ForkJoinPool pool) {
+        LoadBalancer.Strategy[] compared = strategies.toArray(new LoadBalancer.Strategy[0]);
+        SimulationResult[] merged = pool.invoke(
+                new ReplayTask(traces, compared, workload, video, seed, 0, traces.size()));
+        Map<LoadBalancer.Strategy, SimulationResult> results = new EnumMap<>(LoadBalancer.Strategy.class);
+        for (int s = 0; s < compared.length; s++) {
+            results.put(compared[s], merged[s]);
+        }
+        return results;
+    }
+
+    /**
+     * Replays a range of traces, splitting it in halves down to single traces
+     */
+    private static final class ReplayTask extends RecursiveTask<SimulationResult[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<NetworkTrace> traces;
+        private final LoadBalancer.Strategy[] strategies;
+        private final FlowWorkload workload;
+        private final VideoWorkload video;
+        private final long seed;
+        private final int from;
+        private final int to;
+
+        ReplayTask(List<NetworkTrace> traces, LoadBalancer.Strategy[] strategies, FlowWorkload workload,
+                   VideoWorkload video, long seed, int from, int to) {
+            this.traces = traces;
+            this.strategies = strategies;
+            this.workload = workload;
+            this.video = video;
+            this.seed = seed;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected SimulationResult[] compute() {
+            SimulationResult[] results = new SimulationResult[strategies.length];
+            if (to - from <= 1) {
+                for (int s = 0; s < strategies.length; s++) {
+                    results[s] = from < to
+                            ? TraceSimulator.run(traces.get(from), strategies[s], workload, video, seed * 31 + from)
+                            : SimulationResult.EMPTY;
+                }
+                return results;
+            }
+
+            int middle = (from + to) >>> 1;
+            ReplayTask left = new ReplayTask(traces, strategies, workload, video, seed, from, middle);
+            left.fork();
+            SimulationResult[] right = new ReplayTask(traces, strategies, workload, video, seed, middle, to).compute();
+            SimulationResult[] leftResults = left.join();
+            for (int s = 0; s < strategies.length; s++) {
+                results[s] = leftResults[s].merge(right[s]);
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.multiwifi.connector.simulation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes the synthetic traces the strategies are compared on: 300 s of an office WiFi,
+ * a slower cafe WiFi and LTE, sampled every second. Each link draws a typical capacity
+ * and RTT once per trace; every sample varies the capacity log-normally and the RTT
+ * upwards by up to half, with a loss rate of up to 2%. The cafe network drops out
+ * between 100 s and 120 s, so every trace exercises a link going away. Trace n is drawn
+ * from seed n, so a set of traces can be regenerated:
+ * {@code java com.multiwifi.connector.simulation.TraceGenerator traces/ 400}
+ */
+public final class TraceGenerator {
+    static final long DURATION_MS = 300000;
+    static final long SAMPLE_INTERVAL_MS = 1000;
+
+    // Links of every trace, with the ranges their typical capacity and RTT are drawn from
+    private static final String[] LINKS = {"Office", "Cafe, 2nd", "LTE"};
+    private static final double[][] CAPACITY_MBPS = {{20, 80}, {3, 20}, {5, 30}};
+    private static final double[][] RTT_MS = {{5, 20}, {20, 60}, {40, 90}};
+
+    // Spread of the capacity around its typical value, as the sigma of a log-normal
+    private static final double CAPACITY_SIGMA = 0.3;
+    private static final double MAX_RTT_FACTOR = 1.5;
+    private static final double MIN_RTT_FACTOR = 0.8;
+    private static final double MAX_LOSS = 0.02;
+
+    // The cafe network is down in between these times
+    private static final int OUTAGE_LINK = 1;
+    private static final long OUTAGE_START_MS = 100000;
+    private static final long OUTAGE_END_MS = 120000;
+
+    private TraceGenerator() {
+        // Static helpers only
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceGenerator <directory> [count]");
+            System.exit(2);
+        }
+        File directory = new File(args[0]);
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        for (int n = 0; n < count; n++) {
+            File file = new File(directory, String.format(Locale.ROOT, "t%03d.csv", n));
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                write(n, out);
+            }
+        }
+    }
+
+    /**
+     * Generates a trace in memory
+     *
+     * @param seed Seed of the trace
+     * @return The trace, named after its seed
+     */
+    public static NetworkTrace generate(long seed) {
+        StringWriter csv = new StringWriter();
+        try {
+            write(seed, csv);
+            return NetworkTrace.read("t" + seed, new StringReader(csv.toString()));
+        } catch (IOException e) {
+            // Neither writing nor reading a string fails
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a trace as CSV in the format {@link NetworkTrace} reads
+     *
+     * @param seed Seed of the trace
+     * @param out Receives the CSV
+     * @throws IOException If the CSV cannot be written
+     */
+    public static void write(long seed, Writer out) throws IOException {
+        Random random = new Random(seed);
+        double[] capacity = new double[LINKS.length];
+        double[] rtt = new double[LINKS.length];
+        for (int l = 0; l < LINKS.length; l++) {
+            capacity[l] = uniform(random, CAPACITY_MBPS[l][0], CAPACITY_MBPS[l][1]);
+        }
+        for (int l = 0; l < LINKS.length; l++) {
+            rtt[l] = uniform(random, RTT_MS[l][0], RTT_MS[l][1]);
+        }
+
+        out.write(NetworkTrace.CSV_HEADER + "\n");
+        for (long time = 0; time < DURATION_MS; time += SAMPLE_INTERVAL_MS) {
+            for (int l = 0; l < LINKS.length; l++) {
+                double mbps = capacity[l] * Math.exp(random.nextGaussian() * CAPACITY_SIGMA);
+                if (l == OUTAGE_LINK && time > OUTAGE_START_MS && time < OUTAGE_END_MS) {
+                    mbps = 0;
+                }
+                double sampleRtt = rtt[l] * uniform(random, MIN_RTT_FACTOR, MAX_RTT_FACTOR);
+                double loss = uniform(random, 0, MAX_LOSS);
+                out.write(String.format(Locale.ROOT, "%d,%s,%.2f,%.1f,%.4f\n",
+                        time, quote(LINKS[l]), mbps, sampleRtt, loss));
+            }
+        }
+    }
+
+    private static double uniform(Random random, double min, double max) {
+        return min + (max - min) * random.nextDouble();
+    }
+
+    private static String quote(String link) {
+        return link.indexOf(',') < 0 ? link : '"' + link + '"';
+    }
+}
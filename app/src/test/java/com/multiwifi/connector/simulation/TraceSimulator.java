@@ -0,0 +1,472 @@
+package com.multiwifi.connector.simulation;
+
+import com.multiwifi.connector.model.LinkType;
+import com.multiwifi.connector.model.NetworkConnection;
+import com.multiwifi.connector.util.CapacityEstimator;
+import com.multiwifi.connector.util.EnergyModel;
+import com.multiwifi.connector.util.LinkQuality;
+import com.multiwifi.connector.util.LoadBalancer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays one trace against one load balancing strategy in simulated time. Every link
+ * is a FIFO queue served at the trace's capacity; a packet arrives half a round trip
+ * after it leaves the queue, and a lost packet is sent again on the same link one round
+ * trip later. As in the VPN, the packets of each flow are striped across the links by
+ * {@link LoadBalancer#selectNetworkForTraffic}, so a flow completes when its packet on
+ * the slowest link arrives, and packets sent over a link with a shorter queue or round
+ * trip overtake earlier ones. With LEAST_LOADED each flow stays on the link the load
+ * balancer picks from the queues at its arrival.
+ *
+ * Like MultiWifiService, the simulator re-measures the links and recomputes the
+ * allocation every {@link #ALLOCATION_INTERVAL_MS}; the measurements are speed tests
+ * with {@link #SPEED_TEST_NOISE} relative error. Like the VPN, it probes every link's
+ * RTT every {@link #PROBE_INTERVAL_MS}, and a probe is lost at the link's loss rate.
+ * Completed flows are fed back to the load balancer as the VPN does when it exports them.
+ *
+ * A {@link VideoWorkload} player may fetch segments alongside the flows. Like the VPN,
+ * the simulator learns the segment size from the previous response, and from the second
+ * segment on places each one by {@link LoadBalancer#planSegment} unless the video is
+ * unplanned; otherwise segments are placed like any other flow.
+ *
+ * Energy is charged by {@link EnergyModel}: a link's radio draws its base power from
+ * the first packet it sends until the tail time after the last one, plus its power per
+ * Mbps for every byte it sends, retransmissions included. Traces do not record the radio,
+ * so links named like a cellular network (LTE, 5G, Cellular...) are taken as cellular and
+ * the others as WiFi, all at a strong signal.
+ */
+final class TraceSimulator {
+    static final int PACKET_BYTES = 1400;
+    static final long ALLOCATION_INTERVAL_MS = 5000;
+    static final double SPEED_TEST_NOISE = 0.2;
+    static final long PROBE_INTERVAL_MS = 2000;
+
+    private final LinkTrace[] links;
+    private final List<NetworkConnection> networks = new ArrayList<>();
+    private final List<NetworkConnection> available = new ArrayList<>();
+    private final CapacityEstimator estimator = new CapacityEstimator();
+    private final LinkQuality quality = new LinkQuality();
+    private final LoadBalancer loadBalancer;
+    private final LoadBalancer.Strategy strategy;
+    private final Random random;
+
+    // Simulated time in milliseconds, as seen by the load balancer
+    private long now;
+    private long nextProbe;
+
+    // Time each link's queue drains, given the packets sent so far
+    private final double[] busyUntil;
+
+    // Queued bytes of each link as the load balancer sees them
+    private final AtomicLong[] queuedBytes;
+
+    // Flows that completed but have not been fed back yet, by completion time
+    private final PriorityQueue<Completion> completions =
+            new PriorityQueue<>(Comparator.comparingDouble((Completion completion) -> completion.timeMs));
+
+    // Per-flow scratch state
+    private double[] packetArrivals = new double[64];
+    private final long[] linkBytes;
+    private final double[] linkDone;
+
+    private long packets;
+    private long reorderedPackets;
+    private long retransmissions;
+
+    // Radio power of each link, and when its current active period started and ends
+    private final double[] basePowerMw;
+    private final double[] powerPerMbps;
+    private final long[] tailMs;
+    private final double[] radioOnMs;
+    private final double[] radioOffMs;
+    private final double[] activeMs;
+    private final long[] sentBytes;
+
+    private TraceSimulator(NetworkTrace trace, LoadBalancer.Strategy strategy, long seed) {
+        List<LinkTrace> traces = trace.getLinks();
+        links = traces.toArray(new LinkTrace[0]);
+        for (LinkTrace link : links) {
+            NetworkConnection connection = new NetworkConnection(link.getSsid(), link.getSsid(), 0);
+            connection.setConnected(true);
+            connection.setLinkType(linkTypeOf(link.getSsid()));
+            networks.add(connection);
+        }
+        busyUntil = new double[links.length];
+        queuedBytes = new AtomicLong[links.length];
+        linkBytes = new long[links.length];
+        linkDone = new double[links.length];
+        basePowerMw = new double[links.length];
+        powerPerMbps = new double[links.length];
+        tailMs = new long[links.length];
+        radioOnMs = new double[links.length];
+        radioOffMs = new double[links.length];
+        activeMs = new double[links.length];
+        sentBytes = new long[links.length];
+        for (int l = 0; l < links.length; l++) {
+            NetworkConnection connection = networks.get(l);
+            basePowerMw[l] = EnergyModel.basePowerMilliwatts(connection.getLinkType(), connection.getSignalStrength());
+            powerPerMbps[l] = EnergyModel.powerPerMbps(connection.getLinkType());
+            tailMs[l] = EnergyModel.tailMs(connection.getLinkType());
+        }
+        random = new Random(seed + 1);
+        loadBalancer = new LoadBalancer(estimator, quality, this::currentTime, new Random(seed + 2));
+        loadBalancer.setStrategy(strategy);
+        this.strategy = strategy;
+        for (int l = 0; l < links.length; l++) {
+            queuedBytes[l] = loadBalancer.getQueuedBytes(links[l].getSsid());
+        }
+    }
+
+    /**
+     * Replays a trace with a workload drawn from a seed. The same seed gives every
+     * strategy the same flows.
+     *
+     * @param trace Trace to replay
+     * @param strategy Strategy of the load balancer
+     * @param workload Flows to send
+     * @param video Video played during the trace, or null for none
+     * @param seed Seed of the flows, measurement errors and losses
+     * @return Outcome of the replay
+     */
+    static SimulationResult run(NetworkTrace trace, LoadBalancer.Strategy strategy, FlowWorkload workload,
+                                VideoWorkload video, long seed) {
+        FlowWorkload.Flows flows = workload.generate(trace.getDurationMs(), new Random(seed));
+        TraceSimulator simulator = new TraceSimulator(trace, strategy, seed);
+        return simulator.replay(flows, video != null ? simulator.new Player(video, trace.getDurationMs()) : null);
+    }
+
+    private long currentTime() {
+        return now;
+    }
+
+    private static LinkType linkTypeOf(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.startsWith("lte") || lower.startsWith("5g") || lower.startsWith("4g")
+                || lower.startsWith("cellular") ? LinkType.CELLULAR : LinkType.WIFI;
+    }
+
+    private SimulationResult replay(FlowWorkload.Flows flows, Player player) {
+        double[] completionMs = new double[flows.size()];
+        int completed = 0;
+        long deliveredBytes = 0;
+        double busyMs = 0;
+        double busyStart = 0;
+        double busyEnd = -1;
+
+        LoadBalancer.Allocation allocation = LoadBalancer.Allocation.EMPTY;
+        long nextAllocation = 0;
+        int next = 0;
+        while (next < flows.size() || (player != null && player.hasRequest())) {
+            // The player's requests and the flows' arrivals are handled in time order
+            boolean segment = player != null && player.hasRequest()
+                    && (next >= flows.size() || player.nextRequestMs() <= flows.arrivalMs(next));
+            double arrival = segment ? player.nextRequestMs() : flows.arrivalMs(next);
+            while (nextAllocation <= arrival) {
+                advanceTo(nextAllocation);
+                allocation = reallocate();
+                nextAllocation += ALLOCATION_INTERVAL_MS;
+            }
+            advanceTo((long) arrival);
+            if (segment) {
+                player.fetch(arrival, allocation);
+                continue;
+            }
+
+            int i = next++;
+            double end = send(arrival, flows.bytes(i), allocation, null);
+            if (Double.isInfinite(end)) {
+                continue;
+            }
+            completionMs[completed++] = end - arrival;
+            deliveredBytes += flows.bytes(i);
+
+            // Flows arrive in order, so the busy periods are merged in one pass
+            if (arrival > busyEnd) {
+                busyMs += Math.max(0, busyEnd - busyStart);
+                busyStart = arrival;
+            }
+            busyEnd = Math.max(busyEnd, end);
+        }
+        busyMs += Math.max(0, busyEnd - busyStart);
+
+        double energyMj = 0;
+        for (int l = 0; l < links.length; l++) {
+            // mW for ms is microjoules; mW per Mbps for megabits is millijoules
+            double active = activeMs[l] + radioOffMs[l] - radioOnMs[l];
+            energyMj += basePowerMw[l] * active / 1000 + powerPerMbps[l] * sentBytes[l] * 8 / 1e6;
+        }
+
+        double[] sorted = Arrays.copyOf(completionMs, completed);
+        Arrays.sort(sorted);
+        return new SimulationResult(flows.size(), deliveredBytes, busyMs, packets, reorderedPackets,
+                retransmissions, energyMj / 1000, sorted, player != null ? player.result() : PlaybackResult.EMPTY);
+    }
+
+    /**
+     * Moves the clock forward, feeding back the flows that completed in the meantime
+     */
+    private void advanceTo(long timeMs) {
+        now = timeMs;
+        while (!completions.isEmpty() && completions.peek().timeMs <= timeMs) {
+            Completion completion = completions.poll();
+            loadBalancer.recordFlowCompletion(completion.ssid, completion.bytes, completion.durationMs);
+        }
+    }
+
+    /**
+     * Probes the links up to now, measures those that are up and recomputes their allocation
+     */
+    private LoadBalancer.Allocation reallocate() {
+        for (; nextProbe <= now; nextProbe += PROBE_INTERVAL_MS) {
+            for (LinkTrace link : links) {
+                int index = link.indexAt(nextProbe);
+                if (link.getCapacityMbps(index) <= 0 || random.nextDouble() < link.getLossRate(index)) {
+                    quality.recordLoss(link.getSsid());
+                } else {
+                    quality.recordRtt(link.getSsid(), link.getRttMs(index));
+                }
+            }
+        }
+
+        available.clear();
+        for (int l = 0; l < links.length; l++) {
+            LinkTrace link = links[l];
+            int index = link.indexAt(now);
+            if (link.getCapacityMbps(index) <= 0) {
+                // Down links are disconnected, as the app does when a network is lost
+                continue;
+            }
+            double measured = Math.max(0, link.getCapacityMbps(index) * (1 + random.nextGaussian() * SPEED_TEST_NOISE));
+            NetworkConnection connection = networks.get(l);
+            connection.setSpeedMbps(measured);
+            connection.setLatencyMs((int) Math.round(link.getRttMs(index)));
+            connection.setLossRate(link.getLossRate(index));
+            estimator.update(link.getSsid(), CapacityEstimator.Source.SPEED_TEST, measured, now);
+            available.add(connection);
+        }
+        // With every link down, keep sending and let the packets wait for a link to return
+        return loadBalancer.allocate(available.isEmpty() ? networks : available);
+    }
+
+    /**
+     * Sends the packets of a flow
+     *
+     * @param plan Plan placing the packets, or null to place them like the VPN places a flow
+     * @return Time the last packet arrives, or infinity if the flow never completes
+     */
+    private double send(double arrival, long bytes, LoadBalancer.Allocation allocation,
+                        LoadBalancer.SegmentPlan plan) {
+        int count = (int) ((bytes + PACKET_BYTES - 1) / PACKET_BYTES);
+        if (packetArrivals.length < count) {
+            packetArrivals = new double[Math.max(count, packetArrivals.length * 2)];
+        }
+        Arrays.fill(linkBytes, 0);
+        Arrays.fill(linkDone, arrival);
+
+        int pinned = -1;
+        if (plan == null && strategy == LoadBalancer.Strategy.LEAST_LOADED) {
+            updateQueuedBytes(arrival);
+            pinned = networks.indexOf(loadBalancer.selectBestNetwork(allocation, strategy));
+        }
+
+        double end = arrival;
+        for (int seq = 0; seq < count; seq++) {
+            int l = pinned >= 0 ? pinned : networks.indexOf(plan != null
+                    ? plan.next() : loadBalancer.selectNetworkForTraffic(allocation, null));
+            int size = (int) Math.min(PACKET_BYTES, bytes - (long) seq * PACKET_BYTES);
+            double delivered = transmit(l, arrival, size);
+            if (Double.isInfinite(delivered)) {
+                return delivered;
+            }
+            packetArrivals[seq] = delivered;
+            linkBytes[l] += size;
+            linkDone[l] = Math.max(linkDone[l], delivered);
+            end = Math.max(end, delivered);
+        }
+
+        // A packet is reordered if a packet sent after it arrived first
+        double earliestLater = Double.POSITIVE_INFINITY;
+        for (int seq = count - 1; seq >= 0; seq--) {
+            if (packetArrivals[seq] > earliestLater) {
+                reorderedPackets++;
+            }
+            earliestLater = Math.min(earliestLater, packetArrivals[seq]);
+        }
+        packets += count;
+
+        for (int l = 0; l < links.length; l++) {
+            if (linkBytes[l] > 0) {
+                completions.add(new Completion(end, links[l].getSsid(), linkBytes[l],
+                        (long) (linkDone[l] - arrival)));
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Sets the load balancer's gauges of queued bytes to the links' backlog at a time
+     */
+    private void updateQueuedBytes(double timeMs) {
+        for (int l = 0; l < links.length; l++) {
+            LinkTrace link = links[l];
+            double backlogMs = Math.max(0, busyUntil[l] - timeMs);
+            queuedBytes[l].set((long) (backlogMs * link.getCapacityMbps(link.indexAt(timeMs)) * 1000 / 8));
+        }
+    }
+
+    /**
+     * Sends one packet over a link, again after every loss
+     *
+     * @return Time the packet arrives, or infinity if it never does
+     */
+    private double transmit(int l, double ready, int size) {
+        LinkTrace link = links[l];
+        double time = ready;
+        while (true) {
+            double start = Math.max(time, busyUntil[l]);
+            int index = link.indexAt(start);
+            while (link.getCapacityMbps(index) <= 0) {
+                // Wait for the link to come back
+                start = link.nextChangeMs(index);
+                if (Double.isInfinite(start)) {
+                    return start;
+                }
+                index = link.indexAt(start);
+            }
+            double done = start + size * 8 / (link.getCapacityMbps(index) * 1000);
+            busyUntil[l] = done;
+            chargeRadio(l, start, done, size);
+
+            int at = link.indexAt(done);
+            double loss = link.getLossRate(at);
+            if (random.nextDouble() >= loss) {
+                return done + link.getRttMs(at) / 2;
+            }
+            // The sender notices the loss about one round trip later
+            retransmissions++;
+            time = done + Math.max(link.getRttMs(at), 1);
+            if (loss >= 1) {
+                // Nothing gets through until the conditions change
+                time = Math.max(time, link.nextChangeMs(at));
+                if (Double.isInfinite(time)) {
+                    return time;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps a link's radio powered up while it sends a packet and for the tail time after.
+     * A link's packets are sent in time order, so its active periods are merged in one pass.
+     */
+    private void chargeRadio(int l, double start, double done, int size) {
+        if (start > radioOffMs[l]) {
+            activeMs[l] += radioOffMs[l] - radioOnMs[l];
+            radioOnMs[l] = start;
+        }
+        radioOffMs[l] = Math.max(radioOffMs[l], done + tailMs[l]);
+        sentBytes[l] += size;
+    }
+
+    /**
+     * Video player of a {@link VideoWorkload}, fetching one segment at a time
+     */
+    private final class Player {
+        private final VideoWorkload video;
+        private final long durationMs;
+        private final long segmentBytes;
+
+        // Size of the last response, as the VPN learns it; 0 before the first
+        private long learnedBytes;
+        private final LoadBalancer.SegmentPlan segmentPlan = new LoadBalancer.SegmentPlan();
+        private double nextRequestMs;
+        private int fetched;
+        private double playStartMs = -1;
+        private long stalls;
+        private double stalledMs;
+
+        Player(VideoWorkload video, long durationMs) {
+            this.video = video;
+            this.durationMs = durationMs;
+            this.segmentBytes = video.getSegmentBytes();
+        }
+
+        boolean hasRequest() {
+            return nextRequestMs < durationMs;
+        }
+
+        double nextRequestMs() {
+            return nextRequestMs;
+        }
+
+        /**
+         * Fetches the next segment and schedules the request after it
+         */
+        void fetch(double now, LoadBalancer.Allocation allocation) {
+            LoadBalancer.SegmentPlan plan = null;
+            if (video.isPlanned() && learnedBytes > 0) {
+                updateQueuedBytes(now);
+                plan = loadBalancer.planSegment(allocation, learnedBytes, segmentPlan) ? segmentPlan : null;
+            }
+            double arrival = send(now, segmentBytes, allocation, plan);
+            if (Double.isInfinite(arrival)) {
+                // No link will carry the segment; the session ends
+                nextRequestMs = arrival;
+                return;
+            }
+            learnedBytes = segmentBytes;
+            long segmentMs = video.getSegmentMs();
+            if (playStartMs < 0) {
+                if (++fetched >= video.getStartupSegments()) {
+                    playStartMs = arrival;
+                }
+                nextRequestMs = arrival;
+                return;
+            }
+
+            // The playhead reaches this segment after the ones before it, stalls included
+            double due = playStartMs + stalledMs + (double) fetched * segmentMs;
+            if (arrival > due) {
+                stalls++;
+                stalledMs += arrival - due;
+            }
+            fetched++;
+            // Fetch again once the buffer has room for another segment
+            double roomAt = playStartMs + stalledMs + (double) fetched * segmentMs
+                    - (video.getMaxBufferMs() - segmentMs);
+            nextRequestMs = Math.max(arrival, roomAt);
+        }
+
+        PlaybackResult result() {
+            boolean started = playStartMs >= 0;
+            double playedMs = started ? (double) fetched * video.getSegmentMs() : 0;
+            return new PlaybackResult(1, started ? new double[] {playStartMs} : new double[0], fetched,
+                    fetched * segmentBytes, stalls, stalledMs, playedMs);
+        }
+    }
+
+    /**
+     * Part of a completed flow carried by one link
+     */
+    private static final class Completion {
+        final double timeMs;
+        final String ssid;
+        final long bytes;
+        final long durationMs;
+
+        Completion(double timeMs, String ssid, long bytes, long durationMs) {
+            this.timeMs = timeMs;
+            this.ssid = ssid;
+            this.bytes = bytes;
+            this.durationMs = durationMs;
+        }
+    }
+}
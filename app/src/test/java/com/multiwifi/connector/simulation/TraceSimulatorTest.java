@@ -0,0 +1,53 @@
+package com.multiwifi.connector.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.multiwifi.connector.util.LoadBalancer;
+import java.io.IOException;
+import java.io.StringReader;
+import org.junit.Test;
+
+public class TraceSimulatorTest {
+    private static final double EPSILON = 1e-6;
+
+    @Test
+    public void roundRobinCompletionMatchesHandComputedValue() throws IOException {
+        // Two lossless links of 11.2 Mbps move one 1400 byte packet per millisecond each
+        NetworkTrace trace = NetworkTrace.read("equal", new StringReader(NetworkTrace.CSV_HEADER + "\n"
+                + "0,a,11.2,20,0\n"
+                + "0,b,11.2,20,0\n"
+                + "60000,a,11.2,20,0\n"
+                + "60000,b,11.2,20,0\n"));
+        // Every flow is ten packets, and flows are far enough apart not to queue behind each other
+        FlowWorkload workload = new FlowWorkload(0.1, 1.2, 10 * 1400, 10 * 1400);
+
+        SimulationResult result = TraceSimulator.run(trace, LoadBalancer.Strategy.ROUND_ROBIN, workload, null, 1);
+
+        // Round robin gives each link five packets; the last leaves its queue after 5 ms
+        // and arrives half a round trip, 10 ms, later
+        assertTrue(result.getFlowCount() > 1);
+        assertEquals(0, result.getIncompleteFlowCount());
+        assertEquals(15, result.getCompletionTimeMs(50), EPSILON);
+        assertEquals(15, result.getCompletionTimeMs(100), EPSILON);
+        // Packets leave both links at the same pace, so none is overtaken
+        assertEquals(0, result.getReorderRate(), EPSILON);
+        // 14000 bytes in 15 ms
+        assertEquals(14000 * 8 / 15.0 / 1000, result.getGoodputMbps(), EPSILON);
+    }
+
+    @Test
+    public void generatedTracesFollowTheTraceLayout() {
+        NetworkTrace trace = TraceGenerator.generate(7);
+        assertEquals(3, trace.getLinks().size());
+        assertEquals("Cafe, 2nd", trace.getLinks().get(1).getSsid());
+        assertEquals(TraceGenerator.DURATION_MS - TraceGenerator.SAMPLE_INTERVAL_MS, trace.getDurationMs());
+
+        LinkTrace cafe = trace.getLinks().get(1);
+        assertEquals(0, cafe.getCapacityMbps(cafe.indexAt(110000)), 0);
+        // The same seed gives the same trace
+        LinkTrace office = trace.getLinks().get(0);
+        LinkTrace again = TraceGenerator.generate(7).getLinks().get(0);
+        assertEquals(office.getCapacityMbps(office.indexAt(42000)), again.getCapacityMbps(again.indexAt(42000)), 0);
+    }
+}
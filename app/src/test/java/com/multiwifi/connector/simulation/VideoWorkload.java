@@ -0,0 +1,66 @@
+package com.multiwifi.connector.simulation;
+
+/**
+ * A video player watching throughout a trace alongside the flows of a
+ * {@link FlowWorkload}, as a stand-in for an adaptive streaming client and its segment
+ * server. The player fetches fixed-length segments at a constant bitrate one after
+ * another, starts playing once it has buffered the startup segments and pauses fetching
+ * while its buffer is full. A segment that arrives after the playhead reached it stalls
+ * playback until it does.
+ */
+public final class VideoWorkload {
+    public static final VideoWorkload DEFAULT = new VideoWorkload(4000, 8, 2, 30000, true);
+
+    private final long segmentMs;
+    private final double bitrateMbps;
+    private final int startupSegments;
+    private final long maxBufferMs;
+    private final boolean planned;
+
+    /**
+     * @param segmentMs Play time of one segment
+     * @param bitrateMbps Bitrate of the video
+     * @param startupSegments Segments buffered before playback starts
+     * @param maxBufferMs Play time buffered ahead at most
+     * @param planned Whether segments are planned to arrive soonest, as the VPN does for
+     *                flows it recognises as fetching segments, or placed like any other flow
+     */
+    public VideoWorkload(long segmentMs, double bitrateMbps, int startupSegments, long maxBufferMs,
+                         boolean planned) {
+        if (segmentMs <= 0 || !(bitrateMbps > 0) || startupSegments < 1 || maxBufferMs < segmentMs) {
+            throw new IllegalArgumentException("Invalid video parameters");
+        }
+        this.segmentMs = segmentMs;
+        this.bitrateMbps = bitrateMbps;
+        this.startupSegments = startupSegments;
+        this.maxBufferMs = maxBufferMs;
+        this.planned = planned;
+    }
+
+    /**
+     * @return The same video with its segments placed like any other flow, to compare against
+     */
+    public VideoWorkload unplanned() {
+        return new VideoWorkload(segmentMs, bitrateMbps, startupSegments, maxBufferMs, false);
+    }
+
+    long getSegmentMs() {
+        return segmentMs;
+    }
+
+    long getSegmentBytes() {
+        return (long) (bitrateMbps * segmentMs * 1000 / 8);
+    }
+
+    int getStartupSegments() {
+        return startupSegments;
+    }
+
+    long getMaxBufferMs() {
+        return maxBufferMs;
+    }
+
+    boolean isPlanned() {
+        return planned;
+    }
+}
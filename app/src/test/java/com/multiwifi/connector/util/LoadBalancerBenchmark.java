@@ -0,0 +1,98 @@
+package com.multiwifi.connector.util;
+
+import com.multiwifi.connector.model.NetworkConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link LoadBalancer#computeAllocation}, segment planning and the per-packet
+ * selections, which run on the packet reader and should not allocate. With
+ * {@code -prof gc} the gc.alloc.rate.norm of every benchmark should be about 0 bytes per
+ * operation. Runs on a desktop JVM with the app's classes and the unit test classes on the class path:
+ * {@code java org.openjdk.jmh.Main LoadBalancerBenchmark -prof gc}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBalancerBenchmark {
+    private static final long NOW = 1_000_000;
+
+    @Param({"2", "4", "8"})
+    public int networks;
+
+    private LoadBalancer loadBalancer;
+    private LoadBalancer.Damping damping;
+    private List<NetworkConnection> connections;
+    private LoadBalancer.Allocation allocation;
+    private final LoadBalancer.SegmentPlan plan = new LoadBalancer.SegmentPlan();
+
+    @Setup
+    public void setUp() {
+        CapacityEstimator capacity = new CapacityEstimator();
+        LinkQuality quality = new LinkQuality();
+        loadBalancer = new LoadBalancer(capacity, quality, () -> NOW, new Random(1));
+        damping = new LoadBalancer.Damping();
+        connections = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < networks; i++) {
+            String ssid = "network" + i;
+            double mbps = 5 + random.nextInt(95);
+            double rttMs = 5 + random.nextInt(80);
+            NetworkConnection network = new NetworkConnection(ssid, ssid, -60);
+            network.setSpeedMbps(mbps);
+            network.setLatencyMs((int) rttMs);
+            capacity.update(ssid, CapacityEstimator.Source.SPEED_TEST, mbps, NOW);
+            quality.recordRtt(ssid, rttMs);
+            connections.add(network);
+        }
+        allocation = loadBalancer.allocate(connections, damping);
+    }
+
+    @Benchmark
+    public List<NetworkConnection> computeAllocation() {
+        loadBalancer.computeAllocation(connections, damping);
+        return connections;
+    }
+
+    @Benchmark
+    public NetworkConnection planSegment() {
+        loadBalancer.planSegment(allocation, 4 * 1024 * 1024, plan);
+        return plan.next();
+    }
+
+    @Benchmark
+    public NetworkConnection selectAdaptive() {
+        return loadBalancer.selectBestNetwork(allocation, LoadBalancer.Strategy.ADAPTIVE);
+    }
+
+    @Benchmark
+    public NetworkConnection selectOptimal() {
+        return loadBalancer.selectBestNetwork(allocation, LoadBalancer.Strategy.OPTIMAL);
+    }
+
+    @Benchmark
+    public NetworkConnection selectRealTime() {
+        return loadBalancer.selectBestNetwork(allocation, LoadBalancer.TrafficClass.REAL_TIME);
+    }
+
+    @Benchmark
+    public NetworkConnection selectForTraffic() {
+        return loadBalancer.selectNetworkForTraffic(allocation, null);
+    }
+}
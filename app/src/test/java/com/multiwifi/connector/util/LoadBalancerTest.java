@@ -0,0 +1,214 @@
+package com.multiwifi.connector.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.multiwifi.connector.model.NetworkConnection;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoadBalancerTest {
+    private long now;
+    private CapacityEstimator capacity;
+    private LinkQuality quality;
+    private LoadBalancer loadBalancer;
+
+    @Before
+    public void setUp() {
+        now = 1_000_000;
+        capacity = new CapacityEstimator();
+        quality = new LinkQuality();
+        loadBalancer = new LoadBalancer(capacity, quality, () -> now, new Random(1));
+    }
+
+    @Test
+    public void roundRobinAlternatesNetworks() {
+        loadBalancer.setStrategy(LoadBalancer.Strategy.ROUND_ROBIN);
+        LoadBalancer.Allocation allocation = loadBalancer.allocate(networks("a", "b"));
+
+        NetworkConnection previous = null;
+        for (int i = 0; i < 10; i++) {
+            NetworkConnection selected = loadBalancer.selectNetworkForTraffic(allocation, null);
+            assertNotSame(previous, selected);
+            previous = selected;
+        }
+    }
+
+    @Test
+    public void threadsKeepTheirOwnSelectionCredits() throws InterruptedException {
+        loadBalancer.setStrategy(LoadBalancer.Strategy.ROUND_ROBIN);
+        LoadBalancer.Allocation allocation = loadBalancer.allocate(networks("a", "b"));
+
+        List<String> picks = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            picks.add(loadBalancer.selectNetworkForTraffic(allocation, null).getSsid());
+            // Selections on another thread do not advance this thread's round robin
+            Thread other = new Thread(() -> loadBalancer.selectNetworkForTraffic(allocation, null));
+            other.start();
+            other.join();
+        }
+        assertEquals(Arrays.asList("a", "b", "a"), picks);
+    }
+
+    @Test
+    public void banditConvergesToTheFasterLink() {
+        // Both links look alike to the estimator; only the flows tell them apart
+        LoadBalancer.Allocation allocation = loadBalancer.allocate(networks("fast", "slow"));
+        Random link = new Random(2);
+        long bytes = 1024 * 1024;
+
+        int fastPicks = 0;
+        for (int flow = 0; flow < 300; flow++) {
+            String ssid = loadBalancer.selectBestNetwork(allocation, LoadBalancer.Strategy.BANDIT).getSsid();
+            double mbps = ssid.equals("fast") ? 40 : 8;
+            mbps *= 1 + 0.2 * link.nextGaussian();
+            loadBalancer.recordFlowCompletion(ssid, bytes, (long) (bytes * 8 / (mbps * 1000)));
+            if (flow >= 200 && ssid.equals("fast")) {
+                fastPicks++;
+            }
+        }
+        assertTrue("fast link picked for " + fastPicks + " of the last 100 flows", fastPicks >= 95);
+    }
+
+    @Test
+    public void queuedBytesSteerLeastLoaded() {
+        loadBalancer.setStrategy(LoadBalancer.Strategy.LEAST_LOADED);
+        LoadBalancer.Allocation allocation = loadBalancer.allocate(networks("a", "b"));
+
+        // The datapath counts queued bytes on the counters the allocation reads
+        loadBalancer.getQueuedBytes("a").set(1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("b", loadBalancer.selectBestNetwork(allocation, LoadBalancer.Strategy.LEAST_LOADED).getSsid());
+        }
+        loadBalancer.getQueuedBytes("a").set(0);
+        loadBalancer.getQueuedBytes("b").set(1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("a", loadBalancer.selectBestNetwork(allocation, LoadBalancer.Strategy.LEAST_LOADED).getSsid());
+        }
+    }
+
+    @Test
+    public void sharedLoadBalancerCarriesSettingsAndQueues() {
+        LoadBalancer shared = LoadBalancer.getShared();
+        LoadBalancer.Strategy previous = shared.getStrategy();
+        try {
+            // What the app sets is what the VPN datapath, using the same instance, reads
+            shared.setStrategy(LoadBalancer.Strategy.LEAST_LOADED);
+            assertSame(shared, LoadBalancer.getShared());
+            assertEquals(LoadBalancer.Strategy.LEAST_LOADED, LoadBalancer.getShared().getStrategy());
+            assertSame(shared.getQueuedBytes("a"), LoadBalancer.getShared().getQueuedBytes("a"));
+        } finally {
+            shared.setStrategy(previous);
+        }
+    }
+
+    @Test
+    public void callersKeepTheirOwnDamping() {
+        LoadBalancer.Damping service = new LoadBalancer.Damping();
+        LoadBalancer.Damping datapath = new LoadBalancer.Damping();
+        List<NetworkConnection> networks = networks("a", "b");
+        LoadBalancer.Allocation allocation = loadBalancer.allocate(networks, service);
+        assertEquals(50, allocation.getWeight(0), 1e-9);
+
+        // Another caller's set of networks is no join or leave for this one
+        List<NetworkConnection> other = new ArrayList<>();
+        other.add(network("a", 40, 20));
+        other.add(network("c", 10, 20));
+        loadBalancer.allocate(other, datapath);
+        assertEquals(1, datapath.getReallocationCount());
+
+        // So within the dwell time the service keeps its shares, though "a" got faster
+        allocation = loadBalancer.allocate(networks, service);
+        assertEquals(50, allocation.getWeight(0), 1e-9);
+        assertEquals(1, service.getReallocationCount());
+        assertEquals(0, service.getLastReallocationShift(), 0);
+    }
+
+    @Test
+    public void segmentIsSplitOnlyWhenThatClearlyBeatsOneLink() {
+        List<NetworkConnection> networks = new ArrayList<>();
+        networks.add(network("fast", 100, 20));
+        networks.add(network("slow", 2, 20));
+        LoadBalancer.Allocation allocation = loadBalancer.allocate(networks);
+
+        // Water filling would give the slow link a sliver, saving about 2%
+        LoadBalancer.SegmentPlan plan = new LoadBalancer.SegmentPlan();
+        assertTrue(loadBalancer.planSegment(allocation, 1024 * 1024, plan));
+        assertSame(allocation, plan.getAllocation());
+        assertEquals("fast", plan.getSingleNetwork().getSsid());
+        assertEquals(0, plan.getShare(1), 0);
+
+        // Two equal links halve a large segment's transfer time
+        allocation = loadBalancer.allocate(networks("a", "b"));
+        assertTrue(loadBalancer.planSegment(allocation, 8 * 1024 * 1024, plan));
+        assertNull(plan.getSingleNetwork());
+        assertEquals(0.5, plan.getShare(0), 1e-9);
+
+        // Nothing to plan over empties the plan
+        assertFalse(loadBalancer.planSegment(LoadBalancer.Allocation.EMPTY, 1024, plan));
+        assertNull(plan.getAllocation());
+    }
+
+    @Test
+    public void selectionsReuseTheirStateArrays() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        List<NetworkConnection> networks = new ArrayList<>();
+        networks.add(network("office", 50, 10));
+        networks.add(network("cafe", 20, 30));
+        networks.add(network("lte", 30, 60));
+        LoadBalancer.Allocation allocation = loadBalancer.allocate(networks);
+        selectRepeatedly(allocation, networks, 1000);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        selectRepeatedly(allocation, networks, 10000);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        // A single array per call would already come to hundreds of kilobytes
+        assertTrue("allocated " + allocated + " bytes", allocated < 16 * 1024);
+    }
+
+    private List<NetworkConnection> networks(String... ssids) {
+        List<NetworkConnection> networks = new ArrayList<>();
+        for (String ssid : ssids) {
+            networks.add(network(ssid, 10, 20));
+        }
+        return networks;
+    }
+
+    private void selectRepeatedly(LoadBalancer.Allocation allocation, List<NetworkConnection> networks,
+                                  int calls) {
+        LoadBalancer.SegmentPlan plan = new LoadBalancer.SegmentPlan();
+        for (int i = 0; i < calls; i++) {
+            loadBalancer.planSegment(allocation, 4 * 1024 * 1024, plan);
+            plan.next();
+            loadBalancer.selectBestNetwork(allocation, LoadBalancer.Strategy.ADAPTIVE);
+            loadBalancer.selectBestNetwork(allocation, LoadBalancer.Strategy.OPTIMAL);
+            loadBalancer.selectBestNetwork(allocation, LoadBalancer.TrafficClass.REAL_TIME);
+            loadBalancer.selectNetworkForTraffic(allocation, null);
+            loadBalancer.computeAllocation(networks);
+        }
+    }
+
+    private NetworkConnection network(String ssid, double mbps, double rttMs) {
+        NetworkConnection network = new NetworkConnection(ssid, ssid, -60);
+        network.setSpeedMbps(mbps);
+        network.setLatencyMs((int) rttMs);
+        capacity.update(ssid, CapacityEstimator.Source.SPEED_TEST, mbps, now);
+        quality.recordRtt(ssid, rttMs);
+        return network;
+    }
+}
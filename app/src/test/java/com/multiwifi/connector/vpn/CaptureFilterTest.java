@@ -0,0 +1,76 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class CaptureFilterTest {
+    private static final int LINK = 3;
+
+    @Test
+    public void emptyExpressionMatchesEverything() {
+        assertSame(CaptureFilter.ALL, CaptureFilter.compile(null));
+        assertSame(CaptureFilter.ALL, CaptureFilter.compile("  "));
+    }
+
+    @Test
+    public void matchesPrimitives() {
+        ByteBuffer packet = packet(IpPacket.PROTO_TCP, 0x0A000002, 0xC0A80101, 50000, 443);
+        assertTrue(CaptureFilter.compile("tcp").matches(packet, LINK));
+        assertFalse(CaptureFilter.compile("udp").matches(packet, LINK));
+        assertTrue(CaptureFilter.compile("dst port 443").matches(packet, LINK));
+        assertFalse(CaptureFilter.compile("src port 443").matches(packet, LINK));
+        assertTrue(CaptureFilter.compile("src host 10.0.0.2").matches(packet, LINK));
+        assertTrue(CaptureFilter.compile("net 192.168.0.0/16").matches(packet, LINK));
+        assertTrue(CaptureFilter.compile("link 3").matches(packet, LINK));
+    }
+
+    @Test
+    public void combinesWithOperators() {
+        ByteBuffer packet = packet(IpPacket.PROTO_UDP, 0x0A000002, 0x08080808, 40000, 53);
+        assertTrue(CaptureFilter.compile("udp && port 53").matches(packet, LINK));
+        assertTrue(CaptureFilter.compile("tcp || (udp and not port 443)").matches(packet, LINK));
+        assertFalse(CaptureFilter.compile("!udp").matches(packet, LINK));
+        assertTrue(CaptureFilter.compile("UDP AND DST HOST 8.8.8.8").matches(packet, LINK));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLoneAmpersand() {
+        CaptureFilter.compile("tcp & udp");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLonePipe() {
+        CaptureFilter.compile("tcp | udp");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLeadingAmpersand() {
+        CaptureFilter.compile("&");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnbalancedParenthesis() {
+        CaptureFilter.compile("(tcp or udp");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOutOfRangePort() {
+        CaptureFilter.compile("port 70000");
+    }
+
+    private static ByteBuffer packet(int protocol, int src, int dst, int srcPort, int dstPort) {
+        ByteBuffer packet = ByteBuffer.allocate(40);
+        packet.put(0, (byte) 0x45);
+        packet.putShort(IpPacket.IPV4_TOTAL_LENGTH_OFFSET, (short) 40);
+        packet.put(IpPacket.IPV4_PROTOCOL_OFFSET, (byte) protocol);
+        packet.putInt(IpPacket.IPV4_SRC_OFFSET, src);
+        packet.putInt(IpPacket.IPV4_DST_OFFSET, dst);
+        packet.putShort(20, (short) srcPort);
+        packet.putShort(22, (short) dstPort);
+        return packet;
+    }
+}
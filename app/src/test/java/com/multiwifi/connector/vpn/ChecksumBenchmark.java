@@ -0,0 +1,102 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the 64-bit summing loop and the RFC 1624 incremental rewrite of
+ * {@link Checksum} with a naive 16-bit loop and a full recomputation. Runs on a desktop
+ * JVM with the app's classes and the unit test classes on the class path:
+ * {@code java org.openjdk.jmh.Main ChecksumBenchmark}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+    private static final int SRC = 0x0A000002;
+    private static final int DST = 0xC0A80101;
+
+    @Param({"40", "576", "1500"})
+    public int length;
+
+    private ByteBuffer packet;
+    private int address;
+
+    @Setup
+    public void setUp() {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        packet = ByteBuffer.wrap(data);
+        packet.put(0, (byte) 0x45);
+        packet.put(1, (byte) 0);
+        packet.putShort(IpPacket.IPV4_TOTAL_LENGTH_OFFSET, (short) length);
+        packet.putShort(IpPacket.IPV4_FRAGMENT_OFFSET, (short) IpPacket.FLAG_DONT_FRAGMENT);
+        packet.put(IpPacket.IPV4_PROTOCOL_OFFSET, (byte) IpPacket.PROTO_TCP);
+        packet.putInt(IpPacket.IPV4_SRC_OFFSET, SRC);
+        packet.putInt(IpPacket.IPV4_DST_OFFSET, DST);
+        packet.put(20 + 12, (byte) 0x50);
+        recomputeAll(packet);
+    }
+
+    @Benchmark
+    public int wideSum() {
+        return Checksum.sum(packet, 0, length, 0);
+    }
+
+    @Benchmark
+    public int naiveSum() {
+        long acc = 0;
+        for (int i = 0; i < length; i += 2) {
+            int high = packet.get(i) & 0xFF;
+            int low = i + 1 < length ? packet.get(i + 1) & 0xFF : 0;
+            acc += (high << 8) | low;
+        }
+        while ((acc >>> 16) != 0) {
+            acc = (acc & 0xFFFF) + (acc >>> 16);
+        }
+        return (int) acc;
+    }
+
+    @Benchmark
+    public ByteBuffer incrementalRewrite() {
+        Checksum.rewriteIpv4Address(packet, true, nextAddress());
+        return packet;
+    }
+
+    @Benchmark
+    public ByteBuffer fullRecompute() {
+        packet.putInt(IpPacket.IPV4_SRC_OFFSET, nextAddress());
+        recomputeAll(packet);
+        return packet;
+    }
+
+    private int nextAddress() {
+        // Alternate so every rewrite changes the address
+        address = address == SRC ? SRC + 1 : SRC;
+        return address;
+    }
+
+    private static void recomputeAll(ByteBuffer packet) {
+        Checksum.recomputeIpv4HeaderChecksum(packet);
+        int l4Length = IpPacket.totalLength(packet) - 20;
+        packet.putShort(20 + 16, (short) 0);
+        int pseudo = Checksum.pseudoHeaderSum(packet.getInt(IpPacket.IPV4_SRC_OFFSET),
+                packet.getInt(IpPacket.IPV4_DST_OFFSET), IpPacket.PROTO_TCP, l4Length);
+        packet.putShort(20 + 16, (short) Checksum.compute(packet, 20, l4Length, pseudo));
+    }
+}
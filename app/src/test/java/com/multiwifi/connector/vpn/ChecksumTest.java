@@ -0,0 +1,172 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+public class ChecksumTest {
+    private static final int SRC = 0x0A000002;
+    private static final int DST = 0xC0A80101;
+
+    @Test
+    public void sumMatchesRfc1071Example() {
+        // RFC 1071 section 3: the words 0001 f203 f4f5 f6f7 sum to ddf2
+        ByteBuffer buf = ByteBuffer.wrap(new byte[] {
+                0x00, 0x01, (byte) 0xF2, 0x03, (byte) 0xF4, (byte) 0xF5, (byte) 0xF6, (byte) 0xF7});
+        assertEquals(0xDDF2, Checksum.sum(buf, 0, 8, 0));
+        assertEquals(0x220D, Checksum.compute(buf, 0, 8, 0));
+    }
+
+    @Test
+    public void sumPadsOddTrailingByte() {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[] {0x12, 0x34, 0x56});
+        assertEquals(0x1234 + 0x5600, Checksum.sum(buf, 0, 3, 0));
+    }
+
+    @Test
+    public void sumMatchesWordwiseSumForEveryLength() {
+        Random random = new Random(1);
+        byte[] data = new byte[67];
+        random.nextBytes(data);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        for (int offset = 0; offset < 4; offset++) {
+            for (int length = 0; offset + length <= data.length; length++) {
+                assertEquals(naiveSum(data, offset, length), Checksum.sum(buf, offset, length, 0));
+            }
+        }
+    }
+
+    @Test
+    public void update16MatchesRfc1624Example() {
+        // RFC 1624 section 4: HC = DD2F, m = 5555, m' = 3285 gives HC' = 0000, not FFFF
+        assertEquals(0x0000, Checksum.update16(0xDD2F, 0x5555, 0x3285));
+    }
+
+    @Test
+    public void update16MatchesRecomputation() {
+        Random random = new Random(2);
+        byte[] data = new byte[20];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        for (int trial = 0; trial < 1000; trial++) {
+            random.nextBytes(data);
+            int checksum = Checksum.compute(buf, 0, data.length, 0);
+            int word = random.nextInt(data.length / 2) * 2;
+            int oldWord = buf.getShort(word) & 0xFFFF;
+            int newWord = random.nextInt(0x10000);
+            buf.putShort(word, (short) newWord);
+            assertEquals(equivalent(Checksum.compute(buf, 0, data.length, 0)),
+                    equivalent(Checksum.update16(checksum, oldWord, newWord)));
+        }
+    }
+
+    @Test
+    public void rewriteAddressMatchesRecomputation() {
+        Random random = new Random(3);
+        for (int protocol : new int[] {IpPacket.PROTO_TCP, IpPacket.PROTO_UDP}) {
+            for (int trial = 0; trial < 200; trial++) {
+                ByteBuffer packet = packet(protocol, random.nextInt(100), random);
+                int newAddr = random.nextInt();
+                Checksum.rewriteIpv4Address(packet, trial % 2 == 0, newAddr);
+                assertChecksumsValid(packet);
+            }
+        }
+    }
+
+    @Test
+    public void rewritePortMatchesRecomputation() {
+        Random random = new Random(4);
+        for (int protocol : new int[] {IpPacket.PROTO_TCP, IpPacket.PROTO_UDP}) {
+            for (int trial = 0; trial < 200; trial++) {
+                ByteBuffer packet = packet(protocol, random.nextInt(100), random);
+                Checksum.rewritePort(packet, trial % 2 == 0, random.nextInt(0x10000));
+                assertChecksumsValid(packet);
+            }
+        }
+    }
+
+    @Test
+    public void rewriteKeepsDisabledUdpChecksum() {
+        ByteBuffer packet = packet(IpPacket.PROTO_UDP, 10, new Random(5));
+        int l4Offset = IpPacket.ipv4HeaderLength(packet);
+        packet.putShort(l4Offset + 6, (short) 0);
+        Checksum.rewriteIpv4Address(packet, true, 0x0A000003);
+        Checksum.rewritePort(packet, false, 53);
+        assertEquals(0, packet.getShort(l4Offset + 6));
+        assertEquals(0xFFFF, Checksum.sum(packet, 0, 20, 0));
+    }
+
+    @Test
+    public void markCongestionExperiencedKeepsHeaderValid() {
+        ByteBuffer packet = packet(IpPacket.PROTO_TCP, 10, new Random(6));
+        assertFalse(Checksum.markCongestionExperienced(packet));
+
+        // ECT(0)
+        packet.put(1, (byte) 0x02);
+        Checksum.recomputeIpv4HeaderChecksum(packet);
+        assertTrue(Checksum.markCongestionExperienced(packet));
+        assertEquals(IpPacket.ECN_CE, IpPacket.ecn(packet));
+        assertEquals(0xFFFF, Checksum.sum(packet, 0, 20, 0));
+    }
+
+    private static ByteBuffer packet(int protocol, int payload, Random random) {
+        int l4Header = protocol == IpPacket.PROTO_TCP ? 20 : 8;
+        int length = 20 + l4Header + payload;
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        ByteBuffer packet = ByteBuffer.wrap(data);
+        packet.put(0, (byte) 0x45);
+        packet.put(1, (byte) 0);
+        packet.putShort(IpPacket.IPV4_TOTAL_LENGTH_OFFSET, (short) length);
+        packet.putShort(IpPacket.IPV4_FRAGMENT_OFFSET, (short) IpPacket.FLAG_DONT_FRAGMENT);
+        packet.put(IpPacket.IPV4_PROTOCOL_OFFSET, (byte) protocol);
+        packet.putInt(IpPacket.IPV4_SRC_OFFSET, SRC);
+        packet.putInt(IpPacket.IPV4_DST_OFFSET, DST);
+        Checksum.recomputeIpv4HeaderChecksum(packet);
+
+        int checksumOffset = 20 + (protocol == IpPacket.PROTO_TCP ? 16 : 6);
+        if (protocol == IpPacket.PROTO_TCP) {
+            packet.put(20 + 12, (byte) 0x50);
+        } else {
+            packet.putShort(20 + 4, (short) (l4Header + payload));
+        }
+        packet.putShort(checksumOffset, (short) 0);
+        int pseudo = Checksum.pseudoHeaderSum(SRC, DST, protocol, l4Header + payload);
+        int checksum = Checksum.compute(packet, 20, l4Header + payload, pseudo);
+        if (checksum == 0 && protocol == IpPacket.PROTO_UDP) {
+            checksum = 0xFFFF;
+        }
+        packet.putShort(checksumOffset, (short) checksum);
+        return packet;
+    }
+
+    private static void assertChecksumsValid(ByteBuffer packet) {
+        assertEquals(0xFFFF, Checksum.sum(packet, 0, 20, 0));
+        int l4Length = IpPacket.totalLength(packet) - 20;
+        int pseudo = Checksum.pseudoHeaderSum(packet.getInt(IpPacket.IPV4_SRC_OFFSET),
+                packet.getInt(IpPacket.IPV4_DST_OFFSET), IpPacket.protocol(packet), l4Length);
+        // A valid segment sums to negative zero, including its own checksum field
+        assertEquals(0xFFFF, Checksum.sum(packet, 20, l4Length, pseudo));
+    }
+
+    private static int naiveSum(byte[] data, int offset, int length) {
+        long acc = 0;
+        for (int i = 0; i < length; i += 2) {
+            int high = data[offset + i] & 0xFF;
+            int low = i + 1 < length ? data[offset + i + 1] & 0xFF : 0;
+            acc += (high << 8) | low;
+        }
+        while ((acc >>> 16) != 0) {
+            acc = (acc & 0xFFFF) + (acc >>> 16);
+        }
+        return (int) acc;
+    }
+
+    private static int equivalent(int checksum) {
+        // 0000 and FFFF are both zero in one's complement
+        return checksum == 0xFFFF ? 0 : checksum;
+    }
+}
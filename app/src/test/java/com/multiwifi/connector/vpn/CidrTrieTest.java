@@ -0,0 +1,251 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class CidrTrieTest {
+
+    @Test
+    public void lookupReturnsLongestMatch() {
+        CidrTrie<String> trie = new CidrTrie<>();
+        trie.put(new byte[] {10, 0, 0, 0}, 8, "wide");
+        trie.put(new byte[] {10, 1, 0, 0}, 16, "narrow");
+        assertEquals("narrow", trie.lookup(0x0A010203));
+        assertEquals("wide", trie.lookup(0x0A020304));
+        assertNull(trie.lookup(0x0B000001));
+    }
+
+    @Test
+    public void complementRoutesLeaveOutExcludedRanges() {
+        CidrTrie<String> trie = new CidrTrie<>();
+        trie.put(new byte[] {0, 0, 0, 0}, 1, "bypass");
+        List<CidrTrie.Prefix> routes = trie.complementRoutes("bypass"::equals);
+        assertEquals(1, routes.size());
+        assertEquals("128.0.0.0/1", routes.get(0).toString());
+    }
+
+    @Test
+    public void routesCompareByValue() {
+        // The VPN is only re-established when the routes actually change
+        assertEquals(bypassRoutes(new byte[] {10, 0, 0, 0}, 8), bypassRoutes(new byte[] {10, 0, 0, 0}, 8));
+        assertNotEquals(bypassRoutes(new byte[] {10, 0, 0, 0}, 8), bypassRoutes(new byte[] {10, 0, 0, 0}, 9));
+    }
+
+    @Test
+    public void lookup6ReturnsLongestMatch() throws UnknownHostException {
+        CidrTrie<String> trie = new CidrTrie<>();
+        trie.put(address("2001:db8::"), 32, "wide");
+        trie.put(address("2001:db8:1::"), 48, "narrow");
+        trie.put(new byte[] {10, 0, 0, 0}, 8, "v4");
+        assertEquals("narrow", lookup6(trie, "2001:db8:1::5"));
+        assertEquals("wide", lookup6(trie, "2001:db8:2::1"));
+        assertNull(lookup6(trie, "2001:db9::1"));
+        // The families are separate tries: ::a00:0 is not 10.0.0.0
+        assertNull(lookup6(trie, "::a00:1"));
+    }
+
+    @Test
+    public void complementRoutes6LeaveOutExcludedRanges() throws UnknownHostException {
+        CidrTrie<String> trie = new CidrTrie<>();
+        trie.put(address("fc00::"), 7, "bypass");
+        List<CidrTrie.Prefix> routes = trie.complementRoutes6("bypass"::equals);
+
+        // fc00::/7 is the last of seven halvings, each leaving one sibling to route
+        assertEquals(7, routes.size());
+        List<Integer> lengths = new ArrayList<>();
+        for (CidrTrie.Prefix route : routes) {
+            lengths.add(route.getLength());
+            assertFalse(route + " covers fd00::1", contains(route, address("fd00::1")));
+        }
+        Collections.sort(lengths);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), lengths);
+        byte[] linkLocal = address("fe80::1");
+        byte[] documentation = address("2001:db8::1");
+        assertTrue(routes.stream().anyMatch(route -> contains(route, linkLocal)));
+        assertTrue(routes.stream().anyMatch(route -> contains(route, documentation)));
+        assertEquals("[0.0.0.0/0]", trie.complementRoutes("bypass"::equals).toString());
+    }
+
+    @Test
+    public void includeNestedInBypassIsRouted() {
+        CidrTrie<String> trie = new CidrTrie<>();
+        trie.put(new byte[] {10, 0, 0, 0}, 8, "bypass");
+        trie.put(new byte[] {10, 1, 0, 0}, 16, "include");
+        assertEquals("include", trie.lookup(0x0A010203));
+        assertEquals("bypass", trie.lookup(0x0A020304));
+
+        List<CidrTrie.Prefix> routes = trie.complementRoutes("bypass"::equals);
+        assertTrue(routes.contains(new CidrTrie.Prefix(new byte[] {10, 1, 0, 0}, 16)));
+        assertRoutes(routes, 0x0A010203, true);
+        assertRoutes(routes, 0x0A020304, false);
+        assertRoutes(routes, 0x0B000001, true);
+        assertRoutes(routes, 0x09FFFFFF, true);
+    }
+
+    @Test
+    public void defaultAndHostPrefixes() {
+        CidrTrie<String> empty = new CidrTrie<>();
+        assertEquals("[0.0.0.0/0]", empty.complementRoutes("bypass"::equals).toString());
+
+        CidrTrie<String> trie = new CidrTrie<>();
+        trie.put(new byte[] {0, 0, 0, 0}, 0, "bypass");
+        trie.put(new byte[] {1, 2, 3, 4}, 32, "include");
+        assertEquals("bypass", trie.lookup(0));
+        assertEquals("bypass", trie.lookup(0xFFFFFFFF));
+        assertEquals("bypass", trie.lookup(0x01020305));
+        assertEquals("include", trie.lookup(0x01020304));
+        assertEquals("[1.2.3.4/32]", trie.complementRoutes("bypass"::equals).toString());
+
+        // Excluding the host route instead leaves 32 routes, one per sibling on its path
+        assertEquals(32, trie.complementRoutes("include"::equals).size());
+
+        // Replacing a value keeps one prefix
+        trie.put(new byte[] {(byte) 0xFF, 0, 0, 0}, 0, "include");
+        assertEquals(2, trie.size());
+        assertEquals("[0.0.0.0/0]", trie.complementRoutes("bypass"::equals).toString());
+    }
+
+    @Test
+    public void matchesLinearScan() {
+        Random random = new Random(42);
+        String[] actions = {"bypass", "include", "pin"};
+        for (int round = 0; round < 20; round++) {
+            CidrTrie<String> trie = new CidrTrie<>();
+            List<int[]> rules = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            int count = 1 + random.nextInt(64);
+            for (int i = 0; i < count; i++) {
+                // Short prefixes with few distinct bits so rules nest and collide
+                int length = random.nextInt(33);
+                int address = mask(random.nextInt() & 0xF0F0F0F0, length);
+                String value = actions[random.nextInt(actions.length)];
+                trie.put(toBytes(address), length, value);
+                int existing = indexOf(rules, address, length);
+                if (existing >= 0) {
+                    values.set(existing, value);
+                } else {
+                    rules.add(new int[] {address, length});
+                    values.add(value);
+                }
+            }
+            assertEquals(rules.size(), trie.size());
+            List<CidrTrie.Prefix> routes = trie.complementRoutes("bypass"::equals);
+
+            List<Integer> samples = new ArrayList<>();
+            for (int[] rule : rules) {
+                samples.add(rule[0]);
+                samples.add(rule[0] | ~mask(-1, rule[1]));
+                samples.add(rule[0] - 1);
+            }
+            for (int i = 0; i < 2000; i++) {
+                samples.add(random.nextInt());
+            }
+            for (int address : samples) {
+                String expected = linearLookup(rules, values, address);
+                assertEquals(Integer.toHexString(address), expected, trie.lookup(address));
+                assertRoutes(routes, address, !"bypass".equals(expected));
+            }
+        }
+    }
+
+    private static String linearLookup(List<int[]> rules, List<String> values, int address) {
+        String best = null;
+        int bestLength = -1;
+        for (int i = 0; i < rules.size(); i++) {
+            int[] rule = rules.get(i);
+            if (rule[1] > bestLength && mask(address, rule[1]) == rule[0]) {
+                best = values.get(i);
+                bestLength = rule[1];
+            }
+        }
+        return best;
+    }
+
+    private static int indexOf(List<int[]> rules, int address, int length) {
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i)[0] == address && rules.get(i)[1] == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks the address is covered by exactly one route if it should be routed, and by
+     * none otherwise
+     */
+    private static void assertRoutes(List<CidrTrie.Prefix> routes, int address, boolean routed) {
+        int covering = 0;
+        for (CidrTrie.Prefix route : routes) {
+            int start = toInt(route.getAddress().getAddress());
+            if (mask(address, route.getLength()) == start) {
+                covering++;
+            }
+        }
+        assertEquals(Integer.toHexString(address) + " in " + routes, routed ? 1 : 0, covering);
+    }
+
+    private static boolean contains(CidrTrie.Prefix route, byte[] address) {
+        byte[] start = route.getAddress().getAddress();
+        for (int bit = 0; bit < route.getLength(); bit++) {
+            int mask = 0x80 >>> (bit % 8);
+            if ((start[bit / 8] & mask) != (address[bit / 8] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String lookup6(CidrTrie<String> trie, String address) throws UnknownHostException {
+        byte[] bytes = address(address);
+        long hi = 0;
+        long lo = 0;
+        for (int i = 0; i < 8; i++) {
+            hi = hi << 8 | (bytes[i] & 0xFF);
+            lo = lo << 8 | (bytes[i + 8] & 0xFF);
+        }
+        return trie.lookup6(hi, lo);
+    }
+
+    private static byte[] address(String literal) throws UnknownHostException {
+        byte[] bytes = InetAddress.getByName(literal).getAddress();
+        if (bytes.length == 4) {
+            // Java maps ::a.b.c.d style literals to IPv4; keep them as IPv6 keys
+            byte[] mapped = new byte[16];
+            System.arraycopy(bytes, 0, mapped, 12, 4);
+            return mapped;
+        }
+        return bytes;
+    }
+
+    private static int mask(int address, int length) {
+        return length == 0 ? 0 : address & (-1 << (32 - length));
+    }
+
+    private static int toInt(byte[] address) {
+        return (address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16 | (address[2] & 0xFF) << 8 | (address[3] & 0xFF);
+    }
+
+    private static byte[] toBytes(int address) {
+        return new byte[] {(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address};
+    }
+
+    private static List<CidrTrie.Prefix> bypassRoutes(byte[] address, int length) {
+        CidrTrie<String> trie = new CidrTrie<>();
+        trie.put(address, length, "bypass");
+        trie.put(new byte[] {(byte) 192, (byte) 168, 0, 0}, 16, "pin");
+        return trie.complementRoutes("bypass"::equals);
+    }
+}
@@ -0,0 +1,92 @@
+package com.multiwifi.connector.vpn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link DomainSuffixTrie#match} on the raw SNI bytes with the usual HashMap
+ * lookup of each label suffix, which first has to decode and lower-case the name. Runs on
+ * a desktop JVM with the app's classes and the unit test classes on the class path:
+ * {@code java org.openjdk.jmh.Main DomainSuffixTrieBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class DomainSuffixTrieBenchmark {
+    private static final int HOSTS = 4096;
+
+    @Param({"10000", "100000", "1000000"})
+    public int rules;
+
+    private DomainSuffixTrie<Integer> trie;
+    private Map<String, Integer> map;
+    private ByteBuffer[] hosts;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        trie = new DomainSuffixTrie<>(rules);
+        map = new HashMap<>(rules * 2);
+        for (int i = 0; i < rules; i++) {
+            String rule = DomainSuffixTrieTest.rule(i);
+            trie.put(rule, i);
+            map.put(rule, i);
+        }
+
+        // Hosts under a rule, hosts under no rule, and the rules themselves
+        hosts = new ByteBuffer[HOSTS];
+        for (int i = 0; i < HOSTS; i++) {
+            int rule = (int) ((i * 2654435761L) % rules);
+            String host = i % 3 == 0 ? "www." + DomainSuffixTrieTest.rule(rule)
+                    : i % 3 == 1 ? "host" + rule + ".unknown.test" : DomainSuffixTrieTest.rule(rule);
+            hosts[i] = ByteBuffer.wrap(host.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Benchmark
+    public Integer trieMatch() {
+        ByteBuffer host = nextHost();
+        return trie.match(host, 0, host.capacity());
+    }
+
+    @Benchmark
+    public Integer hashMapLabels() {
+        ByteBuffer host = nextHost();
+        String name = new String(host.array(), 0, host.capacity(), StandardCharsets.US_ASCII)
+                .toLowerCase(Locale.ROOT);
+        // Longest suffix first: the whole name, then after each dot
+        int start = 0;
+        while (start >= 0) {
+            Integer value = map.get(start == 0 ? name : name.substring(start));
+            if (value != null) {
+                return value;
+            }
+            int dot = name.indexOf('.', start);
+            start = dot < 0 ? -1 : dot + 1;
+        }
+        return null;
+    }
+
+    private ByteBuffer nextHost() {
+        next = (next + 1) & (HOSTS - 1);
+        return hosts[next];
+    }
+}
@@ -0,0 +1,86 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class DomainSuffixTrieTest {
+    private static final String[] TLDS = {"com", "net", "org", "io", "co.uk"};
+
+    // Upper bound that catches a regression to per-rule objects; match speed is measured
+    // by DomainSuffixTrieBenchmark
+    private static final long MAX_BYTES_PER_RULE = 160;
+
+    @Test
+    public void matchesLongestSuffix() {
+        DomainSuffixTrie<String> trie = new DomainSuffixTrie<>();
+        trie.put("example.com", "site");
+        trie.put("cdn.example.com", "cdn");
+        trie.put("com", "tld");
+
+        assertEquals("cdn", match(trie, "img.cdn.example.com"));
+        assertEquals("site", match(trie, "www.example.com"));
+        assertEquals("site", match(trie, "EXAMPLE.com."));
+        assertEquals("tld", match(trie, "other.com"));
+        assertNull(match(trie, "example.org"));
+        // A suffix only matches whole labels
+        assertEquals("tld", match(trie, "notexample.com"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptySuffix() {
+        new DomainSuffixTrie<String>().put("..", "none");
+    }
+
+    @Test
+    public void scalesTo10kRules() {
+        checkScale(10_000);
+    }
+
+    @Test
+    public void scalesTo100kRules() {
+        checkScale(100_000);
+    }
+
+    @Test
+    public void scalesTo1mRules() {
+        checkScale(1_000_000);
+    }
+
+    private static void checkScale(int rules) {
+        DomainSuffixTrie<Integer> trie = new DomainSuffixTrie<>(rules);
+        for (int i = 0; i < rules; i++) {
+            trie.put(rule(i), i);
+        }
+        assertEquals(rules, trie.size());
+        long bytesPerRule = trie.memoryBytes() / rules;
+        assertTrue(rules + " rules take " + bytesPerRule + " bytes each", bytesPerRule <= MAX_BYTES_PER_RULE);
+
+        // Hosts under a rule, hosts under no rule, and the rules themselves
+        int lookups = 100_000;
+        ByteBuffer[] hosts = new ByteBuffer[lookups];
+        for (int i = 0; i < lookups; i++) {
+            int rule = (int) ((i * 2654435761L) % rules);
+            String host = i % 3 == 0 ? "www." + rule(rule) : i % 3 == 1 ? "host" + rule + ".unknown.test" : rule(rule);
+            hosts[i] = ByteBuffer.wrap(host.getBytes(StandardCharsets.US_ASCII));
+        }
+        for (int i = 0; i < lookups; i++) {
+            Integer expected = i % 3 == 1 ? null : (int) ((i * 2654435761L) % rules);
+            assertEquals(expected, trie.match(hosts[i], 0, hosts[i].capacity()));
+        }
+    }
+
+    static String rule(int i) {
+        // Rules share zones and TLDs, as block lists do
+        return "host" + i + ".zone" + (i % 997) + "." + TLDS[i % TLDS.length];
+    }
+
+    private static String match(DomainSuffixTrie<String> trie, String host) {
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        return trie.match(ByteBuffer.wrap(name), 0, name.length);
+    }
+}
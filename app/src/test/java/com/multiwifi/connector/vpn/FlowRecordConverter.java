@@ -0,0 +1,29 @@
+package com.multiwifi.connector.vpn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Command line front end of {@link FlowRecordReader}, kept with the unit tests so it
+ * does not ship in the app. Runs on a desktop JVM with the app's classes and the unit
+ * test classes on the class path:
+ * {@code java com.multiwifi.connector.vpn.FlowRecordConverter flows.bin.1 flows.bin > flows.csv}
+ */
+public final class FlowRecordConverter {
+
+    private FlowRecordConverter() {
+        // Command line tool only
+    }
+
+    public static void main(String[] args) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        out.println(FlowRecordReader.CSV_HEADER);
+        for (String path : args) {
+            FlowRecordReader.toCsv(new File(path), out);
+        }
+        out.flush();
+    }
+}
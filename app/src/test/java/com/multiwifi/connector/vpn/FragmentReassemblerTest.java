@@ -0,0 +1,120 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class FragmentReassemblerTest {
+    private final ByteBuffer out = ByteBuffer.allocate(65535);
+
+    @Test
+    public void reassemblesOutOfOrderFragments() throws IOException {
+        ByteBuffer packet = FragmenterTest.packet(4000, 0, new Random(1));
+        byte[] original = FragmenterTest.bytes(packet, 4000);
+        List<ByteBuffer> fragments = fragment(packet, 576);
+        Collections.shuffle(fragments, new Random(2));
+
+        FragmentReassembler reassembler = new FragmentReassembler(8, 65536, 1000);
+        int length = 0;
+        for (ByteBuffer fragment : fragments) {
+            length = reassembler.offer(fragment, out);
+        }
+        assertEquals(4000, length);
+        assertArrayEquals(original, FragmenterTest.bytes(out, length));
+        assertEquals(0xFFFF, Checksum.sum(out, 0, 20, 0));
+        assertEquals(1, reassembler.getReassembledCount());
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(0, reassembler.getBufferedBytes());
+    }
+
+    @Test
+    public void dropsDatagramWithOverlappingFragments() throws IOException {
+        ByteBuffer packet = FragmenterTest.packet(3000, 0, new Random(3));
+        List<ByteBuffer> coarse = fragment(packet, 1400);
+        List<ByteBuffer> fine = fragment(packet, 576);
+
+        FragmentReassembler reassembler = new FragmentReassembler(8, 65536, 1000);
+        assertEquals(0, reassembler.offer(coarse.get(0), out));
+        // Covers bytes 1104..1656, which straddles the end of the first coarse fragment
+        assertEquals(0, reassembler.offer(fine.get(2), out));
+        assertEquals(1, reassembler.getDroppedCount());
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(0, reassembler.getBufferedBytes());
+    }
+
+    @Test
+    public void dropsDuplicateFragment() throws IOException {
+        List<ByteBuffer> fragments = fragment(FragmenterTest.packet(3000, 0, new Random(4)), 1400);
+        FragmentReassembler reassembler = new FragmentReassembler(8, 65536, 1000);
+        reassembler.offer(fragments.get(1), out);
+        assertEquals(0, reassembler.offer(fragments.get(1), out));
+        assertEquals(1, reassembler.getDroppedCount());
+    }
+
+    @Test
+    public void chargesHoleInFrontOfLoneFragment() throws IOException {
+        List<ByteBuffer> fragments = fragment(FragmenterTest.packet(6000, 0, new Random(5)), 1400);
+        FragmentReassembler reassembler = new FragmentReassembler(8, 4096, 1000);
+
+        // The last fragment starts at 4 * 1376, beyond the cap, even though it is small
+        assertEquals(0, reassembler.offer(fragments.get(fragments.size() - 1), out));
+        assertEquals(1, reassembler.getDroppedCount());
+        assertEquals(0, reassembler.getBufferedBytes());
+    }
+
+    @Test
+    public void evictsOldestDatagramsToStayUnderByteCap() throws IOException {
+        Random random = new Random(6);
+        FragmentReassembler reassembler = new FragmentReassembler(64, 4096, 1000);
+        for (int i = 0; i < 10; i++) {
+            List<ByteBuffer> fragments = fragment(FragmenterTest.packet(3000, 0, random), 1400);
+            reassembler.offer(fragments.get(0), out);
+            assertTrue(reassembler.getBufferedBytes() <= 4096);
+        }
+        // 1376 bytes each, so only two fit under 4096
+        assertEquals(2, reassembler.getPendingCount());
+        assertEquals(8, reassembler.getEvictedCount());
+    }
+
+    @Test
+    public void evictsOldestDatagramsToStayUnderCountCap() throws IOException {
+        Random random = new Random(7);
+        FragmentReassembler reassembler = new FragmentReassembler(3, 65536, 1000);
+        List<ByteBuffer> first = fragment(FragmenterTest.packet(3000, 0, random), 1400);
+        reassembler.offer(first.get(0), out);
+        for (int i = 0; i < 3; i++) {
+            reassembler.offer(fragment(FragmenterTest.packet(3000, 0, random), 1400).get(0), out);
+        }
+        assertEquals(3, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getEvictedCount());
+
+        // The rest of the evicted datagram starts over and never completes on its own
+        assertEquals(0, reassembler.offer(first.get(1), out));
+        assertEquals(0, reassembler.offer(first.get(2), out));
+    }
+
+    @Test
+    public void expiresIncompleteDatagrams() throws IOException {
+        Random random = new Random(8);
+        FragmentReassembler reassembler = new FragmentReassembler(8, 65536, 0);
+        reassembler.offer(fragment(FragmenterTest.packet(3000, 0, random), 1400).get(0), out);
+        reassembler.offer(fragment(FragmenterTest.packet(3000, 0, random), 1400).get(0), out);
+        assertEquals(1, reassembler.getTimedOutCount());
+        assertEquals(1, reassembler.getPendingCount());
+        assertEquals(1376, reassembler.getBufferedBytes());
+    }
+
+    private static List<ByteBuffer> fragment(ByteBuffer packet, int mtu) throws IOException {
+        List<ByteBuffer> fragments = new ArrayList<>();
+        new Fragmenter(1500).send(packet, mtu, FragmenterTest.sink(fragments));
+        return fragments;
+    }
+}
@@ -0,0 +1,132 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class FragmenterTest {
+
+    @Test
+    public void sendsPacketThatFitsUnchanged() throws IOException {
+        ByteBuffer packet = packet(1000, 0, new Random(1));
+        List<ByteBuffer> fragments = new ArrayList<>();
+        assertEquals(1, new Fragmenter(1500).send(packet, 1400, fragments::add));
+        assertEquals(1000, fragments.get(0).remaining());
+    }
+
+    @Test
+    public void splitsOnEightByteBoundaries() throws IOException {
+        ByteBuffer packet = packet(3000, 0, new Random(2));
+        Fragmenter fragmenter = new Fragmenter(1500);
+        List<ByteBuffer> fragments = new ArrayList<>();
+
+        assertEquals(3, fragmenter.send(packet, 1400, sink(fragments)));
+        assertEquals(3, fragmenter.count(packet, 1400));
+
+        // (1400 - 20) & ~7 = 1376 payload bytes per full fragment
+        int[] lengths = {20 + 1376, 20 + 1376, 20 + 3000 - 20 - 2 * 1376};
+        for (int i = 0; i < fragments.size(); i++) {
+            ByteBuffer fragment = fragments.get(i);
+            assertEquals(lengths[i], IpPacket.totalLength(fragment));
+            assertEquals(i * 1376, IpPacket.fragmentOffset(fragment));
+            assertEquals(i < 2, IpPacket.moreFragments(fragment));
+            assertEquals(0xFFFF, Checksum.sum(fragment, 0, 20, 0));
+        }
+    }
+
+    @Test
+    public void refusesDontFragmentPacket() throws IOException {
+        ByteBuffer packet = packet(3000, IpPacket.FLAG_DONT_FRAGMENT, new Random(3));
+        Fragmenter fragmenter = new Fragmenter(1500);
+        List<ByteBuffer> fragments = new ArrayList<>();
+        assertEquals(-1, fragmenter.send(packet, 1400, sink(fragments)));
+        assertEquals(0, fragmenter.count(packet, 1400));
+        assertTrue(fragments.isEmpty());
+    }
+
+    @Test
+    public void refragmentsFragmentKeepingMoreFragmentsBit() throws IOException {
+        Fragmenter fragmenter = new Fragmenter(1500);
+        List<ByteBuffer> first = new ArrayList<>();
+        fragmenter.send(packet(3000, 0, new Random(4)), 1400, sink(first));
+
+        List<ByteBuffer> second = new ArrayList<>();
+        assertEquals(3, fragmenter.send(first.get(1), 600, sink(second)));
+        for (ByteBuffer fragment : second) {
+            // The middle fragment of the original is never the last
+            assertTrue(IpPacket.moreFragments(fragment));
+            assertTrue(IpPacket.fragmentOffset(fragment) >= 1376);
+        }
+        assertEquals(1376 + 2 * 576, IpPacket.fragmentOffset(second.get(2)));
+    }
+
+    @Test
+    public void fragmentsReassembleToOriginal() throws IOException {
+        ByteBuffer packet = packet(5000, 0, new Random(5));
+        byte[] original = bytes(packet, 5000);
+        List<ByteBuffer> fragments = new ArrayList<>();
+        new Fragmenter(1500).send(packet, 576, sink(fragments));
+
+        FragmentReassembler reassembler = new FragmentReassembler(8, 65536, 1000);
+        ByteBuffer out = ByteBuffer.allocate(65535);
+        int length = 0;
+        for (ByteBuffer fragment : fragments) {
+            assertEquals(0, length);
+            length = reassembler.offer(fragment, out);
+        }
+        assertEquals(5000, length);
+        assertArrayEquals(original, bytes(out, length));
+        assertFalse(IpPacket.moreFragments(out));
+    }
+
+    @Test
+    public void buildsFragmentationNeededError() {
+        ByteBuffer packet = packet(3000, IpPacket.FLAG_DONT_FRAGMENT, new Random(6));
+        ByteBuffer out = ByteBuffer.allocate(128);
+        int length = Fragmenter.buildFragmentationNeeded(packet, 1372, 0x0A000001, out);
+
+        assertEquals(20 + 8 + 28, length);
+        assertEquals(IpPacket.PROTO_ICMP, IpPacket.protocol(out));
+        assertEquals(IpPacket.sourceAddress(packet), IpPacket.destinationAddress(out));
+        assertEquals(1372, out.getShort(20 + 6) & 0xFFFF);
+        assertEquals(0xFFFF, Checksum.sum(out, 0, 20, 0));
+        assertEquals(0xFFFF, Checksum.sum(out, 20, length - 20, 0));
+    }
+
+    static ByteBuffer packet(int length, int flags, Random random) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        ByteBuffer packet = ByteBuffer.wrap(data);
+        packet.put(0, (byte) 0x45);
+        packet.put(1, (byte) 0);
+        packet.putShort(IpPacket.IPV4_TOTAL_LENGTH_OFFSET, (short) length);
+        packet.putShort(IpPacket.IPV4_ID_OFFSET, (short) random.nextInt(0x10000));
+        packet.putShort(IpPacket.IPV4_FRAGMENT_OFFSET, (short) flags);
+        packet.put(IpPacket.IPV4_PROTOCOL_OFFSET, (byte) IpPacket.PROTO_UDP);
+        packet.putInt(IpPacket.IPV4_SRC_OFFSET, 0x0A000002);
+        packet.putInt(IpPacket.IPV4_DST_OFFSET, 0xC0A80101);
+        Checksum.recomputeIpv4HeaderChecksum(packet);
+        return packet;
+    }
+
+    static Fragmenter.Sink sink(List<ByteBuffer> fragments) {
+        // The fragmenter reuses its scratch buffer, so each fragment is copied
+        return fragment -> fragments.add(ByteBuffer.wrap(bytes(fragment, fragment.remaining())));
+    }
+
+    static byte[] bytes(ByteBuffer buf, int length) {
+        byte[] copy = new byte[length];
+        for (int i = 0; i < length; i++) {
+            copy[i] = buf.get(i);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,75 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class HandshakeRttTest {
+    private static final int SYN = 0x02;
+    private static final int RST = 0x04;
+    private static final int PSH = 0x08;
+    private static final int ACK = 0x10;
+    private static final long MS = 1_000_000;
+
+    private final Flow flow = new Flow(((long) 0x0A000002 << 32) | 0x5DB8D822L,
+            ((long) 50000 << 24) | (443L << 8) | IpPacket.PROTO_TCP, 0);
+
+    @Test
+    public void handshakeGivesOneSample() {
+        assertEquals(HandshakeRtt.NO_SAMPLE, send(SYN, 0, 100 * MS));
+        assertEquals(40 * MS, send(ACK, 0, 140 * MS));
+
+        // Established: later segments are not timed
+        assertEquals(HandshakeRtt.NO_SAMPLE, send(ACK | PSH, 100, 150 * MS));
+    }
+
+    @Test
+    public void retransmittedSynGivesNoSample() {
+        send(SYN, 0, 100 * MS);
+        send(SYN, 0, 1100 * MS);
+        assertEquals(HandshakeRtt.NO_SAMPLE, send(ACK, 0, 1140 * MS));
+    }
+
+    @Test
+    public void flowSeenMidConnectionGivesNoSample() {
+        assertEquals(HandshakeRtt.NO_SAMPLE, send(ACK | PSH, 100, 100 * MS));
+    }
+
+    @Test
+    public void resetGivesNoSample() {
+        send(SYN, 0, 100 * MS);
+        assertEquals(HandshakeRtt.NO_SAMPLE, send(RST | ACK, 0, 140 * MS));
+    }
+
+    @Test
+    public void truncatedSegmentIsIgnored() {
+        send(SYN, 0, 100 * MS);
+        ByteBuffer truncated = segment(ACK, 0);
+        truncated.putShort(IpPacket.IPV4_TOTAL_LENGTH_OFFSET, (short) 30);
+        assertEquals(HandshakeRtt.NO_SAMPLE, HandshakeRtt.track(flow, truncated, 140 * MS));
+        assertEquals(40 * MS, send(ACK, 0, 140 * MS));
+    }
+
+    private long send(int flags, int payload, long nowNanos) {
+        ByteBuffer packet = segment(flags, payload);
+        // As on the reader: timed first, then tracked, which marks the flow established
+        long sample = HandshakeRtt.track(flow, packet, nowNanos);
+        TcpReset.track(flow, packet);
+        return sample;
+    }
+
+    private static ByteBuffer segment(int flags, int payload) {
+        ByteBuffer packet = ByteBuffer.allocate(40 + payload);
+        packet.put(0, (byte) 0x45);
+        packet.putShort(IpPacket.IPV4_TOTAL_LENGTH_OFFSET, (short) (40 + payload));
+        packet.put(IpPacket.IPV4_PROTOCOL_OFFSET, (byte) IpPacket.PROTO_TCP);
+        packet.putInt(IpPacket.IPV4_SRC_OFFSET, 0x0A000002);
+        packet.putInt(IpPacket.IPV4_DST_OFFSET, 0x5DB8D822);
+        packet.putShort(20, (short) 50000);
+        packet.putShort(22, (short) 443);
+        packet.put(20 + 12, (byte) 0x50);
+        packet.put(20 + 13, (byte) flags);
+        return packet;
+    }
+}
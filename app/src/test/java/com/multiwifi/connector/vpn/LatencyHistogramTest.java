@@ -0,0 +1,125 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    private static final long MAX_VALUE = (1L << 36) - 1;
+
+    @Test
+    public void indexOfBoundaries() {
+        // Below 128 every value has its own bucket
+        assertEquals(0, LatencyHistogram.indexOf(0));
+        assertEquals(63, LatencyHistogram.indexOf(63));
+        assertEquals(64, LatencyHistogram.indexOf(64));
+        assertEquals(127, LatencyHistogram.indexOf(127));
+        assertEquals(128, LatencyHistogram.indexOf(128));
+        assertEquals(128, LatencyHistogram.indexOf(129));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(MAX_VALUE));
+        assertEquals(MAX_VALUE, LatencyHistogram.highestEquivalentValue(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void bucketsAreContiguousAndWithinOneSixtyFourth() {
+        long previous = -1;
+        for (int index = 0; index < LatencyHistogram.BUCKETS; index++) {
+            long highest = LatencyHistogram.highestEquivalentValue(index);
+            assertEquals("bucket " + index, index, LatencyHistogram.indexOf(highest));
+            assertEquals("bucket " + index, index, LatencyHistogram.indexOf(previous + 1));
+            long lowest = previous + 1;
+            assertTrue("bucket " + index, highest - lowest <= lowest / 64);
+            previous = highest;
+        }
+        assertEquals(MAX_VALUE, previous);
+    }
+
+    @Test
+    public void clampsOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        histogram.record(Long.MIN_VALUE);
+        assertEquals(0, percentile(histogram, 100));
+
+        histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(1L << 40);
+        assertEquals(MAX_VALUE, percentile(histogram, 0));
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        assertEquals(0, percentile(new LatencyHistogram(), 99));
+    }
+
+    @Test
+    public void uniformPercentiles() {
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i + 1;
+        }
+        checkPercentiles(values);
+    }
+
+    @Test
+    public void exponentialPercentiles() {
+        // A long tail over several powers of two, as queueing latencies have
+        Random random = new Random(7);
+        long[] values = new long[200_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (-Math.log(1 - random.nextDouble()) * 50_000);
+        }
+        checkPercentiles(values);
+    }
+
+    @Test
+    public void mergedCountsMatchOneHistogram() {
+        Random random = new Random(11);
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        LatencyHistogram all = new LatencyHistogram();
+        for (int i = 0; i < 50_000; i++) {
+            long value = (long) Math.exp(random.nextDouble() * 20);
+            (i % 3 == 0 ? first : second).record(value);
+            all.record(value);
+        }
+        long[] merged = new long[LatencyHistogram.BUCKETS];
+        first.addTo(merged);
+        second.addTo(merged);
+        long[] expected = new long[LatencyHistogram.BUCKETS];
+        all.addTo(expected);
+        assertArrayEquals(expected, merged);
+        for (double p : new double[] {50, 99, 99.9}) {
+            assertEquals(LatencyHistogram.percentile(expected, p), LatencyHistogram.percentile(merged, p));
+        }
+    }
+
+    /**
+     * Checks p50, p99 and p99.9 are the upper bound of the bucket holding the exact value,
+     * so never below it and at most 1/64 above
+     */
+    private static void checkPercentiles(long[] values) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value : values) {
+            histogram.record(value);
+        }
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double p : new double[] {50, 99, 99.9}) {
+            long exact = sorted[(int) Math.ceil(sorted.length * p / 100.0) - 1];
+            long reported = percentile(histogram, p);
+            assertTrue("p" + p + " " + reported + " vs " + exact, reported >= exact);
+            assertTrue("p" + p + " " + reported + " vs " + exact, reported - exact <= exact / 64);
+        }
+    }
+
+    private static long percentile(LatencyHistogram histogram, double percentile) {
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        histogram.addTo(counts);
+        return LatencyHistogram.percentile(counts, percentile);
+    }
+}
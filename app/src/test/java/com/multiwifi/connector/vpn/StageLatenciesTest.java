@@ -0,0 +1,45 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import org.junit.Test;
+
+public class StageLatenciesTest {
+
+    @Test
+    public void mergesRecorders() {
+        StageLatencies latencies = new StageLatencies();
+        StageLatencies.Recorder reader = latencies.newRecorder();
+        StageLatencies.Recorder writer = latencies.newRecorder();
+        for (int i = 1; i <= 100; i++) {
+            reader.record(StageLatencies.Stage.READ, 1000);
+            writer.recordWrite("home", i);
+        }
+        Map<String, long[]> percentiles = latencies.percentiles();
+        assertArrayEquals(new long[] {1007, 1007, 1007}, percentiles.get("READ"));
+        assertArrayEquals(new long[] {50, 99, 100}, percentiles.get("WRITE"));
+        assertArrayEquals(new long[] {50, 99, 100}, percentiles.get("WRITE:home"));
+        assertArrayEquals(new long[] {0, 0, 0}, percentiles.get("PARSE"));
+    }
+
+    @Test
+    public void releasedSamplesAreKept() {
+        StageLatencies latencies = new StageLatencies();
+        StageLatencies.Recorder tunnel = latencies.newRecorder();
+        for (int i = 0; i < 99; i++) {
+            tunnel.recordWrite("home", 10);
+        }
+        latencies.release(tunnel);
+        // Releasing twice must not count the samples twice
+        latencies.release(tunnel);
+
+        // The restarted tunnel's samples add to the retired ones
+        StageLatencies.Recorder restarted = latencies.newRecorder();
+        restarted.recordWrite("home", 120);
+        Map<String, long[]> percentiles = latencies.percentiles();
+        assertArrayEquals(new long[] {10, 10, 120}, percentiles.get("WRITE:home"));
+        assertEquals(StageLatencies.Stage.values().length + 1, percentiles.size());
+    }
+}
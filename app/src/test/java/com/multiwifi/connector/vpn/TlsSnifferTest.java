@@ -0,0 +1,190 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class TlsSnifferTest {
+    private static final int EXTENSION_SERVER_NAME = 0x0000;
+    private static final int EXTENSION_SUPPORTED_GROUPS = 0x000A;
+    private static final int EXTENSION_ALPN = 0x0010;
+
+    @Test
+    public void findsServerName() {
+        ByteBuffer record = ByteBuffer.wrap(record(clientHello("Example.COM", 32)));
+        long name = TlsSniffer.findInRecord(record, 0, record.capacity());
+        assertEquals("example.com", TlsSniffer.toHostName(record, name));
+        assertEquals(11, TlsSniffer.nameLength(name));
+    }
+
+    @Test
+    public void findsServerNameAtAnOffset() {
+        byte[] record = record(clientHello("example.org", 0));
+        byte[] segment = new byte[record.length + 40];
+        System.arraycopy(record, 0, segment, 40, record.length);
+        ByteBuffer buf = ByteBuffer.wrap(segment);
+        assertEquals("example.org", TlsSniffer.toHostName(buf, TlsSniffer.findInRecord(buf, 40, record.length)));
+    }
+
+    @Test
+    public void truncatedRecordsYieldNotFound() {
+        byte[] record = record(clientHello("example.com", 32));
+        int nameEnd = indexOf(record, "example.com".getBytes(StandardCharsets.US_ASCII)) + 11;
+        for (int length = 0; length < record.length; length++) {
+            // Sized to the truncated length, so any read past it throws
+            ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(record, length));
+            long name = TlsSniffer.findInRecord(truncated, 0, length);
+            if (length < nameEnd) {
+                assertEquals("length " + length, TlsSniffer.NOT_FOUND, name);
+            } else {
+                assertEquals("example.com", TlsSniffer.toHostName(truncated, name));
+            }
+        }
+    }
+
+    @Test
+    public void clientHelloSplitAcrossRecords() {
+        byte[] handshake = clientHello("example.com", 32);
+        int nameStart = indexOf(handshake, "example.com".getBytes(StandardCharsets.US_ASCII));
+
+        // Only the first record is parsed: a name in the second one is not found
+        byte[] split = concat(record(Arrays.copyOf(handshake, nameStart - 4)),
+                record(Arrays.copyOfRange(handshake, nameStart - 4, handshake.length)));
+        ByteBuffer buf = ByteBuffer.wrap(split);
+        assertEquals(TlsSniffer.NOT_FOUND, TlsSniffer.findInRecord(buf, 0, split.length));
+
+        // A name entirely in the first record is found, whatever follows
+        split = concat(record(Arrays.copyOf(handshake, nameStart + 11)),
+                record(Arrays.copyOfRange(handshake, nameStart + 11, handshake.length)));
+        buf = ByteBuffer.wrap(split);
+        assertEquals("example.com", TlsSniffer.toHostName(buf, TlsSniffer.findInRecord(buf, 0, split.length)));
+    }
+
+    @Test
+    public void missingServerNameYieldsNotFound() {
+        ByteBuffer record = ByteBuffer.wrap(record(clientHello(null, 32)));
+        assertEquals(TlsSniffer.NOT_FOUND, TlsSniffer.findInRecord(record, 0, record.capacity()));
+    }
+
+    @Test
+    public void rejectsOtherRecords() {
+        byte[] record = record(clientHello("example.com", 0));
+        record[0] = 0x17; // Application data
+        assertEquals(TlsSniffer.NOT_FOUND, TlsSniffer.findInRecord(ByteBuffer.wrap(record), 0, record.length));
+
+        record = record(clientHello("example.com", 0));
+        record[5] = 0x02; // ServerHello
+        assertEquals(TlsSniffer.NOT_FOUND, TlsSniffer.findInRecord(ByteBuffer.wrap(record), 0, record.length));
+    }
+
+    @Test
+    public void oversizeLengthFieldsYieldNotFound() {
+        byte[] handshake = clientHello("example.com", 32);
+        int sessionId = 4 + 34;
+        int cipherSuites = sessionId + 1 + (handshake[sessionId] & 0xFF);
+        int nameStart = indexOf(handshake, "example.com".getBytes(StandardCharsets.US_ASCII));
+
+        // Session ID, cipher suites, extensions, server name extension, name list, name
+        int[] fields = {sessionId, cipherSuites, cipherSuites + 8, nameStart - 7, nameStart - 5, nameStart - 2};
+        int[] widths = {1, 2, 2, 2, 2, 2};
+        for (int i = 0; i < fields.length; i++) {
+            byte[] corrupted = handshake.clone();
+            for (int b = 0; b < widths[i]; b++) {
+                corrupted[fields[i] + b] = (byte) 0xFF;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(corrupted);
+            long name = TlsSniffer.findInHandshake(buf, 0, corrupted.length);
+            assertTrue("field " + i, name == TlsSniffer.NOT_FOUND
+                    || TlsSniffer.nameOffset(name) + TlsSniffer.nameLength(name) <= corrupted.length);
+        }
+
+        // A record length beyond the bytes available is cut to what is there
+        byte[] record = record(handshake);
+        record[3] = (byte) 0xFF;
+        record[4] = (byte) 0xFF;
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        assertEquals("example.com", TlsSniffer.toHostName(buf, TlsSniffer.findInRecord(buf, 0, record.length)));
+    }
+
+    /**
+     * Builds a ClientHello handshake message
+     *
+     * @param serverName Host name for the server_name extension, or null to leave it out
+     * @param sessionIdLength Length of the legacy session ID
+     */
+    static byte[] clientHello(String serverName, int sessionIdLength) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(0x03);
+        body.write(0x03);
+        body.write(new byte[32], 0, 32);
+        body.write(sessionIdLength);
+        body.write(new byte[sessionIdLength], 0, sessionIdLength);
+        writeVector(body, new byte[] {0x13, 0x01, 0x13, 0x02}, 2);
+        writeVector(body, new byte[] {0x00}, 1);
+
+        ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+        writeExtension(extensions, EXTENSION_SUPPORTED_GROUPS, new byte[] {0x00, 0x02, 0x00, 0x1D});
+        if (serverName != null) {
+            byte[] name = serverName.getBytes(StandardCharsets.US_ASCII);
+            ByteArrayOutputStream entry = new ByteArrayOutputStream();
+            entry.write(0); // host_name
+            writeVector(entry, name, 2);
+            ByteArrayOutputStream list = new ByteArrayOutputStream();
+            writeVector(list, entry.toByteArray(), 2);
+            writeExtension(extensions, EXTENSION_SERVER_NAME, list.toByteArray());
+        }
+        writeExtension(extensions, EXTENSION_ALPN, new byte[] {0x00, 0x03, 0x02, 'h', '2'});
+        writeVector(body, extensions.toByteArray(), 2);
+
+        ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+        handshake.write(0x01); // ClientHello
+        writeVector(handshake, body.toByteArray(), 3);
+        return handshake.toByteArray();
+    }
+
+    private static byte[] record(byte[] fragment) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(0x16); // Handshake
+        record.write(0x03);
+        record.write(0x01);
+        writeVector(record, fragment, 2);
+        return record.toByteArray();
+    }
+
+    private static void writeExtension(ByteArrayOutputStream out, int type, byte[] data) {
+        out.write(type >>> 8);
+        out.write(type);
+        writeVector(out, data, 2);
+    }
+
+    private static void writeVector(ByteArrayOutputStream out, byte[] data, int lengthBytes) {
+        for (int i = lengthBytes - 1; i >= 0; i--) {
+            out.write(data.length >>> (8 * i));
+        }
+        out.write(data, 0, data.length);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,97 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class TunnelQueueTest {
+
+    @Test
+    public void roundsCapacityUpAndTracksCredit() {
+        TunnelQueue queue = new TunnelQueue(5, 64);
+        assertEquals(8, queue.capacity());
+        ByteBuffer packet = ByteBuffer.allocate(16);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(packet));
+        }
+        assertEquals(0, queue.credit());
+        assertFalse(queue.offer(packet));
+
+        assertNotNull(queue.take(0, TimeUnit.MILLISECONDS));
+        queue.release();
+        assertEquals(1, queue.credit());
+    }
+
+    @Test
+    public void emptyQueueTimesOut() {
+        assertNull(new TunnelQueue(4, 64).take(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void producerAndConsumerKeepOrderWithoutLoss() throws Exception {
+        int packets = 1_000_000;
+        TunnelQueue queue = new TunnelQueue(64, 64);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int expected = 0; expected < packets; expected++) {
+                    ByteBuffer packet;
+                    while ((packet = queue.take(1, TimeUnit.SECONDS)) == null) {
+                        // Producer preempted
+                    }
+                    // Varying lengths catch a slot read before it was filled
+                    assertEquals(4 + expected % 32, packet.remaining());
+                    assertEquals(expected, packet.getInt(packet.position()));
+                    queue.release();
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        consumer.start();
+
+        ByteBuffer packet = ByteBuffer.allocate(64);
+        long full = 0;
+        for (int i = 0; i < packets; i++) {
+            packet.clear();
+            packet.putInt(0, i).limit(4 + i % 32);
+            while (!queue.offer(packet)) {
+                full++;
+                Thread.yield();
+            }
+        }
+        consumer.join(60_000);
+        assertFalse(consumer.isAlive());
+        if (failure.get() != null) {
+            throw new AssertionError("Consumer failed after " + full + " full offers", failure.get());
+        }
+        assertEquals(queue.capacity(), queue.credit());
+    }
+
+    @Test
+    public void offerWakesParkedConsumer() throws Exception {
+        TunnelQueue queue = new TunnelQueue(4, 64);
+        AtomicReference<ByteBuffer> received = new AtomicReference<>();
+        Thread consumer = new Thread(() -> received.set(queue.take(30, TimeUnit.SECONDS)));
+        consumer.start();
+        while (consumer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+
+        ByteBuffer packet = ByteBuffer.allocate(4);
+        packet.putInt(0, 42);
+        assertTrue(queue.offer(packet));
+        // Well within the consumer's timeout: it was woken, not timed out
+        consumer.join(10_000);
+        assertFalse(consumer.isAlive());
+        assertEquals(42, received.get().getInt(0));
+    }
+}
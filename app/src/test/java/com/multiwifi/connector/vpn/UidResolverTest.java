@@ -0,0 +1,97 @@
+package com.multiwifi.connector.vpn;
+
+import static org.junit.Assert.assertEquals;
+
+import com.multiwifi.connector.model.AppPolicy;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import org.junit.Test;
+
+public class UidResolverTest {
+    private static final int APP_UID = 10123;
+
+    private final Queue<Runnable> queued = new ArrayDeque<>();
+    private int lookups;
+
+    private final UidResolver resolver = new UidResolver(
+            (protocol, sourceAddress, sourcePort, destinationAddress, destinationPort) -> {
+                lookups++;
+                return APP_UID;
+            }, queued::add);
+
+    @Test
+    public void flowIsPendingUntilTheLookupRuns() {
+        Flow flow = flow(50000, 443);
+        assertEquals(UidResolver.PENDING, resolver.resolve(flow));
+        assertEquals(UidResolver.PENDING, resolver.poll(flow));
+        assertEquals(0, lookups);
+
+        runQueued();
+        assertEquals(APP_UID, resolver.poll(flow));
+        assertEquals(1, lookups);
+    }
+
+    @Test
+    public void flowsOnTheSameSocketShareOneLookup() {
+        Flow first = flow(50000, 53);
+        Flow second = flow(50000, 5353);
+        resolver.resolve(first);
+        assertEquals(UidResolver.PENDING, resolver.resolve(second));
+        runQueued();
+        assertEquals(APP_UID, resolver.resolve(flow(50000, 853)));
+        assertEquals(1, lookups);
+    }
+
+    @Test
+    public void releasedPortIsLookedUpAgain() {
+        Flow flow = flow(50000, 443);
+        resolver.resolve(flow);
+        runQueued();
+        resolver.release(flow);
+        assertEquals(0, resolver.size());
+
+        assertEquals(UidResolver.PENDING, resolver.resolve(flow(50000, 80)));
+        runQueued();
+        assertEquals(2, lookups);
+    }
+
+    @Test
+    public void pendingFlowRequeuesWhenAnotherReleasedItsPort() {
+        Flow first = flow(50000, 53);
+        Flow second = flow(50000, 5353);
+        resolver.resolve(first);
+        resolver.resolve(second);
+        resolver.release(first);
+
+        // The stale result is dropped, the poll queues a fresh lookup
+        runQueued();
+        assertEquals(UidResolver.PENDING, resolver.poll(second));
+        runQueued();
+        assertEquals(APP_UID, resolver.poll(second));
+    }
+
+    @Test
+    public void failedLookupIsUnknown() {
+        UidResolver failing = new UidResolver(
+                (protocol, sourceAddress, sourcePort, destinationAddress, destinationPort) -> {
+                    throw new SecurityException("no permission");
+                }, Runnable::run);
+        Flow flow = flow(50000, 443);
+        failing.resolve(flow);
+        assertEquals(AppPolicy.UID_UNKNOWN, failing.poll(flow));
+    }
+
+    private void runQueued() {
+        Runnable task;
+        while ((task = queued.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private static Flow flow(int sourcePort, int destinationPort) {
+        long addressKey = ((long) 0x0A000002 << 32) | 0x08080808L;
+        long portKey = ((long) sourcePort << 24) | ((long) destinationPort << 8) | IpPacket.PROTO_UDP;
+        return new Flow(addressKey, portKey, 0);
+    }
+}